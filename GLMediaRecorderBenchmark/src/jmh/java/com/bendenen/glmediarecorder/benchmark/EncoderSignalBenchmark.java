@@ -0,0 +1,59 @@
+package com.bendenen.glmediarecorder.benchmark;
+
+import com.bendenen.glmediarecorder.utils.DrainSignal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signaling between the thread that gives frames(MediaEncoder#frameAvailableSoon) and the encoder thread
+ * waiting in MediaEncoder#run. "drainLoop" runs both sides on their own thread like on device,
+ * the consumer waits at most 1ms so an iteration can end while it is parked.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncoderSignalBenchmark {
+    private final DrainSignal mSignal = new DrainSignal();
+    private Thread mConsumer;
+
+    @Benchmark
+    @Group("drainLoop")
+    @GroupThreads(1)
+    public void frameAvailable() {
+        mSignal.signal();
+    }
+
+    @Benchmark
+    @Group("drainLoop")
+    @GroupThreads(1)
+    public int drain() throws InterruptedException {
+        if (mConsumer != Thread.currentThread()) {
+            mConsumer = Thread.currentThread();
+            mSignal.bindConsumer();
+        }
+        return mSignal.await(1, TimeUnit.MILLISECONDS);
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+        final DrainSignal mSignal = new DrainSignal();
+    }
+
+    /**
+     * signal and take on one thread, cost without wakeup
+     */
+    @Benchmark
+    public int signalAndPoll(final Local local) {
+        local.mSignal.signal();
+        return local.mSignal.poll();
+    }
+}
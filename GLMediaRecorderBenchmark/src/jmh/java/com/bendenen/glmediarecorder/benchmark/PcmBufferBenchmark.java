@@ -0,0 +1,54 @@
+package com.bendenen.glmediarecorder.benchmark;
+
+import com.bendenen.glmediarecorder.utils.PcmRingBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One 16bit PCM chunk through PcmRingBuffer, from the capture side(AudioRecord#read) to the codec feeder.
+ * The ring holds 16 chunks, chunks wrap around its end with padding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PcmBufferBenchmark {
+
+    @Param({"256", "1024", "4096"})
+    public int chunkSamples;
+
+    @Param({"1", "2"})
+    public int channelCount;
+
+    private PcmRingBuffer mRing;
+    private ByteBuffer mSrc;
+    private ByteBuffer mDst;
+    private long mPosition;
+
+    @Setup
+    public void setup() {
+        final int chunkBytes = chunkSamples * channelCount * 2;
+        // not a multiple of the record size, so chunks wrap with padding
+        mRing = new PcmRingBuffer(chunkBytes * 16 + 48, chunkBytes);
+        mSrc = ByteBuffer.allocateDirect(chunkBytes);
+        mDst = ByteBuffer.allocateDirect(chunkBytes);
+    }
+
+    @Benchmark
+    public int writeAndRead() {
+        mSrc.clear();
+        mRing.write(mSrc, mPosition);
+        mPosition += chunkSamples;
+        mDst.clear();
+        return mRing.read(mDst);
+    }
+}
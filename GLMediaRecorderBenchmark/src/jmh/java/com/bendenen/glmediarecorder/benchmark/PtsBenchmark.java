@@ -0,0 +1,69 @@
+package com.bendenen.glmediarecorder.benchmark;
+
+import com.bendenen.glmediarecorder.encoder.AudioSampleClock;
+import com.bendenen.glmediarecorder.utils.FramePacer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Presentation time generation for each camera frame(FramePacer) and each audio chunk(AudioSampleClock).
+ * The camera runs at 30fps with +-2ms jitter, the pacer converts it to the output frame rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PtsBenchmark {
+    private static final int TIMESTAMP_COUNT = 4096;
+    private static final long CAMERA_INTERVAL_NS = 33333333L;
+
+    @Param({"24", "30", "60"})
+    public int frameRate;
+
+    private final long[] mCameraTimestamps = new long[TIMESTAMP_COUNT];
+    private int mIndex;
+    private FramePacer mPacer;
+    private AudioSampleClock mClock;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(1);
+        long timestamp = 1000000000L;
+        for (int i = 0; i < TIMESTAMP_COUNT; i++) {
+            timestamp += CAMERA_INTERVAL_NS + random.nextInt(4000000) - 2000000;
+            mCameraTimestamps[i] = timestamp;
+        }
+        mPacer = new FramePacer(frameRate);
+        mClock = new AudioSampleClock(Samples.AUDIO_SAMPLE_RATE);
+        mClock.start(1000000L);
+    }
+
+    @Benchmark
+    public long framePacer() {
+        if (mIndex == TIMESTAMP_COUNT) {
+            mIndex = 0;
+            mPacer.reset();
+        }
+        final int count = mPacer.onFrame(mCameraTimestamps[mIndex++]);
+        long result = 0;
+        for (int i = 0; i < count; i++) {
+            result += mPacer.getOutputTimestampNs(i);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long audioSampleClock() {
+        mClock.advance(Samples.AAC_FRAME_SAMPLES);
+        return mClock.getPtsUs();
+    }
+}
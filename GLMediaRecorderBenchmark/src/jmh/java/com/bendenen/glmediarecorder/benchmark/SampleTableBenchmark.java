@@ -0,0 +1,92 @@
+package com.bendenen.glmediarecorder.benchmark;
+
+import com.bendenen.glmediarecorder.mediamuxer.FragmentedMp4Sink;
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Video frames into FragmentedMp4Sink: Annex-B to length prefix conversion, sample table(trun) entries
+ * and a moof/mdat fragment every second. The file is on the local temp directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SampleTableBenchmark {
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"30", "60"})
+    public int frameRate;
+
+    @Param({"1", "2"})
+    public int trackCount;
+
+    private ByteBuffer mVideo;
+    private ByteBuffer mAudio;
+    private final SampleInfo mInfo = new SampleInfo();
+    private File mFile;
+    private FragmentedMp4Sink mSink;
+    private long mVideoFrames;
+    private long mAudioFrames;
+
+    @Setup(Level.Trial)
+    public void allocate() {
+        mVideo = Samples.videoFrame(Samples.videoFrameBytes(resolution));
+        mAudio = Samples.audioFrame();
+    }
+
+    @Setup(Level.Iteration)
+    public void start() throws IOException {
+        mFile = File.createTempFile("benchmark", ".mp4");
+        mSink = new FragmentedMp4Sink(mFile);
+        mSink.addTrack(Samples.videoFormat(resolution));
+        if (trackCount > 1) {
+            mSink.addTrack(Samples.audioFormat());
+        }
+        mSink.start();
+        mVideoFrames = mAudioFrames = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() throws IOException {
+        try {
+            mSink.stop();
+        } finally {
+            mSink.release();
+            mFile.delete();
+        }
+    }
+
+    @Benchmark
+    public void writeSample() throws IOException {
+        final long ptsUs = mVideoFrames * 1000000L / frameRate;
+        final int flags = (mVideoFrames % frameRate) == 0 ? SampleInfo.FLAG_SYNC_FRAME : 0;
+        mVideoFrames++;
+        mInfo.set(0, mVideo.limit(), ptsUs, flags);
+        mSink.writeSampleData(0, mVideo, mInfo);
+        if (trackCount > 1) {
+            long audioPtsUs;
+            while ((audioPtsUs = Samples.audioPtsUs(mAudioFrames)) <= ptsUs) {
+                mInfo.set(0, Samples.AAC_FRAME_BYTES, audioPtsUs, SampleInfo.FLAG_SYNC_FRAME);
+                mSink.writeSampleData(1, mAudio, mInfo);
+                mAudioFrames++;
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.bendenen.glmediarecorder.benchmark;
+
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.SampleWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sustained rate of video frames through SampleWriter: copy into pooled buffers, interleave by presentation time
+ * on the writer thread and hand over to a sink that only counts.
+ * With two tracks AAC frames are queued between the video frames as the audio encoder would.
+ * When the pool is exhausted #enqueue waits for the writer, so this is the throughput of the whole stage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SampleWriterBenchmark {
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"30", "60"})
+    public int frameRate;
+
+    @Param({"1", "2"})
+    public int trackCount;
+
+    private ByteBuffer mVideo;
+    private ByteBuffer mAudio;
+    private int mVideoSize;
+    private SampleWriter mWriter;
+    private long mVideoFrames;
+    private long mAudioFrames;
+
+    @Setup(Level.Trial)
+    public void allocate() {
+        mVideoSize = Samples.videoFrameBytes(resolution);
+        mVideo = Samples.videoFrame(mVideoSize);
+        mAudio = Samples.audioFrame();
+    }
+
+    @Setup(Level.Iteration)
+    public void start() {
+        mWriter = new SampleWriter(new Samples.NullSink(), trackCount);
+        mWriter.start();
+        mVideoFrames = mAudioFrames = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void finish() throws InterruptedException {
+        mWriter.finish();
+        while (!mWriter.isFinished()) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Benchmark
+    public boolean interleave() {
+        final long ptsUs = mVideoFrames * 1000000L / frameRate;
+        final int flags = (mVideoFrames % frameRate) == 0 ? SampleInfo.FLAG_SYNC_FRAME : 0;
+        mVideoFrames++;
+        final boolean result = mWriter.enqueue(0, mVideo, 0, mVideoSize, ptsUs, flags);
+        if (trackCount > 1) {
+            long audioPtsUs;
+            while ((audioPtsUs = Samples.audioPtsUs(mAudioFrames)) <= ptsUs) {
+                mWriter.enqueue(1, mAudio, 0, Samples.AAC_FRAME_BYTES, audioPtsUs, SampleInfo.FLAG_SYNC_FRAME);
+                mAudioFrames++;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,111 @@
+package com.bendenen.glmediarecorder.benchmark;
+
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.SampleSink;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic encoded samples with the sizes the library produces on device.
+ * Video frame size follows MediaVideoEncoder#calcBitRate(BPP x frame rate x width x height),
+ * audio is AAC at 44.1kHz and 128kbps.
+ */
+final class Samples {
+    /**
+     * bits per pixel of MediaVideoEncoder
+     */
+    static final float BPP = 0.25f;
+    static final int AUDIO_SAMPLE_RATE = 44100;
+    static final int AAC_FRAME_SAMPLES = 1024;
+    static final int AAC_FRAME_BYTES = 128000 / 8 * AAC_FRAME_SAMPLES / AUDIO_SAMPLE_RATE;
+
+    static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1F, 0x11, 0x22};
+    static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    private Samples() {
+    }
+
+    /**
+     * @param resolution "width x height", e.g. "1280x720"
+     * @return bytes of an average encoded video frame
+     */
+    static int videoFrameBytes(final String resolution) {
+        final int x = resolution.indexOf('x');
+        final int width = Integer.parseInt(resolution.substring(0, x));
+        final int height = Integer.parseInt(resolution.substring(x + 1));
+        return (int) (BPP * width * height / 8);
+    }
+
+    static TrackFormat videoFormat(final String resolution) {
+        final int x = resolution.indexOf('x');
+        return TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC,
+                Integer.parseInt(resolution.substring(0, x)), Integer.parseInt(resolution.substring(x + 1)), SPS, PPS);
+    }
+
+    static TrackFormat audioFormat() {
+        return TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, AUDIO_SAMPLE_RATE, 1, null);
+    }
+
+    /**
+     * @return Annex-B video frame, one IDR slice without zero bytes after the start code
+     */
+    static ByteBuffer videoFrame(final int size) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(new byte[]{0, 0, 0, 1, 0x65});
+        final Random random = new Random(size);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) (1 + random.nextInt(255)));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer audioFrame() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(AAC_FRAME_BYTES);
+        final Random random = new Random(AAC_FRAME_BYTES);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) random.nextInt(256));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return presentation time of the audio frame
+     */
+    static long audioPtsUs(final long frame) {
+        return frame * AAC_FRAME_SAMPLES * 1000000L / AUDIO_SAMPLE_RATE;
+    }
+
+    /**
+     * sink that only counts, to measure the stage in front of it
+     */
+    static final class NullSink implements SampleSink {
+        private int mTrackCount;
+        volatile long mBytes;
+
+        @Override
+        public int addTrack(final TrackFormat format) {
+            return mTrackCount++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) {
+            mBytes += info.size;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
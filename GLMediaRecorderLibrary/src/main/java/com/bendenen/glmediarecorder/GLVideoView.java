@@ -18,10 +18,16 @@ import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.WindowManager;
 
+import com.bendenen.glmediarecorder.encoder.CodecCapabilityScanner;
 import com.bendenen.glmediarecorder.encoder.MediaVideoEncoder;
+import com.bendenen.glmediarecorder.glmodels.FrameBufferRing;
 import com.bendenen.glmediarecorder.glmodels.GLDrawer2D;
+import com.bendenen.glmediarecorder.glmodels.ShaderProgramCache;
 import com.bendenen.glmediarecorder.utils.CameraUtils;
+import com.bendenen.glmediarecorder.utils.FramePacer;
+import com.bendenen.glmediarecorder.utils.GlUtil;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.List;
@@ -60,6 +66,8 @@ public class GLVideoView extends GLSurfaceView {
 
     public GLVideoView(final Context context, final AttributeSet attrs, final int defStyle) {
         super(context, attrs);
+        ShaderProgramCache.getInstance().setCacheDir(new File(context.getCacheDir(), "shaders"));
+        CodecCapabilityScanner.setCacheDir(context.getCacheDir());
         mRenderer = new CameraSurfaceRenderer(this);
         setEGLContextClientVersion(2);    // GLES 2.0, API >= 8
         setRenderer(mRenderer);
@@ -176,11 +184,35 @@ public class GLVideoView extends GLSurfaceView {
                         encoder.setEglContext(EGL14.eglGetCurrentContext(), mRenderer.hTex);
                     }
                     mRenderer.mVideoEncoder = encoder;
+                    mRenderer.mFramePacer.reset();
                 }
             }
         });
     }
 
+    /**
+     * @param frameRate frame rate of encoded video, FramePacer.VARIABLE_FRAME_RATE to encode every camera frame
+     */
+    public void setEncodingFrameRate(final int frameRate) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mRenderer) {
+                    mRenderer.mFramePacer = new FramePacer(frameRate);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return pacer to read drop/duplicate counters, counters are reset when frame rate is changed
+     */
+    public FramePacer getFramePacer() {
+        synchronized (mRenderer) {
+            return mRenderer.mFramePacer;
+        }
+    }
+
     //********************************************************************************
     //********************************************************************************
 
@@ -204,6 +236,19 @@ public class GLVideoView extends GLSurfaceView {
         private SurfaceTexture mSTexture;    // API >= 11
         private int hTex;
         private GLDrawer2D mDrawer;
+        /**
+         * resolves camera texture into the shared frame buffer
+         */
+        private GLDrawer2D mFrameDrawer;
+        /**
+         * draws the shared frame buffer to preview screen
+         */
+        private GLDrawer2D mPreviewDrawer;
+        /**
+         * camera frame is rendered once here, then preview and encoder sample the same texture
+         */
+        private FrameBufferRing mFrameRing;
+        private int mViewWidth, mViewHeight;
         private final float[] mStMatrix = new float[16];
         private final float[] mMvpMatrix = new float[16];
         private MediaVideoEncoder mVideoEncoder;
@@ -235,6 +280,9 @@ public class GLVideoView extends GLSurfaceView {
             // create object for preview display
             mDrawer = new GLDrawer2D();
             mDrawer.setMatrix(mMvpMatrix, 0);
+            mFrameDrawer = new GLDrawer2D();
+            mPreviewDrawer = new GLDrawer2D(false);
+            mPreviewDrawer.setMatrix(mMvpMatrix, 0);
         }
 
         @Override
@@ -260,6 +308,15 @@ public class GLVideoView extends GLSurfaceView {
                 mDrawer.release();
                 mDrawer = null;
             }
+            if (mFrameDrawer != null) {
+                mFrameDrawer.release();
+                mFrameDrawer = null;
+            }
+            if (mPreviewDrawer != null) {
+                mPreviewDrawer.release();
+                mPreviewDrawer = null;
+            }
+            releaseFrameRing();
             if (mSTexture != null) {
                 mSTexture.release();
                 mSTexture = null;
@@ -273,6 +330,8 @@ public class GLVideoView extends GLSurfaceView {
                 final int view_width = parent.getWidth();
                 final int view_height = parent.getHeight();
 
+                mViewWidth = view_width;
+                mViewHeight = view_height;
                 GLES20.glViewport(0, 0, view_width, view_height);
                 GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
@@ -296,12 +355,46 @@ public class GLVideoView extends GLSurfaceView {
                 if (mDrawer != null) {
                     mDrawer.setMatrix(mMvpMatrix, 0);
                 }
+                if (mPreviewDrawer != null) {
+                    mPreviewDrawer.setMatrix(mMvpMatrix, 0);
+                }
+
+            }
+        }
+
+        /**
+         * (re)create the shared frame buffers for current video size, this should be called on GL thread
+         *
+         * @return null if video size is not fixed yet
+         */
+        private FrameBufferRing ensureFrameRing() {
+            final GLVideoView parent = mWeakParent.get();
+            if (parent == null || parent.mVideoWidth <= 0 || parent.mVideoHeight <= 0) return mFrameRing;
+            if ((mFrameRing == null)
+                    || (mFrameRing.getWidth() != parent.mVideoWidth)
+                    || (mFrameRing.getHeight() != parent.mVideoHeight)) {
+                releaseFrameRing();
+                mFrameRing = new FrameBufferRing(parent.mVideoWidth, parent.mVideoHeight, FrameBufferRing.DEFAULT_COUNT);
+            }
+            return mFrameRing;
+        }
 
+        private void releaseFrameRing() {
+            if (mFrameRing != null) {
+                mFrameRing.release();
+                mFrameRing = null;
             }
         }
 
         private volatile boolean requesrUpdateTex = false;
-        private boolean flip = true;
+        /**
+         * selects camera frames for encoder, access with synchronized (this)
+         */
+        private FramePacer mFramePacer = new FramePacer(MediaVideoEncoder.FRAME_RATE);
+        /**
+         * capture time of the current texture image
+         */
+        private long mFrameTimestampNs;
 
         /**
          * drawing to GLSurface
@@ -313,21 +406,49 @@ public class GLVideoView extends GLSurfaceView {
         public void onDrawFrame(final GL10 unused) {
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
+            boolean newFrame = false;
             if (requesrUpdateTex) {
                 requesrUpdateTex = false;
+                newFrame = true;
                 // update texture(came from camera)
                 mSTexture.updateTexImage();
                 // get texture matrix
                 mSTexture.getTransformMatrix(mStMatrix);
+                mFrameTimestampNs = mSTexture.getTimestamp();
             }
-            // draw to preview screen
-            mDrawer.draw(hTex, mStMatrix);
-            flip = !flip;
-            if (flip) {    // ~30fps
+            int count = 0;
+            if (newFrame) {
                 synchronized (this) {
                     if (mVideoEncoder != null) {
+                        // pacer decides from camera timestamp whether this frame is encoded(once or more)
+                        count = mFramePacer.onFrame(mFrameTimestampNs);
+                    }
+                }
+            }
+            final FrameBufferRing ring = ensureFrameRing();
+            final int index = ring != null ? ring.acquire() : -1;
+            if (index < 0) {
+                // all buffers are still used by encoder, draw to preview screen directly and skip encoding
+                mDrawer.draw(hTex, mStMatrix);
+                return;
+            }
+            // resolve camera frame once into the shared buffer
+            ring.bind(index);
+            mFrameDrawer.draw(hTex, mStMatrix);
+            ring.unbind();
+            ring.publish(index, count);
+            // draw to preview screen
+            GLES20.glViewport(0, 0, mViewWidth, mViewHeight);
+            mPreviewDrawer.draw(ring.getTexture(index), GlUtil.IDENTITY_MATRIX);
+            if (count > 0) {
+                synchronized (this) {
+                    for (int i = 0; i < count; i++) {
                         // notify to capturing thread that the camera frame is available.
-                        mVideoEncoder.frameAvailableSoon(mStMatrix);
+                        if (mVideoEncoder != null) {
+                            mVideoEncoder.frameAvailableSoon(ring, index, mFramePacer.getOutputTimestampNs(i), mFrameTimestampNs);
+                        } else {
+                            ring.release(index);
+                        }
                     }
                 }
             }
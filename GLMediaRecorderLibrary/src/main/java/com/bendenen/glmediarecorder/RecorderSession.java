@@ -0,0 +1,444 @@
+package com.bendenen.glmediarecorder;
+
+import android.util.Log;
+
+import com.bendenen.glmediarecorder.encoder.BitrateController;
+import com.bendenen.glmediarecorder.encoder.MediaEncoder;
+import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerSink;
+import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+import com.bendenen.glmediarecorder.mediamuxer.SampleSink;
+import com.bendenen.glmediarecorder.mediamuxer.SampleWriter;
+import com.bendenen.glmediarecorder.utils.CompletionFuture;
+import com.bendenen.glmediarecorder.utils.FrameTracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recording session that owns the muxer and the encoders(and the render handler of the video encoder).
+ * Creating encoders, preparing codecs and binding EGL surfaces block in Object#wait, so every operation runs
+ * on the private session thread and returns a CompletionFuture immediately, the caller is never blocked.
+ * The session is one state machine driven only on the session thread:
+ * <pre>
+ * IDLE/STOPPED/ERROR -prepare-> PREPARING -> READY -start-> RECORDING <-pause/resume-> PAUSED
+ * RECORDING/PAUSED -stop-> STOPPING -> STOPPED(file is finalized, within the stop budget plus writing)
+ * RECORDING/PAUSED/STOPPING -writing failed-> ERROR(#stop fails with the write error)
+ * any -release-> RELEASED
+ * </pre>
+ * #start prepares the encoders first if the session is not READY. An operation that is not allowed
+ * in the current state fails its future with IllegalStateException, pausing while paused(etc.) just succeeds.
+ */
+public class RecorderSession {
+    private static final boolean DEBUG = false;    // TODO set false on release
+    private static final String TAG = "RecorderSession";
+
+    public enum State {
+        IDLE, PREPARING, READY, RECORDING, PAUSED, STOPPING, STOPPED, RELEASED, ERROR
+    }
+
+    public interface EncoderFactory {
+        /**
+         * create encoders bound to the muxer, called on session thread
+         *
+         * @param listener pass this to every encoder
+         */
+        public void createEncoders(MediaMuxerWrapper muxer, MediaEncoder.MediaEncoderListener listener) throws IOException;
+    }
+
+    /**
+     * result of a recording, given by the future of #stop
+     */
+    public static final class Result {
+        public final File outputFile;
+        public final long durationUs;
+        public final long bytes;
+        /**
+         * time from the stop request to the finalized file
+         */
+        public final long stopLatencyUs;
+
+        public Result(final File outputFile, final long durationUs, final long bytes, final long stopLatencyUs) {
+            this.outputFile = outputFile;
+            this.durationUs = durationUs;
+            this.bytes = bytes;
+            this.stopLatencyUs = stopLatencyUs;
+        }
+    }
+
+    public interface StateListener {
+        /**
+         * called on session thread
+         */
+        public void onStateChanged(RecorderSession session, State oldState, State newState);
+    }
+
+    private final EncoderFactory mFactory;
+    private final ExecutorService mExecutor;
+    private volatile State mState = State.IDLE;
+    private volatile StateListener mStateListener;
+    private volatile MediaMuxerWrapper mMuxer;
+    private volatile long mStopBudgetMs = MediaMuxerWrapper.DEFAULT_STOP_BUDGET_MS;
+    private volatile BitrateController mBitrateController;
+    private volatile FrameTracer mFrameTracer;
+    private final AtomicInteger mPreparedEncoders = new AtomicInteger();
+    // accessed only on session thread
+    private CompletionFuture<Result> mStopFuture;
+    /**
+     * error that ended the last recording, #stop fails with this in ERROR state
+     */
+    private Exception mRecordingError;
+
+    public RecorderSession(final EncoderFactory factory) {
+        if (factory == null) throw new NullPointerException("EncoderFactory is null");
+        mFactory = factory;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(r, TAG);
+            }
+        });
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public void setStateListener(final StateListener listener) {
+        mStateListener = listener;
+    }
+
+    /**
+     * @param budgetMs maximum time to wait for the codecs to flush on stop, applied from the next prepare
+     */
+    public void setStopBudgetMs(final long budgetMs) {
+        if (budgetMs < 0) throw new IllegalArgumentException("negative budget");
+        mStopBudgetMs = budgetMs;
+    }
+
+    /**
+     * @param controller adapts video bitrate to the load while recording, null to disable.
+     *                   applied from the next prepare
+     */
+    public void setBitrateController(final BitrateController controller) {
+        mBitrateController = controller;
+    }
+
+    /**
+     * @param tracer records per-stage latency of video frames while recording, null to disable.
+     *               applied from the next prepare
+     */
+    public void setFrameTracer(final FrameTracer tracer) {
+        mFrameTracer = tracer;
+    }
+
+    /**
+     * @return muxer of the current recording to read metrics, null if not prepared
+     */
+    public MediaMuxerWrapper getMuxer() {
+        return mMuxer;
+    }
+
+    /**
+     * create and prepare encoders while preview is running, so #start only attaches the output
+     */
+    public CompletionFuture<Void> prepare() {
+        final CompletionFuture<Void> future = new CompletionFuture<Void>();
+        execute(future, new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.READY) {
+                    if (!checkState(future, "prepare", State.IDLE, State.STOPPED, State.ERROR)) return;
+                    if (!internalPrepare(future)) return;
+                }
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * start recording to outputFile using android.media.MediaMuxer
+     */
+    public CompletionFuture<Void> start(final File outputFile) {
+        return start(outputFile, null);
+    }
+
+    /**
+     * @param sink output stage, e.g. FragmentedMp4Sink, null to use android.media.MediaMuxer
+     */
+    public CompletionFuture<Void> start(final File outputFile, final SampleSink sink) {
+        if (outputFile == null) throw new NullPointerException("outputFile is null");
+        final CompletionFuture<Void> future = new CompletionFuture<Void>();
+        execute(future, new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.READY) {
+                    if (!checkState(future, "start", State.IDLE, State.STOPPED, State.ERROR)) return;
+                    if (!internalPrepare(future)) return;
+                }
+                try {
+                    final MediaMuxerWrapper muxer = mMuxer;
+                    muxer.attachOutput(outputFile, sink != null ? sink : new MediaMuxerSink(outputFile));
+                    muxer.startRecording();
+                    setState(State.RECORDING);
+                    future.complete(null);
+                } catch (final Exception e) {
+                    onError(future, e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * discard input while the codecs keep running, the paused interval is removed from the output
+     */
+    public CompletionFuture<Void> pause() {
+        final CompletionFuture<Void> future = new CompletionFuture<Void>();
+        execute(future, new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.PAUSED) {
+                    if (!checkState(future, "pause", State.RECORDING)) return;
+                    mMuxer.pauseRecording();
+                    setState(State.PAUSED);
+                }
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * accept input again, video resumes on a sync frame within one frame interval
+     */
+    public CompletionFuture<Void> resume() {
+        final CompletionFuture<Void> future = new CompletionFuture<Void>();
+        execute(future, new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.RECORDING) {
+                    if (!checkState(future, "resume", State.PAUSED)) return;
+                    mMuxer.resumeRecording();
+                    setState(State.RECORDING);
+                }
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * flush both codecs in parallel and finalize the file
+     *
+     * @return future completed with the result once the file is ready to read
+     */
+    public CompletionFuture<Result> stop() {
+        final CompletionFuture<Result> future = new CompletionFuture<Result>();
+        execute(future, new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.STOPPING) {
+                    chain(mStopFuture, future);
+                    return;
+                }
+                if ((mState == State.ERROR) && (mRecordingError != null)) {
+                    future.fail(mRecordingError);
+                    return;
+                }
+                if (!checkState(future, "stop", State.RECORDING, State.PAUSED)) return;
+                final MediaMuxerWrapper muxer = mMuxer;
+                setState(State.STOPPING);
+                mStopFuture = future;
+                muxer.stopRecording();
+                if (muxer.isSinkFinished()) {
+                    // output already ended, e.g. the sink failed, the writer will not call back again
+                    final SampleWriter writer = muxer.getSampleWriter();
+                    onStopped(muxer, new Result(muxer.getOutputFile(),
+                            writer != null ? writer.getWrittenDurationUs() : 0,
+                            writer != null ? writer.getWrittenBytes() : 0, 0));
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * release encoders and the session thread, a recording is stopped but its stop future fails.
+     * the session can not be used after this.
+     */
+    public CompletionFuture<Void> release() {
+        final CompletionFuture<Void> future = new CompletionFuture<Void>();
+        execute(future, new Runnable() {
+            @Override
+            public void run() {
+                final MediaMuxerWrapper muxer = mMuxer;
+                mMuxer = null;
+                if (muxer != null) {
+                    if (mState == State.READY) {
+                        muxer.discard();
+                    } else {
+                        muxer.stopRecording();
+                    }
+                }
+                if (mStopFuture != null) {
+                    mStopFuture.fail(new IllegalStateException("released while stopping"));
+                    mStopFuture = null;
+                }
+                setState(State.RELEASED);
+                mExecutor.shutdown();
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+//********************************************************************************
+// run on session thread
+//********************************************************************************
+
+    private boolean internalPrepare(final CompletionFuture<?> future) {
+        setState(State.PREPARING);
+        mRecordingError = null;
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper();
+        mPreparedEncoders.set(0);
+        try {
+            muxer.setStopBudgetMs(mStopBudgetMs);
+            muxer.setBitrateController(mBitrateController, MediaMuxerWrapper.DEFAULT_BITRATE_INTERVAL_MS);
+            muxer.setFrameTracer(mFrameTracer);
+            muxer.setStopListener(new MediaMuxerWrapper.StopListener() {
+                @Override
+                public void onStopped(final File outputFile, final long durationUs, final long bytes) {
+                    postStopped(muxer, new Result(outputFile, durationUs, bytes, muxer.getStopLatencyUs()));
+                }
+            });
+            mFactory.createEncoders(muxer, mEncoderListener);
+            mMuxer = muxer;
+            muxer.prepare();
+            if (mPreparedEncoders.get() == 0) {
+                throw new IOException("no encoder was prepared");
+            }
+            setState(State.READY);
+            return true;
+        } catch (final Exception e) {
+            onError(future, e);
+            return false;
+        }
+    }
+
+    /**
+     * the sink of muxer was finalized, by #stop or because writing failed while recording
+     */
+    private void onStopped(final MediaMuxerWrapper muxer, final Result result) {
+        if (muxer != mMuxer) return;
+        final IOException error = muxer.getWriteError();
+        if ((mState == State.RECORDING) || (mState == State.PAUSED)) {
+            Log.e(TAG, "output finished while " + mState, error);
+            mMuxer = null;
+            // release the codecs, the next #stop fails at once
+            muxer.stopRecording();
+            mRecordingError = error != null ? error : new IOException("output finished while recording");
+            setState(State.ERROR);
+            return;
+        }
+        if (mState != State.STOPPING) return;
+        mMuxer = null;
+        final CompletionFuture<Result> future = mStopFuture;
+        mStopFuture = null;
+        if (error != null) {
+            mRecordingError = error;
+            setState(State.ERROR);
+            future.fail(error);
+        } else {
+            setState(State.STOPPED);
+            future.complete(result);
+        }
+    }
+
+    private boolean checkState(final CompletionFuture<?> future, final String operation, final State... allowed) {
+        for (final State state : allowed) {
+            if (mState == state) return true;
+        }
+        future.fail(new IllegalStateException(operation + " in " + mState));
+        return false;
+    }
+
+    private void setState(final State state) {
+        final State old = mState;
+        if (old == state) return;
+        mState = state;
+        if (DEBUG) Log.v(TAG, old + " -> " + state);
+        final StateListener listener = mStateListener;
+        if (listener != null) {
+            listener.onStateChanged(this, old, state);
+        }
+    }
+
+    private void onError(final CompletionFuture<?> future, final Exception e) {
+        Log.e(TAG, "failed in " + mState, e);
+        final MediaMuxerWrapper muxer = mMuxer;
+        mMuxer = null;
+        if (muxer != null) {
+            muxer.discard();
+        }
+        setState(State.ERROR);
+        future.fail(e);
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    private void execute(final CompletionFuture<?> future, final Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            future.fail(new IllegalStateException("session released"));
+        }
+    }
+
+    /**
+     * run onStopped on session thread, StopListener is called on encoder or writer thread
+     */
+    private void postStopped(final MediaMuxerWrapper muxer, final Result result) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onStopped(muxer, result);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // released
+        }
+    }
+
+    private static <V> void chain(final CompletionFuture<V> from, final CompletionFuture<V> to) {
+        from.addCallback(new CompletionFuture.Callback<V>() {
+            @Override
+            public void onComplete(final V result) {
+                to.complete(result);
+            }
+
+            @Override
+            public void onError(final Throwable error) {
+                to.fail(error);
+            }
+        });
+    }
+
+    private final MediaEncoder.MediaEncoderListener mEncoderListener = new MediaEncoder.MediaEncoderListener() {
+        @Override
+        public void onPrepared(final MediaEncoder encoder) {
+            mPreparedEncoders.incrementAndGet();
+        }
+
+        @Override
+        public void onStopped(final MediaEncoder encoder) {
+        }
+    };
+}
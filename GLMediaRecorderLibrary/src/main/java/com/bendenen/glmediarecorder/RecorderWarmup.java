@@ -0,0 +1,112 @@
+package com.bendenen.glmediarecorder;
+
+import android.util.Log;
+
+import com.bendenen.glmediarecorder.encoder.MediaEncoder;
+import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+import com.bendenen.glmediarecorder.mediamuxer.SampleSink;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Prepares a recording session while preview is running, so starting to record only attaches the output.
+ * #prepare creates the encoder threads, configures and starts MediaCodec, creates the input surface and binds it
+ * to the renderer of GLVideoView. This takes hundreds of milliseconds, call it on a private thread.
+ * A prepared session is used by one #record, prepare again for the next recording.
+ * Compare MediaMuxerWrapper#getTimeToFirstSampleUs with and without warm-up to see the gain.
+ */
+public class RecorderWarmup {
+    private static final boolean DEBUG = false;    // TODO set false on release
+    private static final String TAG = "RecorderWarmup";
+
+    private final GLVideoView mView;
+    private final MediaEncoder.MediaEncoderListener mListener;
+    private MediaMuxerWrapper mMuxer;
+    private long mPrepareTimeNs;
+
+    /**
+     * @param listener optional listener of the encoders, encoder input surface is bound to view by this class
+     */
+    public RecorderWarmup(final GLVideoView view, final MediaEncoder.MediaEncoderListener listener) {
+        if (view == null) throw new NullPointerException("GLVideoView is null");
+        mView = view;
+        mListener = listener;
+    }
+
+    /**
+     * create and prepare encoders, nothing to do if already prepared.
+     * the camera orientation and size of view are captured here, prepare again after switching camera.
+     *
+     * @param width     width of encoded video
+     * @param height    height of encoded video
+     * @param withAudio true to record audio
+     * @throws IOException
+     */
+    public synchronized void prepare(final int width, final int height, final boolean withAudio) throws IOException {
+        if (mMuxer != null) return;
+        final long start = System.nanoTime();
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper();
+        new ViewEncoderFactory(mView, width, height, withAudio).createEncoders(muxer, mListener);
+        try {
+            muxer.prepare();
+        } catch (final IOException e) {
+            muxer.discard();
+            throw e;
+        }
+        mMuxer = muxer;
+        mPrepareTimeNs = System.nanoTime() - start;
+        if (DEBUG) Log.v(TAG, "prepared in " + mPrepareTimeNs / 1000L + "us");
+    }
+
+    public synchronized boolean isPrepared() {
+        return mMuxer != null;
+    }
+
+    /**
+     * @return time the last #prepare took, this is removed from starting a recording
+     */
+    public synchronized long getPrepareTimeNs() {
+        return mPrepareTimeNs;
+    }
+
+    /**
+     * start recording to outputFile using android.media.MediaMuxer
+     *
+     * @return muxer of the recording, stop it with MediaMuxerWrapper#stopRecording
+     * @throws IOException
+     */
+    public synchronized MediaMuxerWrapper record(final File outputFile) throws IOException {
+        final MediaMuxerWrapper muxer = takeMuxer();
+        muxer.attachOutput(outputFile);
+        muxer.startRecording();
+        return muxer;
+    }
+
+    /**
+     * @param sink output stage, e.g. MediaMuxerSink or FragmentedMp4Sink
+     */
+    public synchronized MediaMuxerWrapper record(final File outputFile, final SampleSink sink) {
+        final MediaMuxerWrapper muxer = takeMuxer();
+        muxer.attachOutput(outputFile, sink);
+        muxer.startRecording();
+        return muxer;
+    }
+
+    /**
+     * release prepared encoders that were not used
+     */
+    public synchronized void release() {
+        if (mMuxer != null) {
+            mMuxer.discard();
+            mMuxer = null;
+        }
+    }
+
+    private MediaMuxerWrapper takeMuxer() {
+        if (mMuxer == null) throw new IllegalStateException("not prepared");
+        final MediaMuxerWrapper muxer = mMuxer;
+        mMuxer = null;
+        return muxer;
+    }
+}
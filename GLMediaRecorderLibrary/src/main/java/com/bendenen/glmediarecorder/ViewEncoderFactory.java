@@ -0,0 +1,61 @@
+package com.bendenen.glmediarecorder;
+
+import com.bendenen.glmediarecorder.encoder.MediaAudioEncoder;
+import com.bendenen.glmediarecorder.encoder.MediaEncoder;
+import com.bendenen.glmediarecorder.encoder.MediaVideoEncoder;
+import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+
+/**
+ * Creates the encoders for frames of a GLVideoView.
+ * The input surface of the video encoder is bound to the renderer of the view when the encoder is prepared
+ * and unbound when it stops. Camera orientation and source size are read when the encoders are created.
+ */
+public class ViewEncoderFactory implements RecorderSession.EncoderFactory {
+
+    private final GLVideoView mView;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mWithAudio;
+
+    /**
+     * @param width     width of encoded video
+     * @param height    height of encoded video
+     * @param withAudio true to record audio from internal mic
+     */
+    public ViewEncoderFactory(final GLVideoView view, final int width, final int height, final boolean withAudio) {
+        if (view == null) throw new NullPointerException("GLVideoView is null");
+        mView = view;
+        mWidth = width;
+        mHeight = height;
+        mWithAudio = withAudio;
+    }
+
+    /**
+     * @param listener optional, called after the input surface was bound/unbound
+     */
+    @Override
+    public void createEncoders(final MediaMuxerWrapper muxer, final MediaEncoder.MediaEncoderListener listener) {
+        final MediaEncoder.MediaEncoderListener viewListener = new MediaEncoder.MediaEncoderListener() {
+            @Override
+            public void onPrepared(final MediaEncoder encoder) {
+                if (encoder instanceof MediaVideoEncoder)
+                    mView.setVideoEncoder((MediaVideoEncoder) encoder);
+                if (listener != null)
+                    listener.onPrepared(encoder);
+            }
+
+            @Override
+            public void onStopped(final MediaEncoder encoder) {
+                if (encoder instanceof MediaVideoEncoder)
+                    mView.setVideoEncoder(null);
+                if (listener != null)
+                    listener.onStopped(encoder);
+            }
+        };
+        new MediaVideoEncoder(muxer, viewListener, mWidth, mHeight,
+                mView.getVideoWidth(), mView.getVideoHeight(), mView.isFrontFacing());
+        if (mWithAudio) {
+            new MediaAudioEncoder(muxer, viewListener);
+        }
+    }
+}
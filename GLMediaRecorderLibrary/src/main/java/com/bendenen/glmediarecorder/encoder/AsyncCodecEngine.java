@@ -0,0 +1,229 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.bendenen.glmediarecorder.utils.DrainSignal;
+import com.bendenen.glmediarecorder.utils.SpscQueue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * MediaCodecEngine using asynchronous callback mode of MediaCodec(API >= 21).
+ * Output buffers are passed to the callback and released on a private callback thread
+ * as soon as the codec produces them, nothing polls with timeout.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class AsyncCodecEngine extends MediaCodecEngine {
+    private static final boolean DEBUG = false;    // TODO set false on release
+    private static final String TAG = AsyncCodecEngine.class.getSimpleName();
+
+    private static final int MAX_INPUT_BUFFERS = 64;
+    private static final long RELEASE_TIMEOUT_MS = 1000;
+
+    private final HandlerThread mCallbackThread;
+    private final Handler mCallbackHandler;
+    /**
+     * set before the codec is stopped, callbacks that are already queued after that are ignored
+     */
+    private volatile boolean mReleased;
+    /**
+     * indices of free input buffers, produced on callback thread and consumed on input thread
+     */
+    private final SpscQueue<Integer> mInputIndices = new SpscQueue<Integer>(MAX_INPUT_BUFFERS);
+    private final DrainSignal mInputSignal = new DrainSignal();
+    private final CountDownLatch mEosLatch = new CountDownLatch(1);
+
+    /**
+     * create encoder whose callbacks come on a private thread
+     */
+    public static AsyncCodecEngine createEncoder(final String mimeType) throws IOException {
+        return createEncoder(mimeType, null);
+    }
+
+    /**
+     * @param codecName name of the encoder to create, null to let MediaCodec choose by type
+     */
+    public static AsyncCodecEngine createEncoder(final String mimeType, final String codecName) throws IOException {
+        final HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper());
+        final MediaCodec codec;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            codec = newEncoder(mimeType, codecName);
+        } else {
+            // MediaCodec#setCallback(Callback) delivers callbacks on the looper of the thread that created the codec
+            final FutureTask<MediaCodec> task = new FutureTask<MediaCodec>(new Callable<MediaCodec>() {
+                @Override
+                public MediaCodec call() throws Exception {
+                    return newEncoder(mimeType, codecName);
+                }
+            });
+            handler.post(task);
+            try {
+                codec = task.get();
+            } catch (final InterruptedException e) {
+                thread.quit();
+                throw new IOException("interrupted while creating codec");
+            } catch (final ExecutionException e) {
+                thread.quit();
+                throw new IOException("failed to create codec:" + mimeType, e.getCause());
+            }
+        }
+        final AsyncCodecEngine engine = new AsyncCodecEngine(codec, thread, handler);
+        // callback should be set before #configure
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            codec.setCallback(engine.mCodecCallback, handler);
+        } else {
+            codec.setCallback(engine.mCodecCallback);
+        }
+        return engine;
+    }
+
+    private AsyncCodecEngine(final MediaCodec codec, final HandlerThread callbackThread, final Handler callbackHandler) {
+        super(codec);
+        mCallbackThread = callbackThread;
+        mCallbackHandler = callbackHandler;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    public boolean queueInput(final ByteBuffer data, final int length, final long presentationTimeUs,
+                              final boolean endOfStream, final long timeoutUs) {
+        Integer index = mInputIndices.poll();
+        if (index == null) {
+            mInputSignal.bindConsumer();
+            final long deadline = System.nanoTime() + timeoutUs * 1000L;
+            while ((index = mInputIndices.poll()) == null) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                try {
+                    mInputSignal.await(remaining, TimeUnit.NANOSECONDS);
+                } catch (final InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        final ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(index);
+        inputBuffer.clear();
+        if (data != null) {
+            inputBuffer.put(data);
+        }
+        if (endOfStream) {
+            if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+            mMediaCodec.queueInputBuffer(index, 0, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        } else {
+            mMediaCodec.queueInputBuffer(index, 0, length, presentationTimeUs, 0);
+        }
+        return true;
+    }
+
+    @Override
+    public void drainOutput() {
+        // output is delivered on callback thread
+    }
+
+    @Override
+    public boolean awaitEndOfStream(final long timeoutUs) {
+        try {
+            return mEosLatch.await(timeoutUs, TimeUnit.MICROSECONDS);
+        } catch (final InterruptedException e) {
+            return mIsEOS;
+        }
+    }
+
+    /**
+     * stop and release the codec on the callback thread, so it never goes away
+     * while a callback is using its buffers
+     */
+    @Override
+    public void release() {
+        if (mReleased) return;
+        mReleased = true;
+        final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                AsyncCodecEngine.super.release();
+            }
+        }, null);
+        if (mCallbackHandler.post(task)) {
+            try {
+                task.get(RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                // the task is still queued, the codec is released after the running callback returns
+                Log.w(TAG, "callback thread is busy, codec is released later");
+            } catch (final InterruptedException e) {
+                Log.w(TAG, "interrupted while releasing codec");
+            } catch (final ExecutionException e) {
+                Log.e(TAG, "failed releasing codec", e.getCause());
+            }
+        } else {
+            // callback thread already finished
+            super.release();
+        }
+        mCallbackThread.quitSafely();
+    }
+
+    private final MediaCodec.Callback mCodecCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+            if (mReleased) return;
+            // Integer of small index is cached, this does not allocate
+            if (mInputIndices.offer(index)) {
+                mInputSignal.signal();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+            if (mReleased) return;
+            try {
+                dispatchOutput(codec.getOutputBuffer(index), info);
+            } catch (final IllegalStateException e) {
+                // codec was stopped by release while this callback was queued
+                Log.w(TAG, "output buffer is no longer available:" + e);
+                return;
+            } finally {
+                try {
+                    codec.releaseOutputBuffer(index, false);
+                } catch (final IllegalStateException e) {
+                    if (DEBUG) Log.v(TAG, "codec already stopped:" + e);
+                }
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mEosLatch.countDown();
+            }
+        }
+
+        @Override
+        public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+            if (mReleased) return;
+            Log.e(TAG, "onError:", e);
+            dispatchError(e);
+            mEosLatch.countDown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+            if (mReleased) return;
+            if (DEBUG) Log.v(TAG, "onOutputFormatChanged:" + format);
+            dispatchFormat(format);
+        }
+    };
+}
@@ -0,0 +1,75 @@
+package com.bendenen.glmediarecorder.encoder;
+
+/**
+ * Presentation time of audio samples computed from number of samples instead of the time they were read.
+ * pts = base + position / sampleRate, so scheduling jitter of the capture thread never appears in timestamps
+ * and rounding error does not accumulate over long recordings.
+ * The position counts samples passed to the codec including samples inserted or dropped for drift correction.
+ */
+public class AudioSampleClock {
+    private final int mSampleRate;
+    private volatile long mBasePtsUs = -1;
+    private long mPosition;
+
+    public AudioSampleClock(final int sampleRate) {
+        if (sampleRate <= 0) throw new IllegalArgumentException("sampleRate should be positive");
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * @param basePtsUs presentation time of the first sample
+     */
+    public void start(final long basePtsUs) {
+        mPosition = 0;
+        mBasePtsUs = basePtsUs;
+    }
+
+    public boolean isStarted() {
+        return mBasePtsUs >= 0;
+    }
+
+    public void reset() {
+        mBasePtsUs = -1;
+        mPosition = 0;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public long getBasePtsUs() {
+        return mBasePtsUs;
+    }
+
+    /**
+     * @return number of samples passed so far, this is the position of next sample
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    public void advance(final int samples) {
+        mPosition += samples;
+    }
+
+    /**
+     * @return presentation time of next sample
+     */
+    public long getPtsUs() {
+        return ptsOf(mPosition);
+    }
+
+    /**
+     * @return presentation time of the sample at position, this can be called from any thread after #start
+     */
+    public long ptsOf(final long position) {
+        return mBasePtsUs + position * 1000000L / mSampleRate;
+    }
+
+    /**
+     * @return number of samples for the duration, rounded to nearest
+     */
+    public long samplesOf(final long durationUs) {
+        return (durationUs * mSampleRate + (durationUs >= 0 ? 500000L : -500000L)) / 1000000L;
+    }
+}
@@ -0,0 +1,188 @@
+package com.bendenen.glmediarecorder.encoder;
+
+/**
+ * Watches drift between the audio sample clock and the capture clock that video frame timestamps use
+ * (System#nanoTime, same as SurfaceTexture#getTimestamp).
+ * The audio device runs on its own crystal, so audio pts computed from sample count slowly moves away from
+ * video pts over a long recording.
+ * For each audio chunk the offset between its sample clock pts and the time it was captured is measured.
+ * Reading latency only delays the capture time, so the maximum offset over a short window is used as drift.
+ * When drift exceeds the threshold and correction is enabled, #onAudioChunk asks the caller
+ * to insert(audio is behind) or drop(audio is ahead) a few samples.
+ * The A/V offset is measured at each video frame: the audio clock at the capture time of the frame
+ * (SurfaceTexture#getTimestamp) against the pts written for it, so a skew of video timestamps is seen
+ * as well as the audio drift. Both times belong to the frame, so camera delivery latency is not included.
+ * A frame pacer moves pts by up to one output frame from the capture time, the mean over a short window
+ * filters that out.
+ * #onAudioChunk must be called from one thread, #onVideoFrame from one other thread.
+ */
+public class AvDriftMonitor {
+    public static final long DEFAULT_THRESHOLD_US = 40000L;    // about one video frame
+    public static final int DEFAULT_MAX_CORRECTION_SAMPLES = 8;
+    public static final int DEFAULT_WINDOW = 32;
+
+    private final int mSampleRate;
+    private final long mThresholdUs;
+    private final int mMaxCorrectionSamples;
+    private final long[] mOffsets;
+    private int mOffsetCount;
+    private int mOffsetIndex;
+    // accessed only on video thread
+    private final long[] mVideoSkews;
+    private long mVideoSkewSum;
+    private int mVideoSkewCount;
+    private int mVideoSkewIndex;
+    private volatile boolean mCorrectionEnabled = true;
+
+    private volatile long mDriftUs;
+    private volatile long mMaxDriftUs;
+    private volatile long mInsertedSamples;
+    private volatile long mDroppedSamples;
+    private volatile long mCorrections;
+    private volatile long mAvOffsetUs;
+    private volatile long mMaxAvOffsetUs;
+    private volatile long mVideoFrames;
+    private volatile long mLastVideoPtsUs = -1;
+
+    public AvDriftMonitor(final int sampleRate) {
+        this(sampleRate, DEFAULT_THRESHOLD_US, DEFAULT_MAX_CORRECTION_SAMPLES, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param thresholdUs          drift allowed before correction
+     * @param maxCorrectionSamples maximum samples inserted or dropped for one chunk, small value keeps it inaudible
+     * @param window               number of chunks to filter reading latency
+     */
+    public AvDriftMonitor(final int sampleRate, final long thresholdUs, final int maxCorrectionSamples, final int window) {
+        if (window <= 0) throw new IllegalArgumentException("window should be positive");
+        mSampleRate = sampleRate;
+        mThresholdUs = thresholdUs;
+        mMaxCorrectionSamples = maxCorrectionSamples;
+        mOffsets = new long[window];
+        mVideoSkews = new long[window];
+    }
+
+    /**
+     * @param enabled false to report drift only
+     */
+    public void setCorrectionEnabled(final boolean enabled) {
+        mCorrectionEnabled = enabled;
+    }
+
+    public void reset() {
+        mOffsetCount = mOffsetIndex = 0;
+        mVideoSkewCount = mVideoSkewIndex = 0;
+        mVideoSkewSum = 0;
+        mDriftUs = mMaxDriftUs = mAvOffsetUs = mMaxAvOffsetUs = 0;
+        mLastVideoPtsUs = -1;
+        mInsertedSamples = mDroppedSamples = mCorrections = mVideoFrames = 0;
+    }
+
+    /**
+     * @param endPtsUs      sample clock pts just after the last sample of the chunk
+     * @param captureTimeUs capture clock time when the chunk became available
+     * @return number of samples to insert(positive) or drop(negative) for this chunk, 0 if nothing to do
+     */
+    public int onAudioChunk(final long endPtsUs, final long captureTimeUs) {
+        mOffsets[mOffsetIndex] = endPtsUs - captureTimeUs;
+        mOffsetIndex = (mOffsetIndex + 1) % mOffsets.length;
+        if (mOffsetCount < mOffsets.length) mOffsetCount++;
+        long drift = Long.MIN_VALUE;
+        for (int i = 0; i < mOffsetCount; i++) {
+            if (mOffsets[i] > drift) drift = mOffsets[i];
+        }
+        mDriftUs = drift;
+        if (Math.abs(drift) > mMaxDriftUs) mMaxDriftUs = Math.abs(drift);
+        if (!mCorrectionEnabled || Math.abs(drift) <= mThresholdUs) return 0;
+
+        // correct slowly, only the part beyond the threshold
+        final long excessUs = drift > 0 ? drift - mThresholdUs : drift + mThresholdUs;
+        long samples = (Math.abs(excessUs) * mSampleRate + 999999L) / 1000000L;
+        if (samples > mMaxCorrectionSamples) samples = mMaxCorrectionSamples;
+        final int correction = (int) (drift > 0 ? -samples : samples);
+        // measured offsets were taken before this correction
+        final long correctionUs = correction * 1000000L / mSampleRate;
+        for (int i = 0; i < mOffsetCount; i++) {
+            mOffsets[i] += correctionUs;
+        }
+        if (correction > 0) {
+            mInsertedSamples += correction;
+        } else {
+            mDroppedSamples -= correction;
+        }
+        mCorrections++;
+        return correction;
+    }
+
+    /**
+     * measure A/V offset at a video frame
+     *
+     * @param ptsUs         presentation time of the video frame
+     * @param captureTimeUs capture time of the frame on the capture clock(SurfaceTexture#getTimestamp)
+     */
+    public void onVideoFrame(final long ptsUs, final long captureTimeUs) {
+        // skew from pts to capture, the mean over a short window filters pacing of frames
+        final long skew = captureTimeUs - ptsUs;
+        if (mVideoSkewCount < mVideoSkews.length) {
+            mVideoSkewCount++;
+        } else {
+            mVideoSkewSum -= mVideoSkews[mVideoSkewIndex];
+        }
+        mVideoSkews[mVideoSkewIndex] = skew;
+        mVideoSkewSum += skew;
+        mVideoSkewIndex = (mVideoSkewIndex + 1) % mVideoSkews.length;
+        // audio sample clock maps capture time t to t + drift, so audio captured with the frame has
+        // captureTimeUs + drift while the frame is played at ptsUs
+        final long offset = mVideoSkewSum / mVideoSkewCount + mDriftUs;
+        mLastVideoPtsUs = ptsUs;
+        mAvOffsetUs = offset;
+        if (Math.abs(offset) > mMaxAvOffsetUs) mMaxAvOffsetUs = Math.abs(offset);
+        mVideoFrames++;
+    }
+
+    /**
+     * @return current drift, positive when audio pts is ahead of capture clock
+     */
+    public long getDriftUs() {
+        return mDriftUs;
+    }
+
+    public long getMaxDriftUs() {
+        return mMaxDriftUs;
+    }
+
+    /**
+     * @return A/V offset at the last video frame, positive when audio pts is ahead of video pts
+     */
+    public long getAvOffsetUs() {
+        return mAvOffsetUs;
+    }
+
+    /**
+     * @return pts on audio sample clock of audio captured together with the last video frame, -1 if no frame came
+     */
+    public long getAudioPtsAtLastVideoFrame() {
+        final long pts = mLastVideoPtsUs;
+        return pts >= 0 ? pts + mAvOffsetUs : -1;
+    }
+
+    public long getMaxAvOffsetUs() {
+        return mMaxAvOffsetUs;
+    }
+
+    public long getVideoFrames() {
+        return mVideoFrames;
+    }
+
+    public long getInsertedSamples() {
+        return mInsertedSamples;
+    }
+
+    public long getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    public long getCorrections() {
+        return mCorrections;
+    }
+}
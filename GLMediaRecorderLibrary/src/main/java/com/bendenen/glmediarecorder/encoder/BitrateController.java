@@ -0,0 +1,249 @@
+package com.bendenen.glmediarecorder.encoder;
+
+/**
+ * Decides the video bitrate from the load of the recording pipeline, in bounds given to the constructor.
+ * #update is called periodically with three measurements:
+ * <ul>
+ * <li>encoder backlog: capture time of the last frame given to the codec minus that of its last output</li>
+ * <li>writer lag: time a sample waited in SampleWriter before it was written</li>
+ * <li>pending bytes and written bytes of SampleWriter, the write throughput of storage is derived from them</li>
+ * </ul>
+ * The pipeline is congested when the encoder or the writer falls behind, or samples pile up in the writer.
+ * Then the bitrate is cut by a factor(and to the measured write throughput if storage is the bottleneck),
+ * otherwise it is raised by a small step after some healthy intervals, so it settles just under the capacity.
+ * This class has no android dependency, #update must be called from one thread.
+ */
+public class BitrateController {
+
+    public enum Decision {
+        /**
+         * no change
+         */
+        HOLD,
+        /**
+         * pipeline is congested, bitrate is cut
+         */
+        DECREASE,
+        /**
+         * pipeline was healthy for a while, bitrate is raised
+         */
+        INCREASE,
+    }
+
+    public interface Listener {
+        /**
+         * called from #update when the bitrate changed, inputs of the decision are available by getters
+         */
+        public void onBitrateChanged(BitrateController controller, Decision decision, int oldBitrate, int newBitrate);
+    }
+
+    public static final long DEFAULT_MAX_BACKLOG_US = 200000L;
+    public static final long DEFAULT_MAX_WRITER_LAG_US = 300000L;
+    /**
+     * samples pending in the writer are a problem when they are more than this much of the current bitrate
+     */
+    public static final long DEFAULT_MAX_PENDING_US = 250000L;
+    public static final long DEFAULT_HOLD_US = 1000000L;
+    public static final int DEFAULT_INCREASE_INTERVALS = 4;
+
+    private static final float DECREASE_FACTOR = 0.75f;
+    private static final float DISK_HEADROOM = 0.9f;
+    private static final float INCREASE_STEP = 0.05f;
+
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private long mMaxBacklogUs = DEFAULT_MAX_BACKLOG_US;
+    private long mMaxWriterLagUs = DEFAULT_MAX_WRITER_LAG_US;
+    private long mMaxPendingUs = DEFAULT_MAX_PENDING_US;
+    private long mHoldUs = DEFAULT_HOLD_US;
+    private int mIncreaseIntervals = DEFAULT_INCREASE_INTERVALS;
+    private volatile Listener mListener;
+
+    private volatile int mBitrate;
+    private long mLastUpdateUs = -1;
+    private long mLastWrittenBytes;
+    private long mLastPendingBytes;
+    private long mLastDecreaseUs = Long.MIN_VALUE / 2;
+    private int mHealthyIntervals;
+
+    // inputs and result of the last #update, for metrics
+    private volatile long mBacklogUs;
+    private volatile long mWriterLagUs;
+    private volatile long mPendingBytes;
+    private volatile long mWriteRateBps;
+    private volatile Decision mLastDecision = Decision.HOLD;
+    private volatile long mDecreases;
+    private volatile long mIncreases;
+
+    /**
+     * @param minBitrate lowest bitrate in bits per second
+     * @param maxBitrate highest bitrate in bits per second
+     */
+    public BitrateController(final int minBitrate, final int maxBitrate) {
+        if (minBitrate <= 0 || maxBitrate < minBitrate)
+            throw new IllegalArgumentException("invalid bounds:" + minBitrate + "-" + maxBitrate);
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+        mBitrate = maxBitrate;
+    }
+
+    /**
+     * @param maxBacklogUs   encoder backlog that is congestion
+     * @param maxWriterLagUs writer lag that is congestion
+     * @param maxPendingUs   pending bytes in the writer, as time at the current bitrate, that is congestion
+     */
+    public void setThresholds(final long maxBacklogUs, final long maxWriterLagUs, final long maxPendingUs) {
+        mMaxBacklogUs = maxBacklogUs;
+        mMaxWriterLagUs = maxWriterLagUs;
+        mMaxPendingUs = maxPendingUs;
+    }
+
+    /**
+     * @param holdUs            minimum time between two decreases, so the effect of a decrease can be seen first
+     * @param increaseIntervals number of healthy #update needed for one increase
+     */
+    public void setPacing(final long holdUs, final int increaseIntervals) {
+        if (increaseIntervals <= 0) throw new IllegalArgumentException("increaseIntervals should be positive");
+        mHoldUs = holdUs;
+        mIncreaseIntervals = increaseIntervals;
+    }
+
+    public void setListener(final Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * start a new recording
+     *
+     * @param bitrate bitrate the codec is configured with, clamped to the bounds
+     */
+    public void reset(final int bitrate) {
+        mBitrate = clamp(bitrate);
+        mLastUpdateUs = -1;
+        mLastWrittenBytes = mLastPendingBytes = 0;
+        mLastDecreaseUs = Long.MIN_VALUE / 2;
+        mHealthyIntervals = 0;
+        mBacklogUs = mWriterLagUs = mPendingBytes = mWriteRateBps = 0;
+        mLastDecision = Decision.HOLD;
+        mDecreases = mIncreases = 0;
+    }
+
+    /**
+     * @param nowUs        time of the measurement
+     * @param backlogUs    encoder backlog
+     * @param writerLagUs  writer lag of the last written sample
+     * @param pendingBytes bytes queued in the writer and not written yet
+     * @param writtenBytes total bytes written so far
+     * @return bitrate to use from now
+     */
+    public int update(final long nowUs, final long backlogUs, final long writerLagUs,
+                      final long pendingBytes, final long writtenBytes) {
+        mBacklogUs = backlogUs;
+        mWriterLagUs = writerLagUs;
+        mPendingBytes = pendingBytes;
+        if (mLastUpdateUs < 0 || nowUs <= mLastUpdateUs) {
+            // first measurement, no throughput yet
+            mLastUpdateUs = nowUs;
+            mLastWrittenBytes = writtenBytes;
+            mLastPendingBytes = pendingBytes;
+            mLastDecision = Decision.HOLD;
+            return mBitrate;
+        }
+        final long intervalUs = nowUs - mLastUpdateUs;
+        final long writeRate = (writtenBytes - mLastWrittenBytes) * 8L * 1000000L / intervalUs;
+        final boolean pendingGrows = pendingBytes > mLastPendingBytes;
+        mWriteRateBps = writeRate;
+        mLastUpdateUs = nowUs;
+        mLastWrittenBytes = writtenBytes;
+        mLastPendingBytes = pendingBytes;
+
+        final int old = mBitrate;
+        final long pendingLimit = (long) old / 8 * mMaxPendingUs / 1000000L;
+        final boolean diskLimited = (pendingBytes > pendingLimit) && pendingGrows;
+        final boolean congested = diskLimited || (backlogUs > mMaxBacklogUs) || (writerLagUs > mMaxWriterLagUs);
+        int bitrate = old;
+        Decision decision = Decision.HOLD;
+        if (congested) {
+            mHealthyIntervals = 0;
+            if (nowUs - mLastDecreaseUs >= mHoldUs) {
+                long target = (long) (old * DECREASE_FACTOR);
+                if (diskLimited && writeRate > 0) {
+                    // storage can not take more than this, go under it so the queue drains
+                    target = Math.min(target, (long) (writeRate * DISK_HEADROOM));
+                }
+                bitrate = clamp(target);
+                mLastDecreaseUs = nowUs;
+            }
+        } else if (++mHealthyIntervals >= mIncreaseIntervals) {
+            mHealthyIntervals = 0;
+            bitrate = clamp(old + (long) (mMaxBitrate * INCREASE_STEP));
+        }
+        if (bitrate < old) {
+            decision = Decision.DECREASE;
+            mDecreases++;
+        } else if (bitrate > old) {
+            decision = Decision.INCREASE;
+            mIncreases++;
+        }
+        mLastDecision = decision;
+        if (bitrate != old) {
+            mBitrate = bitrate;
+            final Listener listener = mListener;
+            if (listener != null) {
+                listener.onBitrateChanged(this, decision, old, bitrate);
+            }
+        }
+        return bitrate;
+    }
+
+    private int clamp(final long bitrate) {
+        return (int) Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+    }
+
+//********************************************************************************
+// metrics
+//********************************************************************************
+
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    public int getMinBitrate() {
+        return mMinBitrate;
+    }
+
+    public int getMaxBitrate() {
+        return mMaxBitrate;
+    }
+
+    public Decision getLastDecision() {
+        return mLastDecision;
+    }
+
+    public long getBacklogUs() {
+        return mBacklogUs;
+    }
+
+    public long getWriterLagUs() {
+        return mWriterLagUs;
+    }
+
+    public long getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    /**
+     * @return write throughput measured in the last interval, bits per second
+     */
+    public long getWriteRateBps() {
+        return mWriteRateBps;
+    }
+
+    public long getDecreases() {
+        return mDecreases;
+    }
+
+    public long getIncreases() {
+        return mIncreases;
+    }
+}
@@ -0,0 +1,252 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of MediaCodecList: codec names, supported types, color formats, profiles and size/bit rate ranges.
+ * Scanning MediaCodecList and calling getCapabilitiesForType takes tens of milliseconds,
+ * so the snapshot is saved to a file and reused while the device fingerprint(system build) is the same.
+ * This class does not touch android.media, CodecCapabilityScanner creates it from MediaCodecList.
+ */
+public class CodecCapabilityIndex {
+    private static final int MAGIC = 0x43434958;    // "CCIX"
+    private static final int VERSION = 2;    // 2: only encoders are scanned
+    /**
+     * upper bound of any count in the file, a larger one means the file is broken
+     */
+    private static final int MAX_COUNT = 4096;
+
+    public static final int UNKNOWN = -1;
+
+    /**
+     * capabilities of a codec for one MIME type
+     */
+    public static final class Type {
+        public final String mimeType;
+        public final int[] colorFormats;
+        /**
+         * pairs of profile and level
+         */
+        public final int[] profileLevels;
+        public final int minWidth, maxWidth, minHeight, maxHeight;
+        public final int minBitrate, maxBitrate;
+
+        public Type(final String mimeType, final int[] colorFormats, final int[] profileLevels,
+                    final int minWidth, final int maxWidth, final int minHeight, final int maxHeight,
+                    final int minBitrate, final int maxBitrate) {
+            this.mimeType = mimeType;
+            this.colorFormats = colorFormats != null ? colorFormats : new int[0];
+            this.profileLevels = profileLevels != null ? profileLevels : new int[0];
+            this.minWidth = minWidth;
+            this.maxWidth = maxWidth;
+            this.minHeight = minHeight;
+            this.maxHeight = maxHeight;
+            this.minBitrate = minBitrate;
+            this.maxBitrate = maxBitrate;
+        }
+
+        public boolean hasColorFormat(final int colorFormat) {
+            for (final int format : colorFormats) {
+                if (format == colorFormat) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return true if the size is in range or the range is unknown(API < 21)
+         */
+        public boolean isSizeSupported(final int width, final int height) {
+            return ((maxWidth == UNKNOWN) || (width >= minWidth && width <= maxWidth))
+                    && ((maxHeight == UNKNOWN) || (height >= minHeight && height <= maxHeight));
+        }
+    }
+
+    public static final class Codec {
+        public final String name;
+        public final boolean isEncoder;
+        public final List<Type> types;
+
+        public Codec(final String name, final boolean isEncoder, final List<Type> types) {
+            this.name = name;
+            this.isEncoder = isEncoder;
+            this.types = Collections.unmodifiableList(new ArrayList<Type>(types));
+        }
+
+        /**
+         * @return capabilities for the type, null if not supported
+         */
+        public Type getType(final String mimeType) {
+            for (final Type type : types) {
+                if (type.mimeType.equalsIgnoreCase(mimeType)) return type;
+            }
+            return null;
+        }
+    }
+
+    private final String mFingerprint;
+    private final List<Codec> mCodecs;
+    private final long mScanTimeNs;
+
+    /**
+     * @param fingerprint identifies the system build the codecs were scanned on
+     * @param codecs      in the order of MediaCodecList
+     * @param scanTimeNs  time spent for scanning MediaCodecList
+     */
+    public CodecCapabilityIndex(final String fingerprint, final List<Codec> codecs, final long scanTimeNs) {
+        mFingerprint = fingerprint != null ? fingerprint : "";
+        mCodecs = Collections.unmodifiableList(new ArrayList<Codec>(codecs));
+        mScanTimeNs = scanTimeNs;
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    public List<Codec> getCodecs() {
+        return mCodecs;
+    }
+
+    /**
+     * @return time the original scan took, to compare with loading the saved index
+     */
+    public long getScanTimeNs() {
+        return mScanTimeNs;
+    }
+
+    /**
+     * @return the first encoder that supports the type, null if none
+     */
+    public Codec findEncoder(final String mimeType) {
+        for (final Codec codec : mCodecs) {
+            if (codec.isEncoder && codec.getType(mimeType) != null) return codec;
+        }
+        return null;
+    }
+
+    /**
+     * @param colorFormats acceptable color formats
+     * @return the first encoder that supports the type with any of the color formats, null if none
+     */
+    public Codec findEncoder(final String mimeType, final int[] colorFormats) {
+        for (final Codec codec : mCodecs) {
+            if (!codec.isEncoder) continue;
+            final Type type = codec.getType(mimeType);
+            if (type == null) continue;
+            for (final int colorFormat : colorFormats) {
+                if (type.hasColorFormat(colorFormat)) return codec;
+            }
+        }
+        return null;
+    }
+
+//********************************************************************************
+// persistence
+//********************************************************************************
+
+    public void save(final File file) throws IOException {
+        final File dir = file.getParentFile();
+        if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) throw new IOException("can't create " + dir);
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mFingerprint);
+            out.writeLong(mScanTimeNs);
+            out.writeInt(mCodecs.size());
+            for (final Codec codec : mCodecs) {
+                out.writeUTF(codec.name);
+                out.writeBoolean(codec.isEncoder);
+                out.writeInt(codec.types.size());
+                for (final Type type : codec.types) {
+                    out.writeUTF(type.mimeType);
+                    writeInts(out, type.colorFormats);
+                    writeInts(out, type.profileLevels);
+                    out.writeInt(type.minWidth);
+                    out.writeInt(type.maxWidth);
+                    out.writeInt(type.minHeight);
+                    out.writeInt(type.maxHeight);
+                    out.writeInt(type.minBitrate);
+                    out.writeInt(type.maxBitrate);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("can't rename " + temp);
+        }
+    }
+
+    /**
+     * @return saved index, null if there is no file, it is broken or it was saved on other system build
+     */
+    public static CodecCapabilityIndex load(final File file, final String fingerprint) {
+        if (!file.isFile()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) return null;
+            final String savedFingerprint = in.readUTF();
+            if (!savedFingerprint.equals(fingerprint)) return null;
+            final long scanTimeNs = in.readLong();
+            final int codecCount = readCount(in);
+            final List<Codec> codecs = new ArrayList<Codec>(codecCount);
+            for (int i = 0; i < codecCount; i++) {
+                final String name = in.readUTF();
+                final boolean isEncoder = in.readBoolean();
+                final int typeCount = readCount(in);
+                final List<Type> types = new ArrayList<Type>(typeCount);
+                for (int j = 0; j < typeCount; j++) {
+                    types.add(new Type(in.readUTF(), readInts(in), readInts(in),
+                            in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+                }
+                codecs.add(new Codec(name, isEncoder, types));
+            }
+            return new CodecCapabilityIndex(savedFingerprint, codecs, scanTimeNs);
+        } catch (final IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeInts(final DataOutputStream out, final int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (final int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int readCount(final DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT) throw new IOException("broken index");
+        return count;
+    }
+
+    private static int[] readInts(final DataInputStream in) throws IOException {
+        final int length = readCount(in);
+        final int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,165 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Provides CodecCapabilityIndex of this device.
+ * The index is loaded lazily on the first #getIndex: from the file under the directory set by #setCacheDir
+ * if it was saved on the same system build, otherwise by scanning MediaCodecList(and saved for next launch).
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public final class CodecCapabilityScanner {
+    private static final boolean DEBUG = false;    // TODO set false on release
+    private static final String TAG = "CodecCapabilityScanner";
+
+    private static final String FILE_NAME = "codec_index.bin";
+
+    private static final Object sSync = new Object();
+    private static File sCacheDir;
+    private static CodecCapabilityIndex sIndex;
+    private static long sLoadTimeNs;
+    private static boolean sLoadedFromFile;
+
+    private CodecCapabilityScanner() {
+    }
+
+    /**
+     * set directory to save the index, usually Context#getCacheDir. Without this the index is kept only in memory.
+     */
+    public static void setCacheDir(final File dir) {
+        synchronized (sSync) {
+            sCacheDir = dir;
+        }
+    }
+
+    /**
+     * @return index of codecs on this device, this may scan MediaCodecList on the first call
+     */
+    public static CodecCapabilityIndex getIndex() {
+        synchronized (sSync) {
+            if (sIndex == null) {
+                final long start = System.nanoTime();
+                final String fingerprint = getFingerprint();
+                final File file = sCacheDir != null ? new File(sCacheDir, FILE_NAME) : null;
+                CodecCapabilityIndex index = file != null ? CodecCapabilityIndex.load(file, fingerprint) : null;
+                sLoadedFromFile = index != null;
+                if (index == null) {
+                    index = scan(fingerprint);
+                    if (file != null) {
+                        try {
+                            index.save(file);
+                        } catch (final IOException e) {
+                            Log.w(TAG, "failed to save codec index", e);
+                        }
+                    }
+                }
+                sLoadTimeNs = System.nanoTime() - start;
+                sIndex = index;
+                if (DEBUG) Log.i(TAG, String.format("codec index %s in %d us, full scan takes %d us",
+                        sLoadedFromFile ? "loaded" : "scanned", sLoadTimeNs / 1000L, index.getScanTimeNs() / 1000L));
+            }
+            return sIndex;
+        }
+    }
+
+    /**
+     * @return time the first #getIndex took, compare with CodecCapabilityIndex#getScanTimeNs
+     */
+    public static long getLoadTimeNs() {
+        synchronized (sSync) {
+            return sLoadTimeNs;
+        }
+    }
+
+    /**
+     * @return true if the index was loaded from the saved file instead of scanning
+     */
+    public static boolean isLoadedFromFile() {
+        synchronized (sSync) {
+            return sLoadedFromFile;
+        }
+    }
+
+    /**
+     * identifies the system build, codecs do not change without a system update
+     */
+    public static String getFingerprint() {
+        return Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT;
+    }
+
+    /**
+     * walk MediaCodecList and query capabilities of every type of the encoders.
+     * Decoders are skipped like the lookup on every prepare did, so the scan time compares with that.
+     */
+    public static CodecCapabilityIndex scan(final String fingerprint) {
+        final long start = System.nanoTime();
+        final List<CodecCapabilityIndex.Codec> codecs = new ArrayList<CodecCapabilityIndex.Codec>();
+        final int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder()) continue;
+            final String[] mimeTypes = codecInfo.getSupportedTypes();
+            final List<CodecCapabilityIndex.Type> types = new ArrayList<CodecCapabilityIndex.Type>(mimeTypes.length);
+            for (final String mimeType : mimeTypes) {
+                try {
+                    types.add(toType(mimeType, codecInfo.getCapabilitiesForType(mimeType)));
+                } catch (final IllegalArgumentException e) {
+                    // some codecs list types they can not describe
+                    if (DEBUG) Log.w(TAG, "no capabilities:" + codecInfo.getName() + "," + mimeType);
+                }
+            }
+            codecs.add(new CodecCapabilityIndex.Codec(codecInfo.getName(), codecInfo.isEncoder(), types));
+        }
+        return new CodecCapabilityIndex(fingerprint, codecs, System.nanoTime() - start);
+    }
+
+    private static CodecCapabilityIndex.Type toType(final String mimeType, final MediaCodecInfo.CodecCapabilities caps) {
+        final int[] profileLevels = new int[caps.profileLevels.length * 2];
+        for (int i = 0; i < caps.profileLevels.length; i++) {
+            profileLevels[i * 2] = caps.profileLevels[i].profile;
+            profileLevels[i * 2 + 1] = caps.profileLevels[i].level;
+        }
+        final int[] ranges = {CodecCapabilityIndex.UNKNOWN, CodecCapabilityIndex.UNKNOWN,
+                CodecCapabilityIndex.UNKNOWN, CodecCapabilityIndex.UNKNOWN,
+                CodecCapabilityIndex.UNKNOWN, CodecCapabilityIndex.UNKNOWN};
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            getRanges(caps, ranges);
+        }
+        return new CodecCapabilityIndex.Type(mimeType, caps.colorFormats, profileLevels,
+                ranges[0], ranges[1], ranges[2], ranges[3], ranges[4], ranges[5]);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void getRanges(final MediaCodecInfo.CodecCapabilities caps, final int[] ranges) {
+        final MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+        if (video != null) {
+            final Range<Integer> widths = video.getSupportedWidths();
+            final Range<Integer> heights = video.getSupportedHeights();
+            ranges[0] = widths.getLower();
+            ranges[1] = widths.getUpper();
+            ranges[2] = heights.getLower();
+            ranges[3] = heights.getUpper();
+            setBitrate(video.getBitrateRange(), ranges);
+        }
+        final MediaCodecInfo.AudioCapabilities audio = caps.getAudioCapabilities();
+        if (audio != null) {
+            setBitrate(audio.getBitrateRange(), ranges);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void setBitrate(final Range<Integer> range, final int[] ranges) {
+        ranges[4] = range.getLower();
+        ranges[5] = range.getUpper();
+    }
+}
@@ -0,0 +1,92 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Abstraction of the codec that MediaEncoder drives.
+ * MediaCodecEngine implements this with android.media.MediaCodec in polling mode(API 18-20)
+ * or asynchronous callback mode(API >= 21), and tests can implement this with an in-memory fake.
+ * Output is delivered to {@link Callback}: a format change once, encoded samples and end of stream.
+ */
+public interface CodecEngine {
+
+    public interface Callback {
+        /**
+         * output format is determined, this comes once before the first sample
+         */
+        public void onOutputFormatChanged(CodecEngine engine, TrackFormat format);
+
+        /**
+         * encoded sample is available, data and info are valid only while this is called
+         */
+        public void onOutputSample(CodecEngine engine, ByteBuffer data, SampleInfo info);
+
+        /**
+         * the codec emitted its last sample
+         */
+        public void onEndOfStream(CodecEngine engine);
+
+        public void onError(CodecEngine engine, Exception e);
+    }
+
+    /**
+     * start encoding, output is delivered to callback after this
+     */
+    public void start(Callback callback);
+
+    /**
+     * true if output is delivered from codec's own thread and #drainOutput does nothing
+     */
+    public boolean isAsync();
+
+    /**
+     * queue raw data to the codec
+     *
+     * @param data        raw data, null is allowed for end of stream
+     * @param length      length of data
+     * @param endOfStream true if this is the last input
+     * @param timeoutUs   maximum time to wait for a free input buffer
+     * @return false if no input buffer became available within timeoutUs
+     */
+    public boolean queueInput(ByteBuffer data, int length, long presentationTimeUs, boolean endOfStream, long timeoutUs);
+
+    /**
+     * signal end of stream for Surface input
+     */
+    public void signalEndOfInputStream();
+
+    /**
+     * ask the codec to make the next output a sync frame, this can be called from any thread
+     *
+     * @return false if the codec can not do this(API < 19)
+     */
+    public boolean requestSyncFrame();
+
+    /**
+     * change the target bitrate of a running video encoder, this can be called from any thread
+     *
+     * @param bitrate bits per second
+     * @return false if the codec can not do this(API < 19)
+     */
+    public boolean setBitrate(int bitrate);
+
+    /**
+     * deliver available output to the callback
+     */
+    public void drainOutput();
+
+    /**
+     * deliver remaining output after end of input was signaled
+     *
+     * @return true if end of stream was delivered within timeoutUs
+     */
+    public boolean awaitEndOfStream(long timeoutUs);
+
+    /**
+     * stop and release the codec
+     */
+    public void release();
+}
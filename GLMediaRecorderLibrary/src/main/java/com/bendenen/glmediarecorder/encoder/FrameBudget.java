@@ -0,0 +1,249 @@
+package com.bendenen.glmediarecorder.encoder;
+
+/**
+ * Bounds the number of video frames in flight between the GL thread and the encoded output.
+ * A frame is in flight from #tryAcquire/#acquire on the GL thread, while it waits for the render thread
+ * and while it is in the codec, until the codec gives an output at or after its presentation time.
+ * When the budget is used up a new frame is handled by the policy:
+ * <ul>
+ * <li>DROP_NEWEST: the new frame is dropped</li>
+ * <li>DROP_OLDEST: the oldest frame waiting for the render thread is dropped for the new one,
+ * frames already in the codec can not be dropped, so the new frame is dropped when there is none</li>
+ * <li>BLOCK: the GL thread waits for a free slot up to the block timeout, then the new frame is dropped</li>
+ * </ul>
+ * The GL thread never waits longer than the block timeout, so preview keeps display rate whatever the encoder does.
+ * Release is driven by the presentation time of the output, so frames the codec merges or skips do not leak.
+ */
+public class FrameBudget {
+
+    public enum Policy {
+        DROP_NEWEST, DROP_OLDEST, BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 6;
+    public static final long DEFAULT_BLOCK_TIMEOUT_NS = 5000000L;    // 5[msec], well under a display frame
+
+    private final int mCapacity;
+    private volatile Policy mPolicy;
+    private volatile long mBlockTimeoutNs = DEFAULT_BLOCK_TIMEOUT_NS;
+    /**
+     * frames accepted and not given to the codec yet
+     */
+    private int mQueued;
+    /**
+     * presentation time of frames given to the codec, in order
+     */
+    private final long[] mInCodec;
+    private int mHead, mCount;
+
+    // metrics
+    private volatile int mMaxInFlight;
+    private volatile long mAccepted;
+    private volatile long mDroppedNewest;
+    private volatile long mDroppedOldest;
+    private volatile long mBlockTimeouts;
+    private volatile long mBlockedNs;
+
+    public FrameBudget() {
+        this(DEFAULT_CAPACITY, Policy.DROP_NEWEST);
+    }
+
+    /**
+     * @param capacity maximum frames in flight
+     */
+    public FrameBudget(final int capacity, final Policy policy) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity should be positive");
+        if (policy == null) throw new NullPointerException("policy is null");
+        mCapacity = capacity;
+        mPolicy = policy;
+        mInCodec = new long[capacity];
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    public void setPolicy(final Policy policy) {
+        if (policy == null) throw new NullPointerException("policy is null");
+        mPolicy = policy;
+    }
+
+    /**
+     * @param timeoutNs maximum time the GL thread waits for a slot with Policy.BLOCK
+     */
+    public void setBlockTimeoutNs(final long timeoutNs) {
+        mBlockTimeoutNs = timeoutNs;
+    }
+
+    public long getBlockTimeoutNs() {
+        return mBlockTimeoutNs;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * forget all frames, call when recording starts
+     */
+    public synchronized void reset() {
+        mQueued = mHead = mCount = 0;
+        notifyAll();
+    }
+
+    /**
+     * take a slot if there is one, does not wait
+     *
+     * @return false if the budget is used up
+     */
+    public synchronized boolean tryAcquire() {
+        if (mQueued + mCount >= mCapacity) return false;
+        onAcquired();
+        return true;
+    }
+
+    /**
+     * take a slot, waiting up to timeoutNs for the codec to give an output
+     *
+     * @return false if no slot became free in time
+     */
+    public synchronized boolean acquire(final long timeoutNs) {
+        if (mQueued + mCount < mCapacity) {
+            onAcquired();
+            return true;
+        }
+        final long start = System.nanoTime();
+        final long deadline = start + timeoutNs;
+        try {
+            for (long remaining = timeoutNs; remaining > 0; remaining = deadline - System.nanoTime()) {
+                try {
+                    wait(remaining / 1000000L, (int) (remaining % 1000000L));
+                } catch (final InterruptedException e) {
+                    return false;
+                }
+                if (mQueued + mCount < mCapacity) {
+                    onAcquired();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mBlockedNs += System.nanoTime() - start;
+        }
+    }
+
+    private void onAcquired() {
+        mQueued++;
+        mAccepted++;
+        final int inFlight = mQueued + mCount;
+        if (inFlight > mMaxInFlight) mMaxInFlight = inFlight;
+    }
+
+    /**
+     * an accepted frame was given to the codec, called on render thread after swap
+     */
+    public synchronized void onSubmitted(final long ptsUs) {
+        if (mQueued > 0) mQueued--;
+        if (mCount == mCapacity) {
+            // only if reset while frames were queued, forget the oldest
+            mHead = (mHead + 1) % mCapacity;
+            mCount--;
+        }
+        mInCodec[(mHead + mCount) % mCapacity] = ptsUs;
+        mCount++;
+    }
+
+    /**
+     * an accepted frame was dropped before it was given to the codec
+     *
+     * @param evicted true if it was dropped by Policy.DROP_OLDEST for a newer frame
+     */
+    public synchronized void onDropped(final boolean evicted) {
+        if (mQueued > 0) mQueued--;
+        if (evicted) mDroppedOldest++;
+        notifyAll();
+    }
+
+    /**
+     * a new frame was not accepted
+     *
+     * @param timedOut true if it waited for Policy.BLOCK
+     */
+    public synchronized void onRejected(final boolean timedOut) {
+        if (timedOut) {
+            mBlockTimeouts++;
+        } else {
+            mDroppedNewest++;
+        }
+    }
+
+    /**
+     * the codec gave output, frames presented at or before ptsUs left the codec
+     */
+    public synchronized void onEncoded(final long ptsUs) {
+        final int before = mCount;
+        while ((mCount > 0) && (mInCodec[mHead] <= ptsUs)) {
+            mHead = (mHead + 1) % mCapacity;
+            mCount--;
+        }
+        if (mCount != before) notifyAll();
+    }
+
+//********************************************************************************
+// metrics
+//********************************************************************************
+
+    /**
+     * @return frames waiting for the render thread
+     */
+    public synchronized int getQueuedFrames() {
+        return mQueued;
+    }
+
+    /**
+     * @return frames given to the codec and not encoded yet
+     */
+    public synchronized int getInCodecFrames() {
+        return mCount;
+    }
+
+    public synchronized int getInFlightFrames() {
+        return mQueued + mCount;
+    }
+
+    public int getMaxInFlightFrames() {
+        return mMaxInFlight;
+    }
+
+    public long getAcceptedFrames() {
+        return mAccepted;
+    }
+
+    /**
+     * @return new frames dropped because the budget was used up, by Policy.DROP_NEWEST or as fallback of DROP_OLDEST
+     */
+    public long getDroppedNewest() {
+        return mDroppedNewest;
+    }
+
+    /**
+     * @return waiting frames dropped for newer ones by Policy.DROP_OLDEST
+     */
+    public long getDroppedOldest() {
+        return mDroppedOldest;
+    }
+
+    /**
+     * @return new frames dropped after waiting for Policy.BLOCK
+     */
+    public long getBlockTimeouts() {
+        return mBlockTimeouts;
+    }
+
+    /**
+     * @return total time the GL thread waited with Policy.BLOCK
+     */
+    public long getBlockedNs() {
+        return mBlockedNs;
+    }
+}
@@ -2,17 +2,18 @@ package com.bendenen.glmediarecorder.encoder;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.util.Log;
 
 import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+import com.bendenen.glmediarecorder.utils.PcmRingBuffer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Barys_Dzenisenka on 8/12/15.
@@ -26,8 +27,22 @@ public class MediaAudioEncoder extends MediaEncoder {
     private static final int BIT_RATE = 64000;
     public static final int SAMPLES_PER_FRAME = 1024;    // AAC, bytes/frame/channel
     public static final int FRAMES_PER_BUFFER = 25;    // AAC, frame/buffer/sec
+    private static final int BYTES_PER_SAMPLE = 2;    // 16bit PCM, mono
+
+    /**
+     * length of PCM ring buffer, the codec can stall this long without losing audio
+     */
+    private static final int RING_BUFFER_SEC = 1;
+    private static final int MAX_CHUNK_SIZE = SAMPLES_PER_FRAME + AvDriftMonitor.DEFAULT_MAX_CORRECTION_SAMPLES * BYTES_PER_SAMPLE;
+    private static final long FEEDER_WAIT_MS = 100;
+    private static final long FEEDER_JOIN_TIMEOUT_MS = 1000;
 
     private AudioThread mAudioThread = null;
+    private FeederThread mFeederThread = null;
+    private volatile PcmRingBuffer mPcmBuffer;
+    private final AudioSampleClock mSampleClock = new AudioSampleClock(SAMPLE_RATE);
+    private final AvDriftMonitor mDriftMonitor = new AvDriftMonitor(SAMPLE_RATE);
+    private volatile boolean mCaptureFinished;
 
     public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
         super(muxer, listener);
@@ -39,12 +54,12 @@ public class MediaAudioEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
         // prepare MediaCodec for AAC encoding of audio data from inernal mic.
-        final MediaCodecInfo audioCodecInfo = selectAudioCodec(MIME_TYPE);
-        if (audioCodecInfo == null) {
+        final CodecCapabilityIndex.Codec audioCodec = selectAudioCodec(MIME_TYPE);
+        if (audioCodec == null) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-        if (DEBUG) Log.i(TAG, "selected codec: " + audioCodecInfo.getName());
+        if (DEBUG) Log.i(TAG, "selected codec: " + audioCodec.name);
 
         final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, 1);
         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
@@ -54,9 +69,9 @@ public class MediaAudioEncoder extends MediaEncoder {
 //		audioFormat.setLong(MediaFormat.KEY_MAX_INPUT_SIZE, inputFile.length());
 //      audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
         if (DEBUG) Log.i(TAG, "format: " + audioFormat);
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mMediaCodec.start();
+        final MediaCodecEngine engine = MediaCodecEngine.createEncoder(MIME_TYPE, audioCodec.name);
+        engine.configure(audioFormat);
+        startEngine(engine);
         if (DEBUG) Log.i(TAG, "prepare finishing");
         if (mListener != null) {
             try {
@@ -72,17 +87,79 @@ public class MediaAudioEncoder extends MediaEncoder {
         super.startRecording();
         // create and execute audio capturing thread using internal mic
         if (mAudioThread == null) {
+            mPcmBuffer = new PcmRingBuffer(SAMPLE_RATE * BYTES_PER_SAMPLE * RING_BUFFER_SEC, MAX_CHUNK_SIZE);
+            mSampleClock.reset();
+            mDriftMonitor.reset();
+            mCaptureFinished = false;
             mAudioThread = new AudioThread();
+            mFeederThread = new FeederThread();
+            mFeederThread.start();
             mAudioThread.start();
         }
     }
 
+    /**
+     * wait for the feeder thread to pass all captured data to the codec before sending EOS,
+     * so codec input comes from one thread only
+     */
+    @Override
+    protected void signalEndOfInputStream() {
+        final Thread feeder = mFeederThread;
+        if (feeder != null) {
+            final PcmRingBuffer pcmBuffer = mPcmBuffer;
+            if (pcmBuffer != null) pcmBuffer.wakeup();
+            try {
+                feeder.join(Math.max(1, Math.min(FEEDER_JOIN_TIMEOUT_MS, getStopRemainingUs() / 1000L)));
+            } catch (final InterruptedException e) {
+                // ignore
+            }
+        }
+        super.signalEndOfInputStream();
+    }
+
     @Override
     protected void release() {
         mAudioThread = null;
+        mFeederThread = null;
         super.release();
     }
 
+    /**
+     * @return monitor of drift between audio sample clock and video frame timestamps
+     */
+    @Override
+    public AvDriftMonitor getDriftMonitor() {
+        return mDriftMonitor;
+    }
+
+    /**
+     * insert copies of the last sample or drop samples at the end of the chunk
+     *
+     * @param buf        chunk of 16bit mono PCM, position is 0
+     * @param correction samples to insert(positive) or drop(negative)
+     * @return number of samples in the chunk after correction
+     */
+    private static int correctDrift(final ByteBuffer buf, final int samples, final int correction) {
+        if (correction < 0) {
+            final int result = Math.max(0, samples + correction);
+            buf.limit(result * BYTES_PER_SAMPLE);
+            return result;
+        }
+        final short last = buf.getShort((samples - 1) * BYTES_PER_SAMPLE);
+        buf.limit((samples + correction) * BYTES_PER_SAMPLE);
+        for (int i = samples; i < samples + correction; i++) {
+            buf.putShort(i * BYTES_PER_SAMPLE, last);
+        }
+        return samples + correction;
+    }
+
+    /**
+     * @return PCM ring buffer between capture and codec to read overrun/underrun counters, null before recording
+     */
+    public PcmRingBuffer getPcmBuffer() {
+        return mPcmBuffer;
+    }
+
     private static final int[] AUDIO_SOURCES = new int[]{
             MediaRecorder.AudioSource.MIC,
             MediaRecorder.AudioSource.DEFAULT,
@@ -93,12 +170,13 @@ public class MediaAudioEncoder extends MediaEncoder {
 
     /**
      * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
-     * and write them to the MediaCodec encoder
+     * and write them to the PCM ring buffer, this thread never waits for the codec
      */
     private class AudioThread extends Thread {
         @Override
         public void run() {
             android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+            final PcmRingBuffer pcmBuffer = mPcmBuffer;
             try {
                 final int min_buffer_size = AudioRecord.getMinBufferSize(
                         SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
@@ -124,7 +202,8 @@ public class MediaAudioEncoder extends MediaEncoder {
                     try {
                         if (mIsCapturing) {
                             if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
-                            final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
+                            // room for samples inserted by drift correction
+                            final ByteBuffer buf = ByteBuffer.allocateDirect(MAX_CHUNK_SIZE).order(ByteOrder.nativeOrder());
                             int readBytes;
                             audioRecord.startRecording();
                             try {
@@ -133,14 +212,26 @@ public class MediaAudioEncoder extends MediaEncoder {
                                     buf.clear();
                                     readBytes = audioRecord.read(buf, SAMPLES_PER_FRAME);
                                     if (readBytes > 0) {
-                                        // set audio data to encoder
                                         buf.position(readBytes);
                                         buf.flip();
-                                        encode(buf, readBytes, getPTSUs());
-                                        frameAvailableSoon();
+                                        final long captureTimeUs = System.nanoTime() / 1000L;
+                                        int samples = readBytes / BYTES_PER_SAMPLE;
+                                        if (!mSampleClock.isStarted()) {
+                                            // first sample of this buffer was captured one buffer duration ago
+                                            mSampleClock.start(captureTimeUs - samples * 1000000L / SAMPLE_RATE);
+                                        }
+                                        final int correction = mDriftMonitor.onAudioChunk(
+                                                mSampleClock.ptsOf(mSampleClock.getPosition() + samples), captureTimeUs);
+                                        if (correction != 0) {
+                                            samples = correctDrift(buf, samples, correction);
+                                        }
+                                        // pass audio data to feeder thread, dropped when the ring is full
+                                        // but sample position still advances so timestamps keep real time
+                                        if (!pcmBuffer.write(buf, mSampleClock.getPosition()) && DEBUG)
+                                            Log.w(TAG, "AudioThread:overrun " + pcmBuffer.getOverruns());
+                                        mSampleClock.advance(samples);
                                     }
                                 }
-                                frameAvailableSoon();
                             } finally {
                                 audioRecord.stop();
                             }
@@ -153,41 +244,52 @@ public class MediaAudioEncoder extends MediaEncoder {
                 }
             } catch (final Exception e) {
                 Log.e(TAG, "AudioThread#run", e);
+            } finally {
+                mCaptureFinished = true;
+                pcmBuffer.wakeup();
             }
             if (DEBUG) Log.v(TAG, "AudioThread:finished");
         }
     }
 
     /**
-     * select the first codec that match a specific MIME type
-     *
-     * @param mimeType
-     * @return
+     * Thread to pass captured PCM data from the ring buffer to the MediaCodec encoder
      */
-    private static final MediaCodecInfo selectAudioCodec(final String mimeType) {
-        if (DEBUG) Log.v(TAG, "selectAudioCodec:");
-
-        MediaCodecInfo result = null;
-        // get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-        LOOP:
-        for (int i = 0; i < numCodecs; i++) {
-            final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {    // skipp decoder
-                continue;
-            }
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (DEBUG) Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    if (result == null) {
-                        result = codecInfo;
-                        break LOOP;
+    private class FeederThread extends Thread {
+        @Override
+        public void run() {
+            final PcmRingBuffer pcmBuffer = mPcmBuffer;
+            final ByteBuffer buf = ByteBuffer.allocateDirect(MAX_CHUNK_SIZE);
+            try {
+                for (; mIsCapturing; ) {
+                    buf.clear();
+                    final int length = pcmBuffer.read(buf, FEEDER_WAIT_MS, TimeUnit.MILLISECONDS);
+                    if (length > 0) {
+                        buf.flip();
+                        encode(buf, length, mSampleClock.ptsOf(pcmBuffer.getLastSamplePosition()));
+                        frameAvailableSoon();
+                    } else if (mCaptureFinished && pcmBuffer.isEmpty()) {
+                        break;
                     }
                 }
+                frameAvailableSoon();
+            } catch (final InterruptedException e) {
+                // finish
             }
+            if (DEBUG) Log.v(TAG, "FeederThread:finished, overruns=" + pcmBuffer.getOverruns()
+                    + ",underruns=" + pcmBuffer.getUnderruns() + ",maxFill=" + pcmBuffer.getMaxFill());
         }
-        return result;
+    }
+
+    /**
+     * select the first codec that match a specific MIME type
+     *
+     * @param mimeType
+     * @return null if no codec matched
+     */
+    private static final CodecCapabilityIndex.Codec selectAudioCodec(final String mimeType) {
+        if (DEBUG) Log.v(TAG, "selectAudioCodec:");
+        return CodecCapabilityScanner.getIndex().findEncoder(mimeType);
     }
 
 }
\ No newline at end of file
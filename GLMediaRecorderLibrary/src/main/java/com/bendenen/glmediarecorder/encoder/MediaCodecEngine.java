@@ -0,0 +1,184 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * CodecEngine backed by android.media.MediaCodec.
+ * Use {@link #createEncoder(String)}, it selects the asynchronous engine on API >= 21
+ * and falls back to the polling engine on API 18-20.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public abstract class MediaCodecEngine implements CodecEngine {
+    private static final boolean DEBUG = false;    // TODO set false on release
+    private static final String TAG = MediaCodecEngine.class.getSimpleName();
+
+    protected final MediaCodec mMediaCodec;
+    protected volatile Callback mCallback;
+    /**
+     * Flag that indicate end of stream came from codec
+     */
+    protected volatile boolean mIsEOS;
+    private final SampleInfo mSampleInfo = new SampleInfo();
+
+    /**
+     * create encoder engine for the mime type
+     */
+    public static MediaCodecEngine createEncoder(final String mimeType) throws IOException {
+        return createEncoder(mimeType, null);
+    }
+
+    /**
+     * @param codecName name of the encoder selected from CodecCapabilityIndex, null to let MediaCodec choose by type
+     */
+    public static MediaCodecEngine createEncoder(final String mimeType, final String codecName) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return AsyncCodecEngine.createEncoder(mimeType, codecName);
+        }
+        return new PollingCodecEngine(newEncoder(mimeType, codecName));
+    }
+
+    /*package*/
+    static MediaCodec newEncoder(final String mimeType, final String codecName) throws IOException {
+        return codecName != null ? MediaCodec.createByCodecName(codecName) : MediaCodec.createEncoderByType(mimeType);
+    }
+
+    protected MediaCodecEngine(final MediaCodec codec) {
+        mMediaCodec = codec;
+    }
+
+    public void configure(final MediaFormat format) {
+        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    /**
+     * get Surface for encoder input
+     * this method only can call between #configure and #start
+     */
+    public Surface createInputSurface() {
+        return mMediaCodec.createInputSurface();    // API >= 18
+    }
+
+    @Override
+    public void start(final Callback callback) {
+        mCallback = callback;
+        mIsEOS = false;
+        mMediaCodec.start();
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mMediaCodec.signalEndOfInputStream();    // API >= 18
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    @Override
+    public boolean requestSyncFrame() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return false;
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            mMediaCodec.setParameters(params);    // API >= 19
+        } catch (final IllegalStateException e) {
+            Log.w(TAG, "failed requesting sync frame", e);
+            return false;
+        }
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    @Override
+    public boolean setBitrate(final int bitrate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return false;
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            mMediaCodec.setParameters(params);    // API >= 19
+        } catch (final IllegalStateException e) {
+            Log.w(TAG, "failed changing bitrate", e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void release() {
+        if (DEBUG) Log.d(TAG, "release:");
+        try {
+            mMediaCodec.stop();
+        } catch (final Exception e) {
+            Log.e(TAG, "failed stopping MediaCodec", e);
+        }
+        try {
+            mMediaCodec.release();
+        } catch (final Exception e) {
+            Log.e(TAG, "failed releasing MediaCodec", e);
+        }
+    }
+
+    /**
+     * pass output format of codec to the callback
+     */
+    protected void dispatchFormat(final MediaFormat format) {
+        final Callback callback = mCallback;
+        if (callback != null)
+            callback.onOutputFormatChanged(this, toTrackFormat(format));
+    }
+
+    /**
+     * pass encoded data to the callback, caller should release the output buffer after this
+     */
+    protected void dispatchOutput(final ByteBuffer data, final MediaCodec.BufferInfo info) {
+        final Callback callback = mCallback;
+        if (callback == null) return;
+        if (info.size > 0) {
+            mSampleInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            callback.onOutputSample(this, data, mSampleInfo);
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mIsEOS = true;
+            callback.onEndOfStream(this);
+        }
+    }
+
+    protected void dispatchError(final Exception e) {
+        final Callback callback = mCallback;
+        if (callback != null)
+            callback.onError(this, e);
+    }
+
+    /**
+     * convert output format of codec into platform independent format for muxer
+     */
+    public static TrackFormat toTrackFormat(final MediaFormat format) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        final byte[] csd0 = getCsd(format, "csd-0");
+        if (mime.startsWith("video/")) {
+            return TrackFormat.createVideoFormat(mime,
+                    format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                    csd0, getCsd(format, "csd-1"));
+        }
+        return TrackFormat.createAudioFormat(mime,
+                format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), csd0);
+    }
+
+    private static byte[] getCsd(final MediaFormat format, final String name) {
+        if (!format.containsKey(name)) return null;
+        final ByteBuffer csd = format.getByteBuffer(name).duplicate();
+        csd.position(0);
+        final byte[] result = new byte[csd.remaining()];
+        csd.get(result);
+        return result;
+    }
+}
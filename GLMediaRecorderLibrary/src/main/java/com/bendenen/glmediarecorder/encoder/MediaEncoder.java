@@ -1,11 +1,14 @@
 package com.bendenen.glmediarecorder.encoder;
 
-import android.media.MediaCodec;
-import android.media.MediaFormat;
 import android.util.Log;
 
 import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+import com.bendenen.glmediarecorder.utils.DrainSignal;
+import com.bendenen.glmediarecorder.utils.FrameTracer;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
@@ -18,6 +21,10 @@ public abstract class MediaEncoder implements Runnable {
     private static final String TAG = MediaEncoder.class.getSimpleName();
 
     protected static final int TIMEOUT_USEC = 10000;    // 10[msec]
+    /**
+     * maximum time to wait for the last encoded data after end of stream was sent
+     */
+    protected static final long EOS_TIMEOUT_USEC = 1000000L;    // 1[sec]
     protected static final int MSG_FRAME_AVAILABLE = 1;
     protected static final int MSG_STOP_RECORDING = 9;
 
@@ -33,13 +40,33 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected volatile boolean mIsCapturing;
     /**
-     * Flag that indicate the frame data will be available soon.
+     * Signal that indicate the frame data will be available soon.
+     * requests coming while encoder thread is draining are coalesced into one wakeup.
+     */
+    private final DrainSignal mDrainSignal = new DrainSignal();
+    /**
+     * Flag that indicate input is discarded while capturing, the codec keeps running
+     */
+    protected volatile boolean mIsPaused;
+    private volatile long mResumeRequestNs;
+    private volatile long mResumeLatencyNs = -1;
+    /**
+     * capture time of the newest input discarded since #pauseRecording, -1 if none
+     */
+    private volatile long mPausedInputPtsUs = -1;
+    /**
+     * capture time of the last input given to the codec and of its last output, for encoder backlog
      */
-    private int mRequestDrain;
+    private volatile long mLastInputPtsUs = -1;
+    private volatile long mLastOutputPtsUs = -1;
     /**
      * Flag to request stop capturing
      */
     protected volatile boolean mRequestStop;
+    /**
+     * System#nanoTime until which stopping may wait for the codec, set by #stopRecording
+     */
+    private volatile long mStopDeadlineNs;
     /**
      * Flag that indicate encoder received EOS(End Of Stream)
      */
@@ -53,18 +80,13 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected int mTrackIndex;
     /**
-     * MediaCodec instance for encoding
+     * codec for encoding, set by sub class in #prepare
      */
-    protected MediaCodec mMediaCodec;                // API >= 16(Android4.1.2)
+    protected volatile CodecEngine mEngine;
     /**
      * Weak refarence of MediaMuxerWarapper instance
      */
     protected final WeakReference<MediaMuxerWrapper> mWeakMuxer;
-    /**
-     * BufferInfo instance for dequeuing
-     */
-    private MediaCodec.BufferInfo mBufferInfo;        // API >= 16(Android4.1.2)
-
     protected final MediaEncoderListener mListener;
 
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
@@ -74,8 +96,6 @@ public abstract class MediaEncoder implements Runnable {
         muxer.addEncoder(this);
         mListener = listener;
         synchronized (mSync) {
-            // create BufferInfo here for effectiveness(to reduce GC)
-            mBufferInfo = new MediaCodec.BufferInfo();
             // wait for starting thread
             new Thread(this, getClass().getSimpleName()).start();
             try {
@@ -87,7 +107,8 @@ public abstract class MediaEncoder implements Runnable {
 
     public String getOutputPath() {
         final MediaMuxerWrapper muxer = mWeakMuxer.get();
-        return muxer != null ? muxer.getOutputFile().toString() : null;
+        final File file = muxer != null ? muxer.getOutputFile() : null;
+        return file != null ? file.toString() : null;
     }
 
     /**
@@ -97,12 +118,14 @@ public abstract class MediaEncoder implements Runnable {
      */
     public boolean frameAvailableSoon() {
 //    	if (DEBUG) Log.v(TAG, "frameAvailableSoon");
-        synchronized (mSync) {
-            if (!mIsCapturing || mRequestStop) {
-                return false;
-            }
-            mRequestDrain++;
-            mSync.notifyAll();
+        if (!mIsCapturing || mRequestStop || mIsPaused) {
+            return false;
+        }
+        if (mResumeRequestNs != 0) onResumed();
+        final CodecEngine engine = mEngine;
+        if (engine == null || !engine.isAsync()) {
+            // asynchronous engine delivers output by itself, no need to wake up encoder thread
+            mDrainSignal.signal();
         }
         return true;
     }
@@ -115,41 +138,35 @@ public abstract class MediaEncoder implements Runnable {
 //		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
         synchronized (mSync) {
             mRequestStop = false;
-            mRequestDrain = 0;
+            mDrainSignal.clear();
+            mDrainSignal.bindConsumer();
             mSync.notify();
         }
-        final boolean isRunning = true;
-        boolean localRequestStop;
-        boolean localRequestDrain;
-        while (isRunning) {
-            synchronized (mSync) {
-                localRequestStop = mRequestStop;
-                localRequestDrain = (mRequestDrain > 0);
-                if (localRequestDrain)
-                    mRequestDrain--;
-            }
-            if (localRequestStop) {
-                drain();
-                // request stop recording
-                signalEndOfInputStream();
-                // process output data again for EOS signale
-                drain();
-                // release all related objects
-                release();
+        for (; ; ) {
+            try {
+                // wait for drain/stop request, several requests are coalesced
+                mDrainSignal.await();
+            } catch (final InterruptedException e) {
                 break;
             }
-            if (localRequestDrain) {
-                drain();
-            } else {
-                synchronized (mSync) {
-                    try {
-                        mSync.wait();
-                    } catch (final InterruptedException e) {
-                        break;
+            if (mRequestStop) {
+                if (mIsCapturing) {
+                    drain();
+                    // request stop recording
+                    signalEndOfInputStream();
+                    // process output data again for EOS signale
+                    final CodecEngine engine = mEngine;
+                    if (engine != null && !engine.awaitEndOfStream(getStopRemainingUs())) {
+                        Log.w(TAG, "EOS did not come from codec within stop budget");
                     }
                 }
+                // discarded without recording: nothing was encoded, no need to wait for EOS
+                // release all related objects
+                release();
+                break;
             }
-        } // end of while
+            drain();
+        } // end of for
         if (DEBUG) Log.d(TAG, "Encoder thread exiting");
         synchronized (mSync) {
             mRequestStop = true;
@@ -167,32 +184,217 @@ public abstract class MediaEncoder implements Runnable {
 
     public void startRecording() {
         if (DEBUG) Log.v(TAG, "startRecording");
-        synchronized (mSync) {
-            mIsCapturing = true;
-            mRequestStop = false;
-            mSync.notifyAll();
+        mRequestStop = false;
+        mIsPaused = false;
+        mLastInputPtsUs = mLastOutputPtsUs = -1;
+        mIsCapturing = true;
+    }
+
+    /**
+     * discard input until #resumeRecording, the codec and the muxer keep running
+     */
+    public void pauseRecording() {
+        if (DEBUG) Log.v(TAG, "pauseRecording");
+        mPausedInputPtsUs = -1;
+        mIsPaused = true;
+    }
+
+    /**
+     * accept input again, the codec was kept running so this costs nothing but waiting for the next input
+     */
+    public void resumeRecording() {
+        if (DEBUG) Log.v(TAG, "resumeRecording");
+        if (!mIsPaused) return;
+        mResumeRequestNs = System.nanoTime();
+        mIsPaused = false;
+    }
+
+    public boolean isPaused() {
+        return mIsPaused;
+    }
+
+    /**
+     * sub class calls this for an input that is discarded because the encoder is paused
+     *
+     * @param ptsUs capture time of the input
+     */
+    protected void onPausedInput(final long ptsUs) {
+        if (ptsUs > mPausedInputPtsUs) mPausedInputPtsUs = ptsUs;
+    }
+
+    /**
+     * inputs come in capture order, so any input after this was captured later
+     *
+     * @return capture time of the newest input discarded since #pauseRecording, -1 if none
+     */
+    public long getPausedInputPtsUs() {
+        return mPausedInputPtsUs;
+    }
+
+    /**
+     * @return time from the last #resumeRecording to the first accepted input, -1 if not resumed yet
+     */
+    public long getResumeLatencyUs() {
+        final long latency = mResumeLatencyNs;
+        return latency >= 0 ? latency / 1000L : -1;
+    }
+
+    private void onResumed() {
+        final long request = mResumeRequestNs;
+        mResumeRequestNs = 0;
+        if (request != 0) {
+            mResumeLatencyNs = System.nanoTime() - request;
+            if (DEBUG) Log.v(TAG, "resumed in " + mResumeLatencyNs / 1000L + "us");
         }
     }
 
     /**
-     * the method to request stop encoding
+     * the method to request stop encoding, waits for the last encoded data for EOS_TIMEOUT_USEC at most
      */
     public void stopRecording() {
+        stopRecording(System.nanoTime() + EOS_TIMEOUT_USEC * 1000L);
+    }
+
+    /**
+     * request stop encoding, the encoder gives up waiting for the codec at deadlineNs and releases it
+     *
+     * @param deadlineNs on System#nanoTime clock, shared by encoders that stop together
+     */
+    public void stopRecording(final long deadlineNs) {
         if (DEBUG) Log.v(TAG, "stopRecording");
         synchronized (mSync) {
             if (!mIsCapturing || mRequestStop) {
                 return;
             }
+            mStopDeadlineNs = deadlineNs;
             mRequestStop = true;    // for rejecting newer frame
-            mSync.notifyAll();
-            // We can not know when the encoding and writing finish.
-            // so we return immediately after request to avoid delay of caller thread
         }
+        mDrainSignal.signal();
+        // We can not know when the encoding and writing finish.
+        // so we return immediately after request to avoid delay of caller thread
+    }
+
+    /**
+     * release a prepared encoder that never started recording, e.g. an unused warm-up session.
+     * same as #stopRecording if this encoder is capturing.
+     */
+    public void discard() {
+        if (DEBUG) Log.v(TAG, "discard");
+        synchronized (mSync) {
+            if (mRequestStop) {
+                return;
+            }
+            mStopDeadlineNs = System.nanoTime() + EOS_TIMEOUT_USEC * 1000L;
+            mRequestStop = true;
+        }
+        mDrainSignal.signal();
     }
 
 //********************************************************************************
 //********************************************************************************
 
+    /**
+     * @return true if this encoder produces the video track
+     */
+    public boolean isVideoEncoder() {
+        return false;
+    }
+
+    /**
+     * @return monitor of A/V drift owned by this encoder, null if this encoder does not measure drift
+     */
+    public AvDriftMonitor getDriftMonitor() {
+        return null;
+    }
+
+    /**
+     * set monitor of other encoder to report timestamps of this encoder, nothing to do by default
+     */
+    public void setDriftMonitor(final AvDriftMonitor monitor) {
+    }
+
+    /**
+     * set tracer to record per-stage latency of frames, nothing to do by default
+     */
+    public void setFrameTracer(final FrameTracer tracer) {
+    }
+
+    /**
+     * @return index of the track in the muxer, -1 until the codec gave its output format
+     */
+    public int getTrackIndex() {
+        return mMuxerStarted ? mTrackIndex : -1;
+    }
+
+    /**
+     * change the bitrate while recording, nothing to do by default
+     *
+     * @return false if this encoder or its codec can not change bitrate
+     */
+    public boolean setBitrate(final int bitrate) {
+        return false;
+    }
+
+    /**
+     * @return current bitrate in bits per second, 0 if unknown
+     */
+    public int getBitrate() {
+        return 0;
+    }
+
+    /**
+     * @return capture time of the last input minus that of the last encoded output,
+     * how far the codec is behind its input. 0 until the first output
+     */
+    public long getEncoderBacklogUs() {
+        final long input = mLastInputPtsUs, output = mLastOutputPtsUs;
+        return (input >= 0 && output >= 0) ? Math.max(0, input - output) : 0;
+    }
+
+    /**
+     * sub class calls this when an input frame is given to the codec
+     *
+     * @param ptsUs capture time of the input
+     */
+    protected void onInputQueued(final long ptsUs) {
+        mLastInputPtsUs = ptsUs;
+    }
+
+    /**
+     * called on the thread that receives codec output after an encoded sample was written, nothing to do by default
+     *
+     * @param ptsUs presentation time of the sample(capture time)
+     */
+    protected void onSampleEncoded(final long ptsUs) {
+    }
+
+    /**
+     * @return time left until the stop deadline, 0 when it passed
+     */
+    protected long getStopRemainingUs() {
+        return Math.max(0, (mStopDeadlineNs - System.nanoTime()) / 1000L);
+    }
+
+    /**
+     * ask the codec to make the next output a sync frame, this can be called from any thread
+     *
+     * @return false if the codec is not running or can not do this
+     */
+    public boolean requestSyncFrame() {
+        final CodecEngine engine = mEngine;
+        return (engine != null) && engine.requestSyncFrame();
+    }
+
+    /**
+     * start the engine and receive its output, sub class calls this at the end of #prepare
+     */
+    protected void startEngine(final CodecEngine engine) {
+        mIsEOS = false;
+        mMuxerStarted = false;
+        mEngine = engine;
+        engine.start(mEngineCallback);
+    }
+
     /**
      * Release all releated objects
      */
@@ -204,14 +406,10 @@ public abstract class MediaEncoder implements Runnable {
             Log.e(TAG, "failed onStopped", e);
         }
         mIsCapturing = false;
-        if (mMediaCodec != null) {
-            try {
-                mMediaCodec.stop();
-                mMediaCodec.release();
-                mMediaCodec = null;
-            } catch (final Exception e) {
-                Log.e(TAG, "failed releasing MediaCodec", e);
-            }
+        final CodecEngine engine = mEngine;
+        mEngine = null;
+        if (engine != null) {
+            engine.release();
         }
         if (mMuxerStarted) {
             final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
@@ -223,14 +421,16 @@ public abstract class MediaEncoder implements Runnable {
                 }
             }
         }
-        mBufferInfo = null;
+        final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
+        if (muxer != null) {
+            muxer.encoderReleased(this);
+        }
     }
 
     protected void signalEndOfInputStream() {
         if (DEBUG) Log.d(TAG, "sending EOS to encoder");
         // signalEndOfInputStream is only avairable for video encoding with surface
         // and equivalent sending a empty buffer with BUFFER_FLAG_END_OF_STREAM flag.
-//		mMediaCodec.signalEndOfInputStream();	// API >= 18
         encode(null, 0, getPTSUs());
     }
 
@@ -242,138 +442,113 @@ public abstract class MediaEncoder implements Runnable {
      * @param presentationTimeUs
      */
     protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
-        if (!mIsCapturing) return;
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+        final CodecEngine engine = mEngine;
+        if (!mIsCapturing || engine == null) return;
+        final boolean endOfStream = length <= 0;
+        if (mIsPaused && !endOfStream) {
+            onPausedInput(presentationTimeUs);
+            return;
+        }
+        if (!endOfStream && mResumeRequestNs != 0) onResumed();
         while (mIsCapturing) {
-            final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
-            if (inputBufferIndex >= 0) {
-                final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-                inputBuffer.clear();
-                if (buffer != null) {
-                    inputBuffer.put(buffer);
-                }
-//	            if (DEBUG) Log.v(TAG, "encode:queueInputBuffer");
-                if (length <= 0) {
-                    // send EOS
-                    mIsEOS = true;
-                    if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-                    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
-                            presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    break;
-                } else {
-                    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
-                            presentationTimeUs, 0);
-                }
+            // CodecEngine#queueInput waits for maximum TIMEOUT_USEC(10msec) for a free input buffer
+            if (engine.queueInput(buffer, length, presentationTimeUs, endOfStream, TIMEOUT_USEC)) {
+                if (endOfStream) mIsEOS = true;
+                else onInputQueued(presentationTimeUs);
+                break;
+            }
+            if (endOfStream && getStopRemainingUs() == 0) {
+                Log.w(TAG, "no input buffer for EOS within stop budget");
                 break;
-            } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // wait for MediaCodec encoder is ready to encode
-                // nothing to do here because MediaCodec#dequeueInputBuffer(TIMEOUT_USEC)
-                // will wait for maximum TIMEOUT_USEC(10msec) on each call
             }
         }
     }
 
     /**
-     * drain encoded data and write them to muxer
+     * drain encoded data and write them to muxer,
+     * nothing to do here when the engine delivers output on its own thread
      */
     protected void drain() {
-        if (mMediaCodec == null) return;
-        ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
-        int encoderStatus, count = 0;
-        final MediaMuxerWrapper muxer = mWeakMuxer.get();
-        if (muxer == null) {
-//        	throw new NullPointerException("muxer is unexpectedly null");
-            Log.w(TAG, "muxer is unexpectedly null");
-            return;
+        final CodecEngine engine = mEngine;
+        if (engine != null) {
+            engine.drainOutput();
         }
-        LOOP:
-        while (mIsCapturing) {
-            // get encoded data with maximum timeout duration of TIMEOUT_USEC(=10[msec])
-            encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // wait 5 counts(=TIMEOUT_USEC x 5 = 50msec) until data/EOS come
-                if (!mIsEOS) {
-                    if (++count > 5)
-                        break LOOP;        // out of while
-                }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                if (DEBUG) Log.v(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
-                // this shoud not come when encoding
-                encoderOutputBuffers = mMediaCodec.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
-                // this status indicate the output format of codec is changed
-                // this should come only once before actual encoded data
-                // but this status never come on Android4.3 or less
-                // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                if (mMuxerStarted) {    // second time request is error
-                    throw new RuntimeException("format changed twice");
-                }
-                // get output format from codec and pass them to muxer
-                // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
-                final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
-                mTrackIndex = muxer.addTrack(format);
-                mMuxerStarted = true;
-                if (!muxer.start()) {
-                    // we should wait until muxer is ready
-                    synchronized (muxer) {
-                        while (!muxer.isStarted())
-                            try {
-                                muxer.wait(100);
-                            } catch (final InterruptedException e) {
-                                break LOOP;
-                            }
-                    }
-                }
-            } else if (encoderStatus < 0) {
-                // unexpected status
-                if (DEBUG)
-                    Log.w(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
-            } else {
-                final ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    // this never should come...may be a MediaCodec internal error
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
-                }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // You shoud set output format to muxer here when you target Android4.3 or less
-                    // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
-                    // therefor we should expand and prepare output format from buffer data.
-                    // This sample is for API>=18(>=Android 4.3), just ignore this flag here
-                    if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
+    }
 
-                if (mBufferInfo.size != 0) {
-                    // encoded data is ready, clear waiting counter
-                    count = 0;
-                    if (!mMuxerStarted) {
-                        // muxer is not ready...this will prrograming failure.
-                        throw new RuntimeException("drain:muxer hasn't started");
-                    }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                    mBufferInfo.presentationTimeUs = getPTSUs();
-                    muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    prevOutputPTSUs = mBufferInfo.presentationTimeUs;
-                }
-                // return buffer to encoder
-                mMediaCodec.releaseOutputBuffer(encoderStatus, false);
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    // when EOS come.
-                    mIsCapturing = false;
-                    break;      // out of while
+    /**
+     * receive output of the engine and write them to muxer
+     */
+    private final CodecEngine.Callback mEngineCallback = new CodecEngine.Callback() {
+        @Override
+        public void onOutputFormatChanged(final CodecEngine engine, final TrackFormat format) {
+            // this should come only once before actual encoded data
+            if (mMuxerStarted) {    // second time request is error
+                throw new RuntimeException("format changed twice");
+            }
+            final MediaMuxerWrapper muxer = mWeakMuxer.get();
+            if (muxer == null) {
+                Log.w(TAG, "muxer is unexpectedly null");
+                return;
+            }
+            mTrackIndex = muxer.addTrack(format);
+            mMuxerStarted = true;
+            if (!muxer.start()) {
+                // we should wait until muxer is ready
+                synchronized (muxer) {
+                    // in warm-up mode this waits until the output is attached or this encoder is discarded
+                    while (!muxer.isStarted() && !(mRequestStop && !mIsCapturing))
+                        try {
+                            muxer.wait(100);
+                        } catch (final InterruptedException e) {
+                            break;
+                        }
                 }
             }
         }
-    }
+
+        @Override
+        public void onOutputSample(final CodecEngine engine, final ByteBuffer data, final SampleInfo info) {
+            if (info.size == 0) return;
+            if ((info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0) {
+                // csd is already passed to muxer with output format, just ignore this sample here
+                if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
+                return;
+            }
+            if (!mMuxerStarted) {
+                // muxer is not ready...this will prrograming failure.
+                throw new RuntimeException("drain:muxer hasn't started");
+            }
+            final MediaMuxerWrapper muxer = mWeakMuxer.get();
+            if (muxer == null) return;
+            // presentationTimeUs is the capture time passed to the codec, write it untouched
+            muxer.writeSampleData(mTrackIndex, data, info);
+            mLastOutputPtsUs = info.presentationTimeUs;
+            onSampleEncoded(info.presentationTimeUs);
+            if (info.presentationTimeUs > prevOutputPTSUs)
+                prevOutputPTSUs = info.presentationTimeUs;
+        }
+
+        @Override
+        public void onEndOfStream(final CodecEngine engine) {
+            // when EOS come.
+            mIsCapturing = false;
+        }
+
+        @Override
+        public void onError(final CodecEngine engine, final Exception e) {
+            Log.e(TAG, "codec error", e);
+            stopRecording();
+        }
+    };
 
     /**
      * previous presentationTimeUs for writing
      */
-    private long prevOutputPTSUs = 0;
+    private volatile long prevOutputPTSUs = 0;
 
     /**
-     * get next encoding presentationTimeUs
+     * get current time on the same clock as SurfaceTexture#getTimestamp(System#nanoTime)
+     * for input that has no capture time, e.g. end of stream
      *
      * @return
      */
@@ -382,7 +557,7 @@ public abstract class MediaEncoder implements Runnable {
         // presentationTimeUs should be monotonic
         // otherwise muxer fail to write
         if (result < prevOutputPTSUs)
-            result = (prevOutputPTSUs - result) + result;
+            result = prevOutputPTSUs;
         return result;
     }
 
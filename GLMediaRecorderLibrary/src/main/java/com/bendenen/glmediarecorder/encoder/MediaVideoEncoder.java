@@ -1,15 +1,15 @@
 package com.bendenen.glmediarecorder.encoder;
 
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.opengl.EGLContext;
 import android.util.Log;
 import android.view.Surface;
 
+import com.bendenen.glmediarecorder.glmodels.FrameBufferRing;
 import com.bendenen.glmediarecorder.handlers.RenderHandler;
 import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+import com.bendenen.glmediarecorder.utils.FrameTracer;
 
 import java.io.IOException;
 
@@ -22,13 +22,17 @@ public class MediaVideoEncoder extends MediaEncoder {
 
     private static final String MIME_TYPE = "video/avc";
     // parameters for recording
-    private static final int FRAME_RATE = 25;
+    public static final int FRAME_RATE = 25;
     private static final float BPP = 0.25f;
 
     private final int mWidth;
     private final int mHeight;
     private RenderHandler mRenderHandler;
     private Surface mSurface;
+    private volatile AvDriftMonitor mDriftMonitor;
+    private volatile int mBitrate;
+    private volatile FrameBudget mFrameBudget = new FrameBudget();
+    private volatile FrameTracer mFrameTracer;
 
     public MediaVideoEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final int width, final int height) {
         this(muxer, listener, width, height, -1, -1, false);
@@ -41,50 +45,207 @@ public class MediaVideoEncoder extends MediaEncoder {
         mWidth = width;
         mHeight = height;
         mRenderHandler = RenderHandler.createHandler(TAG, width, height, videoSourceWidth, videoSourceHeight, isFrontFacing);
+        mRenderHandler.setFrameBudget(mFrameBudget);
 
     }
 
     public boolean frameAvailableSoon(final float[] tex_matrix) {
         boolean result;
-        if (result = super.frameAvailableSoon())
+        if (result = (super.frameAvailableSoon() && admitFrame())) {
             mRenderHandler.draw(tex_matrix);
+            onInputQueued(System.nanoTime() / 1000L);
+        }
+        return result;
+    }
+
+    /**
+     * @param timestampNs capture time of the frame(SurfaceTexture#getTimestamp),
+     *                    the encoded frame has this as presentation time
+     */
+    public boolean frameAvailableSoon(final float[] tex_matrix, final long timestampNs) {
+        boolean result;
+        if (result = (super.frameAvailableSoon() && admitFrame())) {
+            mRenderHandler.draw(tex_matrix, timestampNs);
+            onInputQueued(timestampNs / 1000L);
+            final AvDriftMonitor monitor = mDriftMonitor;
+            if (monitor != null) monitor.onVideoFrame(timestampNs / 1000L, timestampNs / 1000L);
+        } else if (mIsPaused) {
+            onPausedInput(timestampNs / 1000L);
+        }
+        return result;
+    }
+
+    /**
+     * encode a frame that was already rendered into the shared frame buffer.
+     * one draw of the buffer is released even if this encoder does not accept the frame.
+     *
+     * @param timestampNs capture time of the frame, the encoded frame has this as presentation time
+     */
+    public boolean frameAvailableSoon(final FrameBufferRing ring, final int index, final long timestampNs) {
+        return frameAvailableSoon(ring, index, timestampNs, timestampNs);
+    }
+
+    /**
+     * @param timestampNs presentation time of the encoded frame, e.g. the output slot of FramePacer
+     * @param captureNs   capture time of the camera frame(SurfaceTexture#getTimestamp)
+     */
+    public boolean frameAvailableSoon(final FrameBufferRing ring, final int index, final long timestampNs, final long captureNs) {
+        boolean result;
+        if (result = (super.frameAvailableSoon() && admitFrame())) {
+            mRenderHandler.drawFrame(ring, index, timestampNs, captureNs);
+            onInputQueued(timestampNs / 1000L);
+            final AvDriftMonitor monitor = mDriftMonitor;
+            if (monitor != null) monitor.onVideoFrame(timestampNs / 1000L, captureNs / 1000L);
+        } else {
+            if (mIsPaused) onPausedInput(timestampNs / 1000L);
+            ring.release(index);
+        }
         return result;
     }
 
     @Override
     public boolean frameAvailableSoon() {
         boolean result;
-        if (result = super.frameAvailableSoon())
+        if (result = (super.frameAvailableSoon() && admitFrame())) {
             mRenderHandler.draw(null);
+            onInputQueued(System.nanoTime() / 1000L);
+        }
         return result;
     }
 
+    /**
+     * replace the in-flight frame budget, call before #startRecording
+     */
+    public void setFrameBudget(final FrameBudget budget) {
+        if (budget == null) throw new NullPointerException("FrameBudget is null");
+        mFrameBudget = budget;
+        final RenderHandler handler = mRenderHandler;
+        if (handler != null) handler.setFrameBudget(budget);
+    }
+
+    /**
+     * @return budget of in-flight frames, to read drop counters and queue depth
+     */
+    public FrameBudget getFrameBudget() {
+        return mFrameBudget;
+    }
+
+    /**
+     * take a slot of the in-flight budget for a new frame, called on GL thread.
+     * this never waits longer than the block timeout, so the preview is not held up by a slow encoder.
+     *
+     * @return false if the frame should be dropped
+     */
+    private boolean admitFrame() {
+        final FrameBudget budget = mFrameBudget;
+        switch (budget.getPolicy()) {
+            case BLOCK:
+                if (budget.acquire(budget.getBlockTimeoutNs())) return true;
+                budget.onRejected(true);
+                return false;
+            case DROP_OLDEST:
+                // make room by dropping the oldest frame still waiting for the render thread
+                if (budget.tryAcquire() || (mRenderHandler.dropOldest() && budget.tryAcquire())) return true;
+                break;
+            default:
+                if (budget.tryAcquire()) return true;
+                break;
+        }
+        budget.onRejected(false);
+        return false;
+    }
+
+    @Override
+    public void startRecording() {
+        mFrameBudget.reset();
+        super.startRecording();
+    }
+
+    /**
+     * @param tracer records latency of render and codec stages of each frame, null to disable
+     */
+    @Override
+    public void setFrameTracer(final FrameTracer tracer) {
+        mFrameTracer = tracer;
+        final RenderHandler handler = mRenderHandler;
+        if (handler != null) handler.setFrameTracer(tracer);
+    }
+
+    @Override
+    protected void onSampleEncoded(final long ptsUs) {
+        mFrameBudget.onEncoded(ptsUs);
+        final FrameTracer tracer = mFrameTracer;
+        if (tracer != null) tracer.onEncoded(ptsUs);
+    }
+
+    /**
+     * report frame timestamps to the monitor of audio encoder
+     */
+    @Override
+    public void setDriftMonitor(final AvDriftMonitor monitor) {
+        mDriftMonitor = monitor;
+    }
+
+    @Override
+    public boolean isVideoEncoder() {
+        return true;
+    }
+
+    /**
+     * change the bitrate of the running codec through MediaCodec#setParameters(API >= 19)
+     */
+    @Override
+    public boolean setBitrate(final int bitrate) {
+        final CodecEngine engine = mEngine;
+        if ((engine == null) || !engine.setBitrate(bitrate)) return false;
+        mBitrate = bitrate;
+        return true;
+    }
+
+    @Override
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * the first frame after resume is encoded as a sync frame, if the codec supports the request(API >= 19)
+     */
+    @Override
+    public void resumeRecording() {
+        if (!mIsPaused) return;
+        requestSyncFrame();
+        super.resumeRecording();
+    }
+
     @Override
     public void prepare() throws IOException {
         if (DEBUG) Log.i(TAG, "prepare: ");
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec(MIME_TYPE);
-        if (videoCodecInfo == null) {
+        final long lookupStart = System.nanoTime();
+        final CodecCapabilityIndex.Codec videoCodec = selectVideoCodec(MIME_TYPE);
+        if (videoCodec == null) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-        if (DEBUG) Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
+        if (DEBUG) Log.i(TAG, "selected codec: " + videoCodec.name
+                + " in " + (System.nanoTime() - lookupStart) / 1000L + "us");
 
         final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
-        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
+        mBitrate = calcBitRate();
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitrate);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
         if (DEBUG) Log.i(TAG, "format: " + format);
 
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        final MediaCodecEngine engine = MediaCodecEngine.createEncoder(MIME_TYPE, videoCodec.name);
+        engine.configure(format);
         // get Surface for encoder input
         // this method only can call between #configure and #start
-        mSurface = mMediaCodec.createInputSurface();    // API >= 18
-        mMediaCodec.start();
+        mSurface = engine.createInputSurface();    // API >= 18
+        startEngine(engine);
         if (DEBUG) Log.i(TAG, "prepare finishing");
         if (mListener != null) {
             try {
@@ -120,35 +281,19 @@ public class MediaVideoEncoder extends MediaEncoder {
     }
 
     /**
-     * select the first codec that match a specific MIME type
+     * select the first codec that match a specific MIME type and a color format we can use.
+     * Codecs are looked up in CodecCapabilityIndex instead of scanning MediaCodecList every time.
      *
      * @param mimeType
      * @return null if no codec matched
      */
-    protected static final MediaCodecInfo selectVideoCodec(final String mimeType) {
+    protected static final CodecCapabilityIndex.Codec selectVideoCodec(final String mimeType) {
         if (DEBUG) Log.v(TAG, "selectVideoCodec:");
-
-        // get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-
-            if (!codecInfo.isEncoder()) {    // skipp decoder
-                continue;
-            }
-            // select first codec that match a specific MIME type and color format
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-                    final int format = selectColorFormat(codecInfo, mimeType);
-                    if (format > 0) {
-                        return codecInfo;
-                    }
-                }
-            }
+        final CodecCapabilityIndex.Codec result = CodecCapabilityScanner.getIndex().findEncoder(mimeType, recognizedFormats);
+        if (result == null) {
+            Log.e(TAG, "couldn't find a good color format for " + mimeType);
         }
-        return null;
+        return result;
     }
 
     /**
@@ -156,28 +301,18 @@ public class MediaVideoEncoder extends MediaEncoder {
      *
      * @return 0 if no colorFormat is matched
      */
-    protected static final int selectColorFormat(final MediaCodecInfo codecInfo, final String mimeType) {
+    protected static final int selectColorFormat(final CodecCapabilityIndex.Codec codec, final String mimeType) {
         if (DEBUG) Log.i(TAG, "selectColorFormat: ");
-        int result = 0;
-        final MediaCodecInfo.CodecCapabilities caps;
-        try {
-            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            caps = codecInfo.getCapabilitiesForType(mimeType);
-        } finally {
-            Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-        }
-        int colorFormat;
-        for (int i = 0; i < caps.colorFormats.length; i++) {
-            colorFormat = caps.colorFormats[i];
-            if (isRecognizedViewoFormat(colorFormat)) {
-                if (result == 0)
-                    result = colorFormat;
-                break;
+        final CodecCapabilityIndex.Type type = codec.getType(mimeType);
+        if (type != null) {
+            for (final int colorFormat : type.colorFormats) {
+                if (isRecognizedViewoFormat(colorFormat)) {
+                    return colorFormat;
+                }
             }
         }
-        if (result == 0)
-            Log.e(TAG, "couldn't find a good color format for " + codecInfo.getName() + " / " + mimeType);
-        return result;
+        Log.e(TAG, "couldn't find a good color format for " + codec.name + " / " + mimeType);
+        return 0;
     }
 
     /**
@@ -208,7 +343,10 @@ public class MediaVideoEncoder extends MediaEncoder {
     @Override
     protected void signalEndOfInputStream() {
         if (DEBUG) Log.d(TAG, "sending EOS to encoder");
-        mMediaCodec.signalEndOfInputStream();    // API >= 18
+        final CodecEngine engine = mEngine;
+        if (engine != null) {
+            engine.signalEndOfInputStream();    // API >= 18
+        }
         mIsEOS = true;
     }
 
@@ -0,0 +1,106 @@
+package com.bendenen.glmediarecorder.encoder;
+
+/**
+ * Removes paused intervals from the presentation timeline of a recording.
+ * Times are on the capture clock that both tracks use(System#nanoTime in microseconds), so one timeline is
+ * shared by the audio and video tracks and they stay in sync.
+ * A sample captured while paused is discarded, a sample captured after a pause is moved earlier by the total
+ * length of the pauses before it, so the output has no gap. Samples still in the codec when #pause is called
+ * keep their position because the shift depends only on their own presentation time.
+ * #pause/#resume can be called from any thread, #map from encoder threads.
+ */
+public class PauseTimeline {
+    /**
+     * returned by #map for a sample captured while paused
+     */
+    public static final long DISCARDED = Long.MIN_VALUE;
+
+    private long[] mStarts = new long[4];
+    private long[] mEnds = new long[4];
+    private int mCount;
+    private boolean mPaused;
+    private long mPauseStartUs;
+    private long mTotalPausedUs;
+
+    /**
+     * @param nowUs capture clock time of the pause, samples captured at or after this are discarded
+     * @return false if already paused
+     */
+    public synchronized boolean pause(final long nowUs) {
+        if (mPaused) return false;
+        mPaused = true;
+        mPauseStartUs = nowUs;
+        return true;
+    }
+
+    /**
+     * @param nowUs capture clock time of the resume, samples captured at or after this are kept
+     * @return false if not paused
+     */
+    public synchronized boolean resume(final long nowUs) {
+        if (!mPaused) return false;
+        mPaused = false;
+        if (nowUs <= mPauseStartUs) return true;
+        if (mCount == mStarts.length) {
+            final long[] starts = new long[mCount * 2];
+            final long[] ends = new long[mCount * 2];
+            System.arraycopy(mStarts, 0, starts, 0, mCount);
+            System.arraycopy(mEnds, 0, ends, 0, mCount);
+            mStarts = starts;
+            mEnds = ends;
+        }
+        mStarts[mCount] = mPauseStartUs;
+        mEnds[mCount] = nowUs;
+        mCount++;
+        mTotalPausedUs += nowUs - mPauseStartUs;
+        return true;
+    }
+
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mPaused = false;
+        mTotalPausedUs = 0;
+    }
+
+    /**
+     * @return number of finished pauses that removed time
+     */
+    public synchronized int getPauseCount() {
+        return mCount;
+    }
+
+    /**
+     * @return capture time at which a finished pause ended, #map gives its position in the output
+     */
+    public synchronized long getPauseEndUs(final int index) {
+        if (index < 0 || index >= mCount) throw new IndexOutOfBoundsException("no pause " + index);
+        return mEnds[index];
+    }
+
+    /**
+     * @return total length of the finished pauses
+     */
+    public synchronized long getTotalPausedUs() {
+        return mTotalPausedUs;
+    }
+
+    /**
+     * @param ptsUs capture time of a sample
+     * @return presentation time in the output, DISCARDED if the sample was captured while paused
+     */
+    public synchronized long map(final long ptsUs) {
+        if (mPaused && ptsUs >= mPauseStartUs) return DISCARDED;
+        long offset = 0;
+        // pauses are in time order, most recordings have none or a few
+        for (int i = 0; i < mCount; i++) {
+            if (ptsUs < mStarts[i]) break;
+            if (ptsUs < mEnds[i]) return DISCARDED;
+            offset += mEnds[i] - mStarts[i];
+        }
+        return ptsUs - offset;
+    }
+}
@@ -0,0 +1,143 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MediaCodecEngine that polls dequeueInputBuffer/dequeueOutputBuffer(API 18-20).
+ * Output is delivered on the thread that calls #drainOutput or #awaitEndOfStream.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class PollingCodecEngine extends MediaCodecEngine {
+    private static final boolean DEBUG = false;    // TODO set false on release
+    private static final String TAG = PollingCodecEngine.class.getSimpleName();
+
+    private static final int TIMEOUT_USEC = 10000;    // 10[msec]
+    private static final int MAX_TRY_AGAIN = 5;
+
+    /**
+     * BufferInfo instance for dequeuing
+     */
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();    // API >= 16(Android4.1.2)
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    /**
+     * Flag that indicate end of input was signaled
+     */
+    private volatile boolean mInputEOS;
+
+    public PollingCodecEngine(final MediaCodec codec) {
+        super(codec);
+    }
+
+    @Override
+    public void start(final Callback callback) {
+        mInputEOS = false;
+        super.start(callback);
+        mInputBuffers = mMediaCodec.getInputBuffers();
+        mOutputBuffers = mMediaCodec.getOutputBuffers();
+    }
+
+    @Override
+    public boolean isAsync() {
+        return false;
+    }
+
+    @Override
+    public boolean queueInput(final ByteBuffer data, final int length, final long presentationTimeUs,
+                              final boolean endOfStream, final long timeoutUs) {
+        final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(timeoutUs);
+        if (inputBufferIndex < 0) {
+            // MediaCodec.INFO_TRY_AGAIN_LATER, MediaCodec#dequeueInputBuffer already waited timeoutUs
+            return false;
+        }
+        final ByteBuffer inputBuffer = mInputBuffers[inputBufferIndex];
+        inputBuffer.clear();
+        if (data != null) {
+            inputBuffer.put(data);
+        }
+        if (endOfStream) {
+            if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+            mInputEOS = true;
+            mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
+                    presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        } else {
+            mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length, presentationTimeUs, 0);
+        }
+        return true;
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mInputEOS = true;
+        super.signalEndOfInputStream();
+    }
+
+    @Override
+    public void drainOutput() {
+        poll(Long.MAX_VALUE);
+    }
+
+    @Override
+    public boolean awaitEndOfStream(final long timeoutUs) {
+        final long deadline = System.nanoTime() + timeoutUs * 1000L;
+        while (!mIsEOS && (System.nanoTime() < deadline)) {
+            poll(deadline);
+        }
+        return mIsEOS;
+    }
+
+    /**
+     * dequeue encoded data and pass them to callback
+     */
+    private void poll(final long deadlineNs) {
+        int count = 0;
+        while (!mIsEOS) {
+            // get encoded data with maximum timeout duration of TIMEOUT_USEC(=10[msec])
+            final int encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                // wait 5 counts(=TIMEOUT_USEC x 5 = 50msec) until data/EOS come
+                if (!mInputEOS) {
+                    if (++count > MAX_TRY_AGAIN)
+                        break;
+                } else if (System.nanoTime() >= deadlineNs) {
+                    break;
+                }
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                if (DEBUG) Log.v(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
+                // this shoud not come when encoding
+                mOutputBuffers = mMediaCodec.getOutputBuffers();
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
+                // this status indicate the output format of codec is changed
+                // this should come only once before actual encoded data
+                // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
+                dispatchFormat(mMediaCodec.getOutputFormat());    // API >= 16
+            } else if (encoderStatus < 0) {
+                // unexpected status
+                if (DEBUG)
+                    Log.w(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
+            } else {
+                final ByteBuffer encodedData = mOutputBuffers[encoderStatus];
+                if (encodedData == null) {
+                    // this never should come...may be a MediaCodec internal error
+                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
+                }
+                if (mBufferInfo.size != 0) {
+                    // encoded data is ready, clear waiting counter
+                    count = 0;
+                }
+                try {
+                    dispatchOutput(encodedData, mBufferInfo);
+                } finally {
+                    // return buffer to encoder
+                    mMediaCodec.releaseOutputBuffer(encoderStatus, false);
+                }
+            }
+        }
+    }
+}
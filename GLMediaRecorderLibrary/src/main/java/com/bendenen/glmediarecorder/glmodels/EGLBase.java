@@ -6,6 +6,7 @@ import android.opengl.EGL14;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
 import android.os.Build;
 import android.util.Log;
@@ -63,6 +64,15 @@ public class EGLBase {    // API >= 18
             mEgl.swap(mEglSurface);
         }
 
+        /**
+         * set presentation time of the frame that will be passed by next #swap
+         *
+         * @param nsecs time in nanoseconds, e.g. SurfaceTexture#getTimestamp
+         */
+        public void setPresentationTime(final long nsecs) {
+            mEgl.setPresentationTime(mEglSurface, nsecs);
+        }
+
         public EGLContext getContext() {
             return mEgl.getContext();
         }
@@ -197,6 +207,12 @@ public class EGLBase {    // API >= 18
         return EGL14.EGL_SUCCESS;
     }
 
+    private void setPresentationTime(final EGLSurface surface, final long nsecs) {
+        if (!EGLExt.eglPresentationTimeANDROID(mEglDisplay, surface, nsecs)) {    // API >= 18
+            if (DEBUG) Log.w(TAG, "setPresentationTime:err=" + EGL14.eglGetError());
+        }
+    }
+
     private EGLContext createContext(final EGLContext shared_context) {
 
         final int[] attrib_list = {
@@ -0,0 +1,212 @@
+package com.bendenen.glmediarecorder.glmodels;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring of offscreen frame buffers(FBO with 2D texture) shared between the preview GL thread and
+ * the encoder's RenderHandler thread through a shared EGL context.
+ * The camera frame is resolved once into a buffer on the GL thread, then the preview and the encoder
+ * both draw that texture, so any effect runs only once per frame.
+ * <p>
+ * Synchronization is explicit: on OpenGL ES 3 contexts the producer inserts a fence after rendering
+ * that the consumer waits for before sampling, and the consumer inserts a fence after sampling
+ * that the producer waits for before rendering into the buffer again.
+ * EGL fences(eglCreateSyncKHR) are not available from Java before API 29, GL sync objects are
+ * shared between contexts of the same share group and work the same way here.
+ * On OpenGL ES 2 contexts glFinish is used instead.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class FrameBufferRing {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "FrameBufferRing";
+
+    public static final int DEFAULT_COUNT = 3;
+
+    private final int mWidth, mHeight;
+    private final int[] mTextures;
+    private final int[] mFrameBuffers;
+    private final boolean mUseSync;
+    /**
+     * number of pending draws of each buffer by consumer
+     */
+    private final AtomicIntegerArray mHolds;
+    private final AtomicLongArray mReadyFences;
+    private final AtomicLongArray mReleaseFences;
+    private int mNext;
+    private volatile long mBusyDrops;
+
+    /**
+     * Constructor, this should be called in GL context of producer
+     */
+    public FrameBufferRing(final int width, final int height, final int count) {
+        if (DEBUG) Log.v(TAG, String.format("FrameBufferRing:(%d,%d)x%d", width, height, count));
+        mWidth = width;
+        mHeight = height;
+        mTextures = new int[count];
+        mFrameBuffers = new int[count];
+        mHolds = new AtomicIntegerArray(count);
+        mReadyFences = new AtomicLongArray(count);
+        mReleaseFences = new AtomicLongArray(count);
+        mUseSync = isSyncSupported();
+        GLES20.glGenTextures(count, mTextures, 0);
+        GLES20.glGenFramebuffers(count, mFrameBuffers, 0);
+        for (int i = 0; i < count; i++) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[i]);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, mTextures[i], 0);
+            final int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+            if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                throw new RuntimeException("framebuffer is not complete:" + status);
+            }
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * @return true if current context supports sync objects(OpenGL ES 3.0 or later)
+     */
+    public static boolean isSyncSupported() {
+        final String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return (version != null) && version.startsWith("OpenGL ES ") && !version.startsWith("OpenGL ES 2.");
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getTexture(final int index) {
+        return mTextures[index];
+    }
+
+    /**
+     * @return number of frames the encoder could not get because all buffers were still used by it
+     */
+    public long getBusyDrops() {
+        return mBusyDrops;
+    }
+
+//********************************************************************************
+// producer side
+//********************************************************************************
+
+    /**
+     * get a buffer that the consumer no longer uses
+     *
+     * @return index of the buffer, -1 if all buffers are waiting for consumer
+     */
+    public int acquire() {
+        for (int i = 0; i < mTextures.length; i++) {
+            final int index = (mNext + i) % mTextures.length;
+            if (mHolds.get(index) == 0) {
+                mNext = (index + 1) % mTextures.length;
+                deleteSync(mReadyFences.getAndSet(index, 0));
+                final long release = mReleaseFences.getAndSet(index, 0);
+                if (release != 0) {
+                    // GPU waits until the consumer finished sampling, this thread does not block
+                    GLES30.glWaitSync(release, 0, GLES30.GL_TIMEOUT_IGNORED);
+                    GLES30.glDeleteSync(release);
+                }
+                return index;
+            }
+        }
+        mBusyDrops++;
+        return -1;
+    }
+
+    /**
+     * bind the buffer as render target and set viewport to its size
+     */
+    public void bind(final int index) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[index]);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    public void unbind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * mark rendering into the buffer finished
+     *
+     * @param draws number of times consumer will draw this buffer, 0 if only the producer uses it
+     */
+    public void publish(final int index, final int draws) {
+        if (draws <= 0) return;
+        if (mUseSync) {
+            mReadyFences.set(index, GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0));
+            // fence should be flushed before other context waits for it
+            GLES20.glFlush();
+        } else {
+            GLES20.glFinish();
+        }
+        mHolds.set(index, draws);
+    }
+
+    /**
+     * delete all buffers, this should be called in GL context of producer
+     */
+    public void release() {
+        if (DEBUG) Log.v(TAG, "release:");
+        for (int i = 0; i < mTextures.length; i++) {
+            deleteSync(mReadyFences.getAndSet(i, 0));
+            deleteSync(mReleaseFences.getAndSet(i, 0));
+        }
+        GLES20.glDeleteFramebuffers(mFrameBuffers.length, mFrameBuffers, 0);
+        GLES20.glDeleteTextures(mTextures.length, mTextures, 0);
+    }
+
+//********************************************************************************
+// consumer side
+//********************************************************************************
+
+    /**
+     * make GPU of the consumer context wait until the buffer is rendered, call before sampling it
+     */
+    public void waitReady(final int index) {
+        final long ready = mReadyFences.get(index);
+        if (ready != 0) {
+            GLES30.glWaitSync(ready, 0, GLES30.GL_TIMEOUT_IGNORED);
+        }
+    }
+
+    /**
+     * consumer finished one draw of the buffer, call after sampling it
+     */
+    public void release(final int index) {
+        if (mHolds.get(index) == 1) {
+            // last draw, let producer know when GPU finished reading
+            if (mUseSync) {
+                mReleaseFences.set(index, GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0));
+                GLES20.glFlush();
+            } else {
+                GLES20.glFinish();
+            }
+        }
+        mHolds.decrementAndGet(index);
+    }
+
+    private static void deleteSync(final long sync) {
+        if (sync != 0) {
+            GLES30.glDeleteSync(sync);
+        }
+    }
+}
@@ -35,12 +35,20 @@ public class GLDrawer2D {
             + "void main() {\n"
             + "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
             + "}";
+    private static final String fss2D
+            = "precision mediump float;\n"
+            + "uniform sampler2D sTexture;\n"
+            + "varying highp vec2 vTextureCoord;\n"
+            + "void main() {\n"
+            + "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
+            + "}";
     private static final float[] VERTICES = {1.0f, 1.0f, -1.0f, 1.0f, 1.0f, -1.0f, -1.0f, -1.0f};
     private static final float[] TEXCOORD = {1.0f, 1.0f, 0.0f, 1.0f, 1.0f, 0.0f, 0.0f, 0.0f};
 
     private final FloatBuffer pVertex;
     private final FloatBuffer pTexCoord;
     private int hProgram;
+    private final int mTexTarget;
     int maPositionLoc;
     int maTextureCoordLoc;
     int muMVPMatrixLoc;
@@ -52,10 +60,21 @@ public class GLDrawer2D {
     private static final int VERTEX_SZ = VERTEX_NUM * 2;
 
     /**
-     * Constructor
+     * Constructor to draw external texture(SurfaceTexture of camera)
      * this should be called in GL context
      */
     public GLDrawer2D() {
+        this(true);
+    }
+
+    /**
+     * Constructor
+     * this should be called in GL context
+     *
+     * @param isOES true to draw GL_TEXTURE_EXTERNAL_OES, false to draw GL_TEXTURE_2D e.g. texture of FBO
+     */
+    public GLDrawer2D(final boolean isOES) {
+        mTexTarget = isOES ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D;
         pVertex = ByteBuffer.allocateDirect(VERTEX_SZ * FLOAT_SZ)
                 .order(ByteOrder.nativeOrder()).asFloatBuffer();
         pVertex.put(VERTICES);
@@ -65,7 +84,7 @@ public class GLDrawer2D {
         pTexCoord.put(TEXCOORD);
         pTexCoord.flip();
 
-        hProgram = loadShader(vss, fss);
+        hProgram = ShaderProgramCache.getInstance().acquire(vss, isOES ? fss : fss2D);
         GLES20.glUseProgram(hProgram);
         maPositionLoc = GLES20.glGetAttribLocation(hProgram, "aPosition");
         maTextureCoordLoc = GLES20.glGetAttribLocation(hProgram, "aTextureCoord");
@@ -86,7 +105,7 @@ public class GLDrawer2D {
      */
     public void release() {
         if (hProgram >= 0)
-            GLES20.glDeleteProgram(hProgram);
+            ShaderProgramCache.getInstance().release(hProgram);
         hProgram = -1;
     }
 
@@ -101,10 +120,15 @@ public class GLDrawer2D {
         if (tex_matrix != null)
             GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, tex_matrix, 0);
         GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mMvpMatrix, 0);
+        // vertex attributes are state of the context, other drawer in the same context may have changed them
+        GLES20.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false, VERTEX_SZ, pVertex);
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, VERTEX_SZ, pTexCoord);
+        GLES20.glEnableVertexAttribArray(maPositionLoc);
+        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, tex_id);
+        GLES20.glBindTexture(mTexTarget, tex_id);
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTEX_NUM);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLES20.glBindTexture(mTexTarget, 0);
         GLES20.glUseProgram(0);
     }
 
@@ -0,0 +1,161 @@
+package com.bendenen.glmediarecorder.glmodels;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Files of linked program binaries(glGetProgramBinary) keyed by hash of shader sources.
+ * A binary is valid only for the driver that created it, so each file records the driver string
+ * and a file written by other driver(or broken file) is treated as missing and deleted.
+ * This does not touch GL, callers pass binaries as byte arrays.
+ */
+public class ProgramBinaryStore {
+    private static final int MAGIC = 0x474c5042;    // "GLPB"
+    private static final String SUFFIX = ".bin";
+    private static final int MAX_BINARY_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * program binary and its driver specific format(GL_PROGRAM_BINARY_FORMAT)
+     */
+    public static final class Binary {
+        public final int format;
+        public final byte[] data;
+
+        public Binary(final int format, final byte[] data) {
+            this.format = format;
+            this.data = data;
+        }
+    }
+
+    private final File mDir;
+    private final String mDriver;
+
+    /**
+     * @param dir    directory to keep binaries, created when needed
+     * @param driver string that identifies GPU driver e.g. GL_RENDERER + GL_VERSION
+     */
+    public ProgramBinaryStore(final File dir, final String driver) {
+        if (dir == null) throw new NullPointerException("dir is null");
+        mDir = dir;
+        mDriver = driver != null ? driver : "";
+    }
+
+    public File getDirectory() {
+        return mDir;
+    }
+
+    public String getDriver() {
+        return mDriver;
+    }
+
+    /**
+     * @return hex SHA-1 of shader sources
+     */
+    public static String keyOf(final String vss, final String fss) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(vss.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(fss.getBytes("UTF-8"));
+            final byte[] hash = digest.digest();
+            final StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (final byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0x0f, 16));
+                sb.append(Character.forDigit(b & 0x0f, 16));
+            }
+            return sb.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return binary for the key, null if not stored, stored by other driver or broken
+     */
+    public Binary load(final String key) {
+        final File file = fileOf(key);
+        if (!file.isFile()) return null;
+        Binary result = null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() == MAGIC && mDriver.equals(in.readUTF())) {
+                final int format = in.readInt();
+                final int length = in.readInt();
+                if (length > 0 && length <= MAX_BINARY_SIZE) {
+                    final byte[] data = new byte[length];
+                    in.readFully(data);
+                    result = new Binary(format, data);
+                }
+            }
+        } catch (final IOException e) {
+            result = null;
+        } finally {
+            closeQuietly(in);
+        }
+        if (result == null) {
+            file.delete();
+        }
+        return result;
+    }
+
+    /**
+     * write binary into temporary file and rename it, so a reader never sees a partial file
+     *
+     * @return false if the binary could not be written
+     */
+    public boolean save(final String key, final Binary binary) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) return false;
+        final File file = fileOf(key);
+        final File temp = new File(mDir, key + ".tmp");
+        DataOutputStream out = null;
+        boolean result = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeUTF(mDriver);
+            out.writeInt(binary.format);
+            out.writeInt(binary.data.length);
+            out.write(binary.data);
+            out.close();
+            out = null;
+            result = temp.renameTo(file);
+        } catch (final IOException e) {
+            result = false;
+        } finally {
+            closeQuietly(out);
+            if (!result) temp.delete();
+        }
+        return result;
+    }
+
+    public void delete(final String key) {
+        fileOf(key).delete();
+    }
+
+    private File fileOf(final String key) {
+        return new File(mDir, key + SUFFIX);
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+        }
+    }
+}
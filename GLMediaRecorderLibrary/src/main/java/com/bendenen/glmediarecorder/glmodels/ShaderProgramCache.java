@@ -0,0 +1,267 @@
+package com.bendenen.glmediarecorder.glmodels;
+
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process wide cache of linked shader programs keyed by hash of shader sources.
+ * <p>
+ * A linked program is shared by all drawers in the same EGL context and deleted when the last one releases it.
+ * When the context is created again(surface re-creation, camera switch, RenderHandler#setEglContext),
+ * the program is restored from its binary(glProgramBinary, OpenGL ES 3) instead of compiling the sources.
+ * Binaries are kept in memory and, if #setCacheDir was called, on disk so the next process can use them.
+ * If loading a binary fails(e.g. driver update), the sources are compiled and the binary is replaced.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class ShaderProgramCache {
+    private static final boolean DEBUG = false; // TODO set false on release
+    private static final String TAG = "ShaderProgramCache";
+
+    private static final ShaderProgramCache sInstance = new ShaderProgramCache();
+
+    public static ShaderProgramCache getInstance() {
+        return sInstance;
+    }
+
+    private static final class Program {
+        final String mKey;
+        final int mProgram;
+        int mRefs;
+
+        Program(final String key, final int program) {
+            mKey = key;
+            mProgram = program;
+        }
+    }
+
+    /**
+     * linked programs of each EGL context
+     */
+    private final Map<EGLContext, Map<String, Program>> mPrograms = new HashMap<EGLContext, Map<String, Program>>();
+    private final Map<String, ProgramBinaryStore.Binary> mBinaries = new HashMap<String, ProgramBinaryStore.Binary>();
+    private File mCacheDir;
+    private ProgramBinaryStore mStore;
+
+    // metrics
+    private long mHits;
+    private long mBinaryHits;
+    private long mMisses;
+    private long mBinaryFailures;
+    private long mCompileTimeNs;
+    private long mLastCompileTimeNs;
+    private long mBinaryLoadTimeNs;
+
+    private ShaderProgramCache() {
+    }
+
+    /**
+     * set directory to persist program binaries, null to keep them only in memory.
+     * This is usually called once with a sub directory of Context#getCacheDir
+     */
+    public synchronized void setCacheDir(final File dir) {
+        mCacheDir = dir;
+        mStore = null;
+    }
+
+    /**
+     * get linked program for the sources, this should be called in GL context
+     *
+     * @return program name, this should be returned by #release instead of glDeleteProgram
+     */
+    public synchronized int acquire(final String vss, final String fss) {
+        final String key = ProgramBinaryStore.keyOf(vss, fss);
+        final EGLContext context = EGL14.eglGetCurrentContext();
+        Map<String, Program> programs = mPrograms.get(context);
+        if (programs == null) {
+            programs = new HashMap<String, Program>();
+            mPrograms.put(context, programs);
+        }
+        Program program = programs.get(key);
+        if (program != null) {
+            mHits++;
+        } else {
+            final boolean binarySupported = isBinarySupported();
+            int name = binarySupported ? loadBinary(key) : 0;
+            if (name != 0) {
+                mBinaryHits++;
+            } else {
+                mMisses++;
+                final long start = System.nanoTime();
+                name = GLDrawer2D.loadShader(vss, fss);
+                mLastCompileTimeNs = System.nanoTime() - start;
+                mCompileTimeNs += mLastCompileTimeNs;
+                if (DEBUG) Log.v(TAG, "compiled " + key + " in " + (mLastCompileTimeNs / 1000L) + "us");
+                if (binarySupported && isLinked(name)) {
+                    saveBinary(key, name);
+                }
+            }
+            program = new Program(key, name);
+            programs.put(key, program);
+        }
+        program.mRefs++;
+        return program.mProgram;
+    }
+
+    /**
+     * release program from #acquire, this should be called in the same GL context.
+     * The program is deleted when no drawer in the context uses it.
+     */
+    public synchronized void release(final int program) {
+        final EGLContext context = EGL14.eglGetCurrentContext();
+        final Map<String, Program> programs = mPrograms.get(context);
+        if (programs != null) {
+            for (final Iterator<Program> it = programs.values().iterator(); it.hasNext(); ) {
+                final Program p = it.next();
+                if (p.mProgram == program) {
+                    if (--p.mRefs <= 0) {
+                        it.remove();
+                        GLES20.glDeleteProgram(program);
+                    }
+                    if (programs.isEmpty()) mPrograms.remove(context);
+                    return;
+                }
+            }
+        }
+        // not from this cache or context is gone
+        GLES20.glDeleteProgram(program);
+    }
+
+//********************************************************************************
+// metrics
+//********************************************************************************
+
+    /**
+     * @return number of requests served by a program already linked in the context
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return number of requests served by loading a program binary
+     */
+    public synchronized long getBinaryHits() {
+        return mBinaryHits;
+    }
+
+    /**
+     * @return number of requests that compiled the sources
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return number of binaries the driver rejected
+     */
+    public synchronized long getBinaryFailures() {
+        return mBinaryFailures;
+    }
+
+    /**
+     * @return total time spent for compile and link
+     */
+    public synchronized long getCompileTimeNs() {
+        return mCompileTimeNs;
+    }
+
+    public synchronized long getLastCompileTimeNs() {
+        return mLastCompileTimeNs;
+    }
+
+    /**
+     * @return total time spent for loading binaries including disk read
+     */
+    public synchronized long getBinaryLoadTimeNs() {
+        return mBinaryLoadTimeNs;
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    /**
+     * @return true if current context is OpenGL ES 3 and the driver supports at least one binary format
+     */
+    private static boolean isBinarySupported() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) return false;
+        final String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if ((version == null) || !version.startsWith("OpenGL ES ") || version.startsWith("OpenGL ES 2.")) return false;
+        final int[] formats = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        return formats[0] > 0;
+    }
+
+    private static boolean isLinked(final int program) {
+        if (program == 0) return false;
+        final int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        return status[0] != 0;
+    }
+
+    private ProgramBinaryStore getStore() {
+        if ((mStore == null) && (mCacheDir != null)) {
+            final String driver = GLES20.glGetString(GLES20.GL_RENDERER) + "/" + GLES20.glGetString(GLES20.GL_VERSION);
+            mStore = new ProgramBinaryStore(mCacheDir, driver);
+        }
+        return mStore;
+    }
+
+    /**
+     * @return linked program from binary, 0 if there is no binary or the driver rejected it
+     */
+    private int loadBinary(final String key) {
+        final long start = System.nanoTime();
+        ProgramBinaryStore.Binary binary = mBinaries.get(key);
+        final ProgramBinaryStore store = getStore();
+        if ((binary == null) && (store != null)) {
+            binary = store.load(key);
+            if (binary != null) mBinaries.put(key, binary);
+        }
+        if (binary == null) return 0;
+        final ByteBuffer buf = ByteBuffer.allocateDirect(binary.data.length);
+        buf.put(binary.data);
+        buf.flip();
+        final int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, binary.format, buf, binary.data.length);
+        mBinaryLoadTimeNs += System.nanoTime() - start;
+        if (isLinked(program)) {
+            if (DEBUG) Log.v(TAG, "loaded binary " + key);
+            return program;
+        }
+        Log.w(TAG, "program binary is rejected, compile again:" + key);
+        mBinaryFailures++;
+        GLES20.glDeleteProgram(program);
+        mBinaries.remove(key);
+        if (store != null) store.delete(key);
+        return 0;
+    }
+
+    private void saveBinary(final String key, final int program) {
+        final int[] values = new int[2];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        final int length = values[0];
+        if (length <= 0) return;
+        final ByteBuffer buf = ByteBuffer.allocateDirect(length);
+        GLES30.glGetProgramBinary(program, length, values, 0, values, 1, buf);
+        if ((values[0] <= 0) || (GLES20.glGetError() != GLES20.GL_NO_ERROR)) return;
+        final byte[] data = new byte[values[0]];
+        buf.get(data);
+        final ProgramBinaryStore.Binary binary = new ProgramBinaryStore.Binary(values[1], data);
+        mBinaries.put(key, binary);
+        final ProgramBinaryStore store = getStore();
+        if ((store != null) && !store.save(key, binary)) {
+            Log.w(TAG, "failed to save program binary to " + store.getDirectory());
+        }
+    }
+}
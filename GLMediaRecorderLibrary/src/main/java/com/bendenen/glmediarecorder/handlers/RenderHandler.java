@@ -9,8 +9,13 @@ import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
+import com.bendenen.glmediarecorder.encoder.FrameBudget;
 import com.bendenen.glmediarecorder.glmodels.EGLBase;
+import com.bendenen.glmediarecorder.glmodels.FrameBufferRing;
 import com.bendenen.glmediarecorder.glmodels.GLDrawer2D;
+import com.bendenen.glmediarecorder.utils.FrameTracer;
+import com.bendenen.glmediarecorder.utils.GlUtil;
+import com.bendenen.glmediarecorder.utils.TimestampRing;
 
 /**
  * Created by Barys_Dzenisenka on 8/12/15.
@@ -19,6 +24,8 @@ public class RenderHandler implements Runnable {
     private static final boolean DEBUG = true;    // TODO set false on release
     private static final String TAG = "RenderHandler";
 
+    private static final int MAX_PENDING_FRAMES = 8;
+
     private final Object mSync = new Object();
     private EGLContext mShard_context;
     private boolean mIsRecordable;
@@ -29,7 +36,30 @@ public class RenderHandler implements Runnable {
 
     private boolean mRequestSetEglContext;
     private boolean mRequestRelease;
+    private boolean mIsRunning;
     private int mRequestDraw;
+    /**
+     * capture time of each requested frame in nanoseconds, passed to eglPresentationTimeANDROID
+     */
+    private final TimestampRing mFrameTimestamps = new TimestampRing(MAX_PENDING_FRAMES);
+    /**
+     * camera capture time of each requested frame, differs from mFrameTimestamps when frames are paced
+     */
+    private final TimestampRing mCaptureTimestamps = new TimestampRing(MAX_PENDING_FRAMES);
+    /**
+     * index in mFrameRing of each requested frame, -1 to draw the camera texture directly
+     */
+    private final TimestampRing mFrameIndices = new TimestampRing(MAX_PENDING_FRAMES);
+    private FrameBufferRing mFrameRing;
+    private volatile long mDroppedFrames;
+    /**
+     * in-flight frames of the encoder, every draw request was accepted by this when set
+     */
+    private volatile FrameBudget mFrameBudget;
+    /**
+     * null when tracing is disabled
+     */
+    private volatile FrameTracer mFrameTracer;
 
     // Video Source size for scaling
     private int mVideoSourceHeight;
@@ -46,9 +76,13 @@ public class RenderHandler implements Runnable {
         final RenderHandler handler = new RenderHandler(frameWidth, frameHeight, videoSourceWidth, videoSourceHeight, isFrontFacing);
         synchronized (handler.mSync) {
             new Thread(handler, !TextUtils.isEmpty(name) ? name : TAG).start();
-            try {
-                handler.mSync.wait();
-            } catch (final InterruptedException e) {
+            // wait with condition, the thread may notify for other reasons
+            while (!handler.mIsRunning && !handler.mRequestRelease) {
+                try {
+                    handler.mSync.wait();
+                } catch (final InterruptedException e) {
+                    break;
+                }
             }
         }
         return handler;
@@ -75,9 +109,13 @@ public class RenderHandler implements Runnable {
             mIsRecordable = isRecordable;
             mRequestSetEglContext = true;
             mSync.notifyAll();
-            try {
-                mSync.wait();
-            } catch (final InterruptedException e) {
+            // draw requests also notify, wait until the surface was actually prepared
+            while (mRequestSetEglContext && mIsRunning) {
+                try {
+                    mSync.wait();
+                } catch (final InterruptedException e) {
+                    break;
+                }
             }
         }
     }
@@ -111,6 +149,9 @@ public class RenderHandler implements Runnable {
         if (mDrawer != null) {
             mDrawer.setMatrix(mMvpMatrix, 0);
         }
+        if (mFrameDrawer != null) {
+            mFrameDrawer.setMatrix(mMvpMatrix, 0);
+        }
 
     }
 
@@ -127,8 +168,30 @@ public class RenderHandler implements Runnable {
     }
 
     public final void draw(final int tex_id, final float[] tex_matrix) {
+        draw(tex_id, tex_matrix, System.nanoTime());
+    }
+
+    public final void draw(final float[] tex_matrix, final long timestampNs) {
+        draw(mTexId, tex_matrix, timestampNs);
+    }
+
+    /**
+     * request drawing a frame
+     *
+     * @param timestampNs capture time of the frame(SurfaceTexture#getTimestamp),
+     *                    this becomes presentation time of encoded frame
+     */
+    public final void draw(final int tex_id, final float[] tex_matrix, final long timestampNs) {
         synchronized (mSync) {
             if (mRequestRelease) return;
+            if (!mFrameTimestamps.offer(timestampNs)) {
+                // render thread is behind, drop this frame instead of queueing it without timestamp
+                mDroppedFrames++;
+                onFrameDropped(false);
+                return;
+            }
+            mCaptureTimestamps.offer(timestampNs);
+            mFrameIndices.offer(-1);
             mTexId = tex_id;
             mTexMatrix = tex_matrix;
             mRequestDraw++;
@@ -136,6 +199,88 @@ public class RenderHandler implements Runnable {
         }
     }
 
+    /**
+     * request drawing a frame that the GL thread already rendered into the shared frame buffer.
+     * one draw of the buffer is released when the frame is drawn or dropped.
+     *
+     * @param ring        shared frame buffers, this should be created in the context shared with this handler
+     * @param index       index of the buffer in the ring
+     * @param timestampNs capture time of the frame, this becomes presentation time of encoded frame
+     */
+    public final void drawFrame(final FrameBufferRing ring, final int index, final long timestampNs) {
+        drawFrame(ring, index, timestampNs, timestampNs);
+    }
+
+    /**
+     * @param timestampNs presentation time of encoded frame, e.g. the output slot of a frame pacer
+     * @param captureNs   capture time of the camera frame(SurfaceTexture#getTimestamp)
+     */
+    public final void drawFrame(final FrameBufferRing ring, final int index, final long timestampNs, final long captureNs) {
+        synchronized (mSync) {
+            if (mRequestRelease || (mFrameTimestamps.size() >= mFrameTimestamps.capacity())) {
+                mDroppedFrames++;
+                ring.release(index);
+                onFrameDropped(false);
+                return;
+            }
+            mFrameTimestamps.offer(timestampNs);
+            mCaptureTimestamps.offer(captureNs);
+            mFrameIndices.offer(index);
+            mFrameRing = ring;
+            mRequestDraw++;
+            mSync.notifyAll();
+        }
+    }
+
+    /**
+     * drop the oldest frame that is waiting for rendering, to make room for a newer frame
+     *
+     * @return false if no frame is waiting
+     */
+    public final boolean dropOldest() {
+        synchronized (mSync) {
+            if (mRequestDraw <= 0) return false;
+            mRequestDraw--;
+            mFrameTimestamps.poll();
+            mCaptureTimestamps.poll();
+            final int index = (int) mFrameIndices.poll();
+            if ((index >= 0) && (mFrameRing != null)) {
+                mFrameRing.release(index);
+            }
+            mDroppedFrames++;
+            onFrameDropped(true);
+            return true;
+        }
+    }
+
+    public void setFrameBudget(final FrameBudget budget) {
+        mFrameBudget = budget;
+    }
+
+    /**
+     * @param tracer records draw and swap of each frame, null to disable
+     */
+    public void setFrameTracer(final FrameTracer tracer) {
+        mFrameTracer = tracer;
+    }
+
+    private void onFrameDropped(final boolean evicted) {
+        final FrameBudget budget = mFrameBudget;
+        if (budget != null) budget.onDropped(evicted);
+    }
+
+    private void onFrameSubmitted(final long timestampNs) {
+        final FrameBudget budget = mFrameBudget;
+        if (budget != null) budget.onSubmitted(timestampNs / 1000L);
+    }
+
+    /**
+     * @return number of frames dropped because too many frames were waiting for rendering
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
     public boolean isValid() {
         synchronized (mSync) {
             return !(mSurface instanceof Surface) || ((Surface) mSurface).isValid();
@@ -148,9 +293,12 @@ public class RenderHandler implements Runnable {
             if (mRequestRelease) return;
             mRequestRelease = true;
             mSync.notifyAll();
-            try {
-                mSync.wait();
-            } catch (final InterruptedException e) {
+            while (mIsRunning) {
+                try {
+                    mSync.wait();
+                } catch (final InterruptedException e) {
+                    break;
+                }
             }
         }
     }
@@ -160,6 +308,10 @@ public class RenderHandler implements Runnable {
     private EGLBase mEgl;
     private EGLBase.EglSurface mInputSurface;
     private GLDrawer2D mDrawer;
+    /**
+     * drawer for 2D texture of shared frame buffer
+     */
+    private GLDrawer2D mFrameDrawer;
 
     @Override
     public final void run() {
@@ -167,9 +319,14 @@ public class RenderHandler implements Runnable {
         synchronized (mSync) {
             mRequestSetEglContext = mRequestRelease = false;
             mRequestDraw = 0;
+            mIsRunning = true;
             mSync.notifyAll();
         }
         boolean localRequestDraw;
+        long timestampNs = 0;
+        long captureNs = 0;
+        int frameIndex = -1;
+        FrameBufferRing frameRing = null;
         for (; ; ) {
             synchronized (mSync) {
                 if (mRequestRelease) break;
@@ -180,13 +337,38 @@ public class RenderHandler implements Runnable {
                 localRequestDraw = mRequestDraw > 0;
                 if (localRequestDraw) {
                     mRequestDraw--;
+                    timestampNs = mFrameTimestamps.poll();
+                    captureNs = mCaptureTimestamps.poll();
+                    frameIndex = (int) mFrameIndices.poll();
+                    frameRing = mFrameRing;
                 }
             }
             if (localRequestDraw) {
-                if ((mEgl != null) && mTexId >= 0) {
+                final FrameTracer tracer = mFrameTracer;
+                if ((mEgl != null) && (frameIndex >= 0) && (frameRing != null)) {
+                    final long traceId = tracer != null ? tracer.beginFrame(captureNs, timestampNs) : 0;
+                    // frame is already resolved into shared frame buffer on GL thread
+                    mInputSurface.makeCurrent();
+                    frameRing.waitReady(frameIndex);
+                    mFrameDrawer.draw(frameRing.getTexture(frameIndex), GlUtil.IDENTITY_MATRIX);
+                    frameRing.release(frameIndex);
+                    mInputSurface.setPresentationTime(timestampNs);
+                    mInputSurface.swap();
+                    if (tracer != null) tracer.endFrame(traceId);
+                    onFrameSubmitted(timestampNs);
+                } else if ((mEgl != null) && mTexId >= 0) {
+                    final long traceId = tracer != null ? tracer.beginFrame(captureNs, timestampNs) : 0;
                     mInputSurface.makeCurrent();
                     mDrawer.draw(mTexId, mTexMatrix);
+                    mInputSurface.setPresentationTime(timestampNs);
                     mInputSurface.swap();
+                    if (tracer != null) tracer.endFrame(traceId);
+                    onFrameSubmitted(timestampNs);
+                } else {
+                    if (frameIndex >= 0 && frameRing != null) {
+                        frameRing.release(frameIndex);
+                    }
+                    onFrameDropped(false);
                 }
             } else {
                 synchronized (mSync) {
@@ -200,12 +382,31 @@ public class RenderHandler implements Runnable {
         }
         synchronized (mSync) {
             mRequestRelease = true;
+            releasePendingFrames();
             internalRelease();
+            mIsRunning = false;
             mSync.notifyAll();
         }
         if (DEBUG) Log.i(TAG, "RenderHandler thread finished:");
     }
 
+    /**
+     * give back the buffers of frames that were requested but not drawn,
+     * the ring outlives this handler and is used again by the next recording
+     */
+    private final void releasePendingFrames() {
+        while (mRequestDraw > 0) {
+            mRequestDraw--;
+            mFrameTimestamps.poll();
+            mCaptureTimestamps.poll();
+            final int index = (int) mFrameIndices.poll();
+            if ((index >= 0) && (mFrameRing != null)) {
+                mFrameRing.release(index);
+            }
+            onFrameDropped(false);
+        }
+    }
+
     private final void internalPrepare() {
         if (DEBUG) Log.i(TAG, "internalPrepare:");
         internalRelease();
@@ -215,6 +416,7 @@ public class RenderHandler implements Runnable {
 
         mInputSurface.makeCurrent();
         mDrawer = new GLDrawer2D();
+        mFrameDrawer = new GLDrawer2D(false);
         mSurface = null;
 
         // TODO: Need to check for recreation
@@ -230,6 +432,10 @@ public class RenderHandler implements Runnable {
             mDrawer.release();
             mDrawer = null;
         }
+        if (mFrameDrawer != null) {
+            mFrameDrawer.release();
+            mFrameDrawer = null;
+        }
         if (mInputSurface != null) {
             mInputSurface.release();
             mInputSurface = null;
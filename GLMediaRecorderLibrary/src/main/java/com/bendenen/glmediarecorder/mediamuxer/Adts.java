@@ -0,0 +1,98 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ADTS framing of raw AAC frames(ISO/IEC 13818-7), without CRC.
+ * The header fields are taken from the AudioSpecificConfig(csd-0) of the track,
+ * or from sample rate and channel count of the format when the encoder did not give one.
+ */
+public final class Adts {
+    public static final int HEADER_SIZE = 7;
+    /**
+     * largest frame, header included, the frame length field has 13 bits
+     */
+    public static final int MAX_FRAME_SIZE = 0x1FFF;
+
+    private static final int[] SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+    private static final int AOT_AAC_LC = 2;
+
+    private final int mProfile;
+    private final int mSampleRateIndex;
+    private final int mChannelConfig;
+
+    public Adts(final TrackFormat format) {
+        final byte[] asc = format.getCsd0();
+        int objectType = AOT_AAC_LC;
+        int index = -1;
+        int channels = format.getChannelCount();
+        if ((asc != null) && (asc.length >= 2)) {
+            objectType = (asc[0] & 0xFF) >> 3;
+            index = ((asc[0] & 0x07) << 1) | ((asc[1] & 0xFF) >> 7);
+            channels = (asc[1] >> 3) & 0x0F;
+        }
+        if ((index < 0) || (index >= SAMPLE_RATES.length)) {
+            // no config or explicit sampling frequency which ADTS can not carry
+            index = getSampleRateIndex(format.getSampleRate());
+        }
+        // ADTS profile is the audio object type - 1 in 2 bits, HE-AAC is signalled as LC
+        mProfile = (objectType >= 1 && objectType <= 4) ? objectType - 1 : AOT_AAC_LC - 1;
+        mSampleRateIndex = index;
+        mChannelConfig = channels & 0x07;
+    }
+
+    /**
+     * @return sampling frequency index of AAC, 4(44.1kHz) for a rate that has none
+     */
+    public static int getSampleRateIndex(final int sampleRate) {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) return i;
+        }
+        return 4;
+    }
+
+    /**
+     * @return true if the data already starts with ADTS sync word
+     */
+    public static boolean hasHeader(final ByteBuffer src, final int offset, final int size) {
+        return (size >= HEADER_SIZE) && ((src.get(offset) & 0xFF) == 0xFF) && ((src.get(offset + 1) & 0xF0) == 0xF0);
+    }
+
+    /**
+     * @param payloadSize size of the raw AAC frame that follows the header
+     */
+    public void putHeader(final ByteBuffer dst, final int payloadSize) {
+        final int length = payloadSize + HEADER_SIZE;
+        if (length > MAX_FRAME_SIZE)
+            throw new IllegalArgumentException("AAC frame is too large:" + payloadSize);
+        dst.put((byte) 0xFF);
+        dst.put((byte) 0xF1);    // MPEG-4, layer 0, no CRC
+        dst.put((byte) ((mProfile << 6) | (mSampleRateIndex << 2) | (mChannelConfig >> 2)));
+        dst.put((byte) (((mChannelConfig & 0x03) << 6) | (length >> 11)));
+        dst.put((byte) (length >> 3));
+        dst.put((byte) (((length & 0x07) << 5) | 0x1F));    // buffer fullness 0x7FF(VBR)
+        dst.put((byte) 0xFC);    // one raw data block
+    }
+
+    /**
+     * copy one raw AAC frame into dst with ADTS header, a frame that already has one is copied as is
+     *
+     * @return number of bytes written
+     */
+    public int appendFrame(final ByteBuffer src, final int offset, final int size, final ByteBuffer dst) {
+        final int start = dst.position();
+        if (!hasHeader(src, offset, size)) {
+            putHeader(dst, size);
+        }
+        final int position = src.position();
+        final int limit = src.limit();
+        src.limit(offset + size);
+        src.position(offset);
+        dst.put(src);
+        src.limit(limit);
+        src.position(position);
+        return dst.position() - start;
+    }
+}
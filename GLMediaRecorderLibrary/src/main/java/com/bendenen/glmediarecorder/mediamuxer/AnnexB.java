@@ -0,0 +1,160 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for H.264 Annex-B byte stream(start code prefixed NAL units).
+ * MediaCodec gives Annex-B on most devices, but some give 4 bytes length prefixed NAL units(AVCC),
+ * both are accepted as input here. Nothing is allocated per access unit.
+ */
+public final class AnnexB {
+    public static final int NAL_TYPE_IDR = 5;
+    public static final int NAL_TYPE_SPS = 7;
+    public static final int NAL_TYPE_PPS = 8;
+    public static final int NAL_TYPE_AUD = 9;
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    // access unit delimiter, primary_pic_type=7(any)
+    private static final byte[] AUD = {0, 0, 0, 1, NAL_TYPE_AUD, (byte) 0xF0};
+
+    private AnnexB() {
+    }
+
+    /**
+     * @return position just after the start code, or offset itself when there is no start code
+     */
+    public static int skipStartCode(final ByteBuffer buf, final int offset, final int end) {
+        if ((offset + 3 <= end) && (buf.get(offset) == 0) && (buf.get(offset + 1) == 0)) {
+            if (buf.get(offset + 2) == 1) return offset + 3;
+            if ((offset + 4 <= end) && (buf.get(offset + 2) == 0) && (buf.get(offset + 3) == 1))
+                return offset + 4;
+        }
+        return offset;
+    }
+
+    /**
+     * An AVCC NAL unit of 256-511 bytes starts with 00 00 01 xx like a start code,
+     * so the 4 bytes lengths are checked first.
+     *
+     * @return true if the access unit is start code prefixed, false if it is length prefixed(AVCC)
+     */
+    public static boolean isAnnexB(final ByteBuffer src, final int offset, final int end) {
+        return !isLengthPrefixed(src, offset, end) && (skipStartCode(src, offset, end) != offset);
+    }
+
+    /**
+     * @return true if 4 bytes NAL unit lengths chain exactly to end
+     */
+    public static boolean isLengthPrefixed(final ByteBuffer src, final int offset, final int end) {
+        int pos = offset;
+        while (pos + 4 < end) {
+            final int length = src.getInt(pos);
+            if ((length <= 0) || (length > end - pos - 4)) return false;
+            pos += 4 + length;
+        }
+        return pos == end;
+    }
+
+    /**
+     * @return the NAL unit without its start code, nal itself if it has none
+     */
+    public static byte[] stripStartCode(final byte[] nal) {
+        if (nal == null) return null;
+        final int start = skipStartCode(ByteBuffer.wrap(nal), 0, nal.length);
+        if (start == 0) return nal;
+        final byte[] result = new byte[nal.length - start];
+        System.arraycopy(nal, start, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * build the SPS and PPS to repeat before key frames from csd-0/csd-1 of the output format
+     *
+     * @return start code prefixed SPS and PPS, null if the format has no SPS
+     */
+    public static byte[] createParameterSets(final TrackFormat format) {
+        final byte[] sps = stripStartCode(format.getCsd0());
+        final byte[] pps = stripStartCode(format.getCsd1());
+        if ((sps == null) || (sps.length == 0)) return null;
+        final int ppsLength = pps != null ? START_CODE.length + pps.length : 0;
+        final ByteBuffer result = ByteBuffer.allocate(START_CODE.length + sps.length + ppsLength);
+        result.put(START_CODE).put(sps);
+        if (pps != null) result.put(START_CODE).put(pps);
+        return result.array();
+    }
+
+    /**
+     * @return maximum bytes #appendAccessUnit writes for an access unit of size bytes
+     */
+    public static int maxAccessUnitSize(final int size, final byte[] parameterSets) {
+        // a 4 bytes length prefix becomes a 4 bytes start code, so only the inserted NAL units add to the size
+        return AUD.length + (parameterSets != null ? parameterSets.length : 0) + size;
+    }
+
+    /**
+     * copy one access unit into dst as Annex-B
+     *
+     * @param parameterSets SPS and PPS from #createParameterSets to insert before the access unit
+     *                      when it has no SPS itself, pass them for key frames and null otherwise
+     * @param insertAud     start with an access unit delimiter if the access unit has none, MPEG-TS expects one
+     * @return number of bytes written
+     */
+    public static int appendAccessUnit(final ByteBuffer src, final int offset, final int size,
+                                       final byte[] parameterSets, final boolean insertAud, final ByteBuffer dst) {
+        final int start = dst.position();
+        final int end = offset + size;
+        final boolean annexB = isAnnexB(src, offset, end);
+        if (insertAud && !containsNalType(src, offset, end, annexB, NAL_TYPE_AUD)) {
+            dst.put(AUD);
+        }
+        if ((parameterSets != null) && !containsNalType(src, offset, end, annexB, NAL_TYPE_SPS)) {
+            dst.put(parameterSets);
+        }
+        if (annexB) {
+            copy(src, offset, size, dst);
+        } else {
+            // 4 bytes length prefix to start code
+            for (int pos = offset; pos + 4 <= end; ) {
+                final int length = Math.min(src.getInt(pos), end - pos - 4);
+                if (length <= 0) break;
+                dst.put(START_CODE);
+                copy(src, pos + 4, length, dst);
+                pos += 4 + length;
+            }
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * @return true if the access unit has a NAL unit of the type
+     */
+    public static boolean containsNalType(final ByteBuffer src, final int offset, final int end,
+                                          final boolean annexB, final int type) {
+        if (annexB) {
+            for (int i = offset; i + 3 < end; i++) {
+                if ((src.get(i) == 0) && (src.get(i + 1) == 0) && (src.get(i + 2) == 1)) {
+                    if ((src.get(i + 3) & 0x1F) == type) return true;
+                    i += 2;
+                }
+            }
+        } else {
+            for (int pos = offset; pos + 4 < end; ) {
+                final int length = src.getInt(pos);
+                if (length <= 0) break;
+                if ((src.get(pos + 4) & 0x1F) == type) return true;
+                pos += 4 + length;
+            }
+        }
+        return false;
+    }
+
+    private static void copy(final ByteBuffer src, final int offset, final int size, final ByteBuffer dst) {
+        final int position = src.position();
+        final int limit = src.limit();
+        src.limit(offset + size);
+        src.position(offset);
+        dst.put(src);
+        src.limit(limit);
+        src.position(position);
+    }
+}
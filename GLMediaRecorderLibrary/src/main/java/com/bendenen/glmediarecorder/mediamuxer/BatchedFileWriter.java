@@ -0,0 +1,314 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Write-behind file output for the pure java sinks: small writes(one per sample or box) are gathered
+ * in a direct buffer and written with one positional FileChannel#write per batch.
+ * Batches start at a multiple of #ALIGNMENT in the file and full batches are a multiple of it in size,
+ * a partial batch written by #flush keeps its unaligned tail in the buffer and rewrites that block next time.
+ * The file is grown in large chunks ahead of the data, so the file system updates the size
+ * once per chunk instead of once per write, #close truncates it to the written length.
+ * On API >= 21 the blocks of each chunk are reserved with posix_fallocate, so the file is laid out
+ * contiguously as far as the file system can. Otherwise, on file systems without fallocate and for
+ * writers made from a channel, the file is only extended and the chunk stays a sparse hole until written.
+ * Buffered data is written when the batch is full, when the flush interval passed at a #write, or on #flush.
+ * Not thread safe, use it from the writer thread of the sink.
+ * e.g. {@code new MpegTsSink(new BatchedFileWriter(file), MpegTsSink.DEFAULT_VIDEO_BUFFER_SIZE)},
+ * the caller closes the writer after the sink stopped.
+ */
+public class BatchedFileWriter implements WritableByteChannel {
+
+    public static final int ALIGNMENT = 4096;
+    public static final int DEFAULT_BATCH_SIZE = 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 500;
+    public static final long DEFAULT_PREALLOCATE_SIZE = 16 * 1024 * 1024;
+
+    private static final boolean FALLOCATE_AVAILABLE = isFallocateAvailable();
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    /**
+     * descriptor for posix_fallocate, null to extend the file without reserving blocks
+     */
+    private FileDescriptor mFd;
+    private final ByteBuffer mBatch;
+    private final ByteBuffer mOneByte = ByteBuffer.allocate(1);
+    private final long mFlushIntervalNs;
+    private final long mPreallocateSize;
+    /**
+     * file position of the first byte in mBatch, multiple of ALIGNMENT
+     */
+    private long mBatchPosition;
+    private long mAllocated;
+    private long mLastFlushNs;
+    private boolean mDirty;
+    private boolean mOpen = true;
+    // metrics
+    private long mBytesWritten;
+    private long mDiskBytes;
+    private long mBatchCount;
+    private long mWriteNs;
+    private long mMaxWriteNs;
+    private int mPreallocations;
+
+    public BatchedFileWriter(final File file) throws IOException {
+        this(file, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MS, DEFAULT_PREALLOCATE_SIZE);
+    }
+
+    /**
+     * create or truncate the file and write it from the start
+     *
+     * @param batchSize       bytes gathered before a write, rounded up to a multiple of #ALIGNMENT
+     * @param flushIntervalMs maximum time data stays in the buffer while writes keep coming, 0 to write only full batches
+     * @param preallocateSize the file is grown by this much ahead of the data, 0 not to preallocate
+     */
+    public BatchedFileWriter(final File file, final int batchSize,
+                             final long flushIntervalMs, final long preallocateSize) throws IOException {
+        this(new RandomAccessFile(file, "rw"), batchSize, flushIntervalMs, preallocateSize);
+    }
+
+    private BatchedFileWriter(final RandomAccessFile file, final int batchSize,
+                              final long flushIntervalMs, final long preallocateSize) throws IOException {
+        this(file, file.getChannel(), batchSize, flushIntervalMs, preallocateSize);
+        file.setLength(0);
+    }
+
+    /**
+     * append to an open channel from its current position, the channel is not closed by #close
+     */
+    public BatchedFileWriter(final FileChannel channel, final int batchSize,
+                             final long flushIntervalMs, final long preallocateSize) throws IOException {
+        this(null, channel, batchSize, flushIntervalMs, preallocateSize);
+    }
+
+    private BatchedFileWriter(final RandomAccessFile file, final FileChannel channel, final int batchSize,
+                              final long flushIntervalMs, final long preallocateSize) throws IOException {
+        if (batchSize <= 0 || flushIntervalMs < 0 || preallocateSize < 0)
+            throw new IllegalArgumentException("invalid batch parameters");
+        mFile = file;
+        mChannel = channel;
+        mFd = (file != null) && FALLOCATE_AVAILABLE ? file.getFD() : null;
+        mBatch = ByteBuffer.allocateDirect(alignUp(batchSize, ALIGNMENT));
+        mFlushIntervalNs = flushIntervalMs * 1000000L;
+        mPreallocateSize = preallocateSize;
+        final long position = file != null ? 0 : channel.position();
+        mAllocated = file != null ? 0 : channel.size();
+        // start at the block of the current position, the bytes before it in that block are written again
+        mBatchPosition = position & ~(long) (ALIGNMENT - 1);
+        final int head = (int) (position - mBatchPosition);
+        if (head > 0) {
+            mBatch.limit(head);
+            while (mBatch.hasRemaining()) {
+                if (channel.read(mBatch, mBatchPosition + mBatch.position()) < 0) break;
+            }
+            mBatch.limit(mBatch.capacity());
+        }
+        mLastFlushNs = System.nanoTime();
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        if (!mOpen) throw new IOException("writer is closed");
+        final int length = src.remaining();
+        final int limit = src.limit();
+        while (src.hasRemaining()) {
+            final int chunk = Math.min(src.remaining(), mBatch.remaining());
+            src.limit(src.position() + chunk);
+            mBatch.put(src);
+            src.limit(limit);
+            mDirty = true;
+            if (!mBatch.hasRemaining()) writeBatch();
+        }
+        mBytesWritten += length;
+        if ((mFlushIntervalNs > 0) && (System.nanoTime() - mLastFlushNs >= mFlushIntervalNs)) {
+            flush();
+        }
+        return length;
+    }
+
+    /**
+     * write the buffered data to the file(not to the storage, see #force)
+     */
+    public void flush() throws IOException {
+        if (mDirty) writeBatch();
+        mLastFlushNs = System.nanoTime();
+    }
+
+    /**
+     * write the buffered data and sync the file to the storage
+     */
+    public void force() throws IOException {
+        flush();
+        mChannel.force(false);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * write the buffered data and cut the preallocated space off
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mOpen) return;
+        try {
+            flush();
+            final long end = mBatchPosition + mBatch.position();
+            if (mChannel.size() > end) mChannel.truncate(end);
+        } finally {
+            mOpen = false;
+            if (mFile != null) mFile.close();
+        }
+    }
+
+    /**
+     * @return file position after the last written byte
+     */
+    public long getPosition() {
+        return mBatchPosition + mBatch.position();
+    }
+
+    public int getBatchSize() {
+        return mBatch.capacity();
+    }
+
+    /**
+     * @return bytes passed to #write
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return bytes written to the file, partial blocks written again count every time
+     */
+    public long getDiskBytes() {
+        return mDiskBytes;
+    }
+
+    public long getBatchCount() {
+        return mBatchCount;
+    }
+
+    /**
+     * @return time spent in FileChannel#write
+     */
+    public long getWriteTimeNs() {
+        return mWriteNs;
+    }
+
+    public long getMaxWriteUs() {
+        return mMaxWriteNs / 1000L;
+    }
+
+    /**
+     * @return achieved write throughput in MB/s, while the writer thread was writing
+     */
+    public double getThroughputMBps() {
+        return mWriteNs > 0 ? mDiskBytes * 1000.0 / mWriteNs : 0;
+    }
+
+    public int getPreallocationCount() {
+        return mPreallocations;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(java.util.Locale.US, "BatchedFileWriter{%d bytes, %d batches, %.1fMB/s, max %dus}",
+                mBytesWritten, mBatchCount, getThroughputMBps(), getMaxWriteUs());
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    private void writeBatch() throws IOException {
+        final int length = mBatch.position();
+        preallocate(mBatchPosition + length);
+        mBatch.flip();
+        final long start = System.nanoTime();
+        long position = mBatchPosition;
+        while (mBatch.hasRemaining()) {
+            position += mChannel.write(mBatch, position);
+        }
+        final long elapsed = System.nanoTime() - start;
+        mWriteNs += elapsed;
+        if (elapsed > mMaxWriteNs) mMaxWriteNs = elapsed;
+        mDiskBytes += length;
+        mBatchCount++;
+        // keep the unaligned tail to start the next batch at a block boundary
+        final int aligned = length & ~(ALIGNMENT - 1);
+        mBatch.position(aligned);
+        mBatch.compact();
+        mBatchPosition += aligned;
+        mDirty = false;
+    }
+
+    /**
+     * grow the file to a multiple of the preallocation size that covers end
+     */
+    private void preallocate(final long end) throws IOException {
+        if ((mPreallocateSize == 0) || (end <= mAllocated)) return;
+        final long size = alignUp(end, mPreallocateSize);
+        if ((mFd == null) || !Fallocate.reserve(mFd, mAllocated, size - mAllocated)) {
+            // only the size changes, blocks are allocated when the data is written
+            mFd = null;
+            mOneByte.clear();
+            while (mOneByte.hasRemaining()) {
+                mChannel.write(mOneByte, size - 1);
+            }
+        }
+        mAllocated = size;
+        mPreallocations++;
+    }
+
+    /**
+     * android.system classes are only loaded through this class, so the writer also works on the JVM
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static final class Fallocate {
+        /**
+         * @return false if the file system does not support it, e.g. vfat of external storage
+         */
+        static boolean reserve(final FileDescriptor fd, final long offset, final long length) throws IOException {
+            try {
+                Os.posix_fallocate(fd, offset, length);
+                return true;
+            } catch (final ErrnoException e) {
+                if ((e.errno == OsConstants.EOPNOTSUPP) || (e.errno == OsConstants.ENOSYS)) return false;
+                throw new IOException("posix_fallocate failed", e);
+            }
+        }
+    }
+
+    private static boolean isFallocateAvailable() {
+        try {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        } catch (final Throwable e) {
+            // not running on Android, e.g. unit tests and benchmarks on the JVM
+            return false;
+        }
+    }
+
+    private static int alignUp(final int value, final int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    private static long alignUp(final long value, final long alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+}
@@ -0,0 +1,134 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * SampleSink that writes one track as raw elementary stream without container:
+ * H.264 as Annex-B byte stream(.h264) with SPS/PPS before every key frame, or AAC with ADTS header(.aac).
+ * Samples of the other tracks are ignored, so one sink per track can be used with MediaMuxerWrapper.
+ * Every sample is written when it arrives and needs no index, the file is playable up to the last sample
+ * even if recording is killed.
+ */
+public class ElementaryStreamSink implements SampleSink {
+
+    public static final int DEFAULT_VIDEO_BUFFER_SIZE = MpegTsSink.DEFAULT_VIDEO_BUFFER_SIZE;
+
+    private final RandomAccessFile mFile;
+    private final WritableByteChannel mChannel;
+    private final boolean mVideo;
+    private final int mVideoBufferSize;
+    private int mTrackCount;
+    private int mTrackIndex = -1;
+    private ByteBuffer mData;
+    private byte[] mParameterSets;
+    private Adts mAdts;
+    private boolean mIsStarted;
+    private long mBytesWritten;
+
+    /**
+     * @param video true to write the video track as Annex-B, false to write the audio track as ADTS
+     */
+    public ElementaryStreamSink(final File outputFile, final boolean video) throws IOException {
+        if (outputFile == null) throw new NullPointerException("Output file is NULL");
+        mFile = new RandomAccessFile(outputFile, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mVideo = video;
+        mVideoBufferSize = DEFAULT_VIDEO_BUFFER_SIZE;
+    }
+
+    /**
+     * write to a stream, e.g. a socket, the channel is not closed by this sink
+     */
+    public ElementaryStreamSink(final WritableByteChannel channel, final boolean video, final int videoBufferSize) {
+        if (channel == null) throw new NullPointerException("channel is null");
+        mFile = null;
+        mChannel = channel;
+        mVideo = video;
+        mVideoBufferSize = videoBufferSize;
+    }
+
+    @Override
+    public int addTrack(final TrackFormat format) {
+        if (mIsStarted)
+            throw new IllegalStateException("sink already started");
+        if ((mTrackIndex < 0) && (format.isVideo() == mVideo)) {
+            if (mVideo) {
+                if (!TrackFormat.MIMETYPE_VIDEO_AVC.equals(format.getMimeType()))
+                    throw new IllegalArgumentException("unsupported mime type:" + format.getMimeType());
+                mParameterSets = AnnexB.createParameterSets(format);
+                mData = ByteBuffer.allocate(mVideoBufferSize);
+            } else {
+                if (!TrackFormat.MIMETYPE_AUDIO_AAC.equals(format.getMimeType()))
+                    throw new IllegalArgumentException("unsupported mime type:" + format.getMimeType());
+                mAdts = new Adts(format);
+                mData = ByteBuffer.allocate(Adts.MAX_FRAME_SIZE);
+            }
+            mTrackIndex = mTrackCount;
+        }
+        return mTrackCount++;
+    }
+
+    @Override
+    public void start() {
+        if (mIsStarted)
+            throw new IllegalStateException("sink already started");
+        if (mTrackIndex < 0)
+            throw new IllegalStateException(mVideo ? "no video track added" : "no audio track added");
+        mIsStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+        if (!mIsStarted)
+            throw new IllegalStateException("sink not started");
+        if ((trackIndex != mTrackIndex) || ((info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0) || (info.size <= 0)) {
+            return;
+        }
+        final ByteBuffer data = mData;
+        data.clear();
+        if (mVideo) {
+            if (AnnexB.maxAccessUnitSize(info.size, mParameterSets) > data.capacity())
+                throw new IOException("sample is too large for video buffer:" + info.size);
+            AnnexB.appendAccessUnit(byteBuf, info.offset, info.size,
+                    info.isSyncFrame() ? mParameterSets : null, false, data);
+        } else {
+            if (info.size + Adts.HEADER_SIZE > data.capacity())
+                throw new IOException("sample is too large for ADTS:" + info.size);
+            mAdts.appendFrame(byteBuf, info.offset, info.size, data);
+        }
+        data.flip();
+        while (data.hasRemaining()) {
+            mBytesWritten += mChannel.write(data);
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (!mIsStarted) return;
+        mIsStarted = false;
+        if (mFile != null) mChannel.close();
+    }
+
+    @Override
+    public void release() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return total number of bytes written to the output
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+}
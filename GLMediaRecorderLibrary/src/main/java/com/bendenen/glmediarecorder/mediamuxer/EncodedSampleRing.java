@@ -0,0 +1,249 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring of encoded samples in one direct buffer, used to keep the last seconds before recording starts.
+ * Memory is allocated once: sample data goes into a fixed byte ring and sample info into fixed arrays.
+ * When a new sample does not fit, whole GOPs are evicted from the oldest side,
+ * so the ring always starts with a sync frame of the key track(usually video) and can be written as is.
+ * Samples of other tracks are evicted together with the GOP they arrived in.
+ * <p>
+ * This class is not thread safe, it is used only on the writer thread.
+ */
+public class EncodedSampleRing {
+
+    /**
+     * no key track, every sample is a point to cut(audio only)
+     */
+    public static final int NO_KEY_TRACK = -1;
+
+    private final ByteBuffer mData;
+    private final int[] mTracks;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long[] mPts;
+    private final SampleInfo mInfo = new SampleInfo();
+    private int mKeyTrack = NO_KEY_TRACK;
+    /**
+     * index of the oldest entry and number of entries
+     */
+    private int mHead, mCount;
+    /**
+     * data of entries is in [mDataHead, mDataTail) with wrap around, mDataUsed includes the skipped tail on wrap
+     */
+    private int mDataHead, mDataTail, mDataUsed;
+
+    // metrics
+    private long mEvictedGops;
+    private long mEvictedSamples;
+    private long mDroppedSamples;
+
+    /**
+     * @param capacityBytes size of sample data, allocated at once
+     * @param maxSamples    maximum number of samples, e.g. (video fps + audio frames per second) x seconds
+     */
+    public EncodedSampleRing(final int capacityBytes, final int maxSamples) {
+        if (capacityBytes <= 0 || maxSamples <= 0) throw new IllegalArgumentException("capacity should be positive");
+        mData = ByteBuffer.allocateDirect(capacityBytes);
+        mTracks = new int[maxSamples];
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mFlags = new int[maxSamples];
+        mPts = new long[maxSamples];
+    }
+
+    /**
+     * set track whose sync frames are cut points, samples of this track before its first sync frame are dropped
+     */
+    public void setKeyTrack(final int trackIndex) {
+        mKeyTrack = trackIndex;
+    }
+
+    public int getKeyTrack() {
+        return mKeyTrack;
+    }
+
+    /**
+     * copy a sample into the ring, evicting old GOPs if needed
+     *
+     * @return false if the sample was dropped(larger than the ring, or not decodable without the previous GOP)
+     */
+    public boolean add(final int trackIndex, final ByteBuffer src, final SampleInfo info) {
+        final int size = info.size;
+        if (size > mData.capacity() || (mCount == 0 && !isCutPoint(trackIndex, info.flags))) {
+            mDroppedSamples++;
+            return false;
+        }
+        int offset;
+        while ((offset = reserve(size)) < 0 || mCount == mTracks.length) {
+            evictGop();
+            if (mCount == 0 && !isCutPoint(trackIndex, info.flags)) {
+                // the new sample belongs to the GOP that was just evicted
+                mDroppedSamples++;
+                return false;
+            }
+        }
+        final int position = src.position();
+        final int limit = src.limit();
+        src.limit(info.offset + size);
+        src.position(info.offset);
+        mData.clear();
+        mData.position(offset);
+        mData.put(src);
+        src.limit(limit);
+        src.position(position);
+
+        final int ix = (mHead + mCount) % mTracks.length;
+        mTracks[ix] = trackIndex;
+        mOffsets[ix] = offset;
+        mSizes[ix] = size;
+        mFlags[ix] = info.flags;
+        mPts[ix] = info.presentationTimeUs;
+        mCount++;
+        mDataUsed += (offset + size) - mDataTail + (offset < mDataTail ? mData.capacity() : 0);
+        mDataTail = offset + size;
+        return true;
+    }
+
+    /**
+     * write all samples to sink from the oldest sync frame in arrival order and empty the ring.
+     * Samples of other tracks that are older than the first sync frame are skipped,
+     * so all tracks of the output start at the same time.
+     *
+     * @param trackMap track index in the sink for each track index of the ring, null to use the same index
+     * @return number of written samples
+     */
+    public int drainTo(final SampleSink sink, final int[] trackMap) throws IOException {
+        int written = 0;
+        long startPts = Long.MIN_VALUE;
+        try {
+            for (int i = 0; i < mCount; i++) {
+                final int ix = (mHead + i) % mTracks.length;
+                final int track = mTracks[ix];
+                if (startPts == Long.MIN_VALUE) {
+                    if (!isCutPoint(track, mFlags[ix])) continue;
+                    startPts = mPts[ix];
+                }
+                if (mPts[ix] < startPts && track != mKeyTrack) continue;
+                mInfo.set(mOffsets[ix], mSizes[ix], mPts[ix], mFlags[ix]);
+                mData.clear();
+                sink.writeSampleData(trackMap != null ? trackMap[track] : track, mData, mInfo);
+                written++;
+            }
+        } finally {
+            clear();
+        }
+        return written;
+    }
+
+    public void clear() {
+        mHead = mCount = 0;
+        mDataHead = mDataTail = mDataUsed = 0;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * @return bytes used by samples, including the unused tail skipped on wrap around
+     */
+    public int getUsedBytes() {
+        return mDataUsed;
+    }
+
+    public int getCapacityBytes() {
+        return mData.capacity();
+    }
+
+    /**
+     * @return time span of the ring, from the oldest to the newest sample
+     */
+    public long getDurationUs() {
+        if (mCount == 0) return 0;
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            final long pts = mPts[(mHead + i) % mTracks.length];
+            if (pts < min) min = pts;
+            if (pts > max) max = pts;
+        }
+        return max - min;
+    }
+
+    /**
+     * @return presentation time of the oldest sync frame, -1 if the ring is empty
+     */
+    public long getStartPtsUs() {
+        return mCount > 0 ? mPts[mHead] : -1;
+    }
+
+    public long getEvictedGops() {
+        return mEvictedGops;
+    }
+
+    public long getEvictedSamples() {
+        return mEvictedSamples;
+    }
+
+    /**
+     * @return number of samples that were never stored
+     */
+    public long getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    private boolean isCutPoint(final int trackIndex, final int flags) {
+        if (mKeyTrack == NO_KEY_TRACK) return true;
+        return (trackIndex == mKeyTrack) && ((flags & SampleInfo.FLAG_SYNC_FRAME) != 0);
+    }
+
+    /**
+     * @return offset to write size bytes at, -1 if there is not enough contiguous space
+     */
+    private int reserve(final int size) {
+        final int capacity = mData.capacity();
+        if (mCount == 0) {
+            mDataHead = mDataTail = mDataUsed = 0;
+            return size <= capacity ? 0 : -1;
+        }
+        if (mDataTail > mDataHead) {
+            // [head, tail) is used, free space is [tail, capacity) and [0, head)
+            if (capacity - mDataTail >= size) return mDataTail;
+            return mDataHead >= size ? 0 : -1;
+        }
+        // wrapped, free space is [tail, head)
+        return mDataHead - mDataTail >= size ? mDataTail : -1;
+    }
+
+    /**
+     * remove the oldest entry and following entries until the next cut point
+     */
+    private void evictGop() {
+        if (mCount == 0) return;
+        do {
+            removeHead();
+        } while (mCount > 0 && !isCutPoint(mTracks[mHead], mFlags[mHead]));
+        mEvictedGops++;
+    }
+
+    private void removeHead() {
+        final int next = (mHead + 1) % mTracks.length;
+        mEvictedSamples++;
+        mCount--;
+        if (mCount == 0) {
+            mHead = 0;
+            mDataHead = mDataTail = mDataUsed = 0;
+        } else {
+            final int nextOffset = mOffsets[next];
+            mDataUsed -= nextOffset - mDataHead + (nextOffset < mDataHead ? mData.capacity() : 0);
+            mDataHead = nextOffset;
+            mHead = next;
+        }
+    }
+}
@@ -0,0 +1,793 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pure java SampleSink that writes fragmented MP4(ISO/IEC 14496-12, moov + moof/mdat pairs).
+ * ftyp and an empty moov are written on #start, after that every fragment is written as soon as it is cut,
+ * so the memory consumption is fixed by the per track fragment buffers and does not grow with the recording time.
+ * A fragment is cut on a video key frame once the fragment duration is reached
+ * (or on any sample when there is no video track) and whenever a fragment buffer becomes full.
+ * In crash-safe mode(#setCrashSafe) a fragment is also committed at a fixed interval and synced to storage,
+ * so a crash loses at most the last interval, the rest can be played or repaired with {@link Mp4Recovery}.
+ * With #setBatchedWrites the file is written through a {@link BatchedFileWriter} in large batches.
+ * This class only depends on java.nio and can be used on a plain JVM.
+ */
+public class FragmentedMp4Sink implements SampleSink {
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000L;
+    public static final int DEFAULT_VIDEO_BUFFER_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_AUDIO_BUFFER_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_SAMPLES_PER_FRAGMENT = 512;
+    public static final long DEFAULT_COMMIT_INTERVAL_US = 2000000L;
+    public static final long DEFAULT_SYNC_BUDGET_US = 20000L;
+
+    /**
+     * a slow sync stretches the sync interval up to this multiple of the commit interval
+     */
+    private static final int MAX_SYNC_BACKOFF = 8;
+
+    private static final int MAX_TRACKS = 4;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+    private static final long DEFAULT_VIDEO_FRAME_DURATION_US = 33333L;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;        // sample_depends_on=2
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;    // sample_depends_on=1, sample_is_non_sync_sample=1
+
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;    // data offset, duration, size, flags
+
+    private static final class Track {
+        final int mTrackId;
+        final TrackFormat mFormat;
+        final int mTimescale;
+        final ByteBuffer mData;
+        final long[] mPtsUs;
+        final int[] mSizes;
+        final int[] mFlags;
+        int mCount;
+        long mLastDuration;
+        long mNextDecodeTime;
+
+        Track(final int trackId, final TrackFormat format, final int bufferSize, final int maxSamples) {
+            mTrackId = trackId;
+            mFormat = format;
+            mTimescale = format.isVideo() ? VIDEO_TIMESCALE : format.getSampleRate();
+            mData = ByteBuffer.allocateDirect(bufferSize);
+            mPtsUs = new long[maxSamples];
+            mSizes = new int[maxSamples];
+            mFlags = new int[maxSamples];
+        }
+
+        long toTimescale(final long timeUs) {
+            return (timeUs * mTimescale + 500000L) / 1000000L;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final int mVideoBufferSize, mAudioBufferSize;
+    private final int mMaxSamples;
+    private final Track[] mTracks = new Track[MAX_TRACKS];
+    private final ByteBuffer mMoof;
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocate(8);
+    private final ByteBuffer[] mWriteBuffers = new ByteBuffer[MAX_TRACKS + 2];
+    private int mTrackCount;
+    private boolean mHasVideo;
+    private boolean mIsStarted;
+    private int mSequenceNumber;
+    private long mOriginUs = -1;
+    private long mFragmentStartUs = -1;
+    private long mBytesWritten;
+    // batched writes
+    private int mBatchSize;
+    private long mFlushIntervalMs;
+    private long mPreallocateSize;
+    private BatchedFileWriter mWriter;
+    // crash-safe mode
+    private long mCommitIntervalUs;
+    private long mSyncBudgetUs;
+    private long mSyncIntervalUs;
+    private long mLastSyncUs = -1;
+    private int mSyncCount;
+    private int mSlowSyncCount;
+    private long mMaxSyncUs;
+    private long mTotalSyncUs;
+
+    public FragmentedMp4Sink(final File outputFile) throws IOException {
+        this(outputFile, DEFAULT_FRAGMENT_DURATION_US,
+                DEFAULT_VIDEO_BUFFER_SIZE, DEFAULT_AUDIO_BUFFER_SIZE, DEFAULT_MAX_SAMPLES_PER_FRAGMENT);
+    }
+
+    /**
+     * @param fragmentDurationUs target duration of one fragment
+     * @param videoBufferSize    bytes buffered for a video track in one fragment
+     * @param audioBufferSize    bytes buffered for an audio track in one fragment
+     * @param maxSamples         maximum number of samples of one track in one fragment
+     */
+    public FragmentedMp4Sink(final File outputFile, final long fragmentDurationUs,
+                             final int videoBufferSize, final int audioBufferSize, final int maxSamples) throws IOException {
+        if (outputFile == null) throw new NullPointerException("Output file is NULL");
+        if (fragmentDurationUs <= 0 || maxSamples <= 0)
+            throw new IllegalArgumentException("invalid fragment parameters");
+        mFile = new RandomAccessFile(outputFile, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mFragmentDurationUs = fragmentDurationUs;
+        mVideoBufferSize = videoBufferSize;
+        mAudioBufferSize = audioBufferSize;
+        mMaxSamples = maxSamples;
+        // mfhd + (traf with tfhd, tfdt and trun header + 12 bytes/sample) for each track
+        mMoof = ByteBuffer.allocate(8 + 16 + MAX_TRACKS * (8 + 16 + 20 + 20 + 12 * maxSamples));
+    }
+
+    /**
+     * enable crash-safe mode, call before #start.
+     * A fragment is committed at least every commitIntervalUs of presentation time, even without key frame,
+     * and the file is synced to storage after it. A sync that takes longer than syncBudgetUs doubles
+     * the interval between syncs(up to 8 times) until a sync is fast again,
+     * so slow storage does not hold the writer thread for long.
+     *
+     * @param commitIntervalUs maximum recording time lost by a crash, 0 to disable
+     * @param syncBudgetUs     time a sync may take
+     */
+    public void setCrashSafe(final long commitIntervalUs, final long syncBudgetUs) {
+        if (mIsStarted)
+            throw new IllegalStateException("sink already started");
+        if ((commitIntervalUs < 0) || (syncBudgetUs < 0))
+            throw new IllegalArgumentException("negative interval or budget");
+        mCommitIntervalUs = commitIntervalUs;
+        mSyncBudgetUs = syncBudgetUs;
+        mSyncIntervalUs = commitIntervalUs;
+    }
+
+    public boolean isCrashSafe() {
+        return mCommitIntervalUs > 0;
+    }
+
+    /**
+     * write the file through a {@link BatchedFileWriter}, call before #start.
+     * In crash-safe mode every committed fragment is flushed to the file and nothing is preallocated,
+     * zero filled space after a cut off fragment could not be told from sample data.
+     *
+     * @param batchSize       bytes gathered before a write, 0 to write every fragment directly
+     * @param flushIntervalMs maximum time data stays in the batch buffer
+     * @param preallocateSize the file is grown by this much ahead of the data
+     */
+    public void setBatchedWrites(final int batchSize, final long flushIntervalMs, final long preallocateSize) {
+        if (mIsStarted)
+            throw new IllegalStateException("sink already started");
+        if ((batchSize < 0) || (flushIntervalMs < 0) || (preallocateSize < 0))
+            throw new IllegalArgumentException("invalid batch parameters");
+        mBatchSize = batchSize;
+        mFlushIntervalMs = flushIntervalMs;
+        mPreallocateSize = preallocateSize;
+    }
+
+    /**
+     * @return writer of #setBatchedWrites for its statistics, null before #start or without batching
+     */
+    public BatchedFileWriter getBatchedWriter() {
+        return mWriter;
+    }
+
+    @Override
+    public int addTrack(final TrackFormat format) {
+        if (mIsStarted)
+            throw new IllegalStateException("sink already started");
+        if (mTrackCount >= MAX_TRACKS)
+            throw new IllegalStateException("too many tracks");
+        if (!TrackFormat.MIMETYPE_VIDEO_AVC.equals(format.getMimeType())
+                && !TrackFormat.MIMETYPE_AUDIO_AAC.equals(format.getMimeType()))
+            throw new IllegalArgumentException("unsupported mime type:" + format.getMimeType());
+        final int bufferSize = format.isVideo() ? mVideoBufferSize : mAudioBufferSize;
+        mTracks[mTrackCount] = new Track(mTrackCount + 1, format, bufferSize, mMaxSamples);
+        mHasVideo |= format.isVideo();
+        return mTrackCount++;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (mIsStarted)
+            throw new IllegalStateException("sink already started");
+        if (mTrackCount == 0)
+            throw new IllegalStateException("no track added");
+        int csdSize = 0;
+        for (int i = 0; i < mTrackCount; i++) {
+            final TrackFormat format = mTracks[i].mFormat;
+            csdSize += (format.getCsd0() != null ? format.getCsd0().length : 0)
+                    + (format.getCsd1() != null ? format.getCsd1().length : 0);
+        }
+        // this is called only once, so allocating here is no problem
+        final ByteBuffer header = ByteBuffer.allocate(1024 + mTrackCount * 1024 + csdSize);
+        writeFtyp(header);
+        writeMoov(header);
+        header.flip();
+        if (mBatchSize > 0) {
+            mWriter = new BatchedFileWriter(mChannel, mBatchSize, mFlushIntervalMs,
+                    isCrashSafe() ? 0 : mPreallocateSize);
+        }
+        writeFully(header);
+        if (isCrashSafe()) sync();
+        mIsStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+        if (!mIsStarted)
+            throw new IllegalStateException("sink not started");
+        if ((trackIndex < 0) || (trackIndex >= mTrackCount))
+            throw new IllegalArgumentException("invalid track index:" + trackIndex);
+        if (((info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0) || (info.size <= 0)) {
+            // codec specific data is already written in moov
+            return;
+        }
+        final Track track = mTracks[trackIndex];
+        final boolean isVideo = track.mFormat.isVideo();
+        final boolean isSync = !isVideo || info.isSyncFrame();
+        // Annex-B to length prefix conversion can add one byte per 3 bytes start code
+        final int required = isVideo ? info.size + info.size / 3 + 4 : info.size;
+        if (required > track.mData.capacity())
+            throw new IOException("sample is too large for fragment buffer:" + info.size);
+        if (mOriginUs < 0)
+            mOriginUs = info.presentationTimeUs;
+        if ((track.mCount == mMaxSamples) || (track.mData.remaining() < required)) {
+            commitFragment(info.presentationTimeUs);
+        } else if ((mFragmentStartUs >= 0) && (isVideo || !mHasVideo) && isSync
+                && (info.presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs)) {
+            commitFragment(info.presentationTimeUs);
+        } else if ((mFragmentStartUs >= 0) && isCrashSafe()
+                && (info.presentationTimeUs - mFragmentStartUs >= mCommitIntervalUs)) {
+            commitFragment(info.presentationTimeUs);
+        }
+        if (mFragmentStartUs < 0)
+            mFragmentStartUs = info.presentationTimeUs;
+
+        final int start = track.mData.position();
+        if (isVideo) {
+            appendAvcSample(byteBuf, info.offset, info.size, track.mData);
+        } else {
+            appendRaw(byteBuf, info.offset, info.size, track.mData);
+        }
+        final int n = track.mCount++;
+        track.mPtsUs[n] = info.presentationTimeUs;
+        track.mSizes[n] = track.mData.position() - start;
+        track.mFlags[n] = isSync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (!mIsStarted) return;
+        mIsStarted = false;
+        flushFragment();
+        if (isCrashSafe()) sync();
+        if (mWriter != null) mWriter.close();
+        mChannel.close();
+    }
+
+    @Override
+    public void release() {
+        try {
+            mFile.close();
+        } catch (final IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * @return total number of bytes written to the output file
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return number of written moof/mdat pairs
+     */
+    public int getFragmentCount() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * @return number of syncs in crash-safe mode
+     */
+    public int getSyncCount() {
+        return mSyncCount;
+    }
+
+    /**
+     * @return syncs that took longer than the sync budget
+     */
+    public int getSlowSyncCount() {
+        return mSlowSyncCount;
+    }
+
+    public long getMaxSyncUs() {
+        return mMaxSyncUs;
+    }
+
+    public long getTotalSyncUs() {
+        return mTotalSyncUs;
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    /**
+     * write the fragment and sync it in crash-safe mode when the sync interval passed
+     *
+     * @param nowUs presentation time of the sample that cut the fragment
+     */
+    private void commitFragment(final long nowUs) throws IOException {
+        flushFragment();
+        if (isCrashSafe()) {
+            if (mWriter != null) mWriter.flush();
+            if (mLastSyncUs < 0) mLastSyncUs = mOriginUs;
+            if (nowUs - mLastSyncUs >= mSyncIntervalUs) {
+                sync();
+                mLastSyncUs = nowUs;
+            }
+        }
+    }
+
+    /**
+     * flush the file data to storage, adapt the sync interval to the time it took
+     */
+    private void sync() throws IOException {
+        final long start = System.nanoTime();
+        if (mWriter != null) {
+            mWriter.force();
+        } else {
+            mChannel.force(false);
+        }
+        final long elapsedUs = (System.nanoTime() - start) / 1000L;
+        mSyncCount++;
+        mTotalSyncUs += elapsedUs;
+        if (elapsedUs > mMaxSyncUs) mMaxSyncUs = elapsedUs;
+        if (elapsedUs > mSyncBudgetUs) {
+            mSlowSyncCount++;
+            mSyncIntervalUs = Math.min(mSyncIntervalUs * 2, mCommitIntervalUs * MAX_SYNC_BACKOFF);
+        } else {
+            mSyncIntervalUs = mCommitIntervalUs;
+        }
+    }
+
+    /**
+     * write buffered samples of all tracks as a moof/mdat pair
+     */
+    private void flushFragment() throws IOException {
+        int mdatSize = 8;
+        for (int i = 0; i < mTrackCount; i++) {
+            mdatSize += mTracks[i].mData.position();
+        }
+        mFragmentStartUs = -1;
+        if (mdatSize == 8) return;
+
+        final ByteBuffer moof = mMoof;
+        moof.clear();
+        final int moofStart = beginBox(moof, "moof");
+        final int mfhd = beginFullBox(moof, "mfhd", 0, 0);
+        moof.putInt(++mSequenceNumber);
+        endBox(moof, mfhd);
+        final int trafOffsetsStart = moof.position();
+        for (int i = 0; i < mTrackCount; i++) {
+            final Track track = mTracks[i];
+            if (track.mCount == 0) continue;
+            final int traf = beginBox(moof, "traf");
+            final int tfhd = beginFullBox(moof, "tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            moof.putInt(track.mTrackId);
+            endBox(moof, tfhd);
+            final int tfdt = beginFullBox(moof, "tfdt", 1, 0);
+            final long firstTime = track.toTimescale(Math.max(0, track.mPtsUs[0] - mOriginUs));
+            final long baseDecodeTime = Math.max(firstTime, track.mNextDecodeTime);
+            moof.putLong(baseDecodeTime);
+            endBox(moof, tfdt);
+            final int trun = beginFullBox(moof, "trun", 0, TRUN_FLAGS);
+            moof.putInt(track.mCount);
+            moof.putInt(0);    // data_offset, fixed up below
+            long decodeTime = baseDecodeTime;
+            for (int j = 0; j < track.mCount; j++) {
+                long duration;
+                if (j + 1 < track.mCount) {
+                    final long next = track.toTimescale(Math.max(0, track.mPtsUs[j + 1] - mOriginUs));
+                    duration = Math.max(0, next - decodeTime);
+                    track.mLastDuration = duration;
+                } else {
+                    duration = track.mLastDuration > 0 ? track.mLastDuration : defaultDuration(track);
+                }
+                moof.putInt((int) duration);
+                moof.putInt(track.mSizes[j]);
+                moof.putInt(track.mFlags[j]);
+                decodeTime += duration;
+            }
+            track.mNextDecodeTime = decodeTime;
+            endBox(moof, trun);
+            endBox(moof, traf);
+        }
+        endBox(moof, moofStart);
+
+        // fix up data_offset of each trun, offsets are relative to the start of moof
+        int dataOffset = moof.position() + 8;
+        moof.position(trafOffsetsStart);
+        for (int i = 0; i < mTrackCount; i++) {
+            final Track track = mTracks[i];
+            if (track.mCount == 0) continue;
+            // traf(8) + tfhd(16) + tfdt(20) + trun header(12) + sample_count(4)
+            final int pos = moof.position() + 8 + 16 + 20 + 12 + 4;
+            moof.putInt(pos, dataOffset);
+            dataOffset += track.mData.position();
+            moof.position(moof.position() + moof.getInt(moof.position()));
+        }
+        moof.flip();
+
+        mMdatHeader.clear();
+        mMdatHeader.putInt(mdatSize);
+        putFourCC(mMdatHeader, "mdat");
+        mMdatHeader.flip();
+
+        int n = 0;
+        mWriteBuffers[n++] = moof;
+        mWriteBuffers[n++] = mMdatHeader;
+        for (int i = 0; i < mTrackCount; i++) {
+            final Track track = mTracks[i];
+            if (track.mCount == 0) continue;
+            track.mData.flip();
+            mWriteBuffers[n++] = track.mData;
+        }
+        writeFully(mWriteBuffers, n);
+        for (int i = 0; i < mTrackCount; i++) {
+            final Track track = mTracks[i];
+            track.mData.clear();
+            track.mCount = 0;
+        }
+    }
+
+    private static long defaultDuration(final Track track) {
+        return track.mFormat.isVideo() ? track.toTimescale(DEFAULT_VIDEO_FRAME_DURATION_US) : AAC_SAMPLES_PER_FRAME;
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mBytesWritten += mWriter != null ? mWriter.write(buffer) : mChannel.write(buffer);
+        }
+    }
+
+    private void writeFully(final ByteBuffer[] buffers, final int length) throws IOException {
+        if (mWriter != null) {
+            for (int i = 0; i < length; i++) {
+                writeFully(buffers[i]);
+            }
+            return;
+        }
+        long remaining = 0;
+        for (int i = 0; i < length; i++) {
+            remaining += buffers[i].remaining();
+        }
+        while (remaining > 0) {
+            final long written = mChannel.write(buffers, 0, length);
+            remaining -= written;
+            mBytesWritten += written;
+        }
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    /**
+     * copy one AVC access unit and convert Annex-B start codes into 4 bytes NAL unit length.
+     * Length prefixed data is copied as it is.
+     */
+    private static void appendAvcSample(final ByteBuffer src, final int offset, final int size, final ByteBuffer dst) {
+        final int end = offset + size;
+        if (!AnnexB.isAnnexB(src, offset, end)) {
+            appendRaw(src, offset, size, dst);
+            return;
+        }
+        int nalStart = AnnexB.skipStartCode(src, offset, end);
+        while (nalStart < end) {
+            int next = nalStart;
+            int nalEnd = end;
+            while (next + 2 < end) {
+                if ((src.get(next) == 0) && (src.get(next + 1) == 0) && (src.get(next + 2) == 1)) {
+                    nalEnd = next;
+                    // 4 bytes start code
+                    while ((nalEnd > nalStart) && (src.get(nalEnd - 1) == 0)) nalEnd--;
+                    break;
+                }
+                next++;
+            }
+            if (nalEnd > nalStart) {
+                dst.putInt(nalEnd - nalStart);
+                appendRaw(src, nalStart, nalEnd - nalStart, dst);
+            }
+            if (nalEnd == end || next + 2 >= end) break;
+            nalStart = next + 3;
+        }
+    }
+
+    private static void appendRaw(final ByteBuffer src, final int offset, final int size, final ByteBuffer dst) {
+        final int position = src.position();
+        final int limit = src.limit();
+        src.limit(offset + size);
+        src.position(offset);
+        dst.put(src);
+        src.limit(limit);
+        src.position(position);
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    private static void writeFtyp(final ByteBuffer buf) {
+        final int ftyp = beginBox(buf, "ftyp");
+        putFourCC(buf, "iso5");    // major brand
+        buf.putInt(512);            // minor version
+        putFourCC(buf, "iso5");
+        putFourCC(buf, "iso6");
+        putFourCC(buf, "avc1");
+        putFourCC(buf, "mp41");
+        endBox(buf, ftyp);
+    }
+
+    private void writeMoov(final ByteBuffer buf) throws IOException {
+        final int moov = beginBox(buf, "moov");
+        final int mvhd = beginFullBox(buf, "mvhd", 0, 0);
+        buf.putInt(0);                  // creation time
+        buf.putInt(0);                  // modification time
+        buf.putInt(MOVIE_TIMESCALE);
+        buf.putInt(0);                  // duration, unknown for fragmented file
+        buf.putInt(0x00010000);         // rate 1.0
+        buf.putShort((short) 0x0100);   // volume 1.0
+        buf.putShort((short) 0);
+        buf.putLong(0);
+        putMatrix(buf);
+        for (int i = 0; i < 6; i++) buf.putInt(0);    // pre_defined
+        buf.putInt(mTrackCount + 1);    // next track ID
+        endBox(buf, mvhd);
+        for (int i = 0; i < mTrackCount; i++) {
+            writeTrak(buf, mTracks[i]);
+        }
+        final int mvex = beginBox(buf, "mvex");
+        for (int i = 0; i < mTrackCount; i++) {
+            final int trex = beginFullBox(buf, "trex", 0, 0);
+            buf.putInt(mTracks[i].mTrackId);
+            buf.putInt(1);              // default sample description index
+            buf.putInt(0);              // default sample duration
+            buf.putInt(0);              // default sample size
+            buf.putInt(0);              // default sample flags
+            endBox(buf, trex);
+        }
+        endBox(buf, mvex);
+        endBox(buf, moov);
+    }
+
+    private static void writeTrak(final ByteBuffer buf, final Track track) throws IOException {
+        final TrackFormat format = track.mFormat;
+        final boolean isVideo = format.isVideo();
+        final int trak = beginBox(buf, "trak");
+        final int tkhd = beginFullBox(buf, "tkhd", 0, 0x000003);    // enabled, in movie
+        buf.putInt(0);                  // creation time
+        buf.putInt(0);                  // modification time
+        buf.putInt(track.mTrackId);
+        buf.putInt(0);
+        buf.putInt(0);                  // duration
+        buf.putLong(0);
+        buf.putShort((short) 0);        // layer
+        buf.putShort((short) 0);        // alternate group
+        buf.putShort((short) (isVideo ? 0 : 0x0100));    // volume
+        buf.putShort((short) 0);
+        putMatrix(buf);
+        buf.putInt(isVideo ? format.getWidth() << 16 : 0);
+        buf.putInt(isVideo ? format.getHeight() << 16 : 0);
+        endBox(buf, tkhd);
+
+        final int mdia = beginBox(buf, "mdia");
+        final int mdhd = beginFullBox(buf, "mdhd", 0, 0);
+        buf.putInt(0);                  // creation time
+        buf.putInt(0);                  // modification time
+        buf.putInt(track.mTimescale);
+        buf.putInt(0);                  // duration
+        buf.putShort((short) 0x55C4);   // language "und"
+        buf.putShort((short) 0);
+        endBox(buf, mdhd);
+        final int hdlr = beginFullBox(buf, "hdlr", 0, 0);
+        buf.putInt(0);
+        putFourCC(buf, isVideo ? "vide" : "soun");
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        putCString(buf, isVideo ? "VideoHandler" : "SoundHandler");
+        endBox(buf, hdlr);
+
+        final int minf = beginBox(buf, "minf");
+        if (isVideo) {
+            final int vmhd = beginFullBox(buf, "vmhd", 0, 1);
+            buf.putShort((short) 0);    // graphics mode
+            buf.putShort((short) 0);
+            buf.putShort((short) 0);
+            buf.putShort((short) 0);
+            endBox(buf, vmhd);
+        } else {
+            final int smhd = beginFullBox(buf, "smhd", 0, 0);
+            buf.putShort((short) 0);    // balance
+            buf.putShort((short) 0);
+            endBox(buf, smhd);
+        }
+        final int dinf = beginBox(buf, "dinf");
+        final int dref = beginFullBox(buf, "dref", 0, 0);
+        buf.putInt(1);
+        final int url = beginFullBox(buf, "url ", 0, 1);    // self contained
+        endBox(buf, url);
+        endBox(buf, dref);
+        endBox(buf, dinf);
+
+        final int stbl = beginBox(buf, "stbl");
+        final int stsd = beginFullBox(buf, "stsd", 0, 0);
+        buf.putInt(1);
+        if (isVideo) {
+            writeAvc1(buf, format);
+        } else {
+            writeMp4a(buf, format, track.mTrackId);
+        }
+        endBox(buf, stsd);
+        // sample tables are empty, all samples are described in moof
+        final int stts = beginFullBox(buf, "stts", 0, 0);
+        buf.putInt(0);
+        endBox(buf, stts);
+        final int stsc = beginFullBox(buf, "stsc", 0, 0);
+        buf.putInt(0);
+        endBox(buf, stsc);
+        final int stsz = beginFullBox(buf, "stsz", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        endBox(buf, stsz);
+        final int stco = beginFullBox(buf, "stco", 0, 0);
+        buf.putInt(0);
+        endBox(buf, stco);
+        endBox(buf, stbl);
+        endBox(buf, minf);
+        endBox(buf, mdia);
+        endBox(buf, trak);
+    }
+
+    private static void writeAvc1(final ByteBuffer buf, final TrackFormat format) throws IOException {
+        final byte[] sps = AnnexB.stripStartCode(format.getCsd0());
+        final byte[] pps = AnnexB.stripStartCode(format.getCsd1());
+        if ((sps == null) || (sps.length < 4) || (pps == null))
+            throw new IOException("AVC track requires SPS(csd-0) and PPS(csd-1)");
+        final int avc1 = beginBox(buf, "avc1");
+        buf.putInt(0);
+        buf.putShort((short) 0);
+        buf.putShort((short) 1);        // data reference index
+        buf.putShort((short) 0);
+        buf.putShort((short) 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putShort((short) format.getWidth());
+        buf.putShort((short) format.getHeight());
+        buf.putInt(0x00480000);         // 72dpi
+        buf.putInt(0x00480000);
+        buf.putInt(0);
+        buf.putShort((short) 1);        // frame count
+        buf.put(new byte[32]);          // compressor name
+        buf.putShort((short) 0x0018);   // depth
+        buf.putShort((short) -1);
+        final int avcC = beginBox(buf, "avcC");
+        buf.put((byte) 1);              // configuration version
+        buf.put(sps[1]);                // profile
+        buf.put(sps[2]);                // profile compatibility
+        buf.put(sps[3]);                // level
+        buf.put((byte) 0xFF);           // 4 bytes NAL unit length
+        buf.put((byte) 0xE1);           // 1 SPS
+        buf.putShort((short) sps.length);
+        buf.put(sps);
+        buf.put((byte) 1);              // 1 PPS
+        buf.putShort((short) pps.length);
+        buf.put(pps);
+        endBox(buf, avcC);
+        endBox(buf, avc1);
+    }
+
+    private static void writeMp4a(final ByteBuffer buf, final TrackFormat format, final int trackId) {
+        byte[] asc = format.getCsd0();
+        if (asc == null) {
+            asc = createAudioSpecificConfig(format.getSampleRate(), format.getChannelCount());
+        }
+        final int mp4a = beginBox(buf, "mp4a");
+        buf.putInt(0);
+        buf.putShort((short) 0);
+        buf.putShort((short) 1);        // data reference index
+        buf.putLong(0);
+        buf.putShort((short) format.getChannelCount());
+        buf.putShort((short) 16);       // sample size
+        buf.putShort((short) 0);
+        buf.putShort((short) 0);
+        buf.putInt(format.getSampleRate() << 16);
+        final int esds = beginFullBox(buf, "esds", 0, 0);
+        // ES_Descriptor
+        buf.put((byte) 0x03);
+        buf.put((byte) (3 + 2 + 13 + 2 + asc.length + 3));
+        buf.putShort((short) trackId);
+        buf.put((byte) 0);
+        // DecoderConfigDescriptor
+        buf.put((byte) 0x04);
+        buf.put((byte) (13 + 2 + asc.length));
+        buf.put((byte) 0x40);           // Audio ISO/IEC 14496-3
+        buf.put((byte) 0x15);           // audio stream
+        buf.put((byte) 0);              // buffer size(24bit)
+        buf.putShort((short) 0);
+        buf.putInt(0);                  // max bitrate
+        buf.putInt(0);                  // average bitrate
+        // DecoderSpecificInfo
+        buf.put((byte) 0x05);
+        buf.put((byte) asc.length);
+        buf.put(asc);
+        // SLConfigDescriptor
+        buf.put((byte) 0x06);
+        buf.put((byte) 1);
+        buf.put((byte) 2);
+        endBox(buf, esds);
+        endBox(buf, mp4a);
+    }
+
+    /**
+     * AudioSpecificConfig for AAC-LC when the encoder didn't give csd-0
+     */
+    /*package*/
+    static byte[] createAudioSpecificConfig(final int sampleRate, final int channelCount) {
+        final int index = Adts.getSampleRateIndex(sampleRate);
+        final int config = (2 << 11) | (index << 7) | (channelCount << 3);
+        return new byte[]{(byte) (config >> 8), (byte) config};
+    }
+
+    private static void putMatrix(final ByteBuffer buf) {
+        buf.putInt(0x00010000);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0x00010000);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0x40000000);
+    }
+
+    private static void putCString(final ByteBuffer buf, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buf.put((byte) value.charAt(i));
+        }
+        buf.put((byte) 0);
+    }
+
+    private static void putFourCC(final ByteBuffer buf, final String type) {
+        buf.put((byte) type.charAt(0));
+        buf.put((byte) type.charAt(1));
+        buf.put((byte) type.charAt(2));
+        buf.put((byte) type.charAt(3));
+    }
+
+    private static int beginBox(final ByteBuffer buf, final String type) {
+        final int start = buf.position();
+        buf.putInt(0);
+        putFourCC(buf, type);
+        return start;
+    }
+
+    private static int beginFullBox(final ByteBuffer buf, final String type, final int version, final int flags) {
+        final int start = beginBox(buf, type);
+        buf.putInt((version << 24) | (flags & 0xFFFFFF));
+        return start;
+    }
+
+    private static void endBox(final ByteBuffer buf, final int start) {
+        buf.putInt(start, buf.position() - start);
+    }
+}
@@ -0,0 +1,63 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SampleSink that writes through android.media.MediaMuxer(API >= 18).
+ * MediaMuxer keeps the whole sample table in memory and writes moov on #stop.
+ */
+public class MediaMuxerSink implements SampleSink {
+
+    private final MediaMuxer mMediaMuxer;    // API >= 18
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    public MediaMuxerSink(final File outputFile) throws IOException {
+        mMediaMuxer = new MediaMuxer(outputFile.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(final TrackFormat format) {
+        return mMediaMuxer.addTrack(toMediaFormat(format));
+    }
+
+    @Override
+    public void start() {
+        mMediaMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) {
+        mBufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        mMediaMuxer.writeSampleData(trackIndex, byteBuf, mBufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMediaMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaMuxer.release();
+    }
+
+    private static MediaFormat toMediaFormat(final TrackFormat format) {
+        final MediaFormat result;
+        if (format.isVideo()) {
+            result = MediaFormat.createVideoFormat(format.getMimeType(), format.getWidth(), format.getHeight());
+        } else {
+            result = MediaFormat.createAudioFormat(format.getMimeType(), format.getSampleRate(), format.getChannelCount());
+        }
+        if (format.getCsd0() != null)
+            result.setByteBuffer("csd-0", ByteBuffer.wrap(format.getCsd0()));
+        if (format.getCsd1() != null)
+            result.setByteBuffer("csd-1", ByteBuffer.wrap(format.getCsd1()));
+        return result;
+    }
+}
@@ -2,20 +2,23 @@ package com.bendenen.glmediarecorder.mediamuxer;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Environment;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.bendenen.glmediarecorder.encoder.MediaAudioEncoder;
+import com.bendenen.glmediarecorder.encoder.BitrateController;
+import com.bendenen.glmediarecorder.encoder.MediaCodecEngine;
 import com.bendenen.glmediarecorder.encoder.MediaEncoder;
-import com.bendenen.glmediarecorder.encoder.MediaVideoEncoder;
+import com.bendenen.glmediarecorder.encoder.PauseTimeline;
+import com.bendenen.glmediarecorder.utils.FrameTracer;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -27,6 +30,32 @@ public class MediaMuxerWrapper {
         void onRecordStateChanged(boolean isStarted);
     }
 
+    public interface SegmentListener {
+        /**
+         * a segment file is complete, called on writer thread
+         */
+        void onSegmentFinished(File file, int index, long durationUs, long bytes);
+    }
+
+    public interface StopListener {
+        /**
+         * the output file is finalized and ready to read, called once on writer or encoder thread
+         *
+         * @param durationUs time from the first to the last written sample
+         * @param bytes      total size of written samples
+         */
+        void onStopped(File outputFile, long durationUs, long bytes);
+    }
+
+    /**
+     * default maximum time to wait for the codecs to flush on stop
+     */
+    public static final long DEFAULT_STOP_BUDGET_MS = 1000;
+    /**
+     * default interval of adaptive bitrate control
+     */
+    public static final long DEFAULT_BITRATE_INTERVAL_MS = 500;
+
     private static final boolean DEBUG = false;    // TODO set false on release
     private static final String TAG = MediaMuxerWrapper.class.getSimpleName();
 
@@ -34,34 +63,255 @@ public class MediaMuxerWrapper {
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
     private File mOutputFile;
-    private final MediaMuxer mMediaMuxer;    // API >= 18
+    /**
+     * output stage, null in warm-up mode until #attachOutput
+     */
+    private SampleSink mSink;
+    private volatile SampleWriter mWriter;
     private int mEncoderCount, mStatredCount;
     private boolean mIsStarted;
-    private MediaEncoder mVideoEncoder, mAudioEncoder;
+    /**
+     * formats added before the output was attached, they are added to the sink in #attachOutput
+     */
+    private final List<TrackFormat> mPendingFormats = new ArrayList<TrackFormat>();
+    /**
+     * all encoders requested start before the output was attached
+     */
+    private boolean mStartPending;
+    private volatile long mStartRequestNs;
+    private volatile long mFirstSampleNs;
+    private int mReleasedCount;
+    private boolean mSinkFinished;
+    private volatile IOException mWriteError;
+    private volatile long mStopBudgetMs = DEFAULT_STOP_BUDGET_MS;
+    private volatile long mStopRequestNs;
+    private volatile long mStopLatencyNs = -1;
+    private volatile StopListener mStopListener;
+    private final PauseTimeline mPauseTimeline = new PauseTimeline();
+    private volatile MediaEncoder mVideoEncoder, mAudioEncoder;
+    private volatile BitrateController mBitrateController;
+    private volatile long mBitrateIntervalMs = DEFAULT_BITRATE_INTERVAL_MS;
+    private volatile FrameTracer mFrameTracer;
 
     private RecordStateChangeListener recordStateChangeListener;
+    private volatile SegmentListener mSegmentListener;
 
     /**
-     * Constructor
+     * Constructor, write to outputFile using android.media.MediaMuxer
      *
      * @param outputFile output file
      * @throws IOException
      */
     public MediaMuxerWrapper(File outputFile) throws IOException {
+        this(outputFile, outputFile != null ? new MediaMuxerSink(outputFile) : null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param outputFile output file, the sink should write to this file
+     * @param sink       output stage, e.g. MediaMuxerSink or FragmentedMp4Sink
+     */
+    public MediaMuxerWrapper(File outputFile, SampleSink sink) {
         if (outputFile == null) {
             throw new RuntimeException("Output file is NULL");
         }
+        if (sink == null) {
+            throw new NullPointerException("SampleSink is null");
+        }
         mOutputFile = outputFile;
-        mMediaMuxer = new MediaMuxer(mOutputFile.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        setSink(sink);
+        mEncoderCount = mStatredCount = 0;
+        mIsStarted = false;
+    }
+
+    /**
+     * Constructor for warm-up mode, there is no output until #attachOutput.
+     * Encoders can be created and prepared while preview is running(codec configured and started,
+     * input surface bound to the renderer), then #attachOutput and #startRecording only start writing.
+     * Call #discard to release prepared encoders that are not used.
+     */
+    public MediaMuxerWrapper() {
+        mOutputFile = null;
+        mSink = null;
+        mEncoderCount = mStatredCount = 0;
+        mIsStarted = false;
+    }
+
+    /**
+     * Constructor for segmented recording, the output is split into files without stopping the encoders.
+     * The first segment is written to outputFile, following segments to files with _001, _002... suffix.
+     * A segment is cut at the first video sync frame after it reached maxDurationUs or maxBytes.
+     *
+     * @param maxDurationUs maximum duration of a segment, SegmentingSink.NO_LIMIT for none
+     * @param maxBytes      maximum size of a segment, SegmentingSink.NO_LIMIT for none
+     */
+    public MediaMuxerWrapper(final File outputFile, final long maxDurationUs, final long maxBytes) {
+        this(outputFile, new SegmentingSink(new SegmentingSink.SegmentFactory() {
+            @Override
+            public SampleSink createSegment(final int index) throws IOException {
+                return new MediaMuxerSink(getSegmentFile(outputFile, index));
+            }
+        }, maxDurationUs, maxBytes));
+    }
+
+    /**
+     * Constructor for pre-roll mode, encoded samples are kept in memory until #triggerPreRoll.
+     * The encoders run after #startRecording as usual but nothing is written to storage.
+     *
+     * @param preRoll sink that keeps the last seconds, e.g. PreRollSink.forDuration
+     */
+    public MediaMuxerWrapper(PreRollSink preRoll) {
+        if (preRoll == null) {
+            throw new NullPointerException("PreRollSink is null");
+        }
+        mOutputFile = null;
+        mSink = preRoll;
         mEncoderCount = mStatredCount = 0;
         mIsStarted = false;
     }
 
+    /**
+     * save the kept pre-roll and following samples into outputFile using android.media.MediaMuxer.
+     * The output starts at the oldest sync frame in memory.
+     *
+     * @return false if this is not in pre-roll mode or already triggered
+     * @throws IOException
+     */
+    public boolean triggerPreRoll(File outputFile) throws IOException {
+        return triggerPreRoll(outputFile, new MediaMuxerSink(outputFile));
+    }
+
+    /**
+     * @param outputFile output file, the sink should write to this file
+     * @param sink       output stage for pre-roll and following samples
+     */
+    public synchronized boolean triggerPreRoll(File outputFile, SampleSink sink) {
+        if (!(mSink instanceof PreRollSink) || !((PreRollSink) mSink).trigger(sink)) {
+            sink.release();
+            return false;
+        }
+        mOutputFile = outputFile;
+        return true;
+    }
+
+    /**
+     * attach output in warm-up mode, write to outputFile using android.media.MediaMuxer
+     *
+     * @throws IOException
+     */
+    public void attachOutput(File outputFile) throws IOException {
+        final SampleSink sink = new MediaMuxerSink(outputFile);
+        try {
+            attachOutput(outputFile, sink);
+        } catch (final RuntimeException e) {
+            sink.release();
+            throw e;
+        }
+    }
+
+    /**
+     * attach output in warm-up mode, this should be called before #startRecording
+     *
+     * @param outputFile output file, the sink should write to this file
+     * @param sink       output stage, e.g. MediaMuxerSink or FragmentedMp4Sink
+     */
+    public synchronized void attachOutput(File outputFile, SampleSink sink) {
+        if (outputFile == null) {
+            throw new RuntimeException("Output file is NULL");
+        }
+        if (sink == null) {
+            throw new NullPointerException("SampleSink is null");
+        }
+        if (mSink != null) {
+            throw new IllegalStateException("output already attached");
+        }
+        mOutputFile = outputFile;
+        setSink(sink);
+        for (final TrackFormat format : mPendingFormats) {
+            addSinkTrack(format);
+        }
+        mPendingFormats.clear();
+        if (mStartPending) {
+            mStartPending = false;
+            startSink();
+        }
+    }
+
+    private void setSink(final SampleSink sink) {
+        mSink = sink;
+        if (sink instanceof SegmentingSink) {
+            ((SegmentingSink) sink).setCallback(mSegmentCallback);
+        }
+    }
+
     public void setRecordStateChangeListener(RecordStateChangeListener listener) {
         recordStateChangeListener = listener;
     }
 
-    public File getOutputFile() {
+    public void setStopListener(final StopListener listener) {
+        mStopListener = listener;
+    }
+
+    /**
+     * @param budgetMs maximum time #stopRecording waits for the codecs to give their last output,
+     *                 both encoders flush in parallel within this budget and are released when it is over
+     */
+    public void setStopBudgetMs(final long budgetMs) {
+        if (budgetMs < 0) throw new IllegalArgumentException("negative budget");
+        mStopBudgetMs = budgetMs;
+    }
+
+    /**
+     * enable adaptive bitrate, the bitrate of video encoder follows the load of the pipeline while recording.
+     * set this before #startRecording
+     *
+     * @param controller decides the bitrate, null to keep the configured bitrate
+     * @param intervalMs interval of measurement and decision
+     */
+    public void setBitrateController(final BitrateController controller, final long intervalMs) {
+        if (intervalMs <= 0) throw new IllegalArgumentException("interval should be positive");
+        mBitrateController = controller;
+        mBitrateIntervalMs = intervalMs;
+    }
+
+    public BitrateController getBitrateController() {
+        return mBitrateController;
+    }
+
+    /**
+     * trace video frames from capture to disk, set this before #startRecording
+     *
+     * @param tracer records per-stage latency, null to disable(default)
+     */
+    public void setFrameTracer(final FrameTracer tracer) {
+        mFrameTracer = tracer;
+    }
+
+    public FrameTracer getFrameTracer() {
+        return mFrameTracer;
+    }
+
+    public void setSegmentListener(final SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    /**
+     * @return file of the segment, index 0 is outputFile itself
+     */
+    public static File getSegmentFile(final File outputFile, final int index) {
+        if (index == 0) return outputFile;
+        final String name = outputFile.getName();
+        final int dot = name.lastIndexOf('.');
+        final String suffix = String.format(Locale.US, "_%03d", index);
+        return new File(outputFile.getParentFile(),
+                dot > 0 ? name.substring(0, dot) + suffix + name.substring(dot) : name + suffix);
+    }
+
+    /**
+     * @return output file, null in pre-roll mode until triggered
+     */
+    public synchronized File getOutputFile() {
         return mOutputFile;
     }
 
@@ -73,18 +323,98 @@ public class MediaMuxerWrapper {
     }
 
     public void startRecording() {
+        synchronized (this) {
+            if (mSink == null)
+                throw new IllegalStateException("no output, call attachOutput first");
+        }
+        mFirstSampleNs = 0;
+        mStartRequestNs = System.nanoTime();
+        if ((mVideoEncoder != null) && (mAudioEncoder != null))
+            mVideoEncoder.setDriftMonitor(mAudioEncoder.getDriftMonitor());
+        if (mVideoEncoder != null)
+            mVideoEncoder.setFrameTracer(mFrameTracer);
         if (mVideoEncoder != null)
             mVideoEncoder.startRecording();
         if (mAudioEncoder != null)
             mAudioEncoder.startRecording();
     }
 
+    /**
+     * request both encoders to flush and stop, this returns immediately.
+     * StopListener is called when the file is finalized.
+     */
     public void stopRecording() {
+        final long now = System.nanoTime();
+        mStopRequestNs = now;
+        final long deadlineNs = now + mStopBudgetMs * 1000000L;
+        if (mVideoEncoder != null)
+            mVideoEncoder.stopRecording(deadlineNs);
+        mVideoEncoder = null;
+        if (mAudioEncoder != null)
+            mAudioEncoder.stopRecording(deadlineNs);
+        mAudioEncoder = null;
+    }
+
+    /**
+     * discard input of the encoders until #resumeRecording, the codecs and the output keep running.
+     * the paused interval is removed from the output timeline, so the file has no gap.
+     */
+    public void pauseRecording() {
+        if (!mPauseTimeline.pause(System.nanoTime() / 1000L)) return;
+        if (mVideoEncoder != null)
+            mVideoEncoder.pauseRecording();
+        if (mAudioEncoder != null)
+            mAudioEncoder.pauseRecording();
+    }
+
+    /**
+     * the video track resumes on a requested sync frame, the first frame is accepted with the next camera frame.
+     * that frame was captured some time before it is delivered, so the pause ends just after the newest frame
+     * the video encoder discarded, not at this call, otherwise the sync frame would be captured inside the pause.
+     */
+    public void resumeRecording() {
+        long resumeUs = System.nanoTime() / 1000L;
+        if (mVideoEncoder != null) {
+            final long pausedUs = mVideoEncoder.getPausedInputPtsUs();
+            if ((pausedUs >= 0) && (pausedUs < resumeUs)) resumeUs = pausedUs + 1;
+        }
+        if (!mPauseTimeline.resume(resumeUs)) return;
+        if (mVideoEncoder != null)
+            mVideoEncoder.resumeRecording();
+        if (mAudioEncoder != null)
+            mAudioEncoder.resumeRecording();
+    }
+
+    public boolean isPaused() {
+        return mPauseTimeline.isPaused();
+    }
+
+    /**
+     * @return timeline that shifts presentation time of samples after pauses
+     */
+    public PauseTimeline getPauseTimeline() {
+        return mPauseTimeline;
+    }
+
+    /**
+     * @return time from the last #resumeRecording to the first frame accepted by video encoder
+     * (audio encoder if there is no video), -1 if not resumed yet
+     */
+    public long getResumeLatencyUs() {
+        final MediaEncoder encoder = mVideoEncoder != null ? mVideoEncoder : mAudioEncoder;
+        return encoder != null ? encoder.getResumeLatencyUs() : -1;
+    }
+
+    /**
+     * release encoders that were prepared but never started recording, e.g. an unused warm-up session.
+     * encoders that are capturing are stopped.
+     */
+    public void discard() {
         if (mVideoEncoder != null)
-            mVideoEncoder.stopRecording();
+            mVideoEncoder.discard();
         mVideoEncoder = null;
         if (mAudioEncoder != null)
-            mAudioEncoder.stopRecording();
+            mAudioEncoder.discard();
         mAudioEncoder = null;
     }
 
@@ -92,25 +422,61 @@ public class MediaMuxerWrapper {
         return mIsStarted;
     }
 
+    /**
+     * @return writer stage to read queue depth and writer lag, null until the muxer is started
+     */
+    public SampleWriter getSampleWriter() {
+        return mWriter;
+    }
+
+    /**
+     * @return true once the output is finalized, either by stop or because writing failed
+     */
+    public synchronized boolean isSinkFinished() {
+        return mSinkFinished;
+    }
+
+    /**
+     * @return error that ended writing to the sink, null if none
+     */
+    public IOException getWriteError() {
+        return mWriteError;
+    }
+
+    /**
+     * @return time from #stopRecording to the finalized output file, -1 until then
+     */
+    public long getStopLatencyUs() {
+        final long latency = mStopLatencyNs;
+        return latency >= 0 ? latency / 1000L : -1;
+    }
+
+    /**
+     * @return time from #startRecording to the first encoded sample written to this muxer, -1 until then
+     */
+    public long getTimeToFirstSampleUs() {
+        final long first = mFirstSampleNs;
+        return first != 0 ? (first - mStartRequestNs) / 1000L : -1;
+    }
+
 //**********************************************************************
 //**********************************************************************
 
     /**
      * assign encoder to this calss. this is called from encoder.
      *
-     * @param encoder instance of MediaVideoEncoder or MediaAudioEncoder
+     * @param encoder video encoder(MediaEncoder#isVideoEncoder returns true) or audio encoder
      */
     public void addEncoder(final MediaEncoder encoder) {
-        if (encoder instanceof MediaVideoEncoder) {
+        if (encoder.isVideoEncoder()) {
             if (mVideoEncoder != null)
                 throw new IllegalArgumentException("Video encoder already added.");
             mVideoEncoder = encoder;
-        } else if (encoder instanceof MediaAudioEncoder) {
+        } else {
             if (mAudioEncoder != null)
-                throw new IllegalArgumentException("Video encoder already added.");
+                throw new IllegalArgumentException("Audio encoder already added.");
             mAudioEncoder = encoder;
-        } else
-            throw new IllegalArgumentException("unsupported encoder");
+        }
         mEncoderCount = (mVideoEncoder != null ? 1 : 0) + (mAudioEncoder != null ? 1 : 0);
     }
 
@@ -123,32 +489,169 @@ public class MediaMuxerWrapper {
         if (DEBUG) Log.v(TAG, "start:");
         mStatredCount++;
         if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
-            mMediaMuxer.start();
-            mIsStarted = true;
-            notifyAll();
-            if (recordStateChangeListener != null) {
-                recordStateChangeListener.onRecordStateChanged(mIsStarted);
+            if (mSink != null) {
+                startSink();
+            } else {
+                // warm-up mode, the codec gave output format before recording, start on #attachOutput
+                mStartPending = true;
             }
-            if (DEBUG) Log.v(TAG, "MediaMuxer started:");
         }
         return mIsStarted;
     }
 
+    private void startSink() {
+        try {
+            mSink.start();
+        } catch (final IOException e) {
+            throw new RuntimeException("failed to start sink", e);
+        }
+        mWriter = new SampleWriter(mSink, mEncoderCount);
+        mWriter.setCallback(mWriterCallback);
+        if ((mFrameTracer != null) && (mVideoEncoder != null))
+            mWriter.setFrameTracer(mFrameTracer, mVideoEncoder.getTrackIndex());
+        mWriter.start();
+        mIsStarted = true;
+        if ((mBitrateController != null) && (mVideoEncoder != null)) {
+            new Thread(mBitrateTask, "BitrateControl").start();
+        }
+        notifyAll();
+        if (recordStateChangeListener != null) {
+            recordStateChangeListener.onRecordStateChanged(mIsStarted);
+        }
+        if (DEBUG) Log.v(TAG, "MediaMuxer started:");
+    }
+
     /**
-     * request stop recording from encoder when encoder received EOS
+     * request stop recording from encoder when encoder received EOS.
+     * the sink is finalized on writer thread after all queued samples are written.
      */
     public synchronized void stop() {
         if (DEBUG) Log.v(TAG, "stop:mStatredCount=" + mStatredCount);
         mStatredCount--;
         if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-            mMediaMuxer.stop();
-            mMediaMuxer.release();
-            mIsStarted = false;
-            if (recordStateChangeListener != null) {
-                recordStateChangeListener.onRecordStateChanged(mIsStarted);
+            if (mWriter != null) {
+                mWriter.finish();
+            } else {
+                finishSink();
+            }
+        }
+    }
+
+    /**
+     * an encoder released its codec, called from encoder after #stop.
+     * when no encoder started the sink(nothing was encoded) the output is finalized here.
+     */
+    public synchronized void encoderReleased(final MediaEncoder encoder) {
+        mReleasedCount++;
+        if ((mReleasedCount >= mEncoderCount) && (mWriter == null)) {
+            finishSink();
+        }
+    }
+
+    private final SampleWriter.Callback mWriterCallback = new SampleWriter.Callback() {
+        @Override
+        public void onFinished(final SampleWriter writer) {
+            finishSink();
+        }
+
+        @Override
+        public void onError(final SampleWriter writer, final IOException e) {
+            Log.e(TAG, "failed to write sample", e);
+            mWriteError = e;
+            finishSink();
+        }
+    };
+
+    /**
+     * measure the pipeline and apply the decision of BitrateController until the recording stops
+     */
+    private final Runnable mBitrateTask = new Runnable() {
+        @Override
+        public void run() {
+            final BitrateController controller = mBitrateController;
+            final long intervalMs = mBitrateIntervalMs;
+            MediaEncoder encoder = mVideoEncoder;
+            if ((controller == null) || (encoder == null)) return;
+            final int initial = encoder.getBitrate();
+            controller.reset(initial > 0 ? initial : controller.getMaxBitrate());
+            for (; ; ) {
+                try {
+                    Thread.sleep(intervalMs);
+                } catch (final InterruptedException e) {
+                    break;
+                }
+                encoder = mVideoEncoder;
+                final SampleWriter writer = mWriter;
+                if ((encoder == null) || (writer == null) || writer.isFinished()) break;
+                if (isPaused()) continue;
+                final int old = controller.getBitrate();
+                final int bitrate = controller.update(System.nanoTime() / 1000L, encoder.getEncoderBacklogUs(),
+                        writer.getWriterLagUs(), writer.getPendingBytes(), writer.getWrittenBytes());
+                if (bitrate == old) continue;
+                Log.i(TAG, String.format(Locale.US,
+                        "bitrate %s %d->%d, backlog=%dus, writer lag=%dus, pending=%dbytes, write rate=%dbps",
+                        controller.getLastDecision(), old, bitrate, controller.getBacklogUs(),
+                        controller.getWriterLagUs(), controller.getPendingBytes(), controller.getWriteRateBps()));
+                if (!encoder.setBitrate(bitrate)) {
+                    Log.w(TAG, "codec can not change bitrate, adaptive bitrate disabled");
+                    break;
+                }
+            }
+            if (DEBUG) Log.v(TAG, "bitrate control finished:decreases=" + controller.getDecreases()
+                    + ",increases=" + controller.getIncreases());
+        }
+    };
+
+    private final SegmentingSink.Callback mSegmentCallback = new SegmentingSink.Callback() {
+        @Override
+        public void onSyncFrameNeeded(final SegmentingSink sink) {
+            final MediaEncoder encoder = mVideoEncoder;
+            if (encoder != null) {
+                encoder.requestSyncFrame();
+            }
+        }
+
+        @Override
+        public void onSegmentFinished(final SegmentingSink sink, final int index, final long durationUs, final long bytes) {
+            if (DEBUG) Log.v(TAG, "segment finished:" + index + "," + durationUs + "us," + bytes + "bytes");
+            final SegmentListener listener = mSegmentListener;
+            if (listener != null) {
+                listener.onSegmentFinished(getSegmentFile(mOutputFile, index), index, durationUs, bytes);
             }
-            if (DEBUG) Log.v(TAG, "MediaMuxer stopped:");
         }
+    };
+
+    private synchronized void finishSink() {
+        mStartPending = false;
+        if (mSink == null || mSinkFinished) {
+            // warm-up session discarded without output, or already finished
+            return;
+        }
+        mSinkFinished = true;
+        try {
+            mSink.stop();
+        } catch (final IOException e) {
+            Log.e(TAG, "failed to stop sink", e);
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "failed to stop sink", e);
+        } finally {
+            mSink.release();
+        }
+        mIsStarted = false;
+        if (mStopRequestNs != 0) {
+            mStopLatencyNs = System.nanoTime() - mStopRequestNs;
+            if (DEBUG) Log.i(TAG, "stop to file ready:" + getStopLatencyUs() + "us");
+        }
+        if (recordStateChangeListener != null) {
+            recordStateChangeListener.onRecordStateChanged(mIsStarted);
+        }
+        final StopListener listener = mStopListener;
+        if (listener != null) {
+            final SampleWriter writer = mWriter;
+            listener.onStopped(mOutputFile, writer != null ? writer.getWrittenDurationUs() : 0,
+                    writer != null ? writer.getWrittenBytes() : 0);
+        }
+        if (DEBUG) Log.v(TAG, "MediaMuxer stopped:");
     }
 
     /**
@@ -157,25 +660,68 @@ public class MediaMuxerWrapper {
      * @param format
      * @return minus value indicate error
      */
-    public synchronized int addTrack(final MediaFormat format) {
+    public int addTrack(final MediaFormat format) {
+        return addTrack(MediaCodecEngine.toTrackFormat(format));
+    }
+
+    public synchronized int addTrack(final TrackFormat format) {
         if (mIsStarted)
             throw new IllegalStateException("muxer already started");
-        final int trackIx = mMediaMuxer.addTrack(format);
+        final int trackIx;
+        if (mSink != null) {
+            trackIx = addSinkTrack(format);
+        } else {
+            // SampleWriter expects track indices in the order of addTrack, the sink returns the same later
+            trackIx = mPendingFormats.size();
+            mPendingFormats.add(format);
+        }
         if (DEBUG)
             Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
         return trackIx;
     }
 
+    private int addSinkTrack(final TrackFormat format) {
+        try {
+            return mSink.addTrack(format);
+        } catch (final IOException e) {
+            throw new RuntimeException("failed to add track", e);
+        }
+    }
+
     /**
-     * write encoded data to muxer
+     * write encoded data to muxer.
+     * the data is copied into the writer queue of the track, so the caller can release byteBuf on return.
+     * each track must be written from a single thread.
      *
      * @param trackIndex
      * @param byteBuf
      * @param bufferInfo
      */
-    public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-        if (mStatredCount > 0)
-            mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        final SampleWriter writer = mWriter;
+        if (writer != null) {
+            final long pts = mPauseTimeline.map(bufferInfo.presentationTimeUs);
+            if (pts == PauseTimeline.DISCARDED) return;
+            if (mFirstSampleNs == 0) onFirstSample();
+            writer.enqueue(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size, pts, bufferInfo.flags);
+        }
+    }
+
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) {
+        final SampleWriter writer = mWriter;
+        if (writer != null) {
+            // samples captured while paused are dropped, later samples are shifted to close the gap
+            final long pts = mPauseTimeline.map(info.presentationTimeUs);
+            if (pts == PauseTimeline.DISCARDED) return;
+            if (mFirstSampleNs == 0) onFirstSample();
+            writer.enqueue(trackIndex, byteBuf, info.offset, info.size, pts, info.flags);
+        }
+    }
+
+    private synchronized void onFirstSample() {
+        if (mFirstSampleNs != 0) return;
+        mFirstSampleNs = System.nanoTime();
+        if (DEBUG) Log.i(TAG, "time to first sample:" + getTimeToFirstSampleUs() + "us");
     }
 
 //**********************************************************************
@@ -0,0 +1,401 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Repairs a fragmented MP4 that was cut off by a crash, e.g. written by FragmentedMp4Sink in crash-safe mode.
+ * The input is read once from start to end through memory-mapped windows:
+ * ftyp/moov and every complete moof/mdat pair are copied as is, the index(trun) of the first incomplete fragment
+ * is rebuilt for the samples whose data is intact, and everything after it is dropped.
+ * An MP4 from android.media.MediaMuxer that has no moov can not be repaired here,
+ * its mdat does not tell where one sample ends and the next begins.
+ * This class only depends on java.nio and can be used on a plain JVM.
+ */
+public final class Mp4Recovery {
+
+    private static final int WINDOW_SIZE = 32 * 1024 * 1024;
+    /**
+     * moof larger than this is treated as corrupt
+     */
+    private static final int MAX_MOOF_SIZE = 4 * 1024 * 1024;
+
+    private static final int TFHD_BASE_DATA_OFFSET = 0x000001;
+    private static final int TFHD_SAMPLE_DESCRIPTION_INDEX = 0x000002;
+    private static final int TFHD_DEFAULT_DURATION = 0x000008;
+    private static final int TFHD_DEFAULT_SIZE = 0x000010;
+    private static final int TFHD_DEFAULT_FLAGS = 0x000020;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_FIRST_SAMPLE_FLAGS = 0x000004;
+    private static final int TRUN_DURATION = 0x000100;
+    private static final int TRUN_SIZE = 0x000200;
+    private static final int TRUN_FLAGS = 0x000400;
+    private static final int TRUN_COMPOSITION_OFFSET = 0x000800;
+
+    public static final class Result {
+        /**
+         * complete fragments copied as they were
+         */
+        public int fragments;
+        /**
+         * true if the index of a cut off fragment was rebuilt
+         */
+        public boolean repairedFragment;
+        /**
+         * samples in the output
+         */
+        public long samples;
+        /**
+         * samples of the cut off fragment whose data was lost
+         */
+        public long droppedSamples;
+        public long inputBytes;
+        public long outputBytes;
+
+        @Override
+        public String toString() {
+            return "Result{fragments=" + fragments + ", repaired=" + repairedFragment + ", samples=" + samples
+                    + ", dropped=" + droppedSamples + ", " + inputBytes + "->" + outputBytes + " bytes}";
+        }
+    }
+
+    /**
+     * one trun of a parsed moof, offsets are relative to the start of moof
+     */
+    private static final class Run {
+        int mTrunStart;
+        int mFlags;
+        int mCount;
+        int mEntriesStart;
+        int mEntrySize;
+        long mDataStart;    // absolute position in the input
+        long[] mEnds;       // absolute end of each sample in the input
+        int mKept;
+    }
+
+    private static final class Traf {
+        int mStart;
+        int mSize;
+        final List<Run> mRuns = new ArrayList<Run>();
+    }
+
+    private Mp4Recovery() {
+    }
+
+    /**
+     * @param input  fragmented MP4 that may be cut off at any byte
+     * @param output repaired file, overwritten
+     * @throws IOException if the input has no ftyp and moov to start from
+     */
+    public static Result recover(final File input, final File output) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(input, "r");
+        try {
+            final RandomAccessFile out = new RandomAccessFile(output, "rw");
+            try {
+                out.setLength(0);
+                final Result result = recover(in.getChannel(), out.getChannel());
+                out.getChannel().force(false);
+                return result;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Result recover(final FileChannel in, final FileChannel out) throws IOException {
+        final Result result = new Result();
+        final MappedInput mapped = new MappedInput(in);
+        final long length = in.size();
+        result.inputBytes = length;
+        boolean hasMoov = false;
+        long pos = 0;
+        while (pos + 8 <= length) {
+            final ByteBuffer window = mapped.get(pos, (int) Math.min(16, length - pos));
+            final int offset = mapped.offset(pos);
+            long size = window.getInt(offset) & 0xFFFFFFFFL;
+            final String type = fourCC(window, offset + 4);
+            if (size == 1) {
+                if (pos + 16 > length) break;
+                size = window.getLong(offset + 8);
+            } else if (size == 0) {
+                if (window.getInt(offset + 4) == 0) break;    // zero filled preallocated space
+                size = length - pos;    // box extends to the end of file
+            }
+            if (size < 8) break;    // garbage
+            if (pos == 0 && !"ftyp".equals(type))
+                throw new IOException("not an MP4 file");
+            if ("moof".equals(type)) {
+                if (!hasMoov) throw new IOException("fragment before moov");
+                final long next = recoverFragment(mapped, length, pos, size, out, result);
+                if (next < 0) break;
+                pos = next;
+                continue;
+            }
+            if (pos + size > length) break;    // cut off
+            if ("moov".equals(type)) {
+                hasMoov = true;
+            } else if ("mdat".equals(type) && !hasMoov) {
+                throw new IOException("mdat without moov, not a fragmented file");
+            }
+            mapped.copy(pos, size, out);
+            pos += size;
+        }
+        if (!hasMoov) throw new IOException("no moov in the file");
+        result.outputBytes = out.size();
+        return result;
+    }
+
+    /**
+     * copy the fragment starting at moof, rebuild its index if its mdat is cut off
+     *
+     * @return position of the next box, -1 if this was the last usable data
+     */
+    private static long recoverFragment(final MappedInput mapped, final long length, final long moofPos, final long moofSize,
+                                        final FileChannel out, final Result result) throws IOException {
+        if ((moofSize > MAX_MOOF_SIZE) || (moofPos + moofSize + 8 > length)) return -1;
+        final ByteBuffer moof = ByteBuffer.allocate((int) moofSize);
+        final ByteBuffer window = mapped.get(moofPos, (int) moofSize);
+        for (int i = 0; i < moofSize; i++) {
+            moof.put(i, window.get(mapped.offset(moofPos) + i));
+        }
+        final long mdatPos = moofPos + moofSize;
+        final ByteBuffer header = mapped.get(mdatPos, (int) Math.min(16, length - mdatPos));
+        final int offset = mapped.offset(mdatPos);
+        if (!"mdat".equals(fourCC(header, offset + 4))) return -1;
+        long mdatSize = header.getInt(offset) & 0xFFFFFFFFL;
+        int mdatHeaderSize = 8;
+        if (mdatSize == 1) {
+            if (mdatPos + 16 > length) return -1;
+            mdatSize = header.getLong(offset + 8);
+            mdatHeaderSize = 16;
+        } else if (mdatSize == 0) {
+            mdatSize = length - mdatPos;
+        }
+        final List<Traf> trafs = parseMoof(moof, moofPos);
+        if (trafs == null) return -1;
+
+        final long available = Math.min(mdatPos + mdatSize, length);
+        int samples = 0, kept = 0;
+        long keptEnd = mdatPos + mdatHeaderSize;
+        for (final Traf traf : trafs) {
+            for (final Run run : traf.mRuns) {
+                samples += run.mCount;
+                while ((run.mKept < run.mCount) && (run.mEnds[run.mKept] <= available)) {
+                    keptEnd = Math.max(keptEnd, run.mEnds[run.mKept]);
+                    run.mKept++;
+                }
+                kept += run.mKept;
+            }
+        }
+        if (mdatPos + mdatSize <= length) {
+            // complete fragment
+            mapped.copy(moofPos, moofSize + mdatSize, out);
+            result.fragments++;
+            result.samples += samples;
+            return mdatPos + mdatSize;
+        }
+        result.droppedSamples += samples - kept;
+        if (kept == 0) return -1;
+
+        final ByteBuffer rebuilt = rebuildMoof(moof, trafs, mdatHeaderSize);
+        rebuilt.flip();
+        while (rebuilt.hasRemaining()) out.write(rebuilt);
+        final ByteBuffer mdatHeader = ByteBuffer.allocate(8);
+        mdatHeader.putInt((int) (keptEnd - mdatPos - mdatHeaderSize + 8));
+        mdatHeader.put((byte) 'm').put((byte) 'd').put((byte) 'a').put((byte) 't');
+        mdatHeader.flip();
+        while (mdatHeader.hasRemaining()) out.write(mdatHeader);
+        mapped.copy(mdatPos + mdatHeaderSize, keptEnd - mdatPos - mdatHeaderSize, out);
+        result.repairedFragment = true;
+        result.samples += kept;
+        return -1;
+    }
+
+    /**
+     * @return track fragments with the position of every sample, null if the moof can not be rebuilt
+     */
+    private static List<Traf> parseMoof(final ByteBuffer moof, final long moofPos) {
+        final List<Traf> trafs = new ArrayList<Traf>();
+        final int end = moof.capacity();
+        for (int child = 8; child + 8 <= end; ) {
+            final int childSize = moof.getInt(child);
+            if ((childSize < 8) || (child + childSize > end)) return null;
+            if ("traf".equals(fourCC(moof, child + 4))) {
+                final Traf traf = new Traf();
+                traf.mStart = child;
+                traf.mSize = childSize;
+                if (!parseTraf(moof, traf, moofPos)) return null;
+                trafs.add(traf);
+            }
+            child += childSize;
+        }
+        return trafs;
+    }
+
+    private static boolean parseTraf(final ByteBuffer moof, final Traf traf, final long moofPos) {
+        int defaultSize = -1;
+        boolean hasTfhd = false;
+        final int end = traf.mStart + traf.mSize;
+        for (int box = traf.mStart + 8; box + 8 <= end; ) {
+            final int size = moof.getInt(box);
+            if ((size < 8) || (box + size > end)) return false;
+            final String type = fourCC(moof, box + 4);
+            final int flags = moof.getInt(box + 8) & 0xFFFFFF;
+            if ("tfhd".equals(type)) {
+                // offsets are relative to moof only with default-base-is-moof(or when there is one track)
+                if ((flags & TFHD_BASE_DATA_OFFSET) != 0) return false;
+                if (((flags & TFHD_DEFAULT_BASE_IS_MOOF) == 0) && (traf.mStart != 8 + moof.getInt(8))) return false;
+                int field = box + 16;
+                if ((flags & TFHD_SAMPLE_DESCRIPTION_INDEX) != 0) field += 4;
+                if ((flags & TFHD_DEFAULT_DURATION) != 0) field += 4;
+                if ((flags & TFHD_DEFAULT_SIZE) != 0) defaultSize = moof.getInt(field);
+                hasTfhd = true;
+            } else if ("trun".equals(type)) {
+                if (!hasTfhd || ((flags & TRUN_DATA_OFFSET) == 0)) return false;
+                final Run run = new Run();
+                run.mTrunStart = box;
+                run.mFlags = flags;
+                run.mCount = moof.getInt(box + 12);
+                run.mDataStart = moofPos + moof.getInt(box + 16);
+                run.mEntriesStart = box + 20 + ((flags & TRUN_FIRST_SAMPLE_FLAGS) != 0 ? 4 : 0);
+                run.mEntrySize = (((flags & TRUN_DURATION) != 0) ? 4 : 0) + (((flags & TRUN_SIZE) != 0) ? 4 : 0)
+                        + (((flags & TRUN_FLAGS) != 0) ? 4 : 0) + (((flags & TRUN_COMPOSITION_OFFSET) != 0) ? 4 : 0);
+                if ((run.mCount < 0) || (run.mEntriesStart + (long) run.mCount * run.mEntrySize > box + size))
+                    return false;
+                if (((flags & TRUN_SIZE) == 0) && (defaultSize < 0)) return false;
+                run.mEnds = new long[run.mCount];
+                long dataEnd = run.mDataStart;
+                final int sizeField = ((flags & TRUN_DURATION) != 0) ? 4 : 0;
+                for (int i = 0; i < run.mCount; i++) {
+                    final int sampleSize = ((flags & TRUN_SIZE) != 0)
+                            ? moof.getInt(run.mEntriesStart + i * run.mEntrySize + sizeField) : defaultSize;
+                    dataEnd += sampleSize & 0xFFFFFFFFL;
+                    run.mEnds[i] = dataEnd;
+                }
+                traf.mRuns.add(run);
+            }
+            box += size;
+        }
+        return true;
+    }
+
+    /**
+     * copy the moof with only the kept samples in each trun, track fragments without samples are left out
+     */
+    private static ByteBuffer rebuildMoof(final ByteBuffer moof, final List<Traf> trafs, final int mdatHeaderSize) {
+        final ByteBuffer dst = ByteBuffer.allocate(moof.capacity());
+        final List<Integer> dataOffsetFields = new ArrayList<Integer>();
+        dst.putInt(0);
+        dst.put((byte) 'm').put((byte) 'o').put((byte) 'o').put((byte) 'f');
+        int trafIndex = 0;
+        for (int child = 8; child + 8 <= moof.capacity(); ) {
+            final int childSize = moof.getInt(child);
+            if ("traf".equals(fourCC(moof, child + 4))) {
+                final Traf traf = trafs.get(trafIndex++);
+                int kept = 0;
+                for (final Run run : traf.mRuns) {
+                    kept += run.mKept;
+                }
+                if (kept > 0) {
+                    final int trafStart = dst.position();
+                    dst.putInt(0);
+                    dst.put((byte) 't').put((byte) 'r').put((byte) 'a').put((byte) 'f');
+                    int runIndex = 0;
+                    for (int box = child + 8; box < child + childSize; ) {
+                        final int size = moof.getInt(box);
+                        if ("trun".equals(fourCC(moof, box + 4))) {
+                            final Run run = traf.mRuns.get(runIndex++);
+                            if (run.mKept > 0) {
+                                final int trunStart = dst.position();
+                                copy(moof, box, 12, dst);    // size, type, version and flags
+                                dst.putInt(run.mKept);
+                                dataOffsetFields.add(dst.position());
+                                dst.putInt(moof.getInt(box + 16));
+                                copy(moof, box + 20, run.mEntriesStart - box - 20 + run.mKept * run.mEntrySize, dst);
+                                dst.putInt(trunStart, dst.position() - trunStart);
+                            }
+                        } else {
+                            copy(moof, box, size, dst);
+                        }
+                        box += size;
+                    }
+                    dst.putInt(trafStart, dst.position() - trafStart);
+                }
+            } else {
+                copy(moof, child, childSize, dst);
+            }
+            child += childSize;
+        }
+        dst.putInt(0, dst.position());
+        // samples move closer to moof by the removed entries and a large mdat header becoming 8 bytes
+        final int shift = moof.capacity() - dst.position() + mdatHeaderSize - 8;
+        for (final int field : dataOffsetFields) {
+            dst.putInt(field, dst.getInt(field) - shift);
+        }
+        return dst;
+    }
+
+    private static void copy(final ByteBuffer src, final int offset, final int size, final ByteBuffer dst) {
+        for (int i = 0; i < size; i++) {
+            dst.put(src.get(offset + i));
+        }
+    }
+
+    private static String fourCC(final ByteBuffer buf, final int pos) {
+        return new String(new char[]{
+                (char) buf.get(pos), (char) buf.get(pos + 1), (char) buf.get(pos + 2), (char) buf.get(pos + 3)});
+    }
+
+    /**
+     * read-only memory-mapped windows over the input, moved forward as the scan goes
+     */
+    private static final class MappedInput {
+        private final FileChannel mChannel;
+        private final long mLength;
+        private MappedByteBuffer mWindow;
+        private long mWindowStart;
+
+        MappedInput(final FileChannel channel) throws IOException {
+            mChannel = channel;
+            mLength = channel.size();
+        }
+
+        /**
+         * @return window that holds [pos, pos + size), use #offset to index it
+         */
+        ByteBuffer get(final long pos, final int size) throws IOException {
+            if ((mWindow == null) || (pos < mWindowStart) || (pos + size > mWindowStart + mWindow.capacity())) {
+                final long mapSize = Math.min(Math.max(WINDOW_SIZE, size), mLength - pos);
+                mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, pos, mapSize);
+                mWindowStart = pos;
+            }
+            return mWindow;
+        }
+
+        int offset(final long pos) {
+            return (int) (pos - mWindowStart);
+        }
+
+        void copy(final long pos, final long size, final FileChannel out) throws IOException {
+            for (long done = 0; done < size; ) {
+                final int chunk = (int) Math.min(WINDOW_SIZE, size - done);
+                final ByteBuffer window = get(pos + done, chunk);
+                final int offset = offset(pos + done);
+                window.limit(offset + chunk);
+                window.position(offset);
+                while (window.hasRemaining()) out.write(window);
+                window.clear();
+                done += chunk;
+            }
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Pure java SampleSink that writes MPEG-2 transport stream(ISO/IEC 13818-1) with H.264 and AAC.
+ * Video is written as Annex-B with an access unit delimiter and SPS/PPS before every key frame,
+ * audio is written with ADTS header, one PES packet per sample.
+ * PAT/PMT are repeated before every video key frame(and at least every #DEFAULT_TABLE_INTERVAL_US),
+ * PCR is carried in the first packet of each PES of the video track(audio track when there is no video).
+ * Every sample is written out as soon as it is packetized, so a reader of the file or stream
+ * can play up to the last sample even if the recording is killed, and memory is fixed by the sample buffers.
+ * This class only depends on java.nio and can be used on a plain JVM.
+ */
+public class MpegTsSink implements SampleSink {
+
+    public static final int PACKET_SIZE = 188;
+    public static final int DEFAULT_VIDEO_BUFFER_SIZE = 1024 * 1024;
+    public static final long DEFAULT_TABLE_INTERVAL_US = 500000L;
+
+    private static final int MAX_TRACKS = 4;
+    private static final int PID_PAT = 0x0000;
+    private static final int PID_PMT = 0x1000;
+    private static final int PID_FIRST_STREAM = 0x0100;
+    private static final int PROGRAM_NUMBER = 1;
+    private static final int TRANSPORT_STREAM_ID = 1;
+    private static final int STREAM_TYPE_AVC = 0x1B;
+    private static final int STREAM_TYPE_AAC_ADTS = 0x0F;
+    private static final int STREAM_ID_VIDEO = 0xE0;
+    private static final int STREAM_ID_AUDIO = 0xC0;
+    private static final int PES_HEADER_SIZE = 14;    // start code, stream id, length, flags, PTS
+    /**
+     * PTS is ahead of PCR by this, time the decoder of a live stream has to receive a frame before showing it
+     */
+    private static final long PTS_DELAY_US = 100000L;
+    private static final long TIMESTAMP_MASK = 0x1FFFFFFFFL;    // 33 bits
+    private static final int OUTPUT_PACKETS = 64;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private static final class Track {
+        final TrackFormat mFormat;
+        final int mPid;
+        final int mStreamId;
+        final ByteBuffer mData;
+        final byte[] mParameterSets;
+        final Adts mAdts;
+        int mContinuity;
+
+        Track(final TrackFormat format, final int pid, final int bufferSize) {
+            mFormat = format;
+            mPid = pid;
+            final boolean isVideo = format.isVideo();
+            mStreamId = isVideo ? STREAM_ID_VIDEO : STREAM_ID_AUDIO;
+            mData = ByteBuffer.allocate(bufferSize);
+            mParameterSets = isVideo ? AnnexB.createParameterSets(format) : null;
+            mAdts = isVideo ? null : new Adts(format);
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final WritableByteChannel mChannel;
+    private final int mVideoBufferSize;
+    private final Track[] mTracks = new Track[MAX_TRACKS];
+    private final ByteBuffer mOutput = ByteBuffer.allocateDirect(PACKET_SIZE * OUTPUT_PACKETS);
+    private byte[] mPat;
+    private byte[] mPmt;
+    private int mPatContinuity, mPmtContinuity;
+    private int mTrackCount;
+    private int mPcrTrack = -1;
+    private boolean mIsStarted;
+    private long mOriginUs = -1;
+    private long mLastTablesUs = -1;
+    private long mLastPcr = -1;
+    private long mBytesWritten;
+    private long mPackets;
+
+    public MpegTsSink(final File outputFile) throws IOException {
+        this(outputFile, DEFAULT_VIDEO_BUFFER_SIZE);
+    }
+
+    /**
+     * @param videoBufferSize bytes buffered for one video access unit
+     */
+    public MpegTsSink(final File outputFile, final int videoBufferSize) throws IOException {
+        if (outputFile == null) throw new NullPointerException("Output file is NULL");
+        mFile = new RandomAccessFile(outputFile, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mVideoBufferSize = videoBufferSize;
+    }
+
+    /**
+     * write to a stream, e.g. a socket, the channel is not closed by this sink
+     */
+    public MpegTsSink(final WritableByteChannel channel, final int videoBufferSize) {
+        if (channel == null) throw new NullPointerException("channel is null");
+        mFile = null;
+        mChannel = channel;
+        mVideoBufferSize = videoBufferSize;
+    }
+
+    @Override
+    public int addTrack(final TrackFormat format) {
+        if (mIsStarted)
+            throw new IllegalStateException("sink already started");
+        if (mTrackCount >= MAX_TRACKS)
+            throw new IllegalStateException("too many tracks");
+        if (!TrackFormat.MIMETYPE_VIDEO_AVC.equals(format.getMimeType())
+                && !TrackFormat.MIMETYPE_AUDIO_AAC.equals(format.getMimeType()))
+            throw new IllegalArgumentException("unsupported mime type:" + format.getMimeType());
+        final int bufferSize = format.isVideo() ? mVideoBufferSize : Adts.MAX_FRAME_SIZE;
+        mTracks[mTrackCount] = new Track(format, PID_FIRST_STREAM + mTrackCount, bufferSize);
+        if (format.isVideo() && ((mPcrTrack < 0) || !mTracks[mPcrTrack].mFormat.isVideo())) {
+            mPcrTrack = mTrackCount;
+        } else if (mPcrTrack < 0) {
+            mPcrTrack = mTrackCount;
+        }
+        return mTrackCount++;
+    }
+
+    @Override
+    public void start() {
+        if (mIsStarted)
+            throw new IllegalStateException("sink already started");
+        if (mTrackCount == 0)
+            throw new IllegalStateException("no track added");
+        mPat = createPat();
+        mPmt = createPmt();
+        mIsStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+        if (!mIsStarted)
+            throw new IllegalStateException("sink not started");
+        if ((trackIndex < 0) || (trackIndex >= mTrackCount))
+            throw new IllegalArgumentException("invalid track index:" + trackIndex);
+        if (((info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0) || (info.size <= 0)) {
+            // SPS/PPS come from the track format and are repeated before key frames
+            return;
+        }
+        final Track track = mTracks[trackIndex];
+        final boolean isVideo = track.mFormat.isVideo();
+        final boolean isKeyFrame = isVideo && info.isSyncFrame();
+        final ByteBuffer data = track.mData;
+        data.clear();
+        if (isVideo) {
+            if (AnnexB.maxAccessUnitSize(info.size, track.mParameterSets) > data.capacity())
+                throw new IOException("sample is too large for video buffer:" + info.size);
+            AnnexB.appendAccessUnit(byteBuf, info.offset, info.size,
+                    isKeyFrame ? track.mParameterSets : null, true, data);
+        } else {
+            if (info.size + Adts.HEADER_SIZE > data.capacity())
+                throw new IOException("sample is too large for ADTS:" + info.size);
+            track.mAdts.appendFrame(byteBuf, info.offset, info.size, data);
+        }
+        data.flip();
+
+        if (mOriginUs < 0)
+            mOriginUs = info.presentationTimeUs;
+        if (isKeyFrame || (mLastTablesUs < 0)
+                || (info.presentationTimeUs - mLastTablesUs >= DEFAULT_TABLE_INTERVAL_US)) {
+            writeTables();
+            mLastTablesUs = info.presentationTimeUs;
+        }
+        writePes(track, trackIndex == mPcrTrack, isKeyFrame || !isVideo, info.presentationTimeUs);
+        flush();
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (!mIsStarted) return;
+        mIsStarted = false;
+        flush();
+        if (mFile != null) mChannel.close();
+    }
+
+    @Override
+    public void release() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (final IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return total number of bytes written to the output
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return number of transport packets written
+     */
+    public long getPacketCount() {
+        return mPackets;
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    /**
+     * @return time in 90kHz clock since the first sample, 33 bits
+     */
+    private long toClock(final long timeUs) {
+        final long elapsed = Math.max(0, timeUs - mOriginUs);
+        return (elapsed * 9 / 100) & TIMESTAMP_MASK;
+    }
+
+    private void writeTables() throws IOException {
+        writeSection(PID_PAT, mPat, mPatContinuity);
+        mPatContinuity = (mPatContinuity + 1) & 0x0F;
+        writeSection(PID_PMT, mPmt, mPmtContinuity);
+        mPmtContinuity = (mPmtContinuity + 1) & 0x0F;
+    }
+
+    private void writeSection(final int pid, final byte[] section, final int continuity) throws IOException {
+        final ByteBuffer out = nextPacket();
+        final int start = out.position();
+        out.put((byte) 0x47);
+        out.put((byte) (0x40 | (pid >> 8)));    // payload_unit_start_indicator
+        out.put((byte) pid);
+        out.put((byte) (0x10 | continuity));    // payload only
+        out.put((byte) 0);                      // pointer_field
+        out.put(section);
+        fill(out, start + PACKET_SIZE);
+    }
+
+    /**
+     * packetize the PES of one sample from track.mData
+     */
+    private void writePes(final Track track, final boolean withPcr, final boolean randomAccess,
+                          final long presentationTimeUs) throws IOException {
+        final ByteBuffer data = track.mData;
+        final long pcr = Math.max(mLastPcr, toClock(presentationTimeUs));
+        final long pts = (toClock(presentationTimeUs) + PTS_DELAY_US * 9 / 100) & TIMESTAMP_MASK;
+        boolean first = true;
+        while (first || data.hasRemaining()) {
+            final ByteBuffer out = nextPacket();
+            final int start = out.position();
+            final int headerSize = first ? PES_HEADER_SIZE : 0;
+            final boolean putPcr = first && withPcr;
+            int adaptationSize = first && (putPcr || randomAccess) ? 2 + (putPcr ? 6 : 0) : 0;
+            final int space = PACKET_SIZE - 4 - adaptationSize - headerSize;
+            if (data.remaining() < space) {
+                // last packet, fill with stuffing bytes of the adaptation field
+                adaptationSize += space - data.remaining();
+            }
+            out.put((byte) 0x47);
+            out.put((byte) ((first ? 0x40 : 0) | (track.mPid >> 8)));
+            out.put((byte) track.mPid);
+            out.put((byte) ((adaptationSize > 0 ? 0x30 : 0x10) | track.mContinuity));
+            track.mContinuity = (track.mContinuity + 1) & 0x0F;
+            if (adaptationSize > 0) {
+                final int adaptationEnd = out.position() + adaptationSize;
+                out.put((byte) (adaptationSize - 1));
+                if (adaptationSize > 1) {
+                    out.put((byte) ((first && randomAccess ? 0x40 : 0) | (putPcr ? 0x10 : 0)));
+                    if (putPcr) {
+                        out.putInt((int) (pcr >> 1));
+                        out.put((byte) (((pcr & 1) << 7) | 0x7E));    // 6 reserved bits, extension 0
+                        out.put((byte) 0);
+                        mLastPcr = pcr;
+                    }
+                    fill(out, adaptationEnd);
+                }
+            }
+            if (first) {
+                putPesHeader(out, track, pts, data.remaining());
+            }
+            final int length = start + PACKET_SIZE - out.position();
+            final int limit = data.limit();
+            data.limit(data.position() + length);
+            out.put(data);
+            data.limit(limit);
+            first = false;
+        }
+    }
+
+    private static void putPesHeader(final ByteBuffer out, final Track track, final long pts, final int payloadSize) {
+        out.put((byte) 0);
+        out.put((byte) 0);
+        out.put((byte) 1);
+        out.put((byte) track.mStreamId);
+        final int length = payloadSize + PES_HEADER_SIZE - 6;
+        // video PES may be longer than the 16 bits length, 0 means unbounded
+        out.putShort((short) (track.mFormat.isVideo() || length > 0xFFFF ? 0 : length));
+        out.put((byte) 0x80);    // marker bits
+        out.put((byte) 0x80);    // PTS only
+        out.put((byte) 5);       // PES header data length
+        out.put((byte) (0x21 | ((pts >> 29) & 0x0E)));
+        out.putShort((short) (((pts >> 14) & 0xFFFE) | 1));
+        out.putShort((short) (((pts << 1) & 0xFFFE) | 1));
+    }
+
+    /**
+     * @return output buffer with room for one packet, written out first when it is full
+     */
+    private ByteBuffer nextPacket() throws IOException {
+        if (mOutput.remaining() < PACKET_SIZE) flush();
+        mPackets++;
+        return mOutput;
+    }
+
+    private void flush() throws IOException {
+        mOutput.flip();
+        while (mOutput.hasRemaining()) {
+            mBytesWritten += mChannel.write(mOutput);
+        }
+        mOutput.clear();
+    }
+
+    private static void fill(final ByteBuffer out, final int end) {
+        while (out.position() < end) {
+            out.put((byte) 0xFF);
+        }
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    private static byte[] createPat() {
+        final ByteBuffer section = ByteBuffer.allocate(16);
+        section.put((byte) 0x00);    // table_id
+        section.putShort((short) (0xB000 | 13));
+        section.putShort((short) TRANSPORT_STREAM_ID);
+        section.put((byte) 0xC1);    // version 0, current_next_indicator
+        section.put((byte) 0);       // section_number
+        section.put((byte) 0);       // last_section_number
+        section.putShort((short) PROGRAM_NUMBER);
+        section.putShort((short) (0xE000 | PID_PMT));
+        return finishSection(section);
+    }
+
+    private byte[] createPmt() {
+        final ByteBuffer section = ByteBuffer.allocate(16 + 5 * mTrackCount + 4);
+        section.put((byte) 0x02);    // table_id
+        section.putShort((short) (0xB000 | (9 + 5 * mTrackCount + 4)));
+        section.putShort((short) PROGRAM_NUMBER);
+        section.put((byte) 0xC1);
+        section.put((byte) 0);
+        section.put((byte) 0);
+        section.putShort((short) (0xE000 | mTracks[mPcrTrack].mPid));
+        section.putShort((short) 0xF000);    // program_info_length
+        for (int i = 0; i < mTrackCount; i++) {
+            final Track track = mTracks[i];
+            section.put((byte) (track.mFormat.isVideo() ? STREAM_TYPE_AVC : STREAM_TYPE_AAC_ADTS));
+            section.putShort((short) (0xE000 | track.mPid));
+            section.putShort((short) 0xF000);    // ES_info_length
+        }
+        return finishSection(section);
+    }
+
+    private static byte[] finishSection(final ByteBuffer section) {
+        section.putInt(crc32(section.array(), 0, section.position()));
+        final byte[] result = new byte[section.position()];
+        System.arraycopy(section.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * CRC-32/MPEG-2 of PSI sections
+     */
+    /*package*/
+    static int crc32(final byte[] data, final int offset, final int length) {
+        int crc = 0xFFFFFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+}
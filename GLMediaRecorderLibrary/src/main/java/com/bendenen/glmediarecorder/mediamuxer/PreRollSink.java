@@ -0,0 +1,144 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link SampleSink} for pre-roll("dashcam") mode.
+ * Until #trigger is called, samples are kept in an {@link EncodedSampleRing} and the oldest GOPs are evicted,
+ * so the encoders can run continuously with fixed memory.
+ * On the first sample after #trigger, the target sink gets all tracks, the ring is written from its oldest
+ * sync frame, and then live samples are passed through.
+ * All SampleSink methods are called on the writer thread, #trigger can be called from any thread.
+ */
+public class PreRollSink implements SampleSink {
+
+    public static final int DEFAULT_MAX_SAMPLES_PER_SEC = 25 + 44100 / 1024 + 1;
+
+    private final EncodedSampleRing mRing;
+    private final List<TrackFormat> mFormats = new ArrayList<TrackFormat>();
+    private volatile SampleSink mPendingTarget;
+    private SampleSink mTarget;
+    private int[] mTrackMap;
+    private boolean mStopped;
+    /**
+     * nothing was kept before trigger, live samples are dropped until a sync frame of the key track
+     */
+    private boolean mWaitSyncFrame;
+    private volatile int mFlushedSamples;
+
+    /**
+     * @param capacityBytes memory for encoded samples, e.g. (video bitrate + audio bitrate) / 8 x seconds
+     * @param maxSamples    maximum number of samples in the ring
+     */
+    public PreRollSink(final int capacityBytes, final int maxSamples) {
+        mRing = new EncodedSampleRing(capacityBytes, maxSamples);
+    }
+
+    /**
+     * @param seconds    length of pre-roll to keep
+     * @param bitRateBps total bit rate of all tracks, the ring is sized with 50% margin for bit rate peaks
+     */
+    public static PreRollSink forDuration(final int seconds, final int bitRateBps) {
+        final long bytes = (long) bitRateBps / 8 * seconds * 3 / 2;
+        return new PreRollSink((int) Math.min(Integer.MAX_VALUE, bytes), DEFAULT_MAX_SAMPLES_PER_SEC * seconds * 3 / 2);
+    }
+
+    /**
+     * start writing to target: the kept samples and then live samples.
+     * target is started and stopped by this sink.
+     *
+     * @return false if already triggered
+     */
+    public synchronized boolean trigger(final SampleSink target) {
+        if (target == null) throw new NullPointerException("target is null");
+        if (mPendingTarget != null) return false;
+        mPendingTarget = target;
+        return true;
+    }
+
+    public boolean isTriggered() {
+        return mPendingTarget != null;
+    }
+
+    /**
+     * @return the ring to read fill level, read only from writer thread while not triggered
+     */
+    public EncodedSampleRing getRing() {
+        return mRing;
+    }
+
+    /**
+     * @return number of pre-roll samples written to the target
+     */
+    public int getFlushedSamples() {
+        return mFlushedSamples;
+    }
+
+    @Override
+    public int addTrack(final TrackFormat format) throws IOException {
+        final int trackIndex = mFormats.size();
+        mFormats.add(format);
+        if (format.isVideo()) {
+            mRing.setKeyTrack(trackIndex);
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public void start() throws IOException {
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+        if (mTarget == null) {
+            final SampleSink pending = mPendingTarget;
+            if (pending == null) {
+                mRing.add(trackIndex, byteBuf, info);
+                return;
+            }
+            startTarget(pending);
+        }
+        if (mWaitSyncFrame) {
+            if ((trackIndex != mRing.getKeyTrack()) || !info.isSyncFrame()) return;
+            mWaitSyncFrame = false;
+        }
+        mTarget.writeSampleData(mTrackMap[trackIndex], byteBuf, info);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (mStopped) return;
+        mStopped = true;
+        if (mTarget == null) {
+            final SampleSink pending = mPendingTarget;
+            if (pending == null) return;
+            // triggered but no live sample came, write only the pre-roll
+            startTarget(pending);
+        }
+        mTarget.stop();
+    }
+
+    @Override
+    public void release() {
+        mRing.clear();
+        final SampleSink target = mTarget != null ? mTarget : mPendingTarget;
+        if (target != null) {
+            target.release();
+        }
+    }
+
+    private void startTarget(final SampleSink target) throws IOException {
+        final int n = mFormats.size();
+        mTrackMap = new int[n];
+        for (int i = 0; i < n; i++) {
+            mTrackMap[i] = target.addTrack(mFormats.get(i));
+        }
+        target.start();
+        mTarget = target;
+        mFlushedSamples = mRing.drainTo(target, mTrackMap);
+        mWaitSyncFrame = (mFlushedSamples == 0) && (mRing.getKeyTrack() != EncodedSampleRing.NO_KEY_TRACK);
+    }
+}
@@ -0,0 +1,27 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+/**
+ * Platform independent counterpart of MediaCodec.BufferInfo that is passed to {@link SampleSink}.
+ * Flag values are the same as MediaCodec.BUFFER_FLAG_* so they can be copied as is.
+ */
+public final class SampleInfo {
+    public static final int FLAG_SYNC_FRAME = 1;        // MediaCodec.BUFFER_FLAG_SYNC_FRAME
+    public static final int FLAG_CODEC_CONFIG = 2;      // MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+    public static final int FLAG_END_OF_STREAM = 4;     // MediaCodec.BUFFER_FLAG_END_OF_STREAM
+
+    public int offset;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+
+    public void set(final int newOffset, final int newSize, final long newTimeUs, final int newFlags) {
+        offset = newOffset;
+        size = newSize;
+        presentationTimeUs = newTimeUs;
+        flags = newFlags;
+    }
+
+    public boolean isSyncFrame() {
+        return (flags & FLAG_SYNC_FRAME) != 0;
+    }
+}
@@ -0,0 +1,30 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stage of {@link MediaMuxerWrapper}.
+ * The life cycle follows MediaMuxer: addTrack for every track, start, writeSampleData..., stop and release.
+ * Implementations need not be thread safe, MediaMuxerWrapper serializes all calls.
+ */
+public interface SampleSink {
+    /**
+     * @return track index that should be passed to #writeSampleData
+     */
+    public int addTrack(TrackFormat format) throws IOException;
+
+    public void start() throws IOException;
+
+    /**
+     * write one encoded sample. the position/limit of byteBuf are ignored, info.offset and info.size are used.
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, SampleInfo info) throws IOException;
+
+    /**
+     * finish writing, the output is complete after this returns.
+     */
+    public void stop() throws IOException;
+
+    public void release();
+}
@@ -0,0 +1,356 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import com.bendenen.glmediarecorder.utils.FrameTracer;
+import com.bendenen.glmediarecorder.utils.SpscQueue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer stage between encoders and {@link SampleSink}.
+ * Each track has its own single producer queue: the encoder thread copies encoded data into a pooled
+ * direct buffer and returns immediately, so the codec output buffer can be released at once
+ * and the encoder thread never touches the file system.
+ * The private writer thread interleaves queued samples by presentation time and passes them to the sink.
+ * A sample is written when every track has a pending sample or when it has waited longer than the hold time,
+ * so a track that stops producing never blocks the others.
+ */
+public class SampleWriter implements Runnable {
+
+    public static final int DEFAULT_POOL_SIZE = 64;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_MAX_HOLD_US = 500000L;
+
+    public interface Callback {
+        /**
+         * called on writer thread after all queued samples were passed to the sink
+         */
+        public void onFinished(SampleWriter writer);
+
+        /**
+         * called on writer thread when the sink failed, writer stops after this
+         */
+        public void onError(SampleWriter writer, IOException e);
+    }
+
+    /**
+     * pooled sample, the buffer is reused while recording
+     */
+    private static final class Sample {
+        ByteBuffer mData;
+        final SampleInfo mInfo = new SampleInfo();
+        long mQueuedTimeNs;
+
+        Sample(final int bufferSize) {
+            mData = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+
+    private static final class TrackQueue {
+        final SpscQueue<Sample> mFilled;
+        final SpscQueue<Sample> mFree;
+        /**
+         * number of samples allocated by producer, max is pool size
+         */
+        int mAllocated;
+        volatile long mPoolStalls;
+        volatile int mMaxDepth;
+        /**
+         * written only by producer
+         */
+        volatile long mEnqueuedBytes;
+
+        TrackQueue(final int poolSize) {
+            mFilled = new SpscQueue<Sample>(poolSize);
+            mFree = new SpscQueue<Sample>(poolSize);
+        }
+    }
+
+    private final SampleSink mSink;
+    private final TrackQueue[] mQueues;
+    private final int mPoolSize;
+    private final int mBufferSize;
+    private final long mMaxHoldNs;
+    private volatile Thread mThread;
+    private volatile boolean mIsWaiting;
+    private volatile boolean mRequestFinish;
+    private volatile boolean mIsFinished;
+    private Callback mCallback;
+    private volatile FrameTracer mFrameTracer;
+    private volatile int mTracedTrack = -1;
+    /**
+     * time the oldest held sample must be written, Long.MAX_VALUE if nothing is held. writer thread only
+     */
+    private long mHoldDeadlineNs = Long.MAX_VALUE;
+
+    // metrics, written by writer thread
+    private volatile long mWrittenSamples;
+    private volatile long mWrittenBytes;
+    private volatile long mLastLagUs;
+    private volatile long mMaxLagUs;
+    private volatile long mFirstPtsUs = Long.MAX_VALUE;
+    private volatile long mLastPtsUs = Long.MIN_VALUE;
+
+    public SampleWriter(final SampleSink sink, final int trackCount) {
+        this(sink, trackCount, DEFAULT_POOL_SIZE, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_HOLD_US);
+    }
+
+    /**
+     * @param poolSize   maximum number of queued samples for each track
+     * @param bufferSize initial size of pooled buffers, a buffer grows when a larger sample comes
+     * @param maxHoldUs  maximum time to hold a sample while waiting for other tracks
+     */
+    public SampleWriter(final SampleSink sink, final int trackCount,
+                        final int poolSize, final int bufferSize, final long maxHoldUs) {
+        if (sink == null) throw new NullPointerException("SampleSink is null");
+        if (trackCount <= 0) throw new IllegalArgumentException("no track");
+        mSink = sink;
+        mPoolSize = poolSize;
+        mBufferSize = bufferSize;
+        mMaxHoldNs = TimeUnit.MICROSECONDS.toNanos(maxHoldUs);
+        mQueues = new TrackQueue[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            mQueues[i] = new TrackQueue(poolSize);
+        }
+    }
+
+    public void setCallback(final Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * @param tracer     records write latency of the traced track, null to disable
+     * @param trackIndex track of video frames
+     */
+    public void setFrameTracer(final FrameTracer tracer, final int trackIndex) {
+        mTracedTrack = trackIndex;
+        mFrameTracer = tracer;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) throw new IllegalStateException("writer already started");
+        final Thread thread = new Thread(this, "SampleWriter");
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * copy encoded data into a pooled buffer and queue it for writing.
+     * This must be called only from the thread that produces trackIndex.
+     * When the pool is exhausted, this waits until the writer returns a buffer.
+     *
+     * @return false if the writer is already finishing
+     */
+    public boolean enqueue(final int trackIndex, final ByteBuffer data, final int offset, final int size,
+                           final long presentationTimeUs, final int flags) {
+        if (mRequestFinish || mIsFinished) return false;
+        final TrackQueue queue = mQueues[trackIndex];
+        Sample sample = queue.mFree.poll();
+        if (sample == null) {
+            if (queue.mAllocated < mPoolSize) {
+                queue.mAllocated++;
+                sample = new Sample(Math.max(mBufferSize, size));
+            } else {
+                queue.mPoolStalls++;
+                while ((sample = queue.mFree.poll()) == null) {
+                    if (mIsFinished) return false;
+                    LockSupport.parkNanos(100000L);
+                }
+            }
+        }
+        if (sample.mData.capacity() < size) {
+            sample.mData = ByteBuffer.allocateDirect(size);
+        }
+        final ByteBuffer dst = sample.mData;
+        dst.clear();
+        final int position = data.position();
+        final int limit = data.limit();
+        data.limit(offset + size);
+        data.position(offset);
+        dst.put(data);
+        data.limit(limit);
+        data.position(position);
+        dst.flip();
+        sample.mInfo.set(0, size, presentationTimeUs, flags);
+        sample.mQueuedTimeNs = System.nanoTime();
+        queue.mFilled.offer(sample);    // never fails, pool size == queue capacity
+        // volatile write after offer, so the sample is visible to the writer before mIsWaiting is read
+        queue.mEnqueuedBytes += size;
+        final int depth = queue.mFilled.size();
+        if (depth > queue.mMaxDepth) queue.mMaxDepth = depth;
+        if (mIsWaiting) LockSupport.unpark(mThread);
+        return true;
+    }
+
+    /**
+     * request writer to write all queued samples and finish.
+     * Callback#onFinished is called on writer thread when done.
+     */
+    public void finish() {
+        mRequestFinish = true;
+        final Thread thread = mThread;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    public boolean isFinished() {
+        return mIsFinished;
+    }
+
+//********************************************************************************
+// metrics
+//********************************************************************************
+
+    /**
+     * @return number of samples waiting to be written for the track
+     */
+    public int getQueueDepth(final int trackIndex) {
+        return mQueues[trackIndex].mFilled.size();
+    }
+
+    public int getMaxQueueDepth(final int trackIndex) {
+        return mQueues[trackIndex].mMaxDepth;
+    }
+
+    /**
+     * @return how many times the encoder thread had to wait for a free buffer
+     */
+    public long getPoolStalls(final int trackIndex) {
+        return mQueues[trackIndex].mPoolStalls;
+    }
+
+    /**
+     * @return time from enqueue to write of the last written sample
+     */
+    public long getWriterLagUs() {
+        return mLastLagUs;
+    }
+
+    public long getMaxWriterLagUs() {
+        return mMaxLagUs;
+    }
+
+    public long getWrittenSamples() {
+        return mWrittenSamples;
+    }
+
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * @return bytes queued on all tracks and not written yet
+     */
+    public long getPendingBytes() {
+        long enqueued = 0;
+        for (final TrackQueue queue : mQueues) {
+            enqueued += queue.mEnqueuedBytes;
+        }
+        return Math.max(0, enqueued - mWrittenBytes);
+    }
+
+    /**
+     * @return time from the earliest to the latest written presentation time, 0 if nothing was written
+     */
+    public long getWrittenDurationUs() {
+        final long first = mFirstPtsUs, last = mLastPtsUs;
+        return last >= first ? last - first : 0;
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    @Override
+    public void run() {
+        IOException error = null;
+        try {
+            for (; ; ) {
+                final boolean finishing = mRequestFinish;
+                final int next = selectNext(finishing, System.nanoTime());
+                if (next >= 0) {
+                    write(next);
+                    continue;
+                }
+                if (finishing && isAllEmpty()) break;
+                mIsWaiting = true;
+                // re-check after announcing to avoid missing unpark
+                final long nowNs = System.nanoTime();
+                if (selectNext(mRequestFinish, nowNs) < 0 && !mRequestFinish) {
+                    // sleep until the held sample is due, a new sample unparks earlier
+                    final long waitNs = mHoldDeadlineNs != Long.MAX_VALUE ? mHoldDeadlineNs - nowNs : mMaxHoldNs;
+                    if (waitNs > 0) LockSupport.parkNanos(this, waitNs);
+                }
+                mIsWaiting = false;
+            }
+        } catch (final IOException e) {
+            error = e;
+        }
+        mIsFinished = true;
+        final Callback callback = mCallback;
+        if (callback != null) {
+            if (error != null) {
+                callback.onError(this, error);
+            } else {
+                callback.onFinished(this);
+            }
+        }
+    }
+
+    /**
+     * @return index of the track whose head sample should be written next, -1 if nothing should be written now
+     */
+    private int selectNext(final boolean finishing, final long nowNs) {
+        int result = -1;
+        long minPts = Long.MAX_VALUE;
+        boolean allPending = true;
+        long oldestQueuedNs = Long.MAX_VALUE;
+        for (int i = 0; i < mQueues.length; i++) {
+            final Sample head = mQueues[i].mFilled.peek();
+            if (head == null) {
+                allPending = false;
+                continue;
+            }
+            if (head.mInfo.presentationTimeUs < minPts) {
+                minPts = head.mInfo.presentationTimeUs;
+                result = i;
+            }
+            if (head.mQueuedTimeNs < oldestQueuedNs) {
+                oldestQueuedNs = head.mQueuedTimeNs;
+            }
+        }
+        mHoldDeadlineNs = result >= 0 ? oldestQueuedNs + mMaxHoldNs : Long.MAX_VALUE;
+        if (result < 0) return -1;
+        if (allPending || finishing || (nowNs - oldestQueuedNs >= mMaxHoldNs)) return result;
+        return -1;
+    }
+
+    private boolean isAllEmpty() {
+        for (int i = 0; i < mQueues.length; i++) {
+            if (!mQueues[i].mFilled.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    private void write(final int trackIndex) throws IOException {
+        final TrackQueue queue = mQueues[trackIndex];
+        final Sample sample = queue.mFilled.poll();
+        // the producer reuses the sample as soon as it is back in the pool, so read it before that
+        final long queuedTimeNs = sample.mQueuedTimeNs;
+        final int size = sample.mInfo.size;
+        final long pts = sample.mInfo.presentationTimeUs;
+        // on failure the writer finishes, a producer waiting for a free sample gives up then
+        mSink.writeSampleData(trackIndex, sample.mData, sample.mInfo);
+        final long lagNs = System.nanoTime() - queuedTimeNs;
+        final long lagUs = lagNs / 1000L;
+        final FrameTracer tracer = mFrameTracer;
+        if ((tracer != null) && (trackIndex == mTracedTrack)) tracer.onWritten(lagNs);
+        mLastLagUs = lagUs;
+        if (lagUs > mMaxLagUs) mMaxLagUs = lagUs;
+        mWrittenSamples++;
+        mWrittenBytes += size;
+        if (pts < mFirstPtsUs) mFirstPtsUs = pts;
+        if (pts > mLastPtsUs) mLastPtsUs = pts;
+        queue.mFree.offer(sample);
+    }
+}
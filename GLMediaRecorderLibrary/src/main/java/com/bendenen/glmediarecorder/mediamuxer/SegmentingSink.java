@@ -0,0 +1,222 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link SampleSink} that splits one recording into segments without stopping the encoders.
+ * When the current segment reaches the maximum duration or size, the next sync frame of the video track
+ * starts a new segment created by {@link SegmentFactory}, and Callback#onSyncFrameNeeded asks the encoder
+ * for that sync frame so the cut is not delayed until the next regular one.
+ * Audio is cut at the presentation time of that sync frame: audio samples before it still go to the previous
+ * segment even if they arrive after the cut, so every sample is written exactly once.
+ * All SampleSink methods are called on the writer thread.
+ */
+public class SegmentingSink implements SampleSink {
+
+    public static final long NO_LIMIT = Long.MAX_VALUE;
+
+    public interface SegmentFactory {
+        /**
+         * @param index 0 for the first segment
+         * @return new sink for the segment, this sink adds tracks, starts, stops and releases it
+         */
+        public SampleSink createSegment(int index) throws IOException;
+    }
+
+    public interface Callback {
+        /**
+         * the current segment is full, request a sync frame from the video encoder
+         */
+        public void onSyncFrameNeeded(SegmentingSink sink);
+
+        /**
+         * the segment was stopped and released, called on writer thread
+         *
+         * @param durationUs time from the first sample to the last sample of the segment
+         * @param bytes      total size of samples in the segment
+         */
+        public void onSegmentFinished(SegmentingSink sink, int index, long durationUs, long bytes);
+    }
+
+    private static final class Segment {
+        final int mIndex;
+        final SampleSink mSink;
+        final int[] mTrackMap;
+        long mFirstPtsUs = Long.MAX_VALUE;
+        long mLastPtsUs = Long.MIN_VALUE;
+        long mBytes;
+
+        Segment(final int index, final SampleSink sink, final int trackCount) {
+            mIndex = index;
+            mSink = sink;
+            mTrackMap = new int[trackCount];
+        }
+
+        void write(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+            mSink.writeSampleData(mTrackMap[trackIndex], byteBuf, info);
+            if (info.presentationTimeUs < mFirstPtsUs) mFirstPtsUs = info.presentationTimeUs;
+            if (info.presentationTimeUs > mLastPtsUs) mLastPtsUs = info.presentationTimeUs;
+            mBytes += info.size;
+        }
+    }
+
+    private final SegmentFactory mFactory;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final List<TrackFormat> mFormats = new ArrayList<TrackFormat>();
+    private Callback mCallback;
+    private int mKeyTrack = -1;
+    private Segment mCurrent;
+    /**
+     * previous segment that still takes samples older than #mCutPtsUs
+     */
+    private Segment mPrevious;
+    private long mCutPtsUs;
+    private boolean mRolloverPending;
+    private volatile int mSegmentCount;
+
+    /**
+     * @param maxDurationUs maximum duration of a segment, NO_LIMIT for none
+     * @param maxBytes      maximum size of samples in a segment, NO_LIMIT for none
+     */
+    public SegmentingSink(final SegmentFactory factory, final long maxDurationUs, final long maxBytes) {
+        if (factory == null) throw new NullPointerException("SegmentFactory is null");
+        if (maxDurationUs <= 0 || maxBytes <= 0) throw new IllegalArgumentException("limit should be positive");
+        mFactory = factory;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * set callback, this should be called before #start
+     */
+    public void setCallback(final Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * @return number of segments created so far
+     */
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    @Override
+    public int addTrack(final TrackFormat format) throws IOException {
+        final int trackIndex = mFormats.size();
+        mFormats.add(format);
+        if (format.isVideo() && mKeyTrack < 0) {
+            mKeyTrack = trackIndex;
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mCurrent = createSegment();
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+        final long pts = info.presentationTimeUs;
+        if (mPrevious != null && trackIndex != mKeyTrack) {
+            if (pts < mCutPtsUs) {
+                // arrived late but belongs before the cut
+                mPrevious.write(trackIndex, byteBuf, info);
+                return;
+            }
+            finishPrevious();
+        }
+        if (mRolloverPending && isCutPoint(trackIndex, info)) {
+            rollover(pts);
+        }
+        mCurrent.write(trackIndex, byteBuf, info);
+        if (!mRolloverPending && isFull(mCurrent)) {
+            mRolloverPending = true;
+            final Callback callback = mCallback;
+            if (callback != null) callback.onSyncFrameNeeded(this);
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        finishPrevious();
+        if (mCurrent != null) {
+            final Segment segment = mCurrent;
+            mCurrent = null;
+            finish(segment);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mPrevious != null) {
+            mPrevious.mSink.release();
+            mPrevious = null;
+        }
+        if (mCurrent != null) {
+            mCurrent.mSink.release();
+            mCurrent = null;
+        }
+    }
+
+//********************************************************************************
+//********************************************************************************
+
+    private boolean isCutPoint(final int trackIndex, final SampleInfo info) {
+        if (mKeyTrack < 0) return true;    // audio only
+        return (trackIndex == mKeyTrack) && info.isSyncFrame();
+    }
+
+    private boolean isFull(final Segment segment) {
+        return (segment.mBytes >= mMaxBytes)
+                || ((mMaxDurationUs != NO_LIMIT) && (segment.mLastPtsUs - segment.mFirstPtsUs >= mMaxDurationUs));
+    }
+
+    private Segment createSegment() throws IOException {
+        final Segment segment = new Segment(mSegmentCount, mFactory.createSegment(mSegmentCount), mFormats.size());
+        for (int i = 0; i < mFormats.size(); i++) {
+            segment.mTrackMap[i] = segment.mSink.addTrack(mFormats.get(i));
+        }
+        segment.mSink.start();
+        mSegmentCount++;
+        return segment;
+    }
+
+    private void rollover(final long cutPtsUs) throws IOException {
+        // a previous segment still waiting for late audio is closed now, the new cut is much later
+        finishPrevious();
+        final Segment next = createSegment();
+        mPrevious = mCurrent;
+        mCurrent = next;
+        mCutPtsUs = cutPtsUs;
+        mRolloverPending = false;
+        if (mKeyTrack < 0) {
+            finishPrevious();
+        }
+    }
+
+    private void finishPrevious() throws IOException {
+        if (mPrevious != null) {
+            final Segment segment = mPrevious;
+            mPrevious = null;
+            finish(segment);
+        }
+    }
+
+    private void finish(final Segment segment) throws IOException {
+        try {
+            segment.mSink.stop();
+        } finally {
+            segment.mSink.release();
+        }
+        final Callback callback = mCallback;
+        if (callback != null) {
+            final long duration = segment.mLastPtsUs >= segment.mFirstPtsUs ? segment.mLastPtsUs - segment.mFirstPtsUs : 0;
+            callback.onSegmentFinished(this, segment.mIndex, duration, segment.mBytes);
+        }
+    }
+}
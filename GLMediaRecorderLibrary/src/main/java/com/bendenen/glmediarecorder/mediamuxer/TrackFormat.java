@@ -0,0 +1,88 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+/**
+ * Platform independent description of an encoded track.
+ * This carries only what a container needs: mime type, picture size or sampling parameters
+ * and codec specific data(csd-0/csd-1) as they come from the encoder output format.
+ */
+public final class TrackFormat {
+    public static final String MIMETYPE_VIDEO_AVC = "video/avc";
+    public static final String MIMETYPE_AUDIO_AAC = "audio/mp4a-latm";
+
+    private final String mMimeType;
+    private final int mWidth, mHeight;
+    private final int mSampleRate, mChannelCount;
+    private final byte[] mCsd0, mCsd1;
+
+    private TrackFormat(final String mimeType, final int width, final int height,
+                        final int sampleRate, final int channelCount, final byte[] csd0, final byte[] csd1) {
+        if (mimeType == null) throw new NullPointerException("mime type is null");
+        mMimeType = mimeType;
+        mWidth = width;
+        mHeight = height;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mCsd0 = csd0;
+        mCsd1 = csd1;
+    }
+
+    /**
+     * @param csd0 SPS for AVC(with or without start code)
+     * @param csd1 PPS for AVC(with or without start code)
+     */
+    public static TrackFormat createVideoFormat(final String mimeType, final int width, final int height,
+                                                final byte[] csd0, final byte[] csd1) {
+        return new TrackFormat(mimeType, width, height, 0, 0, csd0, csd1);
+    }
+
+    /**
+     * @param csd0 AudioSpecificConfig for AAC
+     */
+    public static TrackFormat createAudioFormat(final String mimeType, final int sampleRate, final int channelCount,
+                                                final byte[] csd0) {
+        return new TrackFormat(mimeType, 0, 0, sampleRate, channelCount, csd0, null);
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public boolean isVideo() {
+        return mMimeType.startsWith("video/");
+    }
+
+    public boolean isAudio() {
+        return mMimeType.startsWith("audio/");
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public byte[] getCsd0() {
+        return mCsd0;
+    }
+
+    public byte[] getCsd1() {
+        return mCsd1;
+    }
+
+    @Override
+    public String toString() {
+        return isVideo()
+                ? String.format("TrackFormat{%s,%dx%d}", mMimeType, mWidth, mHeight)
+                : String.format("TrackFormat{%s,%dHz,ch=%d}", mMimeType, mSampleRate, mChannelCount);
+    }
+}
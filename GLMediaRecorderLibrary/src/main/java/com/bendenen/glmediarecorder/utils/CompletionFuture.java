@@ -0,0 +1,142 @@
+package com.bendenen.glmediarecorder.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future that is completed by its producer, a small replacement of CompletableFuture(API 24).
+ * Callbacks run on the thread that completes the future, or on the caller of #addCallback if it is already done,
+ * so they should not block. #get blocks and should not be called on UI thread.
+ */
+public class CompletionFuture<V> implements Future<V> {
+
+    public interface Callback<V> {
+        public void onComplete(V result);
+
+        /**
+         * @param error CancellationException if cancelled
+         */
+        public void onError(Throwable error);
+    }
+
+    private boolean mDone;
+    private boolean mCancelled;
+    private V mResult;
+    private Throwable mError;
+    private List<Callback<V>> mCallbacks;
+
+    /**
+     * @return false if already done
+     */
+    public boolean complete(final V result) {
+        final List<Callback<V>> callbacks;
+        synchronized (this) {
+            if (mDone) return false;
+            mDone = true;
+            mResult = result;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+        if (callbacks != null) {
+            for (final Callback<V> callback : callbacks) {
+                callback.onComplete(result);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if already done
+     */
+    public boolean fail(final Throwable error) {
+        if (error == null) throw new NullPointerException("error is null");
+        final List<Callback<V>> callbacks;
+        synchronized (this) {
+            if (mDone) return false;
+            mDone = true;
+            mError = error;
+            mCancelled = error instanceof CancellationException;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+        if (callbacks != null) {
+            for (final Callback<V> callback : callbacks) {
+                callback.onError(error);
+            }
+        }
+        return true;
+    }
+
+    public void addCallback(final Callback<V> callback) {
+        synchronized (this) {
+            if (!mDone) {
+                if (mCallbacks == null) mCallbacks = new ArrayList<Callback<V>>(2);
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        if (mError != null) {
+            callback.onError(mError);
+        } else {
+            callback.onComplete(mResult);
+        }
+    }
+
+    /**
+     * @return error of the failed future, null if not done or completed normally
+     */
+    public synchronized Throwable getError() {
+        return mError;
+    }
+
+    /**
+     * the producer is not interrupted, it just can not complete this future any more
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return fail(new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized V get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            final long remainingNs = deadline - System.nanoTime();
+            if (remainingNs <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+        }
+        return getResult();
+    }
+
+    private V getResult() throws ExecutionException {
+        if (mCancelled) throw (CancellationException) mError;
+        if (mError != null) throw new ExecutionException(mError);
+        return mResult;
+    }
+}
@@ -0,0 +1,91 @@
+package com.bendenen.glmediarecorder.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free wakeup channel for one consumer thread and any number of producers.
+ * Producers call #signal, the consumer calls #await and receives the number of signals
+ * since its last wakeup, so a burst of requests costs only one wakeup.
+ * Only the first signal after the consumer took the count unparks the consumer,
+ * other signals are a single atomic increment. Nothing is allocated and no monitor is used.
+ */
+public final class DrainSignal {
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile Thread mConsumer;
+
+    /**
+     * register calling thread as consumer. This should be called before the first #signal
+     * otherwise the consumer just finds the pending signals on its first #await.
+     */
+    public void bindConsumer() {
+        mConsumer = Thread.currentThread();
+    }
+
+    /**
+     * request consumer to wake up, can be called from any thread
+     */
+    public void signal() {
+        if (mPending.getAndIncrement() == 0) {
+            final Thread consumer = mConsumer;
+            if (consumer != null) LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * wait until at least one signal comes, this should be called only from consumer thread
+     *
+     * @return number of signals coalesced into this wakeup
+     * @throws InterruptedException
+     */
+    public int await() throws InterruptedException {
+        int result;
+        while ((result = mPending.getAndSet(0)) == 0) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+        return result;
+    }
+
+    /**
+     * wait for signals at most timeout
+     *
+     * @return number of signals coalesced into this wakeup, zero on timeout
+     * @throws InterruptedException
+     */
+    public int await(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int result;
+        while ((result = mPending.getAndSet(0)) == 0) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return 0;
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+        return result;
+    }
+
+    /**
+     * take pending signals without waiting
+     *
+     * @return number of signals, zero if nothing is pending
+     */
+    public int poll() {
+        return mPending.getAndSet(0);
+    }
+
+    /**
+     * @return number of pending signals
+     */
+    public int pending() {
+        return mPending.get();
+    }
+
+    /**
+     * forget pending signals
+     */
+    public void clear() {
+        mPending.set(0);
+    }
+}
@@ -0,0 +1,181 @@
+package com.bendenen.glmediarecorder.utils;
+
+/**
+ * Selects camera frames for the encoder from their timestamps.
+ * <p>
+ * Constant frame rate: output slots are placed exactly 1/frameRate apart from the first frame.
+ * Each slot takes the camera frame nearest to it, so a frame that comes before its slot is due is dropped
+ * and a frame that follows a gap fills the missed slots as duplicates. Output timestamps are slot times.
+ * <p>
+ * Variable frame rate: every new camera frame is passed once with its own timestamp,
+ * a frame whose timestamp is not newer than the last passed one is never passed again.
+ * <p>
+ * This class is not thread safe, call from the thread that draws frames.
+ */
+public class FramePacer {
+    public static final int VARIABLE_FRAME_RATE = 0;
+    /**
+     * maximum number of output frames for one camera frame, slots beyond this after a long stall are skipped
+     */
+    public static final int DEFAULT_MAX_DUPLICATES = 3;
+
+    private final int mFrameRate;
+    private final int mMaxDuplicates;
+    private long mFirstSlotNs;
+    private long mSlotIndex;
+    private long mLastTimestampNs;
+    private boolean mStarted;
+    // result of last #onFrame
+    private long mOutputSlotIndex;
+    private int mOutputCount;
+    private long mOutputTimestampNs;
+
+    // counters
+    private long mInputFrames;
+    private long mOutputFrames;
+    private long mDroppedFrames;
+    private long mDuplicatedFrames;
+    private long mSkippedSlots;
+    private long mStaleFrames;
+
+    /**
+     * @param frameRate target frame rate, VARIABLE_FRAME_RATE to pass every new frame
+     */
+    public FramePacer(final int frameRate) {
+        this(frameRate, DEFAULT_MAX_DUPLICATES);
+    }
+
+    public FramePacer(final int frameRate, final int maxDuplicates) {
+        if (frameRate < 0) throw new IllegalArgumentException("frameRate should not be negative");
+        if (maxDuplicates < 1) throw new IllegalArgumentException("maxDuplicates should be positive");
+        mFrameRate = frameRate;
+        mMaxDuplicates = maxDuplicates;
+    }
+
+    public boolean isVariableFrameRate() {
+        return mFrameRate == VARIABLE_FRAME_RATE;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * start new schedule from next frame, counters are kept
+     */
+    public void reset() {
+        mStarted = false;
+        mOutputCount = 0;
+    }
+
+    /**
+     * @param timestampNs timestamp of the camera frame(SurfaceTexture#getTimestamp)
+     * @return number of output frames for this camera frame, 0 if the frame should not be encoded.
+     * use #getOutputTimestampNs for timestamp of each output frame
+     */
+    public int onFrame(final long timestampNs) {
+        mOutputCount = 0;
+        if (mStarted && (timestampNs <= mLastTimestampNs)) {
+            // same camera frame again
+            mStaleFrames++;
+            return 0;
+        }
+        mInputFrames++;
+        mLastTimestampNs = timestampNs;
+        if (mFrameRate == VARIABLE_FRAME_RATE) {
+            mStarted = true;
+            mOutputTimestampNs = timestampNs;
+            mOutputCount = 1;
+            mOutputFrames++;
+            return 1;
+        }
+        if (!mStarted) {
+            mStarted = true;
+            mFirstSlotNs = timestampNs;
+            mSlotIndex = 0;
+        }
+        // slots whose time is closer to this frame than to the next frame are due, assuming frames at slot interval
+        int count = 0;
+        long first = mSlotIndex;    // the newest slots are used when some are skipped
+        while (slotTimeNs(mSlotIndex) <= timestampNs + halfIntervalNs()) {
+            if (count < mMaxDuplicates) {
+                count++;
+            } else {
+                // camera stalled too long, do not fill the whole gap with one frame
+                mSkippedSlots++;
+                first++;
+            }
+            mSlotIndex++;
+        }
+        if (count == 0) {
+            mDroppedFrames++;
+            return 0;
+        }
+        mOutputSlotIndex = first;
+        mOutputCount = count;
+        mOutputFrames += count;
+        mDuplicatedFrames += count - 1;
+        return count;
+    }
+
+    /**
+     * @param index 0 to (result of last #onFrame) - 1
+     * @return timestamp of the output frame in nanoseconds
+     */
+    public long getOutputTimestampNs(final int index) {
+        if ((index < 0) || (index >= mOutputCount)) throw new IndexOutOfBoundsException();
+        if (mFrameRate == VARIABLE_FRAME_RATE) return mOutputTimestampNs;
+        return slotTimeNs(mOutputSlotIndex + index);
+    }
+
+    private long slotTimeNs(final long slotIndex) {
+        return mFirstSlotNs + slotIndex * 1000000000L / mFrameRate;
+    }
+
+    private long halfIntervalNs() {
+        return 500000000L / mFrameRate;
+    }
+
+//********************************************************************************
+// counters
+//********************************************************************************
+
+    /**
+     * @return number of new camera frames
+     */
+    public long getInputFrames() {
+        return mInputFrames;
+    }
+
+    public long getOutputFrames() {
+        return mOutputFrames;
+    }
+
+    /**
+     * @return camera frames not encoded because the camera is faster than the frame rate
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return output frames that repeat a camera frame because the camera is slower than the frame rate
+     */
+    public long getDuplicatedFrames() {
+        return mDuplicatedFrames;
+    }
+
+    /**
+     * @return slots left empty after the camera stalled longer than max duplicates
+     */
+    public long getSkippedSlots() {
+        return mSkippedSlots;
+    }
+
+    /**
+     * @return calls with a timestamp that was already seen
+     */
+    public long getStaleFrames() {
+        return mStaleFrames;
+    }
+}
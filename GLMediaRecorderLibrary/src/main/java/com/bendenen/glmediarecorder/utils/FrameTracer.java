@@ -0,0 +1,206 @@
+package com.bendenen.glmediarecorder.utils;
+
+import android.util.Log;
+
+/**
+ * Traces video frames through the recording pipeline and records the latency of each stage:
+ * <ul>
+ * <li>CAPTURE_TO_DRAW: capture time(SurfaceTexture#getTimestamp) to the render thread starting to draw the frame</li>
+ * <li>DRAW_TO_SWAP: drawing into the input surface of the codec until eglSwapBuffers returned</li>
+ * <li>SWAP_TO_OUTPUT: swap until the codec gave the encoded frame</li>
+ * <li>OUTPUT_TO_DISK: encoded frame queued to SampleWriter until it was written to the sink</li>
+ * </ul>
+ * Each drawn frame gets an id and a slot in a fixed table that keeps its presentation time and stage times,
+ * the codec output is matched to the slot by presentation time. With a frame pacer the presentation time
+ * is the output slot time, which differs from the capture time, so both are passed to #beginFrame.
+ * Nothing is allocated while tracing. Each method is called from the thread of its stage:
+ * #beginFrame/#endFrame from render thread, #onEncoded from codec output thread, #onWritten from writer thread.
+ * Tracing is disabled by not setting a tracer, then the pipeline only checks for null.
+ */
+public class FrameTracer {
+    private static final String TAG = "FrameTracer";
+
+    public enum Stage {
+        CAPTURE_TO_DRAW, DRAW_TO_SWAP, SWAP_TO_OUTPUT, OUTPUT_TO_DISK
+    }
+
+    /**
+     * frames that can be in the codec at once, older frames are counted as lost
+     */
+    private static final int SLOT_COUNT = 64;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Stage.values().length];
+    private final long[] mPtsUs = new long[SLOT_COUNT];
+    private final long[] mDrawNs = new long[SLOT_COUNT];
+    private final long[] mSwapNs = new long[SLOT_COUNT];
+    /**
+     * id of the next frame, render thread only
+     */
+    private long mNextId;
+    /**
+     * frames with id below this are swapped, written after their slot
+     */
+    private volatile long mSwappedCount;
+    /**
+     * id of the oldest frame not matched to codec output yet, codec output thread only
+     */
+    private long mOutputCursor;
+    private volatile long mLostFrames;
+    private Thread mDumpThread;
+
+    public FrameTracer() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * the render thread starts drawing a frame whose presentation time is its capture time
+     *
+     * @param captureNs capture time of the frame
+     * @return id of the frame, pass it to #endFrame
+     */
+    public long beginFrame(final long captureNs) {
+        return beginFrame(captureNs, captureNs);
+    }
+
+    /**
+     * the render thread starts drawing a frame
+     *
+     * @param captureNs      capture time of the frame(SurfaceTexture#getTimestamp)
+     * @param presentationNs presentation time given to the codec, used to match the codec output
+     * @return id of the frame, pass it to #endFrame
+     */
+    public long beginFrame(final long captureNs, final long presentationNs) {
+        final long id = mNextId++;
+        final long now = System.nanoTime();
+        final int slot = (int) id & SLOT_MASK;
+        mPtsUs[slot] = presentationNs / 1000L;
+        mDrawNs[slot] = now;
+        mHistograms[Stage.CAPTURE_TO_DRAW.ordinal()].record((now - captureNs) / 1000L);
+        return id;
+    }
+
+    /**
+     * the frame was swapped into the input surface of the codec
+     */
+    public void endFrame(final long id) {
+        final long now = System.nanoTime();
+        final int slot = (int) id & SLOT_MASK;
+        mSwapNs[slot] = now;
+        mHistograms[Stage.DRAW_TO_SWAP.ordinal()].record((now - mDrawNs[slot]) / 1000L);
+        mSwappedCount = id + 1;    // publish the slot
+    }
+
+    /**
+     * the codec gave an encoded frame
+     *
+     * @param ptsUs presentation time of the encoded frame
+     */
+    public void onEncoded(final long ptsUs) {
+        final long now = System.nanoTime();
+        final long swapped = mSwappedCount;
+        if (swapped - mOutputCursor > SLOT_COUNT) {
+            // slots were reused before the codec gave them
+            mLostFrames += swapped - SLOT_COUNT - mOutputCursor;
+            mOutputCursor = swapped - SLOT_COUNT;
+        }
+        for (long id = mOutputCursor; id < swapped; id++) {
+            final int slot = (int) id & SLOT_MASK;
+            final long pts = mPtsUs[slot];
+            if (pts == ptsUs) {
+                mHistograms[Stage.SWAP_TO_OUTPUT.ordinal()].record((now - mSwapNs[slot]) / 1000L);
+                // frames before this one were skipped by the codec
+                mLostFrames += id - mOutputCursor;
+                mOutputCursor = id + 1;
+                return;
+            }
+            if (pts > ptsUs) break;    // not traced
+        }
+    }
+
+    /**
+     * an encoded frame was written to the sink
+     *
+     * @param latencyNs time from queueing to the writer until written
+     */
+    public void onWritten(final long latencyNs) {
+        mHistograms[Stage.OUTPUT_TO_DISK.ordinal()].record(latencyNs / 1000L);
+    }
+
+//********************************************************************************
+// polling
+//********************************************************************************
+
+    /**
+     * @return live histogram of the stage, use LatencyHistogram#copyTo to read a consistent snapshot
+     */
+    public LatencyHistogram getHistogram(final Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    /**
+     * @return number of frames swapped into the codec so far
+     */
+    public long getTracedFrames() {
+        return mSwappedCount;
+    }
+
+    /**
+     * @return frames that had no matching codec output
+     */
+    public long getLostFrames() {
+        return mLostFrames;
+    }
+
+    /**
+     * clear the histograms, frames in flight are still matched
+     */
+    public void reset() {
+        for (final LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * @return one line per stage with count, p50, p99 and max
+     */
+    public String dump() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("frames=").append(getTracedFrames()).append(" lost=").append(getLostFrames());
+        for (final Stage stage : Stage.values()) {
+            sb.append('\n').append(stage).append(": ").append(getHistogram(stage).format());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * log #dump periodically on a private thread until #stopDump
+     */
+    public synchronized void startDump(final long intervalMs) {
+        if (intervalMs <= 0) throw new IllegalArgumentException("interval should be positive");
+        if (mDumpThread != null) return;
+        mDumpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (; ; ) {
+                    try {
+                        Thread.sleep(intervalMs);
+                    } catch (final InterruptedException e) {
+                        break;
+                    }
+                    Log.i(TAG, dump());
+                }
+            }
+        }, TAG);
+        mDumpThread.start();
+    }
+
+    public synchronized void stopDump() {
+        if (mDumpThread != null) {
+            mDumpThread.interrupt();
+            mDumpThread = null;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.bendenen.glmediarecorder.utils;
+
+import java.util.Locale;
+
+/**
+ * Fixed-bucket histogram of latencies in microseconds, #record never allocates.
+ * Values below 16us have their own bucket, larger values fall in 8 buckets per power of 2,
+ * so a percentile is reported within 12.5% of the real value. The range is capped at about 2^40us.
+ * #record is cheap enough to call for every frame, readers can call any method from other threads.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /**
+     * values below this are counted exactly
+     */
+    private static final int LINEAR_COUNT = SUB_COUNT * 2;
+    private static final int MAX_MSB = 40;
+    private static final int BUCKET_COUNT = LINEAR_COUNT + (MAX_MSB - SUB_BITS - 1) * SUB_COUNT;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMax;
+
+    /**
+     * @param valueUs latency, negative is counted as 0
+     */
+    public synchronized void record(final long valueUs) {
+        final long value = valueUs > 0 ? valueUs : 0;
+        mCounts[indexOf(value)]++;
+        mCount++;
+        mSum += value;
+        if (value > mMax) mMax = value;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = mSum = mMax = 0;
+    }
+
+    /**
+     * copy the current state into dst without allocation, e.g. to read several values consistently
+     */
+    public void copyTo(final LatencyHistogram dst) {
+        if (dst == this) return;
+        synchronized (this) {
+            synchronized (dst) {
+                System.arraycopy(mCounts, 0, dst.mCounts, 0, BUCKET_COUNT);
+                dst.mCount = mCount;
+                dst.mSum = mSum;
+                dst.mMax = mMax;
+            }
+        }
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMean() {
+        return mCount > 0 ? mSum / mCount : 0;
+    }
+
+    /**
+     * @param percentile 0-100, e.g. 50 or 99
+     * @return upper bound of the bucket where the percentile falls(not more than #getMax), 0 if empty
+     */
+    public synchronized long getPercentile(final double percentile) {
+        if (mCount == 0) return 0;
+        long rank = (long) Math.ceil(mCount * percentile / 100.0);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * @return summary for logging, e.g. "n=250 p50=1023us p99=4095us max=5210us"
+     */
+    public synchronized String format() {
+        return String.format(Locale.US, "n=%d p50=%dus p99=%dus max=%dus",
+                mCount, getPercentile(50), getPercentile(99), mMax);
+    }
+
+    static int indexOf(final long value) {
+        if (value < LINEAR_COUNT) return (int) value;
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb >= MAX_MSB) return BUCKET_COUNT - 1;
+        final int sub = (int) (value >> (msb - SUB_BITS)) & (SUB_COUNT - 1);
+        return LINEAR_COUNT + (msb - SUB_BITS - 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBoundOf(final int index) {
+        if (index < LINEAR_COUNT) return index;
+        final int i = index - LINEAR_COUNT;
+        final int msb = SUB_BITS + 1 + i / SUB_COUNT;
+        final int sub = i % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub + 1) << (msb - SUB_BITS)) - 1;
+    }
+}
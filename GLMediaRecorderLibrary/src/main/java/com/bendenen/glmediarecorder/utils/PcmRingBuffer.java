@@ -0,0 +1,202 @@
+package com.bendenen.glmediarecorder.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated direct memory ring of PCM chunks between one capture thread and one codec feeder thread.
+ * Each chunk keeps the sample position where it was captured, so the feeder can compute presentation time
+ * even after chunks were dropped by overrun.
+ * Neither #write nor #read allocates, the capture thread never blocks.
+ * <p>
+ * layout of a chunk: [long samplePosition][int length][int reserved][PCM data], aligned to 16 bytes.
+ * A chunk that does not fit before the end of the ring is preceded by a padding marker and written from the top.
+ */
+public final class PcmRingBuffer {
+    private static final int HEADER_SIZE = 16;
+    private static final int ALIGNMENT = 16;
+    private static final int PADDING = -1;
+
+    private final ByteBuffer mWriteView;
+    private final ByteBuffer mReadView;
+    private final int mCapacity;
+    private final int mMaxChunkSize;
+    /**
+     * absolute byte position to read next, written only by consumer
+     */
+    private final AtomicLong mReadPos = new AtomicLong();
+    /**
+     * absolute byte position to write next, written only by producer
+     */
+    private final AtomicLong mWritePos = new AtomicLong();
+    private final DrainSignal mSignal = new DrainSignal();
+    private long mLastSamplePosition = -1;
+
+    // counters
+    private volatile long mOverruns;
+    private volatile long mOverrunBytes;
+    private volatile long mUnderruns;
+    private volatile int mMaxFill;
+
+    /**
+     * @param capacity     size of the ring in bytes, rounded up to 16 bytes
+     * @param maxChunkSize maximum PCM bytes of one #write
+     */
+    public PcmRingBuffer(final int capacity, final int maxChunkSize) {
+        if (maxChunkSize <= 0) throw new IllegalArgumentException("maxChunkSize should be positive");
+        mCapacity = align(capacity);
+        if (mCapacity < 2 * align(HEADER_SIZE + maxChunkSize))
+            throw new IllegalArgumentException("capacity is too small for maxChunkSize");
+        mMaxChunkSize = maxChunkSize;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(mCapacity).order(ByteOrder.nativeOrder());
+        mWriteView = buffer.duplicate().order(ByteOrder.nativeOrder());
+        mReadView = buffer.duplicate().order(ByteOrder.nativeOrder());
+    }
+
+    private static int align(final int size) {
+        return (size + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+    }
+
+    /**
+     * copy remaining bytes of src into the ring, producer side only.
+     * When the ring is full the chunk is dropped and counted as overrun.
+     *
+     * @param samplePosition number of samples captured before this chunk
+     * @return false on overrun
+     */
+    public boolean write(final ByteBuffer src, final long samplePosition) {
+        final int length = src.remaining();
+        if (length > mMaxChunkSize) throw new IllegalArgumentException("chunk is larger than maxChunkSize");
+        final int recordSize = align(HEADER_SIZE + length);
+        long writePos = mWritePos.get();
+        final long used = writePos - mReadPos.get();
+        int offset = (int) (writePos % mCapacity);
+        final int tail = mCapacity - offset;
+        final int required = tail < recordSize ? tail + recordSize : recordSize;
+        if (mCapacity - used < required) {
+            mOverruns++;
+            mOverrunBytes += length;
+            src.position(src.limit());
+            return false;
+        }
+        mWriteView.clear();
+        if (tail < recordSize) {
+            // not enough space until end of the ring, skip to the top
+            mWriteView.putInt(offset + 8, PADDING);
+            writePos += tail;
+            offset = 0;
+        }
+        mWriteView.putLong(offset, samplePosition);
+        mWriteView.putInt(offset + 8, length);
+        mWriteView.position(offset + HEADER_SIZE);
+        mWriteView.put(src);
+        writePos += recordSize;
+        mWritePos.lazySet(writePos);    // publish chunk
+        final int fill = (int) (writePos - mReadPos.get());
+        if (fill > mMaxFill) mMaxFill = fill;
+        mSignal.signal();
+        return true;
+    }
+
+    /**
+     * copy next chunk into dst, consumer side only.
+     * dst should have at least maxChunkSize bytes remaining.
+     *
+     * @param timeout maximum time to wait for a chunk, waiting without data is counted as underrun
+     * @return length of the chunk, -1 if no chunk came within timeout
+     */
+    public int read(final ByteBuffer dst, final long timeout, final TimeUnit unit) throws InterruptedException {
+        int result = read(dst);
+        if (result < 0 && timeout > 0) {
+            mSignal.bindConsumer();
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while ((result = read(dst)) < 0) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    mUnderruns++;
+                    break;
+                }
+                mSignal.await(remaining, TimeUnit.NANOSECONDS);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * copy next chunk into dst without waiting, consumer side only
+     *
+     * @return length of the chunk, -1 if the ring is empty
+     */
+    public int read(final ByteBuffer dst) {
+        long readPos = mReadPos.get();
+        if (readPos >= mWritePos.get()) return -1;
+        int offset = (int) (readPos % mCapacity);
+        mReadView.clear();
+        int length = mReadView.getInt(offset + 8);
+        if (length == PADDING) {
+            readPos += mCapacity - offset;
+            offset = 0;
+            length = mReadView.getInt(8);
+        }
+        if (dst.remaining() < length) throw new IllegalArgumentException("dst is too small");
+        mLastSamplePosition = mReadView.getLong(offset);
+        mReadView.position(offset + HEADER_SIZE);
+        mReadView.limit(offset + HEADER_SIZE + length);
+        dst.put(mReadView);
+        mReadPos.lazySet(readPos + align(HEADER_SIZE + length));    // release space
+        return length;
+    }
+
+    /**
+     * @return sample position of the chunk returned by last #read, consumer side only
+     */
+    public long getLastSamplePosition() {
+        return mLastSamplePosition;
+    }
+
+    /**
+     * wake up consumer waiting in #read, e.g. when capturing finished
+     */
+    public void wakeup() {
+        mSignal.signal();
+    }
+
+    public boolean isEmpty() {
+        return mReadPos.get() >= mWritePos.get();
+    }
+
+    /**
+     * @return used bytes including headers, this is just a snapshot when called from other threads
+     */
+    public int getFill() {
+        return (int) (mWritePos.get() - mReadPos.get());
+    }
+
+    public int getMaxFill() {
+        return mMaxFill;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return number of chunks dropped because the ring was full
+     */
+    public long getOverruns() {
+        return mOverruns;
+    }
+
+    public long getOverrunBytes() {
+        return mOverrunBytes;
+    }
+
+    /**
+     * @return number of reads that timed out without data
+     */
+    public long getUnderruns() {
+        return mUnderruns;
+    }
+}
@@ -0,0 +1,84 @@
+package com.bendenen.glmediarecorder.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * #offer must be called only from the producer and #poll/#peek only from the consumer.
+ * Neither side allocates, blocks nor takes a monitor.
+ */
+public final class SpscQueue<E> {
+    private final Object[] mElements;
+    private final int mMask;
+    /**
+     * next index to read, written only by consumer
+     */
+    private final AtomicLong mHead = new AtomicLong();
+    /**
+     * next index to write, written only by producer
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to power of 2
+     */
+    public SpscQueue(final int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity should be positive");
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mElements = new Object[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    public boolean offer(final E element) {
+        if (element == null) throw new NullPointerException();
+        final long tail = mTail.get();
+        if (tail - mHead.get() >= mElements.length) return false;
+        mElements[(int) tail & mMask] = element;
+        mTail.lazySet(tail + 1);    // publish element
+        return true;
+    }
+
+    /**
+     * @return null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        final long head = mHead.get();
+        if (head >= mTail.get()) return null;
+        final int index = (int) head & mMask;
+        final E result = (E) mElements[index];
+        mElements[index] = null;
+        mHead.lazySet(head + 1);
+        return result;
+    }
+
+    /**
+     * @return null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        final long head = mHead.get();
+        if (head >= mTail.get()) return null;
+        return (E) mElements[(int) head & mMask];
+    }
+
+    /**
+     * @return number of elements, this is just a snapshot when called from other threads
+     */
+    public int size() {
+        final long size = mTail.get() - mHead.get();
+        return size < 0 ? 0 : (int) size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mElements.length;
+    }
+}
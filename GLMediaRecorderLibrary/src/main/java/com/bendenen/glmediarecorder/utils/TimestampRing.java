@@ -0,0 +1,92 @@
+package com.bendenen.glmediarecorder.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free FIFO of long timestamps for one producer thread and one consumer thread.
+ * Timestamps are stored in a preallocated long[], so neither side allocates (no boxing) nor blocks.
+ * #offer must be called only from the producer and #poll/#peek only from the consumer.
+ */
+public final class TimestampRing {
+    /**
+     * returned from #poll and #peek when the ring is empty
+     */
+    public static final long EMPTY = Long.MIN_VALUE;
+
+    private final long[] mTimestamps;
+    private final int mMask;
+    /**
+     * next index to read, written only by consumer
+     */
+    private final AtomicLong mHead = new AtomicLong();
+    /**
+     * next index to write, written only by producer
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to power of 2
+     */
+    public TimestampRing(final int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity should be positive");
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mTimestamps = new long[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    public boolean offer(final long timestamp) {
+        if (timestamp == EMPTY) throw new IllegalArgumentException("reserved value");
+        final long tail = mTail.get();
+        if (tail - mHead.get() >= mTimestamps.length) return false;
+        mTimestamps[(int) tail & mMask] = timestamp;
+        mTail.lazySet(tail + 1);    // publish timestamp
+        return true;
+    }
+
+    /**
+     * @return EMPTY if the ring is empty
+     */
+    public long poll() {
+        final long head = mHead.get();
+        if (head >= mTail.get()) return EMPTY;
+        final long result = mTimestamps[(int) head & mMask];
+        mHead.lazySet(head + 1);
+        return result;
+    }
+
+    /**
+     * @return EMPTY if the ring is empty
+     */
+    public long peek() {
+        final long head = mHead.get();
+        if (head >= mTail.get()) return EMPTY;
+        return mTimestamps[(int) head & mMask];
+    }
+
+    /**
+     * discard all timestamps, consumer side only
+     */
+    public void clear() {
+        mHead.lazySet(mTail.get());
+    }
+
+    /**
+     * @return number of timestamps, this is just a snapshot when called from other threads
+     */
+    public int size() {
+        final long size = mTail.get() - mHead.get();
+        return size < 0 ? 0 : (int) size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mTimestamps.length;
+    }
+}
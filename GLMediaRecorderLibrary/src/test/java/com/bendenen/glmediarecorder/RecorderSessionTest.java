@@ -0,0 +1,178 @@
+package com.bendenen.glmediarecorder;
+
+import com.bendenen.glmediarecorder.encoder.FakeCodecEngine;
+import com.bendenen.glmediarecorder.encoder.MediaEncoder;
+import com.bendenen.glmediarecorder.encoder.MediaEncoderTest;
+import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+import com.bendenen.glmediarecorder.utils.CompletionFuture;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecorderSessionTest {
+
+    private static final long TIMEOUT_SEC = 5;
+
+    /**
+     * creates one video encoder on FakeCodecEngine, slowly like a real codec
+     */
+    private static final class TestFactory implements RecorderSession.EncoderFactory {
+        volatile MediaEncoderTest.TestEncoder mEncoder;
+
+        @Override
+        public void createEncoders(final MediaMuxerWrapper muxer, final MediaEncoder.MediaEncoderListener listener) {
+            try {
+                Thread.sleep(200);
+            } catch (final InterruptedException e) {
+                // ignore
+            }
+            mEncoder = new MediaEncoderTest.TestEncoder(muxer, listener, new FakeCodecEngine(
+                    TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240, null, null), 10));
+        }
+    }
+
+    private static void feed(final MediaEncoderTest.TestEncoder encoder, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            encoder.feed(i, i * 40000L);
+        }
+    }
+
+    @Test
+    public void operationsDoNotBlockAndFollowStateMachine() throws Exception {
+        final TestFactory factory = new TestFactory();
+        final RecorderSession session = new RecorderSession(factory);
+        final List<RecorderSession.State> states = new ArrayList<RecorderSession.State>();
+        session.setStateListener(new RecorderSession.StateListener() {
+            @Override
+            public void onStateChanged(final RecorderSession s, final RecorderSession.State oldState,
+                                       final RecorderSession.State newState) {
+                synchronized (states) {
+                    states.add(newState);
+                }
+            }
+        });
+
+        final long start = System.nanoTime();
+        final CompletionFuture<Void> prepared = session.prepare();
+        // creating encoders takes 200ms on session thread
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(!prepared.isDone());
+        prepared.get(TIMEOUT_SEC, TimeUnit.SECONDS);
+        assertEquals(RecorderSession.State.READY, session.getState());
+
+        try {
+            session.resume().get(TIMEOUT_SEC, TimeUnit.SECONDS);
+            fail("resumed before start");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        final MediaEncoderTest.CountingSink sink = new MediaEncoderTest.CountingSink();
+        final File file = new File("fake.mp4");
+        session.start(file, sink).get(TIMEOUT_SEC, TimeUnit.SECONDS);
+        final MediaEncoderTest.TestEncoder encoder = factory.mEncoder;
+        feed(encoder, 0, 5);
+        session.pause().get(TIMEOUT_SEC, TimeUnit.SECONDS);
+        // input is discarded while paused
+        feed(encoder, 5, 10);
+        session.resume().get(TIMEOUT_SEC, TimeUnit.SECONDS);
+        feed(encoder, 10, 15);
+        final RecorderSession.Result result = session.stop().get(TIMEOUT_SEC, TimeUnit.SECONDS);
+        assertEquals(file, result.outputFile);
+        assertEquals(14 * 40000L, result.durationUs);
+        assertEquals(10 * 16, result.bytes);
+        assertTrue(result.stopLatencyUs >= 0);
+
+        assertEquals(RecorderSession.State.STOPPED, session.getState());
+        assertTrue(sink.mStopped);
+        assertEquals(10, sink.mFirstBytes.size());
+        assertEquals(4, (int) sink.mFirstBytes.get(4));
+        assertEquals(10, (int) sink.mFirstBytes.get(5));
+        synchronized (states) {
+            assertEquals(Arrays.asList(RecorderSession.State.PREPARING, RecorderSession.State.READY,
+                    RecorderSession.State.RECORDING, RecorderSession.State.PAUSED, RecorderSession.State.RECORDING,
+                    RecorderSession.State.STOPPING, RecorderSession.State.STOPPED), states);
+        }
+        session.release().get(TIMEOUT_SEC, TimeUnit.SECONDS);
+    }
+
+    /**
+     * sink that fails on the 4th sample
+     */
+    private static final class FailingSink extends MediaEncoderTest.CountingSink {
+        final CountDownLatch mFailed = new CountDownLatch(1);
+
+        @Override
+        public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info)
+                throws IOException {
+            if (mFirstBytes.size() == 3) {
+                mFailed.countDown();
+                throw new IOException("disk full");
+            }
+            super.writeSampleData(trackIndex, byteBuf, info);
+        }
+    }
+
+    @Test
+    public void stopFailsAtOnceWhenSinkFailedWhileRecording() throws Exception {
+        for (final boolean waitForError : new boolean[]{true, false}) {
+            final TestFactory factory = new TestFactory();
+            final RecorderSession session = new RecorderSession(factory);
+            final FailingSink sink = new FailingSink();
+            session.start(new File("fake.mp4"), sink).get(TIMEOUT_SEC, TimeUnit.SECONDS);
+            feed(factory.mEncoder, 0, 10);
+            assertTrue(sink.mFailed.await(TIMEOUT_SEC, TimeUnit.SECONDS));
+            if (waitForError) {
+                // the session notices the failure without stop
+                final long deadline = System.currentTimeMillis() + TIMEOUT_SEC * 1000;
+                while ((session.getState() != RecorderSession.State.ERROR) && (System.currentTimeMillis() < deadline)) {
+                    Thread.sleep(5);
+                }
+                assertEquals(RecorderSession.State.ERROR, session.getState());
+            }
+            try {
+                session.stop().get(TIMEOUT_SEC, TimeUnit.SECONDS);
+                fail("stopped after the sink failed");
+            } catch (final ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertEquals(RecorderSession.State.ERROR, session.getState());
+            assertTrue(sink.mStopped);
+            session.release().get(TIMEOUT_SEC, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void startPreparesAndReleasedSessionRejectsOperations() throws Exception {
+        final TestFactory factory = new TestFactory();
+        final RecorderSession session = new RecorderSession(factory);
+        final MediaEncoderTest.CountingSink sink = new MediaEncoderTest.CountingSink();
+        session.start(new File("fake.mp4"), sink).get(TIMEOUT_SEC, TimeUnit.SECONDS);
+        assertEquals(RecorderSession.State.RECORDING, session.getState());
+        feed(factory.mEncoder, 0, 3);
+
+        session.release().get(TIMEOUT_SEC, TimeUnit.SECONDS);
+        assertEquals(RecorderSession.State.RELEASED, session.getState());
+        try {
+            session.start(new File("fake2.mp4"), new MediaEncoderTest.CountingSink()).get(TIMEOUT_SEC, TimeUnit.SECONDS);
+            fail("started after release");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
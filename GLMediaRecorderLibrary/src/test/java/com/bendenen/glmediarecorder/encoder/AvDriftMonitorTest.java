@@ -0,0 +1,163 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * audio device clock and capture clock are simulated, nothing waits for real time
+ */
+public class AvDriftMonitorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHUNK_SAMPLES = 512;
+    private static final long BASE_US = 5000000L;
+
+    /**
+     * capture loop of MediaAudioEncoder on simulated clocks
+     */
+    private static final class Simulation {
+        final AudioSampleClock mClock = new AudioSampleClock(SAMPLE_RATE);
+        final AvDriftMonitor mMonitor = new AvDriftMonitor(SAMPLE_RATE);
+        final double mDeviceRate;
+        final long mVideoSkewUs;
+        final long mPacingUs;
+        final Random mRandom = new Random(7);
+        long mCapturedSamples;
+        long mMaxAbsErrorUs;
+
+        Simulation(final double ppm) {
+            this(ppm, 0);
+        }
+
+        /**
+         * @param videoSkewUs added to the pts of every video frame
+         */
+        Simulation(final double ppm, final long videoSkewUs) {
+            this(ppm, videoSkewUs, 0);
+        }
+
+        /**
+         * @param pacingUs pts of video frames is moved to the next slot of this interval like FramePacer, 0 for none
+         */
+        Simulation(final double ppm, final long videoSkewUs, final long pacingUs) {
+            mDeviceRate = SAMPLE_RATE * (1.0 + ppm / 1000000.0);
+            mVideoSkewUs = videoSkewUs;
+            mPacingUs = pacingUs;
+        }
+
+        void run(final long durationUs, final boolean withVideo) {
+            long nextVideoUs = BASE_US;
+            while (true) {
+                mCapturedSamples += CHUNK_SAMPLES;
+                final long capturedUs = BASE_US + (long) (mCapturedSamples * 1000000.0 / mDeviceRate);
+                if (capturedUs - BASE_US > durationUs) break;
+                // capture thread gets the chunk a little later than it was captured
+                final long readUs = capturedUs + mRandom.nextInt(8000);
+                if (!mClock.isStarted()) {
+                    mClock.start(readUs - CHUNK_SAMPLES * 1000000L / SAMPLE_RATE);
+                }
+                final int correction = mMonitor.onAudioChunk(mClock.ptsOf(mClock.getPosition() + CHUNK_SAMPLES), readUs);
+                mClock.advance(CHUNK_SAMPLES + correction);
+                // pts of the next sample against its true capture time
+                final long errorUs = Math.abs(mClock.getPtsUs() - capturedUs);
+                if (errorUs > mMaxAbsErrorUs) mMaxAbsErrorUs = errorUs;
+                // frames arrive with the audio chunk, up to one chunk after their capture
+                while (withVideo && nextVideoUs <= capturedUs) {
+                    long ptsUs = nextVideoUs;
+                    if (mPacingUs > 0) {
+                        ptsUs = BASE_US + (ptsUs - BASE_US + mPacingUs - 1) / mPacingUs * mPacingUs;
+                    }
+                    mMonitor.onVideoFrame(ptsUs + mVideoSkewUs, nextVideoUs);
+                    nextVideoUs += 33333L;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sampleClockDoesNotAccumulateRoundingError() {
+        final AudioSampleClock clock = new AudioSampleClock(SAMPLE_RATE);
+        clock.start(BASE_US);
+        for (int i = 0; i < SAMPLE_RATE * 3600 / CHUNK_SAMPLES; i++) {
+            clock.advance(CHUNK_SAMPLES);
+        }
+        final long position = clock.getPosition();
+        assertEquals(BASE_US + position * 1000000L / SAMPLE_RATE, clock.getPtsUs());
+        clock.advance((int) (SAMPLE_RATE * 3600L - position));
+        assertEquals(BASE_US + 3600L * 1000000L, clock.getPtsUs());
+        assertEquals(SAMPLE_RATE, clock.samplesOf(1000000L));
+    }
+
+    @Test
+    public void fastAudioDeviceDriftsWithoutCorrection() {
+        final Simulation sim = new Simulation(1000);
+        sim.mMonitor.setCorrectionEnabled(false);
+        sim.run(600 * 1000000L, false);
+        // 1000ppm for 10 minutes is 600msec
+        assertTrue(sim.mMonitor.getMaxDriftUs() > 550000L);
+        assertTrue(sim.mMonitor.getDriftUs() > 550000L);
+        assertEquals(0, sim.mMonitor.getCorrections());
+    }
+
+    @Test
+    public void fastAudioDeviceIsCorrectedByDroppingSamples() {
+        final Simulation sim = new Simulation(1000);
+        sim.run(600 * 1000000L, true);
+        assertTrue(sim.mMonitor.getDroppedSamples() > 0);
+        assertEquals(0, sim.mMonitor.getInsertedSamples());
+        // threshold + reading latency + one chunk
+        assertTrue("max error " + sim.mMaxAbsErrorUs, sim.mMaxAbsErrorUs < AvDriftMonitor.DEFAULT_THRESHOLD_US + 8000 + 12000);
+        // a chunk read with less latency than the others in the window can raise the estimate at once
+        assertTrue("max offset " + sim.mMonitor.getMaxAvOffsetUs(),
+                sim.mMonitor.getMaxAvOffsetUs() <= AvDriftMonitor.DEFAULT_THRESHOLD_US + 8000 + 12000);
+        assertTrue(sim.mMonitor.getVideoFrames() > 17000);
+    }
+
+    @Test
+    public void slowAudioDeviceIsCorrectedByInsertingSamples() {
+        final Simulation sim = new Simulation(-500);
+        sim.run(600 * 1000000L, false);
+        assertTrue(sim.mMonitor.getInsertedSamples() > 0);
+        assertEquals(0, sim.mMonitor.getDroppedSamples());
+        assertTrue("max error " + sim.mMaxAbsErrorUs, sim.mMaxAbsErrorUs < AvDriftMonitor.DEFAULT_THRESHOLD_US + 8000 + 12000);
+    }
+
+    @Test
+    public void videoTimestampSkewIsDetected() {
+        // video pts 200msec behind the capture clock, audio is accurate
+        final Simulation sim = new Simulation(0, -200000L);
+        sim.run(10 * 1000000L, true);
+        assertEquals(0, sim.mMonitor.getCorrections());
+        assertTrue(Math.abs(sim.mMonitor.getDriftUs()) < 10000L);
+        final long offset = sim.mMonitor.getAvOffsetUs();
+        assertTrue("offset " + offset, offset > 190000L && offset < 210000L);
+        assertEquals(sim.mMonitor.getAudioPtsAtLastVideoFrame() - offset,
+                BASE_US + (sim.mMonitor.getVideoFrames() - 1) * 33333L - 200000L);
+
+        // without skew the offset is only the drift, delivery of frames does not count
+        final Simulation accurate = new Simulation(0);
+        accurate.run(10 * 1000000L, true);
+        assertTrue(Math.abs(accurate.mMonitor.getAvOffsetUs()) < 10000L);
+    }
+
+    @Test
+    public void pacedVideoIsNotTakenForSkew() {
+        // 30fps camera paced onto 25fps slots, pts is up to one slot after the capture
+        final Simulation sim = new Simulation(0, 0, 40000L);
+        sim.run(10 * 1000000L, true);
+        assertTrue("offset " + sim.mMonitor.getAvOffsetUs(), Math.abs(sim.mMonitor.getAvOffsetUs() + 20000L) < 10000L + 5000L);
+        assertTrue(sim.mMonitor.getMaxAvOffsetUs() < 40000L + 10000L);
+    }
+
+    @Test
+    public void accurateAudioDeviceNeedsNoCorrection() {
+        final Simulation sim = new Simulation(0);
+        sim.run(60 * 1000000L, false);
+        assertEquals(0, sim.mMonitor.getCorrections());
+        assertTrue(sim.mMonitor.getMaxDriftUs() < 10000L);
+    }
+}
@@ -0,0 +1,133 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BitrateControllerTest {
+
+    private static final int MIN = 1000000;
+    private static final int MAX = 8000000;
+    private static final long INTERVAL_US = 500000L;
+
+    /**
+     * encoder produces bitrate/8 bytes per second, storage writes at most its capacity
+     */
+    private static final class Pipeline {
+        final BitrateController mController;
+        long mNowUs;
+        long mPendingBytes;
+        long mWrittenBytes;
+        long mMaxPendingBytes;
+
+        Pipeline(final BitrateController controller) {
+            mController = controller;
+            controller.reset(MAX);
+        }
+
+        /**
+         * @return bitrate after the interval
+         */
+        int step(final long capacityBps, final long backlogUs) {
+            mNowUs += INTERVAL_US;
+            final long produced = (long) mController.getBitrate() / 8 * INTERVAL_US / 1000000L;
+            final long writable = capacityBps / 8 * INTERVAL_US / 1000000L;
+            final long written = Math.min(writable, mPendingBytes + produced);
+            mPendingBytes += produced - written;
+            mWrittenBytes += written;
+            mMaxPendingBytes = Math.max(mMaxPendingBytes, mPendingBytes);
+            final long lagUs = mPendingBytes * 8L * 1000000L / capacityBps;
+            return mController.update(mNowUs, backlogUs, lagUs, mPendingBytes, mWrittenBytes);
+        }
+
+        /**
+         * @return average bitrate over the steps
+         */
+        long run(final int steps, final long capacityBps) {
+            long sum = 0;
+            for (int i = 0; i < steps; i++) {
+                sum += step(capacityBps, 40000L);
+            }
+            return sum / steps;
+        }
+    }
+
+    @Test
+    public void slowStorageBringsBitrateUnderThroughputAndBackOnRecovery() {
+        final BitrateController controller = new BitrateController(MIN, MAX);
+        final Pipeline pipeline = new Pipeline(controller);
+        // fast storage, nothing to do
+        assertEquals(MAX, pipeline.run(20, 50000000L));
+        assertEquals(0, controller.getDecreases());
+
+        // storage slows down to half of the bitrate
+        pipeline.run(40, 4000000L);
+        assertTrue(controller.getDecreases() > 0);
+        pipeline.mMaxPendingBytes = 0;
+        final long average = pipeline.run(60, 4000000L);
+        assertTrue("average " + average, average <= 4000000L && average > 2500000L);
+        // the queue of the writer stays bounded, under one second of data
+        assertTrue("pending " + pipeline.mMaxPendingBytes, pipeline.mMaxPendingBytes < 4000000L / 8);
+
+        // storage recovers
+        pipeline.run(80, 50000000L);
+        assertEquals(MAX, controller.getBitrate());
+        assertEquals(BitrateController.Decision.HOLD, controller.getLastDecision());
+    }
+
+    @Test
+    public void encoderBacklogCutsBitrateOncePerHold() {
+        final BitrateController controller = new BitrateController(MIN, MAX);
+        final List<BitrateController.Decision> decisions = new ArrayList<BitrateController.Decision>();
+        controller.setListener(new BitrateController.Listener() {
+            @Override
+            public void onBitrateChanged(final BitrateController c, final BitrateController.Decision decision,
+                                         final int oldBitrate, final int newBitrate) {
+                decisions.add(decision);
+            }
+        });
+        final Pipeline pipeline = new Pipeline(controller);
+        pipeline.step(50000000L, 0);
+        // codec falls 300ms behind for 1.5 seconds
+        for (int i = 0; i < 3; i++) {
+            pipeline.step(50000000L, 300000L);
+        }
+        assertEquals(2, controller.getDecreases());
+        assertEquals((int) (MAX * 0.75f * 0.75f), controller.getBitrate());
+        assertEquals(300000L, controller.getBacklogUs());
+
+        // raised by steps while healthy
+        int last = controller.getBitrate();
+        for (int i = 0; i < 200 && last < MAX; i++) {
+            final int bitrate = pipeline.step(50000000L, 40000L);
+            assertTrue(bitrate >= last);
+            last = bitrate;
+        }
+        assertEquals(MAX, last);
+        assertEquals(BitrateController.Decision.DECREASE, decisions.get(0));
+        assertEquals(BitrateController.Decision.INCREASE, decisions.get(decisions.size() - 1));
+        assertEquals(controller.getDecreases() + controller.getIncreases(), decisions.size());
+    }
+
+    @Test
+    public void bitrateStaysInBounds() {
+        final BitrateController controller = new BitrateController(MIN, MAX);
+        controller.setPacing(0, 1);
+        final Pipeline pipeline = new Pipeline(controller);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(pipeline.step(50000000L, 1000000L) >= MIN);
+        }
+        assertEquals(MIN, controller.getBitrate());
+
+        controller.reset(MAX * 2);
+        assertEquals(MAX, controller.getBitrate());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(MAX, pipeline.step(50000000L, 0));
+        }
+        assertEquals(0, controller.getIncreases());
+    }
+}
@@ -0,0 +1,127 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CodecCapabilityIndexTest {
+
+    private static final int COLOR_FORMAT_SURFACE = 0x7F000789;
+    private static final int COLOR_FORMAT_YUV420_PLANAR = 19;
+    private static final String FINGERPRINT = "vendor/device/device:6.0/MRA58K/123:user/release-keys/23";
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("codec_index", ".bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * decoder first, then a software encoder without surface input, then a hardware encoder with it
+     */
+    private static CodecCapabilityIndex createIndex() {
+        final CodecCapabilityIndex.Type avcDecoder = new CodecCapabilityIndex.Type("video/avc",
+                new int[]{COLOR_FORMAT_SURFACE}, new int[]{1, 512}, 16, 1920, 16, 1088, 1, 40000000);
+        final CodecCapabilityIndex.Type avcSoftware = new CodecCapabilityIndex.Type("video/avc",
+                new int[]{COLOR_FORMAT_YUV420_PLANAR}, new int[]{1, 256}, 16, 1280, 16, 720, 1, 12000000);
+        final CodecCapabilityIndex.Type avcHardware = new CodecCapabilityIndex.Type("video/avc",
+                new int[]{COLOR_FORMAT_YUV420_PLANAR, COLOR_FORMAT_SURFACE}, new int[]{1, 512, 8, 512},
+                96, 1920, 96, 1088, 64000, 40000000);
+        final CodecCapabilityIndex.Type aac = new CodecCapabilityIndex.Type("audio/mp4a-latm",
+                null, new int[]{2, 0}, CodecCapabilityIndex.UNKNOWN, CodecCapabilityIndex.UNKNOWN,
+                CodecCapabilityIndex.UNKNOWN, CodecCapabilityIndex.UNKNOWN, 8000, 320000);
+        return new CodecCapabilityIndex(FINGERPRINT, Arrays.asList(
+                new CodecCapabilityIndex.Codec("OMX.qcom.video.decoder.avc", false, Collections.singletonList(avcDecoder)),
+                new CodecCapabilityIndex.Codec("OMX.google.h264.encoder", true, Collections.singletonList(avcSoftware)),
+                new CodecCapabilityIndex.Codec("OMX.qcom.video.encoder.avc", true, Collections.singletonList(avcHardware)),
+                new CodecCapabilityIndex.Codec("OMX.google.aac.encoder", true, Collections.singletonList(aac))
+        ), 45000000L);
+    }
+
+    @Test
+    public void encoderIsSelectedByTypeAndColorFormat() {
+        final CodecCapabilityIndex index = createIndex();
+        assertEquals("OMX.google.h264.encoder", index.findEncoder("video/avc").name);
+        assertEquals("OMX.qcom.video.encoder.avc",
+                index.findEncoder("VIDEO/AVC", new int[]{COLOR_FORMAT_SURFACE}).name);
+        assertEquals("OMX.google.aac.encoder", index.findEncoder("audio/mp4a-latm").name);
+        assertNull(index.findEncoder("video/hevc"));
+        assertNull(index.findEncoder("audio/mp4a-latm", new int[]{COLOR_FORMAT_SURFACE}));
+
+        final CodecCapabilityIndex.Type type = index.findEncoder("video/avc", new int[]{COLOR_FORMAT_SURFACE}).getType("video/avc");
+        assertTrue(type.isSizeSupported(1920, 1080));
+        assertFalse(type.isSizeSupported(3840, 2160));
+        assertTrue(index.findEncoder("audio/mp4a-latm").getType("audio/mp4a-latm").isSizeSupported(3840, 2160));
+    }
+
+    @Test
+    public void savedIndexIsLoadedOnSameBuild() throws Exception {
+        createIndex().save(mFile);
+        final CodecCapabilityIndex loaded = CodecCapabilityIndex.load(mFile, FINGERPRINT);
+        assertNotNull(loaded);
+        assertEquals(45000000L, loaded.getScanTimeNs());
+        assertEquals(4, loaded.getCodecs().size());
+        final CodecCapabilityIndex.Codec codec = loaded.findEncoder("video/avc", new int[]{COLOR_FORMAT_SURFACE});
+        assertEquals("OMX.qcom.video.encoder.avc", codec.name);
+        final CodecCapabilityIndex.Type type = codec.getType("video/avc");
+        assertArrayEquals(new int[]{COLOR_FORMAT_YUV420_PLANAR, COLOR_FORMAT_SURFACE}, type.colorFormats);
+        assertArrayEquals(new int[]{1, 512, 8, 512}, type.profileLevels);
+        assertEquals(96, type.minWidth);
+        assertEquals(1088, type.maxHeight);
+        assertEquals(40000000, type.maxBitrate);
+        assertFalse(loaded.getCodecs().get(0).isEncoder);
+    }
+
+    @Test
+    public void indexOfOtherBuildOrBrokenFileIsNotUsed() throws Exception {
+        assertNull(CodecCapabilityIndex.load(mFile, FINGERPRINT));
+        createIndex().save(mFile);
+        assertNull(CodecCapabilityIndex.load(mFile, FINGERPRINT.replace("MRA58K", "MRA58N")));
+
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+        assertNull(CodecCapabilityIndex.load(mFile, FINGERPRINT));
+    }
+
+    @Test
+    public void brokenCountIsCacheMiss() throws Exception {
+        // magic, version, fingerprint, scan time, then the codec count
+        final long countPosition = 4 + 4 + 2 + FINGERPRINT.length() + 8;
+        for (final int count : new int[]{-1, Integer.MAX_VALUE}) {
+            createIndex().save(mFile);
+            final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.seek(countPosition);
+                assertEquals(4, raf.readInt());
+                raf.seek(countPosition);
+                raf.writeInt(count);
+            } finally {
+                raf.close();
+            }
+            assertNull(CodecCapabilityIndex.load(mFile, FINGERPRINT));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * in-memory CodecEngine for JVM tests.
+ * Every queued input comes out as one sample with the same content,
+ * preceded by an output format and a codec config sample like MediaCodec does.
+ * Optionally each output is delayed by a random latency, pairs of outputs are swapped
+ * like a codec with B-frames does, or every n-th output stalls like a codec that hiccups.
+ */
+public class FakeCodecEngine implements CodecEngine {
+
+    private final TrackFormat mFormat;
+    private final int mKeyFrameInterval;
+    private final ArrayDeque<Object[]> mPending = new ArrayDeque<Object[]>();    // {byte[], SampleInfo}
+    private Callback mCallback;
+    private boolean mFormatSent;
+    private boolean mEOS;
+    private int mInputCount;
+    volatile boolean mReleased;
+    private Random mRandom;
+    private int mMaxLatencyMs;
+    private boolean mReorder;
+    private Object[] mHeld;
+    private volatile boolean mRequestSyncFrame;
+    private boolean mLoseEndOfStream;
+    private int mStallEvery;
+    private int mStallMs;
+    private int mOutputCount;
+    volatile int mSyncFrameRequests;
+    volatile int mBitrate;
+
+    public FakeCodecEngine(final TrackFormat format, final int keyFrameInterval) {
+        mFormat = format;
+        mKeyFrameInterval = keyFrameInterval;
+    }
+
+    /**
+     * delay each output by random 0..maxLatencyMs
+     */
+    public FakeCodecEngine setLatency(final int maxLatencyMs, final long seed) {
+        mMaxLatencyMs = maxLatencyMs;
+        mRandom = new Random(seed);
+        return this;
+    }
+
+    /**
+     * hold every n-th output for stallMs
+     */
+    public FakeCodecEngine setStall(final int everyOutputs, final int stallMs) {
+        mStallEvery = everyOutputs;
+        mStallMs = stallMs;
+        return this;
+    }
+
+    /**
+     * never output end of stream, like a codec that hangs on stop
+     */
+    public FakeCodecEngine setLoseEndOfStream(final boolean lose) {
+        mLoseEndOfStream = lose;
+        return this;
+    }
+
+    /**
+     * output every two frames in swapped order
+     */
+    public FakeCodecEngine setReorder(final boolean reorder) {
+        mReorder = reorder;
+        return this;
+    }
+
+    @Override
+    public void start(final Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean queueInput(final ByteBuffer data, final int length, final long presentationTimeUs,
+                                           final boolean endOfStream, final long timeoutUs) {
+        if (mInputCount == 0) {
+            add(new byte[]{0, 0, 0, 1}, presentationTimeUs, SampleInfo.FLAG_CODEC_CONFIG);
+        }
+        if (endOfStream) {
+            if (!mLoseEndOfStream) add(new byte[0], presentationTimeUs, SampleInfo.FLAG_END_OF_STREAM);
+        } else {
+            final byte[] bytes = new byte[length];
+            data.get(bytes);
+            final boolean key = mRequestSyncFrame || (mInputCount % mKeyFrameInterval) == 0;
+            mRequestSyncFrame = false;
+            add(bytes, presentationTimeUs, key ? SampleInfo.FLAG_SYNC_FRAME : 0);
+        }
+        mInputCount++;
+        return true;
+    }
+
+    private void add(final byte[] bytes, final long presentationTimeUs, final int flags) {
+        final SampleInfo info = new SampleInfo();
+        info.set(0, bytes.length, presentationTimeUs, flags);
+        final Object[] output = new Object[]{bytes, info};
+        if (!mReorder || (flags & (SampleInfo.FLAG_CODEC_CONFIG | SampleInfo.FLAG_END_OF_STREAM)) != 0) {
+            if (mHeld != null) {
+                mPending.add(mHeld);
+                mHeld = null;
+            }
+            mPending.add(output);
+        } else if (mHeld == null) {
+            mHeld = output;
+        } else {
+            mPending.add(output);
+            mPending.add(mHeld);
+            mHeld = null;
+        }
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        queueInput(null, 0, 0, true, 0);
+    }
+
+    @Override
+    public boolean requestSyncFrame() {
+        mSyncFrameRequests++;
+        mRequestSyncFrame = true;
+        return true;
+    }
+
+    @Override
+    public boolean setBitrate(final int bitrate) {
+        mBitrate = bitrate;
+        return true;
+    }
+
+    @Override
+    public void drainOutput() {
+        for (; ; ) {
+            final Object[] output;
+            synchronized (this) {
+                output = mPending.poll();
+            }
+            if (output == null) break;
+            if (mMaxLatencyMs > 0) {
+                try {
+                    Thread.sleep(mRandom.nextInt(mMaxLatencyMs + 1));
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+            if ((mStallEvery > 0) && (++mOutputCount % mStallEvery) == 0) {
+                try {
+                    Thread.sleep(mStallMs);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+            if (!mFormatSent) {
+                mFormatSent = true;
+                mCallback.onOutputFormatChanged(this, mFormat);
+            }
+            final byte[] bytes = (byte[]) output[0];
+            final SampleInfo info = (SampleInfo) output[1];
+            if (info.size > 0) {
+                mCallback.onOutputSample(this, ByteBuffer.wrap(bytes), info);
+            }
+            if ((info.flags & SampleInfo.FLAG_END_OF_STREAM) != 0) {
+                mEOS = true;
+                mCallback.onEndOfStream(this);
+            }
+        }
+    }
+
+    @Override
+    public boolean awaitEndOfStream(final long timeoutUs) {
+        drainOutput();
+        if (!mEOS) {
+            try {
+                Thread.sleep(timeoutUs / 1000L);
+            } catch (final InterruptedException e) {
+                // ignore
+            }
+        }
+        return mEOS;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+    }
+}
@@ -0,0 +1,130 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameBudgetTest {
+
+    private static final long FRAME_US = 33333L;
+
+    @Test
+    public void budgetIsReleasedByEncodedOutput() {
+        final FrameBudget budget = new FrameBudget(3, FrameBudget.Policy.DROP_NEWEST);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(budget.tryAcquire());
+        }
+        assertFalse(budget.tryAcquire());
+        budget.onRejected(false);
+        assertEquals(3, budget.getQueuedFrames());
+
+        for (int i = 0; i < 3; i++) {
+            budget.onSubmitted(i * FRAME_US);
+        }
+        assertEquals(0, budget.getQueuedFrames());
+        assertEquals(3, budget.getInCodecFrames());
+        assertFalse(budget.tryAcquire());
+
+        // the codec skipped frame 0, output of frame 1 releases both
+        budget.onEncoded(FRAME_US);
+        assertEquals(1, budget.getInFlightFrames());
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+
+        // a frame dropped before the codec gives its slot back
+        budget.onDropped(false);
+        assertTrue(budget.tryAcquire());
+        assertEquals(3, budget.getMaxInFlightFrames());
+        assertEquals(6, budget.getAcceptedFrames());
+        assertEquals(1, budget.getDroppedNewest());
+        assertEquals(0, budget.getDroppedOldest());
+    }
+
+    @Test
+    public void stalledCodecKeepsBudgetBoundedWithEachPolicy() {
+        for (final FrameBudget.Policy policy : FrameBudget.Policy.values()) {
+            final FrameBudget budget = new FrameBudget(4, policy);
+            budget.setBlockTimeoutNs(TimeUnit.MILLISECONDS.toNanos(2));
+            int waiting = 0;
+            // camera keeps coming, render thread submits every other frame, codec gives nothing
+            for (int i = 0; i < 100; i++) {
+                boolean accepted;
+                switch (policy) {
+                    case BLOCK:
+                        accepted = budget.acquire(budget.getBlockTimeoutNs());
+                        if (!accepted) budget.onRejected(true);
+                        break;
+                    case DROP_OLDEST:
+                        accepted = budget.tryAcquire();
+                        if (!accepted && waiting > 0) {
+                            waiting--;
+                            budget.onDropped(true);
+                            accepted = budget.tryAcquire();
+                        }
+                        if (!accepted) budget.onRejected(false);
+                        break;
+                    default:
+                        accepted = budget.tryAcquire();
+                        if (!accepted) budget.onRejected(false);
+                        break;
+                }
+                if (accepted) waiting++;
+                if ((i & 1) == 0 && waiting > 0) {
+                    waiting--;
+                    budget.onSubmitted(i * FRAME_US);
+                }
+                assertTrue(policy + " " + i, budget.getInFlightFrames() <= 4);
+            }
+            assertEquals(policy.toString(), 4, budget.getMaxInFlightFrames());
+            assertEquals(policy.toString(), 4, budget.getInCodecFrames());
+            final long dropped = budget.getDroppedNewest() + budget.getDroppedOldest() + budget.getBlockTimeouts();
+            assertEquals(policy.toString(), 100 - budget.getAcceptedFrames() + budget.getDroppedOldest(), dropped);
+            switch (policy) {
+                case DROP_NEWEST:
+                    assertTrue(budget.getDroppedNewest() > 0);
+                    assertEquals(0, budget.getBlockTimeouts());
+                    break;
+                case DROP_OLDEST:
+                    assertTrue(budget.getDroppedOldest() > 0);
+                    break;
+                case BLOCK:
+                    assertTrue(budget.getBlockTimeouts() > 0);
+                    assertEquals(0, budget.getDroppedNewest());
+                    break;
+            }
+        }
+    }
+
+    @Test
+    public void blockedFrameIsAcceptedWhenCodecCatchesUp() throws Exception {
+        final FrameBudget budget = new FrameBudget(1, FrameBudget.Policy.BLOCK);
+        assertTrue(budget.tryAcquire());
+        budget.onSubmitted(0);
+        final long start = System.nanoTime();
+        assertFalse(budget.acquire(TimeUnit.MILLISECONDS.toNanos(20)));
+        final long waited = System.nanoTime() - start;
+        // never blocks the GL thread much longer than the timeout
+        assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(20) && waited < TimeUnit.MILLISECONDS.toNanos(500));
+
+        final Thread codec = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                } catch (final InterruptedException e) {
+                    // ignore
+                }
+                budget.onEncoded(0);
+            }
+        });
+        codec.start();
+        assertTrue(budget.acquire(TimeUnit.SECONDS.toNanos(5)));
+        codec.join();
+        assertTrue(budget.getBlockedNs() >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+}
@@ -0,0 +1,235 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.SampleSink;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MediaEncoderTest {
+
+    /**
+     * encoder that feeds bytes to a FakeCodecEngine
+     */
+    public static class TestEncoder extends MediaEncoder {
+        final CodecEngine mTestEngine;
+
+        public TestEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final CodecEngine engine) {
+            super(muxer, listener);
+            mTestEngine = engine;
+        }
+
+        @Override
+        public void prepare() {
+            startEngine(mTestEngine);
+            mListener.onPrepared(this);
+        }
+
+        public void feed(final int value, final long presentationTimeUs) {
+            final ByteBuffer buf = ByteBuffer.allocate(16);
+            buf.put((byte) value).put(new byte[15]).flip();
+            encode(buf, buf.remaining(), presentationTimeUs);
+            frameAvailableSoon();
+        }
+    }
+
+    public static class CountingSink implements SampleSink {
+        public final List<Integer> mFirstBytes = new ArrayList<Integer>();
+        public int mTracks;
+        public int mConfigSamples;
+        public boolean mStopped;
+
+        @Override
+        public synchronized int addTrack(final TrackFormat format) {
+            return mTracks++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info)
+                throws IOException {
+            if ((info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0) mConfigSamples++;
+            mFirstBytes.add(byteBuf.get(info.offset) & 0xff);
+        }
+
+        @Override
+        public synchronized void stop() {
+            mStopped = true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    public static final MediaEncoder.MediaEncoderListener NOP_LISTENER = new MediaEncoder.MediaEncoderListener() {
+        @Override
+        public void onPrepared(final MediaEncoder encoder) {
+        }
+
+        @Override
+        public void onStopped(final MediaEncoder encoder) {
+        }
+    };
+
+    @Test
+    public void encodedSamplesReachSinkAndEncoderStopsAtEndOfStream() throws Exception {
+        final CountingSink sink = new CountingSink();
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper(new File("fake.mp4"), sink);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        muxer.setRecordStateChangeListener(new MediaMuxerWrapper.RecordStateChangeListener() {
+            @Override
+            public void onRecordStateChanged(final boolean isStarted) {
+                if (!isStarted) stopped.countDown();
+            }
+        });
+        final FakeCodecEngine engine = new FakeCodecEngine(
+                TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240, null, null), 10);
+        final TestEncoder encoder = new TestEncoder(muxer, NOP_LISTENER, engine);
+        muxer.prepare();
+        muxer.startRecording();
+        for (int i = 0; i < 30; i++) {
+            encoder.feed(i, i * 40000L);
+        }
+        muxer.stopRecording();
+
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertTrue(engine.mReleased);
+        assertTrue(sink.mStopped);
+        assertEquals(1, sink.mTracks);
+        assertEquals(0, sink.mConfigSamples);
+        assertEquals(30, sink.mFirstBytes.size());
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i, (int) sink.mFirstBytes.get(i));
+        }
+    }
+
+    @Test
+    public void frameAvailableSoonIsRejectedBeforeStartAndAfterStop() throws Exception {
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper(new File("fake.mp4"), new CountingSink());
+        final FakeCodecEngine engine = new FakeCodecEngine(
+                TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 1, null), 1);
+        final TestEncoder encoder = new TestEncoder(muxer, NOP_LISTENER, engine);
+        muxer.prepare();
+        assertTrue(!encoder.frameAvailableSoon());
+        muxer.startRecording();
+        assertTrue(encoder.frameAvailableSoon());
+        encoder.stopRecording();
+        assertTrue(!encoder.frameAvailableSoon());
+    }
+
+    @Test
+    public void warmedUpEncoderWritesAfterOutputIsAttached() throws Exception {
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper();
+        final FakeCodecEngine engine = new FakeCodecEngine(
+                TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240, null, null), 10);
+        final TestEncoder encoder = new TestEncoder(muxer, NOP_LISTENER, engine);
+        muxer.prepare();
+        try {
+            muxer.startRecording();
+            fail("started without output");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        assertEquals(-1, muxer.getTimeToFirstSampleUs());
+
+        final CountingSink sink = new CountingSink();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        muxer.setRecordStateChangeListener(new MediaMuxerWrapper.RecordStateChangeListener() {
+            @Override
+            public void onRecordStateChanged(final boolean isStarted) {
+                if (!isStarted) stopped.countDown();
+            }
+        });
+        muxer.attachOutput(new File("fake.mp4"), sink);
+        assertEquals("fake.mp4", encoder.getOutputPath());
+        muxer.startRecording();
+        for (int i = 0; i < 10; i++) {
+            encoder.feed(i, i * 40000L);
+        }
+        muxer.stopRecording();
+
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertEquals(1, sink.mTracks);
+        assertEquals(10, sink.mFirstBytes.size());
+        assertTrue(muxer.getTimeToFirstSampleUs() >= 0);
+    }
+
+    @Test
+    public void discardReleasesUnusedWarmUpSession() throws Exception {
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper();
+        final FakeCodecEngine engine = new FakeCodecEngine(
+                TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 1, null), 1);
+        final TestEncoder encoder = new TestEncoder(muxer, NOP_LISTENER, engine);
+        muxer.prepare();
+        final long start = System.nanoTime();
+        muxer.discard();
+        while (!engine.mReleased && System.nanoTime() - start < 5000000000L) {
+            Thread.sleep(1);
+        }
+        assertTrue(engine.mReleased);
+        // nothing was encoded, no need to wait for end of stream
+        assertTrue(System.nanoTime() - start < MediaEncoder.EOS_TIMEOUT_USEC * 1000L);
+        assertTrue(!encoder.frameAvailableSoon());
+    }
+
+    @Test
+    public void stopIsBoundedByBudgetWhenCodecLosesEndOfStream() throws Exception {
+        final CountingSink sink = new CountingSink();
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper(new File("fake.mp4"), sink);
+        muxer.setStopBudgetMs(200);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final List<long[]> results = new ArrayList<long[]>();
+        muxer.setStopListener(new MediaMuxerWrapper.StopListener() {
+            @Override
+            public void onStopped(final File outputFile, final long durationUs, final long bytes) {
+                assertEquals("fake.mp4", outputFile.getName());
+                synchronized (results) {
+                    results.add(new long[]{durationUs, bytes});
+                }
+                stopped.countDown();
+            }
+        });
+        final FakeCodecEngine engine = new FakeCodecEngine(
+                TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240, null, null), 10)
+                .setLoseEndOfStream(true);
+        final TestEncoder encoder = new TestEncoder(muxer, NOP_LISTENER, engine);
+        muxer.prepare();
+        muxer.startRecording();
+        for (int i = 0; i < 10; i++) {
+            encoder.feed(i, i * 40000L);
+        }
+        final long start = System.nanoTime();
+        muxer.stopRecording();
+
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // waits for the lost EOS only within the budget
+        assertTrue("elapsed " + elapsedMs, elapsedMs < 200 + 500);
+        assertTrue(muxer.getStopLatencyUs() >= 0);
+        assertTrue(engine.mReleased);
+        assertTrue(sink.mStopped);
+        Thread.sleep(50);
+        synchronized (results) {
+            assertEquals(1, results.size());
+            assertEquals(9 * 40000L, results.get(0)[0]);
+            assertEquals(10 * 16, results.get(0)[1]);
+        }
+    }
+}
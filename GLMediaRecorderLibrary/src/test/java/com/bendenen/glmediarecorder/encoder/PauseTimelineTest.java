@@ -0,0 +1,79 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PauseTimelineTest {
+
+    private static final long FRAME_US = 33333L;
+    private static final long START_US = 5000000000L;    // capture clock is System#nanoTime, far from 0
+
+    @Test
+    public void pausedIntervalsAreRemovedWithoutGap() {
+        final PauseTimeline timeline = new PauseTimeline();
+        final long[] pauses = {
+                // pause, resume in frames from the start
+                30, 75,
+                100, 101,
+                160, 400,
+        };
+        int pauseIndex = 0;
+        long lastOutput = -1;
+        int kept = 0;
+        for (int frame = 0; frame < 500; frame++) {
+            final long pts = START_US + frame * FRAME_US;
+            if (pauseIndex < pauses.length && frame == pauses[pauseIndex]) {
+                if ((pauseIndex & 1) == 0) {
+                    assertTrue(timeline.pause(pts));
+                } else {
+                    assertTrue(timeline.resume(pts));
+                }
+                pauseIndex++;
+            }
+            final long output = timeline.map(pts);
+            if (output == PauseTimeline.DISCARDED) {
+                assertTrue("frame " + frame, timeline.isPaused());
+                continue;
+            }
+            if (lastOutput >= 0) {
+                // continuous, one frame after the previous kept frame
+                assertEquals("frame " + frame, lastOutput + FRAME_US, output);
+            }
+            lastOutput = output;
+            kept++;
+        }
+        assertEquals(500 - 45 - 1 - 240, kept);
+        assertEquals((45 + 1 + 240) * FRAME_US, timeline.getTotalPausedUs());
+    }
+
+    @Test
+    public void samplesInCodecAtPauseKeepTheirTime() {
+        final PauseTimeline timeline = new PauseTimeline();
+        timeline.pause(START_US + 1000000L);
+        // captured before pause, delivered by the codec after it
+        assertEquals(START_US + 900000L, timeline.map(START_US + 900000L));
+        assertEquals(PauseTimeline.DISCARDED, timeline.map(START_US + 1000000L));
+        timeline.resume(START_US + 3000000L);
+        // audio captured before the pause but delivered after resume
+        assertEquals(START_US + 999000L, timeline.map(START_US + 999000L));
+        assertEquals(PauseTimeline.DISCARDED, timeline.map(START_US + 2999999L));
+        assertEquals(START_US + 1000000L, timeline.map(START_US + 3000000L));
+    }
+
+    @Test
+    public void repeatedRequestsAreIgnored() {
+        final PauseTimeline timeline = new PauseTimeline();
+        assertFalse(timeline.resume(START_US));
+        assertTrue(timeline.pause(START_US));
+        assertFalse(timeline.pause(START_US + 1000L));
+        assertTrue(timeline.resume(START_US + 2000L));
+        assertFalse(timeline.resume(START_US + 3000L));
+        assertEquals(2000L, timeline.getTotalPausedUs());
+        timeline.reset();
+        assertEquals(0, timeline.getTotalPausedUs());
+        assertEquals(START_US + 1000L, timeline.map(START_US + 1000L));
+    }
+}
@@ -0,0 +1,112 @@
+package com.bendenen.glmediarecorder.encoder;
+
+import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.SampleSink;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * capture timestamps must reach the sink untouched regardless of codec latency and output order
+ */
+public class TimestampPropagationTest {
+
+    private static final int FRAMES = 60;
+    private static final long FRAME_INTERVAL_US = 33333L;
+    private static final long FIRST_CAPTURE_US = 123456789L;
+
+    static class PtsSink implements SampleSink {
+        final List<Long> mPts = new ArrayList<Long>();
+
+        @Override
+        public int addTrack(final TrackFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) {
+            mPts.add(info.presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private static List<Long> record(final FakeCodecEngine engine) throws Exception {
+        final PtsSink sink = new PtsSink();
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper(new File("fake.mp4"), sink);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        muxer.setRecordStateChangeListener(new MediaMuxerWrapper.RecordStateChangeListener() {
+            @Override
+            public void onRecordStateChanged(final boolean isStarted) {
+                if (!isStarted) stopped.countDown();
+            }
+        });
+        final MediaEncoderTest.TestEncoder encoder = new MediaEncoderTest.TestEncoder(
+                muxer, MediaEncoderTest.NOP_LISTENER, engine);
+        muxer.prepare();
+        muxer.startRecording();
+        for (int i = 0; i < FRAMES; i++) {
+            encoder.feed(i, FIRST_CAPTURE_US + i * FRAME_INTERVAL_US);
+            // irregular delivery to the encoder must not matter either
+            Thread.sleep(i % 3);
+        }
+        muxer.stopRecording();
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        return sink.mPts;
+    }
+
+    private static FakeCodecEngine newEngine() {
+        return new FakeCodecEngine(
+                TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240, null, null), 30);
+    }
+
+    @Test
+    public void codecLatencyDoesNotChangeTimestamps() throws Exception {
+        final List<Long> pts = record(newEngine().setLatency(15, 1234L));
+
+        assertEquals(FRAMES, pts.size());
+        for (int i = 0; i < FRAMES; i++) {
+            // monotonic and jitter-free: exactly the capture time
+            assertEquals(FIRST_CAPTURE_US + i * FRAME_INTERVAL_US, (long) pts.get(i));
+        }
+    }
+
+    @Test
+    public void reorderedOutputKeepsCaptureTimestamps() throws Exception {
+        final List<Long> pts = record(newEngine().setLatency(5, 42L).setReorder(true));
+
+        assertEquals(FRAMES, pts.size());
+        boolean reordered = false;
+        for (int i = 1; i < FRAMES; i++) {
+            if (pts.get(i) < pts.get(i - 1)) reordered = true;
+        }
+        assertTrue(reordered);
+        final List<Long> sorted = new ArrayList<Long>(pts);
+        Collections.sort(sorted);
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(FIRST_CAPTURE_US + i * FRAME_INTERVAL_US, (long) sorted.get(i));
+        }
+    }
+}
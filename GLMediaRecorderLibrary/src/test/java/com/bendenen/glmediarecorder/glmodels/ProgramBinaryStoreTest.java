@@ -0,0 +1,89 @@
+package com.bendenen.glmediarecorder.glmodels;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProgramBinaryStoreTest {
+
+    private static final String VSS = "attribute vec4 aPosition;\nvoid main() { gl_Position = aPosition; }\n";
+    private static final String FSS = "precision mediump float;\nvoid main() { gl_FragColor = vec4(1.0); }\n";
+    private static final byte[] BINARY = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("shaders", "");
+        mDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (final File file : files) file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void keyDependsOnBothSources() {
+        final String key = ProgramBinaryStore.keyOf(VSS, FSS);
+        assertEquals(40, key.length());
+        assertEquals(key, ProgramBinaryStore.keyOf(VSS, FSS));
+        assertNotEquals(key, ProgramBinaryStore.keyOf(FSS, VSS));
+        // moving text between the sources changes the key
+        assertNotEquals(key, ProgramBinaryStore.keyOf(VSS + FSS.substring(0, 1), FSS.substring(1)));
+    }
+
+    @Test
+    public void binaryRoundTrip() {
+        final ProgramBinaryStore store = new ProgramBinaryStore(mDir, "Adreno/OpenGL ES 3.2");
+        final String key = ProgramBinaryStore.keyOf(VSS, FSS);
+        assertNull(store.load(key));
+        assertTrue(store.save(key, new ProgramBinaryStore.Binary(0x8740, BINARY)));
+
+        final ProgramBinaryStore.Binary binary = new ProgramBinaryStore(mDir, "Adreno/OpenGL ES 3.2").load(key);
+        assertNotNull(binary);
+        assertEquals(0x8740, binary.format);
+        assertArrayEquals(BINARY, binary.data);
+    }
+
+    @Test
+    public void binaryOfOtherDriverIsDiscarded() {
+        final String key = ProgramBinaryStore.keyOf(VSS, FSS);
+        assertTrue(new ProgramBinaryStore(mDir, "Mali/OpenGL ES 3.1 v1").save(key, new ProgramBinaryStore.Binary(1, BINARY)));
+
+        assertNull(new ProgramBinaryStore(mDir, "Mali/OpenGL ES 3.1 v2").load(key));
+        assertFalse(new File(mDir, key + ".bin").exists());
+    }
+
+    @Test
+    public void truncatedFileIsDiscarded() throws Exception {
+        final ProgramBinaryStore store = new ProgramBinaryStore(mDir, "driver");
+        final String key = ProgramBinaryStore.keyOf(VSS, FSS);
+        assertTrue(store.save(key, new ProgramBinaryStore.Binary(1, BINARY)));
+        final File file = new File(mDir, key + ".bin");
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(store.load(key));
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,115 @@
+package com.bendenen.glmediarecorder.harness;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * stands in for the camera(or AudioRecord) in headless tests.
+ * Delivers frames at a fixed rate on its own thread with System#nanoTime as capture time,
+ * like SurfaceTexture#getTimestamp. The pacing can be disturbed deterministically:
+ * a seeded jitter on each frame and a stall of every n-th frame, like a camera that hiccups.
+ */
+public class FakeFrameSource implements Runnable {
+
+    public interface Listener {
+        /**
+         * @param timestampNs capture time of the frame
+         */
+        void onFrame(long timestampNs);
+    }
+
+    private final String mName;
+    private final long mIntervalNs;
+    private final Listener mListener;
+    private Random mRandom;
+    private long mMaxJitterNs;
+    private int mStallEvery;
+    private long mStallNs;
+    private long mLatencyNs;
+    private volatile boolean mRequestStop;
+    private volatile long mFrames;
+    private Thread mThread;
+
+    /**
+     * @param framesPerSecond rate of frames, e.g. 30 for video or 43 for 1024 samples of 44.1kHz audio
+     */
+    public FakeFrameSource(final String name, final double framesPerSecond, final Listener listener) {
+        if (framesPerSecond <= 0) throw new IllegalArgumentException("rate should be positive");
+        mName = name;
+        mIntervalNs = (long) (TimeUnit.SECONDS.toNanos(1) / framesPerSecond);
+        mListener = listener;
+    }
+
+    /**
+     * deliver each frame up to maxJitterUs late
+     */
+    public FakeFrameSource setJitter(final int maxJitterUs, final long seed) {
+        mMaxJitterNs = TimeUnit.MICROSECONDS.toNanos(maxJitterUs);
+        mRandom = new Random(seed);
+        return this;
+    }
+
+    /**
+     * hold every n-th frame for stallMs, frames after it keep the original pace
+     */
+    public FakeFrameSource setStall(final int everyFrames, final int stallMs) {
+        mStallEvery = everyFrames;
+        mStallNs = TimeUnit.MILLISECONDS.toNanos(stallMs);
+        return this;
+    }
+
+    /**
+     * deliver each frame latencyUs after its capture time, like the camera pipeline does
+     */
+    public FakeFrameSource setLatency(final int latencyUs) {
+        mLatencyNs = TimeUnit.MICROSECONDS.toNanos(latencyUs);
+        return this;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) return;
+        mRequestStop = false;
+        mThread = new Thread(this, mName);
+        mThread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        final Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null) {
+            mRequestStop = true;
+            thread.join();
+        }
+    }
+
+    /**
+     * @return frames delivered so far
+     */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+        while (!mRequestStop) {
+            long due = next;
+            if (mMaxJitterNs > 0) due += (long) (mRandom.nextDouble() * mMaxJitterNs);
+            if ((mStallEvery > 0) && ((mFrames + 1) % mStallEvery) == 0) due += mStallNs;
+            for (long wait = due - System.nanoTime(); wait > 0 && !mRequestStop; wait = due - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            if (mRequestStop) break;
+            mListener.onFrame(System.nanoTime() - mLatencyNs);
+            mFrames++;
+            next += mIntervalNs;
+            // a stalled frame arrives late but the next one is on time, so the following frames bunch up
+            final long now = System.nanoTime();
+            if (next < now - mIntervalNs * 4) next = now;    // do not burst forever after a long stall
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.bendenen.glmediarecorder.harness;
+
+import com.bendenen.glmediarecorder.encoder.FakeCodecEngine;
+import com.bendenen.glmediarecorder.encoder.FrameBudget;
+import com.bendenen.glmediarecorder.encoder.MediaEncoder;
+import com.bendenen.glmediarecorder.encoder.PauseTimeline;
+import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+import com.bendenen.glmediarecorder.mediamuxer.SampleWriter;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole recording pipeline on the JVM without camera, MediaCodec or MediaMuxer:
+ * FakeFrameSource -> MediaEncoder(real drain loop and timestamps) -> FakeCodecEngine -> MediaMuxerWrapper
+ * (real track counting, start/stop and SampleWriter) -> ThrottledSink.
+ * Video frames are admitted through a FrameBudget like MediaVideoEncoder does, so a slow codec or sink
+ * shows up as dropped frames instead of an unbounded queue.
+ * Each part can be slowed down or stalled deterministically, #run records for a while and returns a Report.
+ */
+public class PipelineHarness {
+
+    private static final long STOP_WAIT_MARGIN_MS = 5000;
+
+    /**
+     * MediaEncoder fed by a FakeFrameSource, each frame goes through frameAvailableSoon and encode
+     * with its capture time like camera and audio frames do
+     */
+    static class SourceEncoder extends MediaEncoder implements FakeFrameSource.Listener {
+        private final FakeCodecEngine mSourceEngine;
+        private final FrameBudget mBudget;
+        private final ByteBuffer mFrame;
+
+        SourceEncoder(final MediaMuxerWrapper muxer, final FakeCodecEngine engine,
+                      final int frameBytes, final FrameBudget budget) {
+            super(muxer, NOP_LISTENER);
+            mSourceEngine = engine;
+            mBudget = budget;
+            mFrame = ByteBuffer.allocate(frameBytes);
+        }
+
+        @Override
+        public void prepare() {
+            startEngine(mSourceEngine);
+            mListener.onPrepared(this);
+        }
+
+        @Override
+        public void startRecording() {
+            if (mBudget != null) mBudget.reset();
+            super.startRecording();
+        }
+
+        @Override
+        public void onFrame(final long timestampNs) {
+            if (!mIsCapturing || mRequestStop) return;
+            final long ptsUs = timestampNs / 1000L;
+            if (mIsPaused) {
+                onPausedInput(ptsUs);
+                return;
+            }
+            if (mBudget != null && !mBudget.tryAcquire()) {
+                mBudget.onRejected(false);
+                return;
+            }
+            mFrame.clear();
+            encode(mFrame, mFrame.remaining(), ptsUs);
+            if (mBudget != null) mBudget.onSubmitted(ptsUs);
+            frameAvailableSoon();
+        }
+
+        @Override
+        protected void onSampleEncoded(final long ptsUs) {
+            if (mBudget != null) mBudget.onEncoded(ptsUs);
+        }
+    }
+
+    /**
+     * MediaMuxerWrapper asks for the kind of track while the encoder is constructed
+     */
+    static class VideoSourceEncoder extends SourceEncoder {
+        VideoSourceEncoder(final MediaMuxerWrapper muxer, final FakeCodecEngine engine,
+                           final int frameBytes, final FrameBudget budget) {
+            super(muxer, engine, frameBytes, budget);
+        }
+
+        @Override
+        public boolean isVideoEncoder() {
+            return true;
+        }
+
+        /**
+         * resume on a sync frame like MediaVideoEncoder
+         */
+        @Override
+        public void resumeRecording() {
+            if (!mIsPaused) return;
+            requestSyncFrame();
+            super.resumeRecording();
+        }
+    }
+
+    private static final MediaEncoder.MediaEncoderListener NOP_LISTENER = new MediaEncoder.MediaEncoderListener() {
+        @Override
+        public void onPrepared(final MediaEncoder encoder) {
+        }
+
+        @Override
+        public void onStopped(final MediaEncoder encoder) {
+        }
+    };
+
+    /**
+     * result of one #run
+     */
+    public static class Report {
+        public long recordedUs;
+        public long capturedFrames;
+        public long acceptedFrames;
+        public long droppedFrames;
+        public int maxInFlightFrames;
+        public long writtenFrames;
+        public long writtenAudioFrames;
+        public long writtenBytes;
+        public long poolStalls;
+        public long maxWriterLagUs;
+        public long stopLatencyUs = -1;
+        public boolean finalized;
+        /**
+         * output time where the recording continues after the pause, -1 if not paused
+         */
+        public long resumeOutputUs = -1;
+
+        /**
+         * @return video frames written to the sink per second of recording
+         */
+        public double getFramesPerSecond() {
+            return recordedUs > 0 ? writtenFrames * 1000000.0 / recordedUs : 0;
+        }
+
+        public double getBytesPerSecond() {
+            return recordedUs > 0 ? writtenBytes * 1000000.0 / recordedUs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "recorded=%dms captured=%d accepted=%d dropped=%d maxInFlight=%d "
+                            + "written=%d(%.1ffps, %.0fB/s) audio=%d poolStalls=%d maxWriterLag=%dus stop=%dus finalized=%b",
+                    recordedUs / 1000L, capturedFrames, acceptedFrames, droppedFrames, maxInFlightFrames,
+                    writtenFrames, getFramesPerSecond(), getBytesPerSecond(), writtenAudioFrames,
+                    poolStalls, maxWriterLagUs, stopLatencyUs, finalized);
+        }
+    }
+
+    private double mFrameRate = 30;
+    private int mFrameBytes = 8 * 1024;
+    private double mAudioRate = 44100.0 / 1024;
+    private int mAudioBytes = 256;
+    private FakeCodecEngine mVideoEngine;
+    private FakeCodecEngine mAudioEngine;
+    private ThrottledSink mSink = new ThrottledSink();
+    private FrameBudget mBudget = new FrameBudget();
+    private long mStopBudgetMs = MediaMuxerWrapper.DEFAULT_STOP_BUDGET_MS;
+    private int mCameraStallEvery;
+    private int mCameraStallMs;
+    private int mCameraJitterUs;
+    private int mCameraLatencyUs;
+    private long mPauseAtMs = -1;
+    private long mPauseMs;
+
+    /**
+     * @param framesPerSecond camera rate
+     * @param frameBytes      size of each encoded video frame
+     */
+    public PipelineHarness setVideo(final double framesPerSecond, final int frameBytes) {
+        mFrameRate = framesPerSecond;
+        mFrameBytes = frameBytes;
+        return this;
+    }
+
+    /**
+     * @param framesPerSecond rate of audio chunks, 0 to record video only
+     */
+    public PipelineHarness setAudio(final double framesPerSecond, final int frameBytes) {
+        mAudioRate = framesPerSecond;
+        mAudioBytes = frameBytes;
+        return this;
+    }
+
+    /**
+     * deliver every n-th camera frame stallMs late and jitter all of them by up to jitterUs
+     */
+    public PipelineHarness setCameraStall(final int everyFrames, final int stallMs, final int jitterUs) {
+        mCameraStallEvery = everyFrames;
+        mCameraStallMs = stallMs;
+        mCameraJitterUs = jitterUs;
+        return this;
+    }
+
+    /**
+     * deliver camera frames latencyUs after their capture time
+     */
+    public PipelineHarness setCameraLatency(final int latencyUs) {
+        mCameraLatencyUs = latencyUs;
+        return this;
+    }
+
+    /**
+     * pause the recording pauseAtMs after the start for pauseMs
+     */
+    public PipelineHarness setPause(final long pauseAtMs, final long pauseMs) {
+        mPauseAtMs = pauseAtMs;
+        mPauseMs = pauseMs;
+        return this;
+    }
+
+    public PipelineHarness setVideoEngine(final FakeCodecEngine engine) {
+        mVideoEngine = engine;
+        return this;
+    }
+
+    public PipelineHarness setAudioEngine(final FakeCodecEngine engine) {
+        mAudioEngine = engine;
+        return this;
+    }
+
+    public PipelineHarness setSink(final ThrottledSink sink) {
+        mSink = sink;
+        return this;
+    }
+
+    public PipelineHarness setFrameBudget(final FrameBudget budget) {
+        mBudget = budget;
+        return this;
+    }
+
+    public PipelineHarness setStopBudgetMs(final long budgetMs) {
+        mStopBudgetMs = budgetMs;
+        return this;
+    }
+
+    public ThrottledSink getSink() {
+        return mSink;
+    }
+
+    /**
+     * record for durationMs and stop
+     *
+     * @throws IllegalStateException if the output was not finalized well after the stop budget
+     */
+    public Report run(final long durationMs) throws Exception {
+        final FakeCodecEngine videoEngine = mVideoEngine != null ? mVideoEngine : new FakeCodecEngine(
+                TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 1280, 720, null, null), 30);
+        final FakeCodecEngine audioEngine = mAudioEngine != null ? mAudioEngine : new FakeCodecEngine(
+                TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 1, null), 1);
+
+        final MediaMuxerWrapper muxer = new MediaMuxerWrapper(new File("harness.mp4"), mSink);
+        muxer.setStopBudgetMs(mStopBudgetMs);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        muxer.setStopListener(new MediaMuxerWrapper.StopListener() {
+            @Override
+            public void onStopped(final File outputFile, final long durationUs, final long bytes) {
+                stopped.countDown();
+            }
+        });
+        final SourceEncoder video = new VideoSourceEncoder(muxer, videoEngine, mFrameBytes, mBudget);
+        final FakeFrameSource camera = new FakeFrameSource("FakeCamera", mFrameRate, video);
+        if (mCameraStallEvery > 0) camera.setStall(mCameraStallEvery, mCameraStallMs);
+        if (mCameraJitterUs > 0) camera.setJitter(mCameraJitterUs, 1);
+        if (mCameraLatencyUs > 0) camera.setLatency(mCameraLatencyUs);
+        FakeFrameSource mic = null;
+        if (mAudioRate > 0) {
+            final SourceEncoder audio = new SourceEncoder(muxer, audioEngine, mAudioBytes, null);
+            mic = new FakeFrameSource("FakeMic", mAudioRate, audio);
+        }
+
+        muxer.prepare();
+        muxer.startRecording();
+        final long startNs = System.nanoTime();
+        camera.start();
+        if (mic != null) mic.start();
+        if (mPauseAtMs >= 0) {
+            Thread.sleep(mPauseAtMs);
+            muxer.pauseRecording();
+            Thread.sleep(mPauseMs);
+            muxer.resumeRecording();
+            Thread.sleep(Math.max(0, durationMs - mPauseAtMs - mPauseMs));
+        } else {
+            Thread.sleep(durationMs);
+        }
+        camera.stop();
+        if (mic != null) mic.stop();
+        final long recordedNs = System.nanoTime() - startNs;
+
+        final Report report = new Report();
+        report.recordedUs = recordedNs / 1000L;
+        report.capturedFrames = camera.getFrames();
+        muxer.stopRecording();
+        report.finalized = stopped.await(mStopBudgetMs + STOP_WAIT_MARGIN_MS, TimeUnit.MILLISECONDS);
+        if (!report.finalized) throw new IllegalStateException("output was not finalized: " + report);
+        report.stopLatencyUs = muxer.getStopLatencyUs();
+        final PauseTimeline timeline = muxer.getPauseTimeline();
+        if (timeline.getPauseCount() > 0) report.resumeOutputUs = timeline.map(timeline.getPauseEndUs(0));
+        report.acceptedFrames = mBudget.getAcceptedFrames();
+        report.droppedFrames = mBudget.getDroppedNewest() + mBudget.getDroppedOldest() + mBudget.getBlockTimeouts();
+        report.maxInFlightFrames = mBudget.getMaxInFlightFrames();
+        report.writtenFrames = mSink.getVideoSamples();
+        report.writtenAudioFrames = mSink.getAudioSamples();
+        report.writtenBytes = mSink.getBytes();
+        final SampleWriter writer = muxer.getSampleWriter();
+        if (writer != null) {
+            for (int i = 0; i < mSink.getTrackCount(); i++) {
+                report.poolStalls += writer.getPoolStalls(i);
+            }
+            report.maxWriterLagUs = writer.getMaxWriterLagUs();
+        }
+        return report;
+    }
+}
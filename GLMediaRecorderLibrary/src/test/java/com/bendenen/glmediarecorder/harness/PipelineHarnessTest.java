@@ -0,0 +1,114 @@
+package com.bendenen.glmediarecorder.harness;
+
+import com.bendenen.glmediarecorder.encoder.FakeCodecEngine;
+import com.bendenen.glmediarecorder.encoder.FrameBudget;
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineHarnessTest {
+
+    private static final long RECORD_MS = 1500;
+
+    private static FakeCodecEngine videoEngine() {
+        return new FakeCodecEngine(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 1280, 720, null, null), 30);
+    }
+
+    @Test
+    public void healthyPipelineKeepsUpWithCamera() throws Exception {
+        final PipelineHarness harness = new PipelineHarness()
+                .setVideo(30, 8 * 1024)
+                .setCameraStall(0, 0, 2000)
+                .setVideoEngine(videoEngine().setLatency(5, 1));
+        final PipelineHarness.Report report = harness.run(RECORD_MS);
+
+        assertTrue(report.toString(), report.finalized);
+        assertEquals(report.toString(), 0, report.droppedFrames);
+        // every captured frame reaches the sink
+        assertEquals(report.toString(), report.capturedFrames, report.acceptedFrames);
+        assertEquals(report.toString(), report.acceptedFrames, report.writtenFrames);
+        assertTrue(report.toString(), report.getFramesPerSecond() > 30 * 0.85 && report.getFramesPerSecond() < 30 * 1.1);
+        assertTrue(report.toString(), report.writtenAudioFrames > 0);
+        assertEquals(2, harness.getSink().getTrackCount());
+        assertTrue(report.toString(), report.stopLatencyUs >= 0 && report.stopLatencyUs < 500000L);
+    }
+
+    @Test
+    public void stalledCodecDropsFramesInsteadOfQueueing() throws Exception {
+        final FrameBudget budget = new FrameBudget(4, FrameBudget.Policy.DROP_NEWEST);
+        final PipelineHarness.Report report = new PipelineHarness()
+                .setVideo(30, 8 * 1024)
+                .setVideoEngine(videoEngine().setStall(10, 300))
+                .setFrameBudget(budget)
+                .run(RECORD_MS);
+
+        assertTrue(report.toString(), report.droppedFrames > 0);
+        assertTrue(report.toString(), report.maxInFlightFrames <= 4);
+        // the camera keeps its rate whatever the codec does
+        assertTrue(report.toString(), report.capturedFrames >= RECORD_MS * 30 / 1000 * 85 / 100);
+        assertEquals(report.toString(), report.capturedFrames, report.acceptedFrames + report.droppedFrames);
+        assertEquals(report.toString(), report.acceptedFrames, report.writtenFrames);
+        assertTrue(report.toString(), report.getFramesPerSecond() < 30 * 0.85);
+    }
+
+    @Test
+    public void cameraStallsAreNotCountedAsDrops() throws Exception {
+        final PipelineHarness.Report report = new PipelineHarness()
+                .setVideo(30, 8 * 1024)
+                .setCameraStall(15, 200, 0)
+                .setSink(new ThrottledSink().setStall(20, 30))
+                .run(RECORD_MS);
+
+        // bunched frames after a stall fit in the budget
+        assertEquals(report.toString(), 0, report.droppedFrames);
+        assertEquals(report.toString(), report.capturedFrames, report.writtenFrames);
+        assertTrue(report.toString(), report.maxWriterLagUs > 0);
+    }
+
+    @Test
+    public void codecLosingEndOfStreamStopsWithinBudget() throws Exception {
+        final PipelineHarness.Report report = new PipelineHarness()
+                .setVideoEngine(videoEngine().setLoseEndOfStream(true))
+                .setStopBudgetMs(200)
+                .run(500);
+
+        assertTrue(report.toString(), report.finalized);
+        assertTrue(report.toString(), report.writtenFrames > 0);
+        assertTrue(report.toString(), report.stopLatencyUs >= 150000L && report.stopLatencyUs < 1000000L);
+    }
+
+    @Test
+    public void videoResumesOnSyncFrame() throws Exception {
+        // no periodic key frame during the test, camera frames arrive 60ms after capture
+        final PipelineHarness harness = new PipelineHarness()
+                .setVideo(30, 8 * 1024)
+                .setVideoEngine(new FakeCodecEngine(
+                        TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 1280, 720, null, null), 1000))
+                .setCameraLatency(60000)
+                .setPause(500, 400);
+        final PipelineHarness.Report report = harness.run(RECORD_MS);
+
+        assertTrue(report.toString(), report.resumeOutputUs > 0);
+        final List<long[]> samples = harness.getSink().getVideoSampleInfo();
+        int resumed = -1;
+        for (int i = 0; i < samples.size(); i++) {
+            if (samples.get(i)[0] >= report.resumeOutputUs) {
+                resumed = i;
+                break;
+            }
+        }
+        assertTrue(report.toString(), resumed > 0 && resumed < samples.size() - 1);
+        // first frame after the pause is the requested sync frame, the frames after it depend on it
+        assertTrue("frame " + resumed + " is not a sync frame", (samples.get(resumed)[1] & SampleInfo.FLAG_SYNC_FRAME) != 0);
+        for (int i = 1; i < samples.size(); i++) {
+            assertTrue("frame " + i, samples.get(i)[0] > samples.get(i - 1)[0]);
+            if (i != resumed) assertEquals("frame " + i, 0, samples.get(i)[1] & SampleInfo.FLAG_SYNC_FRAME);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.bendenen.glmediarecorder.harness;
+
+import com.bendenen.glmediarecorder.mediamuxer.SampleInfo;
+import com.bendenen.glmediarecorder.mediamuxer.SampleSink;
+import com.bendenen.glmediarecorder.mediamuxer.TrackFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SampleSink that only counts and keeps time and flags of video samples, optionally as slow as a storage with limited throughput
+ * or one that stalls on every n-th write, like flash doing garbage collection.
+ */
+public class ThrottledSink implements SampleSink {
+
+    private final List<TrackFormat> mFormats = new ArrayList<TrackFormat>();
+    private long mBytesPerSecond;
+    private int mStallEvery;
+    private long mStallNs;
+    private long mStartNs;
+    private volatile long mVideoSamples;
+    private volatile long mAudioSamples;
+    private volatile long mBytes;
+    private volatile long mLastVideoPtsUs = -1;
+    /**
+     * {pts, flags} of each video sample, written on the writer thread
+     */
+    private final List<long[]> mVideoSampleInfo = new ArrayList<long[]>();
+    private volatile boolean mStarted;
+    private volatile boolean mStopped;
+
+    /**
+     * @param bytesPerSecond maximum write throughput, 0 is unlimited
+     */
+    public ThrottledSink setThroughput(final long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * block every n-th write for stallMs
+     */
+    public ThrottledSink setStall(final int everySamples, final int stallMs) {
+        mStallEvery = everySamples;
+        mStallNs = TimeUnit.MILLISECONDS.toNanos(stallMs);
+        return this;
+    }
+
+    @Override
+    public synchronized int addTrack(final TrackFormat format) {
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        mStartNs = System.nanoTime();
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) {
+        if ((info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0) return;
+        final long samples = mVideoSamples + mAudioSamples + 1;
+        mBytes += info.size;
+        if (mFormats.get(trackIndex).isVideo()) {
+            mVideoSamples++;
+            mLastVideoPtsUs = info.presentationTimeUs;
+            synchronized (mVideoSampleInfo) {
+                mVideoSampleInfo.add(new long[]{info.presentationTimeUs, info.flags});
+            }
+        } else {
+            mAudioSamples++;
+        }
+        long due = 0;
+        if (mBytesPerSecond > 0) {
+            due = mStartNs + mBytes * TimeUnit.SECONDS.toNanos(1) / mBytesPerSecond;
+        }
+        if ((mStallEvery > 0) && (samples % mStallEvery) == 0) {
+            due = Math.max(due, System.nanoTime()) + mStallNs;
+        }
+        for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    @Override
+    public void stop() {
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    public synchronized int getTrackCount() {
+        return mFormats.size();
+    }
+
+    public long getVideoSamples() {
+        return mVideoSamples;
+    }
+
+    public long getAudioSamples() {
+        return mAudioSamples;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public long getLastVideoPtsUs() {
+        return mLastVideoPtsUs;
+    }
+
+    /**
+     * @return {presentation time, flags} of each video sample in written order
+     */
+    public List<long[]> getVideoSampleInfo() {
+        synchronized (mVideoSampleInfo) {
+            return new ArrayList<long[]>(mVideoSampleInfo);
+        }
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    public boolean isStopped() {
+        return mStopped;
+    }
+}
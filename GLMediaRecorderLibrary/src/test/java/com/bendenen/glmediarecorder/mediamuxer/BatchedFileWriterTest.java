@@ -0,0 +1,178 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchedFileWriterTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    private File mFile;
+    private File mOther;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("batched", ".bin");
+        mOther = File.createTempFile("direct", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        mOther.delete();
+    }
+
+    @Test
+    public void smallWritesAreGatheredIntoAlignedBatches() throws Exception {
+        final BatchedFileWriter writer = new BatchedFileWriter(mFile, 64 * 1024, 0, 1024 * 1024);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final Random random = new Random(3);
+        while (expected.size() < 1000000) {
+            final byte[] sample = new byte[1 + random.nextInt(2000)];
+            random.nextBytes(sample);
+            // sample in the middle of a larger buffer
+            final ByteBuffer buffer = ByteBuffer.allocate(sample.length + 10);
+            buffer.position(5);
+            buffer.put(sample);
+            buffer.flip();
+            buffer.position(5);
+            assertEquals(sample.length, writer.write(buffer));
+            assertEquals(0, buffer.remaining());
+            expected.write(sample);
+        }
+        // only full batches so far, the file is grown a chunk at a time
+        assertEquals(expected.size() / (64 * 1024), writer.getBatchCount());
+        assertEquals(writer.getBatchCount() * 64 * 1024, writer.getDiskBytes());
+        assertEquals(1, writer.getPreallocationCount());
+        assertEquals(1024 * 1024, mFile.length());
+        writer.close();
+
+        assertEquals(expected.size(), writer.getBytesWritten());
+        assertEquals(expected.size(), writer.getPosition());
+        assertTrue(writer.getThroughputMBps() > 0);
+        assertArrayEquals(expected.toByteArray(), readFile(mFile));
+    }
+
+    @Test
+    public void flushRewritesUnalignedTail() throws Exception {
+        final BatchedFileWriter writer = new BatchedFileWriter(mFile, 10000, 0, 0);
+        assertEquals(3 * BatchedFileWriter.ALIGNMENT, writer.getBatchSize());
+        final byte[] data = new byte[30000];
+        new Random(5).nextBytes(data);
+        int written = 0;
+        for (final int length : new int[]{100, 5000, 1, 9000, 7000, 8899}) {
+            writer.write(ByteBuffer.wrap(data, written, length));
+            written += length;
+            writer.flush();
+            // everything written so far is in the file after every flush
+            final byte[] file = readFile(mFile);
+            assertEquals(written, file.length);
+            for (int i = 0; i < written; i++) {
+                assertEquals(data[i], file[i]);
+            }
+        }
+        final long batches = writer.getBatchCount();
+        writer.flush();
+        assertEquals(batches, writer.getBatchCount());
+        writer.close();
+        assertArrayEquals(data, readFile(mFile));
+        // only the partial blocks are written twice
+        assertTrue(writer.getDiskBytes() < data.length + batches * BatchedFileWriter.ALIGNMENT);
+    }
+
+    @Test
+    public void fragmentedMp4IsTheSameWithBatchedWrites() throws Exception {
+        final FragmentedMp4Sink batched = new FragmentedMp4Sink(mFile);
+        batched.setBatchedWrites(256 * 1024, 0, 4 * 1024 * 1024);
+        record(batched);
+        final FragmentedMp4Sink direct = new FragmentedMp4Sink(mOther);
+        record(direct);
+
+        final BatchedFileWriter writer = batched.getBatchedWriter();
+        assertEquals(direct.getBytesWritten(), batched.getBytesWritten());
+        assertEquals(batched.getBytesWritten(), writer.getBytesWritten());
+        assertTrue(writer.getBatchCount() < batched.getFragmentCount());
+        assertArrayEquals(readFile(mOther), readFile(mFile));
+    }
+
+    @Test
+    public void preallocatedSpaceIsIgnoredByRecovery() throws Exception {
+        final BatchedFileWriter writer = new BatchedFileWriter(mFile, 64 * 1024, 0, 1024 * 1024);
+        final FragmentedMp4Sink sink = new FragmentedMp4Sink(mOther);
+        record(sink);
+        writer.write(ByteBuffer.wrap(readFile(mOther)));
+        writer.flush();
+        // process dies before #close, the rest of the chunk stays zero filled
+        assertEquals(0, mFile.length() % (1024 * 1024));
+        assertTrue(mFile.length() > mOther.length());
+
+        final File repaired = File.createTempFile("repaired", ".mp4");
+        try {
+            final Mp4Recovery.Result result = Mp4Recovery.recover(mFile, repaired);
+            assertEquals(sink.getFragmentCount(), result.fragments);
+            assertArrayEquals(readFile(mOther), readFile(repaired));
+        } finally {
+            writer.close();
+            repaired.delete();
+        }
+    }
+
+//********************************************************************************
+
+    private static void record(final FragmentedMp4Sink sink) throws Exception {
+        final int video = sink.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 480, SPS, PPS));
+        final int audio = sink.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 1, null));
+        sink.start();
+        final Random random = new Random(11);
+        final SampleInfo info = new SampleInfo();
+        long audioPts = 0;
+        for (int i = 0; i < 150; i++) {
+            final long videoPts = i * 40000L;
+            while (audioPts <= videoPts) {
+                final byte[] aac = new byte[100 + random.nextInt(200)];
+                random.nextBytes(aac);
+                info.set(0, aac.length, audioPts, SampleInfo.FLAG_SYNC_FRAME);
+                sink.writeSampleData(audio, ByteBuffer.wrap(aac), info);
+                audioPts += 1024 * 1000000L / 44100;
+            }
+            final boolean key = i % 25 == 0;
+            final byte[] frame = new byte[key ? 20000 : 1000 + random.nextInt(3000)];
+            random.nextBytes(frame);
+            frame[0] = 0;
+            frame[1] = 0;
+            frame[2] = 0;
+            frame[3] = 1;
+            frame[4] = (byte) (key ? 0x65 : 0x41);
+            for (int j = 5; j < frame.length; j++) {
+                if (frame[j] == 0) frame[j] = 1;
+            }
+            info.set(0, frame.length, videoPts, key ? SampleInfo.FLAG_SYNC_FRAME : 0);
+            sink.writeSampleData(video, ByteBuffer.wrap(frame), info);
+        }
+        sink.stop();
+        sink.release();
+    }
+
+    private static byte[] readFile(final File file) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ElementaryStreamSinkTest {
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    private static void write(final SampleSink sink, final int track, final byte[] data, final int flags) throws Exception {
+        final SampleInfo info = new SampleInfo();
+        // sample in the middle of a larger buffer like MediaCodec output
+        final ByteBuffer buffer = ByteBuffer.allocate(data.length + 8);
+        buffer.position(3);
+        buffer.put(data);
+        info.set(3, data.length, 0, flags);
+        sink.writeSampleData(track, buffer, info);
+    }
+
+    @Test
+    public void lengthPrefixedVideoBecomesAnnexBWithParameterSetsOnKeyFrames() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ElementaryStreamSink sink = new ElementaryStreamSink(Channels.newChannel(out), true, 1024);
+        sink.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 1, null));
+        final int video = sink.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240, SPS, PPS));
+        assertEquals(1, video);
+        sink.start();
+
+        // AVCC: SEI and IDR slice, then a P slice
+        write(sink, video, new byte[]{0, 0, 0, 2, 0x06, 0x05, 0, 0, 0, 3, 0x65, (byte) 0x88, 0x11}, SampleInfo.FLAG_SYNC_FRAME);
+        write(sink, video, new byte[]{0, 0, 0, 2, 0x41, (byte) 0x9A}, 0);
+        write(sink, 0, new byte[]{0x21, 0x10}, SampleInfo.FLAG_SYNC_FRAME);    // audio is not this sink's track
+        // Annex-B key frame that carries its own SPS is not given another one
+        write(sink, video, new byte[]{0, 0, 0, 1, 0x67, 0x42, 0, 0, 1, 0x65, (byte) 0x88}, SampleInfo.FLAG_SYNC_FRAME);
+        sink.stop();
+
+        final byte[] expected = {
+                0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1F, 0x11, 0x22,
+                0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80,
+                0, 0, 0, 1, 0x06, 0x05,
+                0, 0, 0, 1, 0x65, (byte) 0x88, 0x11,
+                0, 0, 0, 1, 0x41, (byte) 0x9A,
+                0, 0, 0, 1, 0x67, 0x42, 0, 0, 1, 0x65, (byte) 0x88,
+        };
+        assertArrayEquals(expected, out.toByteArray());
+        assertEquals(expected.length, sink.getBytesWritten());
+    }
+
+    @Test
+    public void avccNalOf300BytesIsNotTakenForStartCode() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ElementaryStreamSink sink = new ElementaryStreamSink(Channels.newChannel(out), true, 1024);
+        final int video = sink.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240, SPS, PPS));
+        sink.start();
+        // length 300 is 00 00 01 2C, which looks like a 3 bytes start code
+        final byte[] nal = new byte[300];
+        Arrays.fill(nal, (byte) 0x55);
+        nal[0] = 0x41;
+        final ByteBuffer avcc = ByteBuffer.allocate(4 + nal.length + 4 + 2);
+        avcc.putInt(nal.length).put(nal).putInt(2).put((byte) 0x06).put((byte) 0x05);
+        write(sink, video, avcc.array(), 0);
+        sink.stop();
+
+        final ByteBuffer expected = ByteBuffer.allocate(4 + nal.length + 4 + 2);
+        expected.putInt(1).put(nal).putInt(1).put((byte) 0x06).put((byte) 0x05);
+        assertArrayEquals(expected.array(), out.toByteArray());
+        assertTrue(AnnexB.isLengthPrefixed(avcc, 0, avcc.capacity()));
+        assertTrue(!AnnexB.isAnnexB(avcc, 0, avcc.capacity()));
+        assertTrue(AnnexB.isAnnexB(ByteBuffer.wrap(expected.array()), 0, expected.capacity()));
+    }
+
+    @Test
+    public void aacFramesGetAdtsHeader() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ElementaryStreamSink sink = new ElementaryStreamSink(Channels.newChannel(out), false, 0);
+        final int audio = sink.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 2,
+                new byte[]{0x12, 0x10}));
+        sink.start();
+        write(sink, audio, new byte[100], SampleInfo.FLAG_SYNC_FRAME);
+        sink.stop();
+
+        final byte[] result = out.toByteArray();
+        assertEquals(107, result.length);
+        // AAC-LC, 44.1kHz, 2 channels, 107 bytes frame, VBR
+        assertArrayEquals(new byte[]{(byte) 0xFF, (byte) 0xF1, 0x50, (byte) 0x80, 0x0D, 0x7F, (byte) 0xFC},
+                Arrays.copyOf(result, 7));
+
+        // without csd-0 the header comes from the format: 48kHz mono
+        final ByteBuffer header = ByteBuffer.allocate(Adts.HEADER_SIZE);
+        new Adts(TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 48000, 1, null)).putHeader(header, 100);
+        assertArrayEquals(new byte[]{(byte) 0xFF, (byte) 0xF1, 0x4C, 0x40, 0x0D, 0x7F, (byte) 0xFC}, header.array());
+    }
+}
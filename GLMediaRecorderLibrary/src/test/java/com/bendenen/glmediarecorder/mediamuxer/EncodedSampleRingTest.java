@@ -0,0 +1,226 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * synthetic stream: video 25fps with a sync frame every second, AAC-like audio at 1024 samples/44.1kHz
+ */
+public class EncodedSampleRingTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long FRAME_US = 40000L;
+    private static final long AUDIO_US = 23220L;
+    private static final int GOP = 25;
+    private static final int KEY_SIZE = 6000;
+    private static final int FRAME_SIZE = 1500;
+    private static final int AUDIO_SIZE = 300;
+    // about 3 seconds of the stream
+    private static final int CAPACITY = 3 * (KEY_SIZE + (GOP - 1) * FRAME_SIZE + 44 * AUDIO_SIZE);
+
+    /**
+     * feeds samples of both tracks in presentation time order, first byte of each sample is its sequence number
+     */
+    private static final class Stream {
+        final ByteBuffer mBuf = ByteBuffer.allocateDirect(KEY_SIZE + 16);
+        final SampleInfo mInfo = new SampleInfo();
+        int mFrames, mAudioFrames;
+
+        void feed(final EncodedSampleRing ring, final long untilUs, final Runnable check) throws IOException {
+            feed(new SampleSink() {
+                @Override
+                public int addTrack(final TrackFormat format) {
+                    return 0;
+                }
+
+                @Override
+                public void start() {
+                }
+
+                @Override
+                public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) {
+                    ring.add(trackIndex, byteBuf, info);
+                }
+
+                @Override
+                public void stop() {
+                }
+
+                @Override
+                public void release() {
+                }
+            }, untilUs, check);
+        }
+
+        void feed(final SampleSink sink, final long untilUs, final Runnable check) throws IOException {
+            for (; ; ) {
+                final long videoPts = mFrames * FRAME_US;
+                final long audioPts = mAudioFrames * AUDIO_US;
+                if (Math.min(videoPts, audioPts) >= untilUs) break;
+                if (videoPts <= audioPts) {
+                    final boolean key = (mFrames % GOP) == 0;
+                    fill(mFrames, 8, key ? KEY_SIZE : FRAME_SIZE);
+                    mInfo.set(8, key ? KEY_SIZE : FRAME_SIZE, videoPts, key ? SampleInfo.FLAG_SYNC_FRAME : 0);
+                    sink.writeSampleData(VIDEO, mBuf, mInfo);
+                    mFrames++;
+                } else {
+                    fill(mAudioFrames, 2, AUDIO_SIZE);
+                    mInfo.set(2, AUDIO_SIZE, audioPts, SampleInfo.FLAG_SYNC_FRAME);
+                    sink.writeSampleData(AUDIO, mBuf, mInfo);
+                    mAudioFrames++;
+                }
+                if (check != null) check.run();
+            }
+        }
+
+        private void fill(final int seq, final int offset, final int size) {
+            for (int i = 0; i < size; i++) {
+                mBuf.put(offset + i, (byte) seq);
+            }
+            // garbage around the sample must not be copied
+            mBuf.put(offset - 1, (byte) 0x7f);
+            mBuf.put(offset + size, (byte) 0x7f);
+            mBuf.position(3);
+        }
+    }
+
+    @Test
+    public void ringKeepsWholeGopsWithinFixedMemory() throws Exception {
+        final EncodedSampleRing ring = new EncodedSampleRing(CAPACITY, 1000);
+        ring.setKeyTrack(VIDEO);
+        new Stream().feed(ring, 20000000L, new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(ring.getUsedBytes() <= ring.getCapacityBytes());
+                // the oldest sample is always a sync frame
+                assertEquals(0, ring.getStartPtsUs() % (GOP * FRAME_US));
+            }
+        });
+        assertTrue(ring.getEvictedGops() >= 16);
+        assertEquals(0, ring.getDroppedSamples());
+        // eviction works in whole GOPs, 2 to 3 seconds are left
+        assertTrue("duration " + ring.getDurationUs(), ring.getDurationUs() >= 2000000L);
+        assertTrue("duration " + ring.getDurationUs(), ring.getDurationUs() < 3000000L);
+    }
+
+    @Test
+    public void drainStartsAtOldestSyncFrameWithAlignedAudio() throws Exception {
+        final EncodedSampleRing ring = new EncodedSampleRing(CAPACITY, 1000);
+        ring.setKeyTrack(VIDEO);
+        new Stream().feed(ring, 10500000L, null);
+        final long startPts = ring.getStartPtsUs();
+        final int count = ring.getSampleCount();
+
+        final SampleWriterTest.RecordingSink sink = new SampleWriterTest.RecordingSink(0);
+        final int written = ring.drainTo(sink, new int[]{5, 6});
+        assertEquals(0, ring.getSampleCount());
+        assertEquals(written, sink.mWritten.size());
+        assertTrue(written <= count);
+
+        final long[] first = sink.mWritten.get(0);
+        assertEquals(5, first[0]);
+        assertEquals(startPts, first[1]);
+        long lastVideoPts = -1;
+        for (final long[] sample : sink.mWritten) {
+            assertTrue(sample[1] >= startPts);
+            if (sample[0] == 5) {
+                // video is continuous and data is what was added
+                if (lastVideoPts >= 0) assertEquals(lastVideoPts + FRAME_US, sample[1]);
+                lastVideoPts = sample[1];
+                assertEquals((byte) (sample[1] / FRAME_US), sample[2]);
+            } else {
+                assertEquals(6, sample[0]);
+                assertEquals((byte) (sample[1] / AUDIO_US), sample[2]);
+            }
+        }
+        assertEquals(10480000L, lastVideoPts);
+    }
+
+    @Test
+    public void samplesBeforeFirstSyncFrameAreDropped() {
+        final EncodedSampleRing ring = new EncodedSampleRing(CAPACITY, 1000);
+        ring.setKeyTrack(VIDEO);
+        final ByteBuffer buf = ByteBuffer.allocate(100);
+        final SampleInfo info = new SampleInfo();
+        info.set(0, 100, 0, 0);
+        assertFalse(ring.add(AUDIO, buf, info));
+        assertFalse(ring.add(VIDEO, buf, info));
+        info.set(0, 100, 40000, SampleInfo.FLAG_SYNC_FRAME);
+        assertTrue(ring.add(VIDEO, buf, info));
+        info.set(0, 100, 50000, 0);
+        assertTrue(ring.add(AUDIO, buf, info));
+        assertEquals(2, ring.getSampleCount());
+        assertEquals(2, ring.getDroppedSamples());
+
+        // larger than the whole ring
+        info.set(0, CAPACITY + 1, 80000, 0);
+        assertFalse(ring.add(VIDEO, ByteBuffer.allocate(CAPACITY + 1), info));
+        assertEquals(2, ring.getSampleCount());
+    }
+
+    @Test
+    public void sampleCountLimitEvictsGops() throws Exception {
+        final EncodedSampleRing ring = new EncodedSampleRing(CAPACITY, 150);
+        ring.setKeyTrack(VIDEO);
+        new Stream().feed(ring, 5000000L, new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(ring.getSampleCount() <= 150);
+                assertEquals(0, ring.getStartPtsUs() % (GOP * FRAME_US));
+            }
+        });
+        assertTrue(ring.getEvictedGops() >= 3);
+        // a GOP with its audio is about 68 samples
+        assertTrue(ring.getDurationUs() < 2000000L);
+    }
+
+    @Test
+    public void preRollSinkWritesRingThenLiveSamples() throws Exception {
+        final PreRollSink preRoll = new PreRollSink(CAPACITY, 1000);
+        assertEquals(VIDEO, preRoll.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 480, null, null)));
+        assertEquals(AUDIO, preRoll.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 1, null)));
+        preRoll.start();
+        final Stream stream = new Stream();
+        stream.feed(preRoll, 7500000L, null);
+
+        final int[] tracks = new int[1];
+        final SampleWriterTest.RecordingSink target = new SampleWriterTest.RecordingSink(0) {
+            @Override
+            public int addTrack(final TrackFormat format) {
+                return 10 + tracks[0]++;
+            }
+        };
+        assertTrue(preRoll.trigger(target));
+        assertFalse(preRoll.trigger(new SampleWriterTest.RecordingSink(0)));
+        stream.feed(preRoll, 9000000L, null);
+        preRoll.stop();
+
+        assertEquals(2, tracks[0]);
+        assertTrue(preRoll.getFlushedSamples() > 0);
+        // the output starts at a sync frame kept before trigger and continues into live samples
+        final long[] first = target.mWritten.get(0);
+        assertEquals(10, first[0]);
+        final long startPts = first[1];
+        assertEquals(0, startPts % (GOP * FRAME_US));
+        assertTrue(startPts < 7500000L - 2000000L);
+        long lastVideoPts = -1;
+        int video = 0;
+        for (final long[] sample : target.mWritten) {
+            assertTrue(sample[1] >= startPts);
+            if (sample[0] == 10) {
+                if (lastVideoPts >= 0) assertEquals(lastVideoPts + FRAME_US, sample[1]);
+                lastVideoPts = sample[1];
+                video++;
+            }
+        }
+        assertEquals(8960000L, lastVideoPts);
+        assertEquals((8960000L - startPts) / FRAME_US + 1, video);
+    }
+}
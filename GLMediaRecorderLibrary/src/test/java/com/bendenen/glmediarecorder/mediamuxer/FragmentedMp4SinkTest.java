@@ -0,0 +1,213 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4SinkTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final int FRAME_INTERVAL_US = 40000;    // 25fps
+    private static final int AUDIO_INTERVAL_US = 1024 * 1000000 / 44100;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("fmp4", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void fragmentsAreCutOnKeyFrames() throws Exception {
+        final FragmentedMp4Sink sink = new FragmentedMp4Sink(mFile);
+        final int[] counts = record(sink, 3000000L);
+
+        final List<String> boxes = readTopLevelBoxes(mFile);
+        assertEquals("ftyp", boxes.get(0));
+        assertEquals("moov", boxes.get(1));
+        assertEquals(3, sink.getFragmentCount());
+        assertEquals(2 + 3 * 2, boxes.size());
+        for (int i = 2; i < boxes.size(); i += 2) {
+            assertEquals("moof", boxes.get(i));
+            assertEquals("mdat", boxes.get(i + 1));
+        }
+        final int[] samples = countTrunSamples(mFile);
+        assertEquals(counts[0], samples[0]);
+        assertEquals(counts[1], samples[1]);
+        assertEquals(mFile.length(), sink.getBytesWritten());
+    }
+
+    @Test
+    public void fullBufferForcesFragment() throws Exception {
+        final FragmentedMp4Sink sink = new FragmentedMp4Sink(mFile, 1000000L, 8 * 1024, 4 * 1024, 16);
+        final int[] counts = record(sink, 2000000L);
+
+        assertTrue(sink.getFragmentCount() > 2);
+        final int[] samples = countTrunSamples(mFile);
+        assertEquals(counts[0], samples[0]);
+        assertEquals(counts[1], samples[1]);
+    }
+
+    @Test
+    public void startCodesAreReplacedWithLength() throws Exception {
+        final FragmentedMp4Sink sink = new FragmentedMp4Sink(mFile);
+        final int video = sink.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 480, SPS, PPS));
+        sink.start();
+        final SampleInfo info = new SampleInfo();
+        final ByteBuffer frame = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x65, 1, 2, 3, 0, 0, 1, 0x06, 9});
+        info.set(0, frame.capacity(), 0, SampleInfo.FLAG_SYNC_FRAME);
+        sink.writeSampleData(video, frame, info);
+        sink.stop();
+        sink.release();
+
+        final ByteBuffer file = readFile(mFile);
+        final int mdat = findBox(file, "mdat");
+        file.position(mdat + 8);
+        assertEquals(4, file.getInt());
+        assertEquals(0x65, file.get());
+        file.position(file.position() + 3);
+        assertEquals(2, file.getInt());
+        assertEquals(0x06, file.get());
+    }
+
+    @Test
+    public void lengthPrefixedSampleIsCopied() throws Exception {
+        final FragmentedMp4Sink sink = new FragmentedMp4Sink(mFile);
+        final int video = sink.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 480, SPS, PPS));
+        sink.start();
+        // a 300 bytes NAL unit has 00 00 01 2C as its length
+        final ByteBuffer frame = ByteBuffer.allocate(4 + 300);
+        frame.putInt(300).put((byte) 0x65);
+        for (int i = 1; i < 300; i++) frame.put((byte) i);
+        final SampleInfo info = new SampleInfo();
+        info.set(0, frame.capacity(), 0, SampleInfo.FLAG_SYNC_FRAME);
+        sink.writeSampleData(video, frame, info);
+        sink.stop();
+        sink.release();
+
+        final ByteBuffer file = readFile(mFile);
+        final int mdat = findBox(file, "mdat");
+        assertEquals(8 + frame.capacity(), file.getInt(mdat));
+        for (int i = 0; i < frame.capacity(); i++) {
+            assertEquals(frame.get(i), file.get(mdat + 8 + i));
+        }
+    }
+
+    /**
+     * write 25fps video with 1 second GOP and AAC audio interleaved by time
+     *
+     * @return number of written video and audio samples
+     */
+    private static int[] record(final FragmentedMp4Sink sink, final long durationUs) throws Exception {
+        final int video = sink.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 480, SPS, PPS));
+        final int audio = sink.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 1, null));
+        sink.start();
+        final SampleInfo info = new SampleInfo();
+        final ByteBuffer frame = ByteBuffer.allocate(2000);
+        frame.put(new byte[]{0, 0, 0, 1, 0x65});
+        final ByteBuffer aac = ByteBuffer.allocate(200);
+        long videoPts = 0, audioPts = 0;
+        int videoCount = 0, audioCount = 0;
+        while (videoPts < durationUs || audioPts < durationUs) {
+            if (videoPts <= audioPts) {
+                info.set(0, (videoCount % 25 == 0) ? 2000 : 500, videoPts,
+                        (videoCount % 25 == 0) ? SampleInfo.FLAG_SYNC_FRAME : 0);
+                sink.writeSampleData(video, frame, info);
+                videoCount++;
+                videoPts = (long) videoCount * FRAME_INTERVAL_US;
+            } else {
+                info.set(0, 200, audioPts, SampleInfo.FLAG_SYNC_FRAME);
+                sink.writeSampleData(audio, aac, info);
+                audioCount++;
+                audioPts = (long) audioCount * AUDIO_INTERVAL_US;
+            }
+        }
+        sink.stop();
+        sink.release();
+        return new int[]{videoCount, audioCount};
+    }
+
+    private static ByteBuffer readFile(final File file) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final ByteBuffer buf = ByteBuffer.allocate((int) raf.length());
+            raf.getChannel().read(buf, 0);
+            buf.flip();
+            return buf;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<String> readTopLevelBoxes(final File file) throws Exception {
+        final ByteBuffer buf = readFile(file);
+        final List<String> result = new ArrayList<String>();
+        int pos = 0;
+        while (pos < buf.limit()) {
+            final int size = buf.getInt(pos);
+            assertTrue("invalid box size", size >= 8);
+            result.add(fourCC(buf, pos + 4));
+            pos += size;
+        }
+        assertEquals(buf.limit(), pos);
+        return result;
+    }
+
+    /**
+     * @return number of samples in all trun of track 1 and track 2
+     */
+    private static int[] countTrunSamples(final File file) throws Exception {
+        final ByteBuffer buf = readFile(file);
+        final int[] result = new int[2];
+        int pos = 0;
+        while (pos < buf.limit()) {
+            final int size = buf.getInt(pos);
+            if ("moof".equals(fourCC(buf, pos + 4))) {
+                int child = pos + 8;
+                while (child < pos + size) {
+                    final int childSize = buf.getInt(child);
+                    if ("traf".equals(fourCC(buf, child + 4))) {
+                        // tfhd is the first box in traf, track_ID follows version/flags
+                        final int trackId = buf.getInt(child + 8 + 12);
+                        // trun follows tfhd(16) and tfdt(20)
+                        final int trun = child + 8 + 16 + 20;
+                        assertEquals("trun", fourCC(buf, trun + 4));
+                        result[trackId - 1] += buf.getInt(trun + 12);
+                    }
+                    child += childSize;
+                }
+            }
+            pos += size;
+        }
+        return result;
+    }
+
+    private static int findBox(final ByteBuffer buf, final String type) {
+        int pos = 0;
+        while (pos < buf.limit()) {
+            if (type.equals(fourCC(buf, pos + 4))) return pos;
+            pos += buf.getInt(pos);
+        }
+        return -1;
+    }
+
+    private static String fourCC(final ByteBuffer buf, final int pos) {
+        return new String(new char[]{
+                (char) buf.get(pos), (char) buf.get(pos + 1), (char) buf.get(pos + 2), (char) buf.get(pos + 3)});
+    }
+}
@@ -0,0 +1,235 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Mp4RecoveryTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final int FRAME_INTERVAL_US = 40000;
+    private static final int AUDIO_INTERVAL_US = 1024 * 1000000 / 44100;
+
+    private File mRecorded;
+    private File mCut;
+    private File mRepaired;
+
+    @Before
+    public void setUp() throws Exception {
+        mRecorded = File.createTempFile("crash", ".mp4");
+        mCut = File.createTempFile("cut", ".mp4");
+        mRepaired = File.createTempFile("repaired", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mRecorded.delete();
+        mCut.delete();
+        mRepaired.delete();
+    }
+
+    /**
+     * record 3 seconds with 2 seconds GOP and kill the recording without #stop
+     */
+    private FragmentedMp4Sink recordAndCrash() throws Exception {
+        final FragmentedMp4Sink sink = new FragmentedMp4Sink(mRecorded);
+        sink.setCrashSafe(500000L, FragmentedMp4Sink.DEFAULT_SYNC_BUDGET_US);
+        final int video = sink.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 480, SPS, PPS));
+        final int audio = sink.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 1, null));
+        sink.start();
+        final SampleInfo info = new SampleInfo();
+        long videoPts = 0, audioPts = 0;
+        int videoCount = 0, audioCount = 0;
+        while (videoPts < 3000000L) {
+            if (videoPts <= audioPts) {
+                final boolean key = videoCount % 50 == 0;
+                final ByteBuffer frame = ByteBuffer.allocate(key ? 3000 : 300 + videoCount);
+                frame.put(new byte[]{0, 0, 0, 1, (byte) (key ? 0x65 : 0x41)}).putInt(videoCount);
+                info.set(0, frame.capacity(), videoPts, key ? SampleInfo.FLAG_SYNC_FRAME : 0);
+                sink.writeSampleData(video, frame, info);
+                videoCount++;
+                videoPts = (long) videoCount * FRAME_INTERVAL_US;
+            } else {
+                final ByteBuffer aac = ByteBuffer.allocate(150);
+                aac.putInt(audioCount);
+                info.set(0, 150, audioPts, SampleInfo.FLAG_SYNC_FRAME);
+                sink.writeSampleData(audio, aac, info);
+                audioCount++;
+                audioPts = (long) audioCount * AUDIO_INTERVAL_US;
+            }
+        }
+        // process dies, the last fragment is never written
+        sink.release();
+        return sink;
+    }
+
+    @Test
+    public void crashSafeModeCommitsFragmentsBetweenKeyFrames() throws Exception {
+        final FragmentedMp4Sink sink = recordAndCrash();
+        // only 2 key frames, but a fragment every 0.5 second
+        assertTrue("fragments " + sink.getFragmentCount(), sink.getFragmentCount() >= 5);
+        assertEquals(mRecorded.length(), sink.getBytesWritten());
+        assertTrue(sink.getSyncCount() >= 2);
+        assertTrue(sink.getMaxSyncUs() <= sink.getTotalSyncUs());
+
+        final Mp4Recovery.Result result = Mp4Recovery.recover(mRecorded, mRepaired);
+        assertEquals(sink.getFragmentCount(), result.fragments);
+        assertFalse(result.repairedFragment);
+        assertEquals(mRecorded.length(), result.outputBytes);
+        assertArrayEquals(readFile(mRecorded).array(), readFile(mRepaired).array());
+    }
+
+    @Test
+    public void cutOffFileIsRepairedAtAnyByte() throws Exception {
+        recordAndCrash();
+        final ByteBuffer recorded = readFile(mRecorded);
+        final List<List<byte[]>> original = readSamples(recorded);
+        final int total = original.get(0).size() + original.get(1).size();
+        final List<Integer> moofs = findBoxes(recorded, "moof");
+        final int moofSize = recorded.getInt(moofs.get(2));
+        final int mdatSize = recorded.getInt(moofs.get(2) + moofSize);
+        final int[] cuts = {
+                moofs.get(2),                                       // between fragments
+                moofs.get(2) + moofSize / 2,                        // inside moof
+                moofs.get(2) + moofSize + 4,                        // inside mdat header
+                moofs.get(2) + moofSize + 8 + 3000 + 20,            // some samples of the first track
+                moofs.get(2) + moofSize + mdatSize - 10,            // last audio sample is broken
+        };
+        int previousSamples = -1;
+        Mp4Recovery.Result result = null;
+        for (final int cut : cuts) {
+            writeFile(mCut, recorded, cut);
+            result = Mp4Recovery.recover(mCut, mRepaired);
+            final ByteBuffer repaired = readFile(mRepaired);
+            assertEquals(result.outputBytes, repaired.limit());
+            final List<List<byte[]>> samples = readSamples(repaired);
+            final int count = samples.get(0).size() + samples.get(1).size();
+            assertEquals("cut " + cut, result.samples, count);
+            assertTrue("cut " + cut, count >= previousSamples);
+            previousSamples = count;
+            // every recovered sample is intact and in order
+            for (int track = 0; track < 2; track++) {
+                for (int i = 0; i < samples.get(track).size(); i++) {
+                    assertArrayEquals("cut " + cut + " track " + track + " sample " + i,
+                            original.get(track).get(i), samples.get(track).get(i));
+                }
+            }
+            assertEquals(2, result.fragments);
+            if (cut > moofs.get(2) + moofSize + 8) {
+                assertTrue(result.repairedFragment);
+                assertTrue(result.droppedSamples > 0);
+            } else {
+                assertFalse(result.repairedFragment);
+            }
+            assertTrue(count < total);
+        }
+        // only the broken audio sample is lost
+        assertEquals(1, result.droppedSamples);
+    }
+
+    @Test
+    public void fileWithoutMoovIsRejected() throws Exception {
+        recordAndCrash();
+        final ByteBuffer recorded = readFile(mRecorded);
+        writeFile(mCut, recorded, findBoxes(recorded, "moov").get(0) + 20);
+        try {
+            Mp4Recovery.recover(mCut, mRepaired);
+            fail();
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+//********************************************************************************
+
+    private static ByteBuffer readFile(final File file) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final ByteBuffer buf = ByteBuffer.allocate((int) raf.length());
+            raf.getChannel().read(buf, 0);
+            buf.flip();
+            return buf;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeFile(final File file, final ByteBuffer data, final int length) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(data.array(), 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<Integer> findBoxes(final ByteBuffer buf, final String type) {
+        final List<Integer> result = new ArrayList<Integer>();
+        int pos = 0;
+        while (pos + 8 <= buf.limit()) {
+            if (type.equals(fourCC(buf, pos + 4))) result.add(pos);
+            pos += buf.getInt(pos);
+        }
+        return result;
+    }
+
+    /**
+     * @return data of every sample of track 1 and 2 as described by trun, checking the file structure on the way
+     */
+    private static List<List<byte[]>> readSamples(final ByteBuffer buf) {
+        final List<List<byte[]>> result = new ArrayList<List<byte[]>>();
+        result.add(new ArrayList<byte[]>());
+        result.add(new ArrayList<byte[]>());
+        int pos = 0;
+        while (pos < buf.limit()) {
+            final int size = buf.getInt(pos);
+            assertTrue(size >= 8 && pos + size <= buf.limit());
+            if ("moof".equals(fourCC(buf, pos + 4))) {
+                final int mdat = pos + size;
+                assertEquals("mdat", fourCC(buf, mdat + 4));
+                final int mdatEnd = mdat + buf.getInt(mdat);
+                for (int child = pos + 8; child < pos + size; child += buf.getInt(child)) {
+                    if (!"traf".equals(fourCC(buf, child + 4))) continue;
+                    final int trackId = buf.getInt(child + 8 + 12);
+                    final int trun = child + 8 + 16 + 20;
+                    assertEquals("trun", fourCC(buf, trun + 4));
+                    final int count = buf.getInt(trun + 12);
+                    int data = pos + buf.getInt(trun + 16);
+                    for (int i = 0; i < count; i++) {
+                        final int sampleSize = buf.getInt(trun + 20 + i * 12 + 4);
+                        assertTrue(data >= mdat + 8 && data + sampleSize <= mdatEnd);
+                        final byte[] sample = new byte[sampleSize];
+                        for (int j = 0; j < sampleSize; j++) {
+                            sample[j] = buf.get(data + j);
+                        }
+                        result.get(trackId - 1).add(sample);
+                        data += sampleSize;
+                    }
+                }
+            }
+            pos += size;
+        }
+        assertEquals(buf.limit(), pos);
+        return result;
+    }
+
+    private static String fourCC(final ByteBuffer buf, final int pos) {
+        return new String(new char[]{
+                (char) buf.get(pos), (char) buf.get(pos + 1), (char) buf.get(pos + 2), (char) buf.get(pos + 3)});
+    }
+}
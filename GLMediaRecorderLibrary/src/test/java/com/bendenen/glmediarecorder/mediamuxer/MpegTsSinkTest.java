@@ -0,0 +1,235 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MpegTsSinkTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUD = {0, 0, 0, 1, 0x09, (byte) 0xF0};
+    private static final byte[] ASC = {0x12, 0x10};    // AAC-LC 44.1kHz stereo
+    private static final int FRAME_INTERVAL_US = 40000;
+    private static final int AUDIO_INTERVAL_US = 1024 * 1000000 / 44100;
+    private static final long ORIGIN_US = 123456789L;
+
+    // reference bytes as written by ffmpeg for a program with H.264 on PID 0x100 and AAC on PID 0x101
+    private static final byte[] PAT = hex("47 40 00 10 00 00 b0 0d 00 01 c1 00 00 00 01 f0 00 2a b1 04 b2");
+    private static final byte[] PMT = hex("47 50 00 10 00 02 b0 17 00 01 c1 00 00 e1 00 f0 00"
+            + " 1b e1 00 f0 00 0f e1 01 f0 00 2f 44 b9 9b");
+    // random access + PCR 0, PES with PTS 0.1sec
+    private static final byte[] FIRST_VIDEO = hex("47 41 00 30 07 50 00 00 00 00 7e 00"
+            + " 00 00 01 e0 00 00 80 80 05 21 00 01 46 51");
+
+    private static byte[] hex(final String s) {
+        final String[] values = s.trim().split(" ");
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) Integer.parseInt(values[i], 16);
+        }
+        return result;
+    }
+
+    private static final class Recorder {
+        final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        final MpegTsSink mSink = new MpegTsSink(Channels.newChannel(mOut), 64 * 1024);
+        final List<byte[]> mVideo = new ArrayList<byte[]>();
+        final List<Boolean> mKeyFrames = new ArrayList<Boolean>();
+        final List<byte[]> mAudio = new ArrayList<byte[]>();
+        final int mVideoTrack, mAudioTrack;
+
+        Recorder() throws Exception {
+            mVideoTrack = mSink.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240, SPS, PPS));
+            mAudioTrack = mSink.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 2, ASC));
+            mSink.start();
+        }
+
+        void video(final byte[] frame, final long ptsUs, final boolean key) throws Exception {
+            final SampleInfo info = new SampleInfo();
+            info.set(0, frame.length, ptsUs, key ? SampleInfo.FLAG_SYNC_FRAME : 0);
+            mSink.writeSampleData(mVideoTrack, ByteBuffer.wrap(frame), info);
+            mVideo.add(frame);
+            mKeyFrames.add(key);
+        }
+
+        void audio(final byte[] frame, final long ptsUs) throws Exception {
+            final SampleInfo info = new SampleInfo();
+            info.set(0, frame.length, ptsUs, SampleInfo.FLAG_SYNC_FRAME);
+            mSink.writeSampleData(mAudioTrack, ByteBuffer.wrap(frame), info);
+            mAudio.add(frame);
+        }
+    }
+
+    private static byte[] idr(final Random random, final int size, final boolean key) {
+        final byte[] frame = new byte[size];
+        random.nextBytes(frame);
+        frame[0] = 0;
+        frame[1] = 0;
+        frame[2] = 0;
+        frame[3] = 1;
+        frame[4] = (byte) (key ? 0x65 : 0x41);
+        // no start code emulation in the payload
+        for (int i = 5; i < size; i++) {
+            if (frame[i] == 0) frame[i] = 1;
+        }
+        return frame;
+    }
+
+    @Test
+    public void tablesAndFirstPacketMatchReference() throws Exception {
+        final Recorder recorder = new Recorder();
+        recorder.video(idr(new Random(1), 100, true), ORIGIN_US, true);
+        recorder.mSink.stop();
+
+        final byte[] ts = recorder.mOut.toByteArray();
+        assertEquals(3 * MpegTsSink.PACKET_SIZE, ts.length);
+        assertEquals(3, recorder.mSink.getPacketCount());
+        assertArrayEquals(PAT, Arrays.copyOfRange(ts, 0, PAT.length));
+        assertArrayEquals(PMT, Arrays.copyOfRange(ts, 188, 188 + PMT.length));
+        for (int i = PAT.length; i < 188; i++) {
+            assertEquals(-1, ts[i]);
+        }
+        // 100 bytes frame + AUD + SPS/PPS fit in one packet, so stuffing comes between PCR and PES
+        final int stuffing = 184 - 8 - 14 - (AUD.length + SPS.length + PPS.length + 100);
+        assertEquals((byte) (7 + stuffing), ts[2 * 188 + 4]);
+        final byte[] first = Arrays.copyOfRange(ts, 2 * 188, 2 * 188 + 12);
+        first[4] = 7;
+        assertArrayEquals(Arrays.copyOfRange(FIRST_VIDEO, 0, 12), first);
+        assertArrayEquals(Arrays.copyOfRange(FIRST_VIDEO, 12, FIRST_VIDEO.length),
+                Arrays.copyOfRange(ts, 2 * 188 + 12 + stuffing, 2 * 188 + 12 + stuffing + 14));
+    }
+
+    @Test
+    public void streamDemuxesBackToAnnexBAndAdts() throws Exception {
+        final Recorder recorder = new Recorder();
+        final Random random = new Random(7);
+        long audioUs = ORIGIN_US;
+        for (int i = 0; i < 75; i++) {
+            final long videoUs = ORIGIN_US + (long) i * FRAME_INTERVAL_US;
+            while (audioUs <= videoUs) {
+                final byte[] aac = new byte[100 + random.nextInt(300)];
+                random.nextBytes(aac);
+                aac[0] = 0x21;
+                recorder.audio(aac, audioUs);
+                audioUs += AUDIO_INTERVAL_US;
+            }
+            final boolean key = (i % 25) == 0;
+            recorder.video(idr(random, key ? 5000 : 50 + random.nextInt(1500), key), videoUs, key);
+        }
+        recorder.mSink.stop();
+        final byte[] ts = recorder.mOut.toByteArray();
+        assertEquals(0, ts.length % MpegTsSink.PACKET_SIZE);
+        assertEquals(ts.length, recorder.mSink.getBytesWritten());
+
+        final Map<Integer, List<byte[]>> pes = new HashMap<Integer, List<byte[]>>();
+        final Map<Integer, Integer> continuity = new HashMap<Integer, Integer>();
+        final List<Long> videoPts = new ArrayList<Long>();
+        final List<Long> pcrs = new ArrayList<Long>();
+        int pats = 0;
+        int previousPid = -1;
+        ByteArrayOutputStream current = null;
+        int currentPid = -1;
+        for (int p = 0; p < ts.length; p += 188) {
+            assertEquals(0x47, ts[p] & 0xFF);
+            final boolean start = (ts[p + 1] & 0x40) != 0;
+            final int pid = ((ts[p + 1] & 0x1F) << 8) | (ts[p + 2] & 0xFF);
+            final int cc = ts[p + 3] & 0x0F;
+            if (continuity.containsKey(pid)) {
+                assertEquals("pid " + pid, (continuity.get(pid) + 1) & 0x0F, cc);
+            }
+            continuity.put(pid, cc);
+            final int lastPid = previousPid;
+            previousPid = pid;
+            if (pid == 0) {
+                assertArrayEquals(Arrays.copyOfRange(PAT, 4, PAT.length), Arrays.copyOfRange(ts, p + 4, p + PAT.length));
+                pats++;
+                continue;
+            }
+            if (pid == 0x1000) continue;
+            int pos = p + 4;
+            if ((ts[p + 3] & 0x20) != 0) {
+                final int length = ts[pos] & 0xFF;
+                if ((length > 0) && (ts[pos + 1] & 0x10) != 0) {
+                    final long base = ((ts[pos + 2] & 0xFFL) << 25) | ((ts[pos + 3] & 0xFFL) << 17)
+                            | ((ts[pos + 4] & 0xFFL) << 9) | ((ts[pos + 5] & 0xFFL) << 1) | ((ts[pos + 6] & 0x80) >> 7);
+                    pcrs.add(base);
+                    assertEquals(0x100, pid);
+                }
+                pos += 1 + length;
+            }
+            if (start) {
+                if (current != null) add(pes, currentPid, current);
+                current = new ByteArrayOutputStream();
+                currentPid = pid;
+                assertEquals(pid == 0x100 ? 0xE0 : 0xC0, ts[pos + 3] & 0xFF);
+                final long pts = ((ts[pos + 9] & 0x0EL) << 29) | ((ts[pos + 10] & 0xFFL) << 22)
+                        | ((ts[pos + 11] & 0xFEL) << 14) | ((ts[pos + 12] & 0xFFL) << 7) | ((ts[pos + 13] & 0xFE) >> 1);
+                if (pid == 0x100) {
+                    // tables are repeated just before every key frame
+                    if (recorder.mKeyFrames.get(videoPts.size())) assertEquals(0x1000, lastPid);
+                    videoPts.add(pts);
+                }
+                pos += 14;
+            } else {
+                assertEquals(currentPid, pid);
+            }
+            current.write(ts, pos, p + 188 - pos);
+        }
+        add(pes, currentPid, current);
+
+        // key frames every second and tables at least every 0.5 second
+        assertTrue("PAT " + pats, pats >= 6 && pats <= 8);
+        final List<byte[]> video = pes.get(0x100);
+        assertEquals(recorder.mVideo.size(), video.size());
+        for (int i = 0; i < video.size(); i++) {
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(AUD);
+            if (recorder.mKeyFrames.get(i)) {
+                expected.write(SPS);
+                expected.write(PPS);
+            }
+            expected.write(recorder.mVideo.get(i));
+            assertArrayEquals("frame " + i, expected.toByteArray(), video.get(i));
+            assertEquals(9000L + i * 3600L, (long) videoPts.get(i));
+            assertEquals(i * 3600L, (long) pcrs.get(i));
+        }
+        final List<byte[]> audio = pes.get(0x101);
+        assertEquals(recorder.mAudio.size(), audio.size());
+        for (int i = 0; i < audio.size(); i++) {
+            final byte[] frame = audio.get(i);
+            final byte[] raw = recorder.mAudio.get(i);
+            assertEquals(raw.length + 7, frame.length);
+            assertEquals(raw.length + 7, ((frame[3] & 0x03) << 11) | ((frame[4] & 0xFF) << 3) | ((frame[5] & 0xFF) >> 5));
+            assertArrayEquals(raw, Arrays.copyOfRange(frame, 7, frame.length));
+        }
+    }
+
+    private static void add(final Map<Integer, List<byte[]>> pes, final int pid, final ByteArrayOutputStream data) {
+        List<byte[]> list = pes.get(pid);
+        if (list == null) {
+            list = new ArrayList<byte[]>();
+            pes.put(pid, list);
+        }
+        list.add(data.toByteArray());
+    }
+
+    @Test
+    public void psiCrcMatchesReference() {
+        assertEquals(0x2AB104B2, MpegTsSink.crc32(PAT, 5, PAT.length - 5 - 4));
+        assertEquals(0x2F44B99B, MpegTsSink.crc32(PMT, 5, PMT.length - 5 - 4));
+        assertTrue(MpegTsSink.crc32(PAT, 5, PAT.length - 5) == 0);
+    }
+}
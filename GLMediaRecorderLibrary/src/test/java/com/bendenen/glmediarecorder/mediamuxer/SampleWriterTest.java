@@ -0,0 +1,191 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SampleWriterTest {
+
+    /**
+     * sink that records what is written, optionally slow
+     */
+    static class RecordingSink implements SampleSink {
+        final List<long[]> mWritten = new ArrayList<long[]>();    // {track, pts, first byte}
+        final long mDelayMs;
+
+        RecordingSink(final long delayMs) {
+            mDelayMs = delayMs;
+        }
+
+        @Override
+        public int addTrack(final TrackFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final SampleInfo info) throws IOException {
+            if (mDelayMs > 0) {
+                try {
+                    Thread.sleep(mDelayMs);
+                } catch (final InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            synchronized (mWritten) {
+                mWritten.add(new long[]{trackIndex, info.presentationTimeUs, byteBuf.get(info.offset)});
+            }
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    @Test
+    public void samplesAreInterleavedByPresentationTime() throws Exception {
+        final RecordingSink sink = new RecordingSink(0);
+        final SampleWriter writer = new SampleWriter(sink, 2);
+        final CountDownLatch finished = startWriter(writer);
+
+        final Thread video = producer(writer, 0, 40000, 50);
+        final Thread audio = producer(writer, 1, 23220, 86);
+        video.start();
+        audio.start();
+        video.join();
+        audio.join();
+        writer.finish();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+
+        assertEquals(50 + 86, sink.mWritten.size());
+        assertEquals(50 + 86, writer.getWrittenSamples());
+        final long[] lastPts = {-1, -1};
+        long lastAny = -1;
+        int outOfOrder = 0;
+        for (final long[] sample : sink.mWritten) {
+            final int track = (int) sample[0];
+            // order in each track is always kept
+            assertTrue(sample[1] > lastPts[track]);
+            lastPts[track] = sample[1];
+            // copied data is intact
+            assertEquals((byte) (sample[1] / (track == 0 ? 40000 : 23220)), (byte) sample[2]);
+            if (sample[1] < lastAny) outOfOrder++;
+            lastAny = Math.max(lastAny, sample[1]);
+        }
+        assertEquals(0, outOfOrder);
+        assertEquals(0, writer.getQueueDepth(0));
+        assertEquals(0, writer.getQueueDepth(1));
+    }
+
+    @Test
+    public void slowSinkDoesNotBlockEncoderThread() throws Exception {
+        final RecordingSink sink = new RecordingSink(5);
+        final SampleWriter writer = new SampleWriter(sink, 1, 32, 1024, SampleWriter.DEFAULT_MAX_HOLD_US);
+        final CountDownLatch finished = startWriter(writer);
+
+        final ByteBuffer data = ByteBuffer.allocate(100);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(writer.enqueue(0, data, 0, 100, i * 1000L, 0));
+        }
+        final long elapsedMs = (System.nanoTime() - start) / 1000000L;
+        // 20 writes take 100ms on the sink, but enqueueing only copies
+        assertTrue("enqueue took " + elapsedMs + "ms", elapsedMs < 50);
+        assertTrue(writer.getMaxQueueDepth(0) > 1);
+        writer.finish();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(20, sink.mWritten.size());
+        assertTrue(writer.getMaxWriterLagUs() >= 5000);
+        assertEquals(0, writer.getPoolStalls(0));
+        // writer refuses samples after finishing
+        assertTrue(!writer.enqueue(0, data, 0, 100, 100000L, 0));
+    }
+
+    @Test
+    public void idleTrackDoesNotBlockOthers() throws Exception {
+        final RecordingSink sink = new RecordingSink(0);
+        final SampleWriter writer = new SampleWriter(sink, 2, 16, 1024, 20000L);
+        final CountDownLatch finished = startWriter(writer);
+
+        final ByteBuffer data = ByteBuffer.allocate(10);
+        writer.enqueue(0, data, 0, 10, 0, 0);
+        // track 1 never produces, sample must be written after hold time
+        final long deadline = System.currentTimeMillis() + 2000;
+        while (writer.getWrittenSamples() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, writer.getWrittenSamples());
+        writer.finish();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void singleTrackIsWrittenWithoutHoldDelay() throws Exception {
+        final RecordingSink sink = new RecordingSink(0);
+        final SampleWriter writer = new SampleWriter(sink, 1, 16, 1024, SampleWriter.DEFAULT_MAX_HOLD_US);
+        final CountDownLatch finished = startWriter(writer);
+
+        // the writer parks between samples, every sample must wake it up
+        final ByteBuffer data = ByteBuffer.allocate(10);
+        for (int i = 0; i < 200; i++) {
+            writer.enqueue(0, data, 0, 10, i * 1000L, 0);
+            Thread.sleep(i % 10 == 0 ? 5 : 1);
+        }
+        final long maxLagUs = writer.getMaxWriterLagUs();
+        writer.finish();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(200, writer.getWrittenSamples());
+        assertEquals(2000, writer.getWrittenBytes());
+        assertEquals(199000, writer.getWrittenDurationUs());
+        assertTrue("max lag " + maxLagUs + "us", maxLagUs < 100000);
+    }
+
+    private static CountDownLatch startWriter(final SampleWriter writer) {
+        final CountDownLatch finished = new CountDownLatch(1);
+        writer.setCallback(new SampleWriter.Callback() {
+            @Override
+            public void onFinished(final SampleWriter w) {
+                finished.countDown();
+            }
+
+            @Override
+            public void onError(final SampleWriter w, final IOException e) {
+            }
+        });
+        writer.start();
+        return finished;
+    }
+
+    private static Thread producer(final SampleWriter writer, final int track, final long intervalUs, final int count) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ByteBuffer data = ByteBuffer.allocate(256);
+                for (int i = 0; i < count; i++) {
+                    data.put(0, (byte) i);
+                    writer.enqueue(track, data, 0, 256, i * intervalUs, 0);
+                    try {
+                        Thread.sleep(intervalUs / 1000 / 4);
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+}
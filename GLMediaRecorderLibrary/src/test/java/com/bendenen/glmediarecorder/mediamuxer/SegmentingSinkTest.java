@@ -0,0 +1,174 @@
+package com.bendenen.glmediarecorder.mediamuxer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentingSinkTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long FRAME_US = 33333L;
+    private static final long AUDIO_US = 23220L;
+    private static final int KEY_FRAME_INTERVAL = 90;    // 3 seconds, longer than a segment
+
+    /**
+     * segment that remembers its samples, first byte is 1 for sync frames
+     */
+    private static final class SegmentRecorder extends SampleWriterTest.RecordingSink {
+        int mTracks;
+        boolean mStarted, mStopped;
+
+        SegmentRecorder() {
+            super(0);
+        }
+
+        @Override
+        public int addTrack(final TrackFormat format) {
+            return mTracks++;
+        }
+
+        @Override
+        public void start() {
+            mStarted = true;
+        }
+
+        @Override
+        public void stop() {
+            mStopped = true;
+        }
+    }
+
+    private final List<SegmentRecorder> mSegments = new ArrayList<SegmentRecorder>();
+    private final List<long[]> mFinished = new ArrayList<long[]>();    // {index, duration, bytes}
+    private boolean mSyncRequested;
+    private int mSyncRequests;
+
+    private SegmentingSink createSink(final long maxDurationUs, final long maxBytes) throws IOException {
+        final SegmentingSink sink = new SegmentingSink(new SegmentingSink.SegmentFactory() {
+            @Override
+            public SampleSink createSegment(final int index) {
+                assertEquals(mSegments.size(), index);
+                final SegmentRecorder segment = new SegmentRecorder();
+                mSegments.add(segment);
+                return segment;
+            }
+        }, maxDurationUs, maxBytes);
+        sink.setCallback(new SegmentingSink.Callback() {
+            @Override
+            public void onSyncFrameNeeded(final SegmentingSink sink) {
+                mSyncRequested = true;
+                mSyncRequests++;
+            }
+
+            @Override
+            public void onSegmentFinished(final SegmentingSink sink, final int index, final long durationUs, final long bytes) {
+                mFinished.add(new long[]{index, durationUs, bytes});
+            }
+        });
+        assertEquals(VIDEO, sink.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 480, null, null)));
+        assertEquals(AUDIO, sink.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 1, null)));
+        sink.start();
+        return sink;
+    }
+
+    /**
+     * each audio sample arrives one video frame late, like a writer that released video first
+     *
+     * @return number of written samples
+     */
+    private int feed(final SegmentingSink sink, final long durationUs) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(1000);
+        final SampleInfo info = new SampleInfo();
+        int frames = 0, audioFrames = 0, count = 0;
+        long pendingAudioPts = -1;
+        while (frames * FRAME_US < durationUs) {
+            final long videoPts = frames * FRAME_US;
+            final boolean key = mSyncRequested || (frames % KEY_FRAME_INTERVAL) == 0;
+            mSyncRequested = false;
+            buf.put(0, (byte) (key ? 1 : 0));
+            info.set(0, key ? 1000 : 200, videoPts, key ? SampleInfo.FLAG_SYNC_FRAME : 0);
+            sink.writeSampleData(VIDEO, buf, info);
+            count++;
+            frames++;
+            while (audioFrames * AUDIO_US < videoPts) {
+                if (pendingAudioPts >= 0) {
+                    buf.put(0, (byte) 0);
+                    info.set(0, 100, pendingAudioPts, SampleInfo.FLAG_SYNC_FRAME);
+                    sink.writeSampleData(AUDIO, buf, info);
+                    count++;
+                }
+                pendingAudioPts = audioFrames * AUDIO_US;
+                audioFrames++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void segmentsAreCutAtRequestedSyncFrames() throws Exception {
+        final SegmentingSink sink = createSink(1000000L, SegmentingSink.NO_LIMIT);
+        final int written = feed(sink, 5500000L);
+        sink.stop();
+        sink.release();
+
+        assertEquals(mSegments.size(), sink.getSegmentCount());
+        assertTrue("segments " + mSegments.size(), mSegments.size() >= 5);
+        assertEquals(mSegments.size(), mFinished.size());
+        // about one request per segment, never one per frame
+        assertTrue(mSyncRequests <= mSegments.size());
+
+        final Set<Long> seen = new HashSet<Long>();
+        int total = 0;
+        for (int i = 0; i < mSegments.size(); i++) {
+            final SegmentRecorder segment = mSegments.get(i);
+            assertTrue(segment.mStarted);
+            assertTrue(segment.mStopped);
+            assertEquals(2, segment.mTracks);
+            final long[] first = segment.mWritten.get(0);
+            assertEquals(VIDEO, first[0]);
+            assertEquals(1, first[2]);
+            final long cutPts = first[1];
+            final long nextCutPts = i + 1 < mSegments.size() ? mSegments.get(i + 1).mWritten.get(0)[1] : Long.MAX_VALUE;
+            for (final long[] sample : segment.mWritten) {
+                // audio is aligned to the sync frames that start the segments
+                assertTrue(sample[1] >= cutPts);
+                assertTrue(sample[1] < nextCutPts);
+                assertTrue("duplicated " + sample[1], seen.add(sample[0] * 1000000000L + sample[1]));
+                total++;
+            }
+            if (i + 1 < mSegments.size()) {
+                // cut one frame after the limit, at the requested sync frame
+                assertTrue("duration " + mFinished.get(i)[1], mFinished.get(i)[1] <= 1000000L + 2 * FRAME_US);
+                assertTrue("duration " + mFinished.get(i)[1], mFinished.get(i)[1] >= 1000000L);
+            }
+        }
+        assertEquals(written, total);
+    }
+
+    @Test
+    public void segmentsAreCutBySize() throws Exception {
+        final SegmentingSink sink = createSink(SegmentingSink.NO_LIMIT, 10000);
+        final int written = feed(sink, 3000000L);
+        sink.stop();
+
+        assertTrue(mSegments.size() >= 3);
+        int total = 0;
+        for (int i = 0; i < mFinished.size(); i++) {
+            if (i + 1 < mFinished.size()) {
+                // one more frame and its audio can be written before the sync frame
+                assertTrue("bytes " + mFinished.get(i)[2], mFinished.get(i)[2] < 10000 + 1000 + 200 + 3 * 100);
+            }
+            total += mSegments.get(i).mWritten.size();
+        }
+        assertEquals(written, total);
+    }
+}
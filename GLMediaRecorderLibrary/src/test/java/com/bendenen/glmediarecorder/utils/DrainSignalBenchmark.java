@@ -0,0 +1,187 @@
+package com.bendenen.glmediarecorder.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Microbenchmark of encoder drain signaling on a plain JVM.
+ * Compares {@link DrainSignal} with the former MediaEncoder scheme
+ * (synchronized counter with notifyAll/wait on mSync).
+ * For each event rate the producer signals at a fixed interval and the consumer records
+ * the time from signal to wakeup, then both run unthrottled to measure throughput.
+ * <p/>
+ * Run with: java -cp test-classes:classes com.bendenen.glmediarecorder.utils.DrainSignalBenchmark [seconds]
+ */
+public class DrainSignalBenchmark {
+
+    private static final int[] RATES = {30, 60, 240};
+
+    interface Signal {
+        void bindConsumer();
+
+        void signal();
+
+        /**
+         * @return number of coalesced signals, negative when interrupted
+         */
+        int await();
+    }
+
+    static final class LockFreeSignal implements Signal {
+        private final DrainSignal mSignal = new DrainSignal();
+
+        @Override
+        public void bindConsumer() {
+            mSignal.bindConsumer();
+        }
+
+        @Override
+        public void signal() {
+            mSignal.signal();
+        }
+
+        @Override
+        public int await() {
+            try {
+                return mSignal.await();
+            } catch (final InterruptedException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * the former MediaEncoder#frameAvailableSoon / MediaEncoder#run signaling
+     */
+    static final class MonitorSignal implements Signal {
+        private final Object mSync = new Object();
+        private int mRequestDrain;
+
+        @Override
+        public void bindConsumer() {
+        }
+
+        @Override
+        public void signal() {
+            synchronized (mSync) {
+                mRequestDrain++;
+                mSync.notifyAll();
+            }
+        }
+
+        @Override
+        public int await() {
+            for (; ; ) {
+                synchronized (mSync) {
+                    if (mRequestDrain > 0) {
+                        mRequestDrain--;
+                        return 1;
+                    }
+                    try {
+                        mSync.wait();
+                    } catch (final InterruptedException e) {
+                        return -1;
+                    }
+                }
+            }
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        System.out.println("scheme,rate,events,wakeups,p50_us,p99_us,max_us");
+        for (final int rate : RATES) {
+            latency("monitor", new MonitorSignal(), rate, seconds);
+            latency("lockfree", new LockFreeSignal(), rate, seconds);
+        }
+        System.out.println();
+        System.out.println("scheme,producers,signals_per_sec,wakeups_per_sec");
+        throughput("monitor", new MonitorSignal(), seconds);
+        throughput("lockfree", new LockFreeSignal(), seconds);
+    }
+
+    private static void latency(final String name, final Signal signal, final int rate, final int seconds)
+            throws InterruptedException {
+        final int events = rate * seconds;
+        final long[] signalTimes = new long[events];
+        final long[] latencies = new long[events];
+        final int[] wakeups = new int[1];
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                signal.bindConsumer();
+                int received = 0;
+                while (received < events) {
+                    final int n = signal.await();
+                    if (n < 0) return;
+                    final long now = System.nanoTime();
+                    for (int i = 0; i < n && received < events; i++, received++) {
+                        latencies[received] = now - signalTimes[received];
+                    }
+                    wakeups[0]++;
+                }
+            }
+        });
+        consumer.start();
+        Thread.sleep(10);
+        final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long next = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            next += interval;
+            while (System.nanoTime() < next) {
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+            signalTimes[i] = System.nanoTime();
+            signal.signal();
+        }
+        consumer.join();
+        Arrays.sort(latencies);
+        System.out.println(String.format("%s,%d,%d,%d,%.1f,%.1f,%.1f", name, rate, events, wakeups[0],
+                latencies[events / 2] / 1000.0, latencies[events * 99 / 100] / 1000.0, latencies[events - 1] / 1000.0));
+    }
+
+    private static void throughput(final String name, final Signal signal, final int seconds)
+            throws InterruptedException {
+        final int producers = 2;    // video and audio thread
+        final long[] wakeups = new long[1];
+        final long[] signals = new long[producers];
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                signal.bindConsumer();
+                for (; ; ) {
+                    if (signal.await() < 0) return;
+                    wakeups[0]++;
+                }
+            }
+        });
+        consumer.start();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    while (System.nanoTime() < deadline) {
+                        signal.signal();
+                        count++;
+                    }
+                    signals[index] = count;
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        consumer.interrupt();
+        signal.signal();
+        consumer.join();
+        long total = 0;
+        for (final long count : signals) total += count;
+        System.out.println(String.format("%s,%d,%d,%d", name, producers, total / seconds, wakeups[0] / seconds));
+    }
+}
@@ -0,0 +1,72 @@
+package com.bendenen.glmediarecorder.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DrainSignalTest {
+
+    @Test
+    public void pendingSignalsAreCoalesced() throws Exception {
+        final DrainSignal signal = new DrainSignal();
+        signal.bindConsumer();
+        for (int i = 0; i < 100; i++) {
+            signal.signal();
+        }
+        assertEquals(100, signal.await());
+        assertEquals(0, signal.poll());
+    }
+
+    @Test
+    public void awaitTimesOut() throws Exception {
+        final DrainSignal signal = new DrainSignal();
+        signal.bindConsumer();
+        final long start = System.nanoTime();
+        assertEquals(0, signal.await(20, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void noSignalIsLost() throws Exception {
+        final DrainSignal signal = new DrainSignal();
+        final int producers = 4;
+        final int perProducer = 50000;
+        final AtomicLong received = new AtomicLong();
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                signal.bindConsumer();
+                try {
+                    while (received.get() < producers * perProducer) {
+                        received.addAndGet(signal.await());
+                    }
+                } catch (final InterruptedException e) {
+                    // finish
+                }
+            }
+        });
+        consumer.start();
+        final Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perProducer; j++) {
+                        signal.signal();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        consumer.join(5000);
+        assertTrue(!consumer.isAlive());
+        assertEquals(producers * perProducer, received.get());
+    }
+}
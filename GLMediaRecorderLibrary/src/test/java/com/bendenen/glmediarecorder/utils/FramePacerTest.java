@@ -0,0 +1,97 @@
+package com.bendenen.glmediarecorder.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FramePacerTest {
+
+    private static final long SECOND_NS = 1000000000L;
+
+    /**
+     * feed camera frames at cameraFps with jitter for one minute and collect output timestamps
+     */
+    private static List<Long> run(final FramePacer pacer, final double cameraFps, final long jitterNs) {
+        final Random random = new Random(3);
+        final List<Long> output = new ArrayList<Long>();
+        final long start = 10 * SECOND_NS;
+        final int frames = (int) (cameraFps * 60);
+        for (int i = 0; i < frames; i++) {
+            final long ts = start + (long) (i * SECOND_NS / cameraFps) + (jitterNs > 0 ? (long) (random.nextDouble() * jitterNs) : 0);
+            final int n = pacer.onFrame(ts);
+            for (int j = 0; j < n; j++) {
+                output.add(pacer.getOutputTimestampNs(j));
+            }
+            // preview draws the same camera frame again sometimes
+            if (i % 5 == 0) assertEquals(0, pacer.onFrame(ts));
+        }
+        return output;
+    }
+
+    private static void assertConstantRate(final List<Long> output, final int frameRate) {
+        for (int i = 1; i < output.size(); i++) {
+            assertEquals(output.get(0) + i * SECOND_NS / frameRate, (long) output.get(i));
+        }
+    }
+
+    @Test
+    public void fastCameraIsDecimatedToFrameRate() {
+        final FramePacer pacer = new FramePacer(25);
+        final List<Long> output = run(pacer, 30, 2000000L);
+        assertConstantRate(output, 25);
+        assertEquals(25 * 60, output.size(), 2);
+        assertEquals(0, pacer.getDuplicatedFrames());
+        assertEquals(pacer.getInputFrames() - pacer.getOutputFrames(), pacer.getDroppedFrames());
+        assertEquals(5 * 60, pacer.getDroppedFrames(), 2);
+        assertEquals(30 * 60 / 5, pacer.getStaleFrames());
+    }
+
+    @Test
+    public void slowCameraIsFilledWithDuplicates() {
+        final FramePacer pacer = new FramePacer(25);
+        final List<Long> output = run(pacer, 15, 0);
+        assertConstantRate(output, 25);
+        assertEquals(25 * 60, output.size(), 2);
+        assertEquals(0, pacer.getDroppedFrames());
+        assertEquals(10 * 60, pacer.getDuplicatedFrames(), 2);
+    }
+
+    @Test
+    public void longStallSkipsSlotsInsteadOfFloodingDuplicates() {
+        final FramePacer pacer = new FramePacer(25, 3);
+        assertEquals(1, pacer.onFrame(SECOND_NS));
+        // no frame for one second
+        assertEquals(3, pacer.onFrame(2 * SECOND_NS));
+        assertEquals(2 * SECOND_NS - 2 * SECOND_NS / 25, pacer.getOutputTimestampNs(0));
+        assertEquals(2 * SECOND_NS, pacer.getOutputTimestampNs(2));
+        assertEquals(25 - 3, pacer.getSkippedSlots());
+        assertEquals(1, pacer.onFrame(2 * SECOND_NS + SECOND_NS / 25));
+    }
+
+    @Test
+    public void variableFrameRatePassesEveryNewFrameOnce() {
+        final FramePacer pacer = new FramePacer(FramePacer.VARIABLE_FRAME_RATE);
+        final List<Long> output = run(pacer, 30, 3000000L);
+        assertEquals(30 * 60, output.size());
+        for (int i = 1; i < output.size(); i++) {
+            assertTrue(output.get(i) > output.get(i - 1));
+        }
+        assertEquals(0, pacer.getDroppedFrames());
+        assertEquals(0, pacer.getDuplicatedFrames());
+        assertEquals(30 * 60 / 5, pacer.getStaleFrames());
+    }
+
+    @Test
+    public void resetStartsNewSchedule() {
+        final FramePacer pacer = new FramePacer(30);
+        assertEquals(1, pacer.onFrame(SECOND_NS));
+        pacer.reset();
+        assertEquals(1, pacer.onFrame(SECOND_NS + 5000000L));
+        assertEquals(SECOND_NS + 5000000L, pacer.getOutputTimestampNs(0));
+    }
+}
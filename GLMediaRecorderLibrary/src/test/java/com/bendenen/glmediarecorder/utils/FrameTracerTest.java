@@ -0,0 +1,74 @@
+package com.bendenen.glmediarecorder.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameTracerTest {
+
+    private static final long FRAME_NS = 40000000L;
+
+    private static void sleepMs(final long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (final InterruptedException e) {
+            // ignore
+        }
+    }
+
+    @Test
+    public void stagesAreMatchedByPresentationTime() {
+        final FrameTracer tracer = new FrameTracer();
+        final long base = System.nanoTime() - 5000000L;    // captured 5ms ago
+        for (int i = 0; i < 3; i++) {
+            final long id = tracer.beginFrame(base + i * FRAME_NS);
+            assertEquals(i, id);
+            tracer.endFrame(id);
+        }
+        sleepMs(20);
+        tracer.onEncoded((base + FRAME_NS) / 1000L);    // codec skipped frame 0
+        tracer.onEncoded((base + 2 * FRAME_NS) / 1000L);
+        tracer.onEncoded((base - FRAME_NS) / 1000L);    // not traced
+        tracer.onWritten(3000000L);
+
+        assertEquals(3, tracer.getTracedFrames());
+        assertEquals(1, tracer.getLostFrames());
+        final LatencyHistogram capture = tracer.getHistogram(FrameTracer.Stage.CAPTURE_TO_DRAW);
+        assertEquals(3, capture.getCount());
+        assertTrue(capture.getMax() >= 5000L);
+        final LatencyHistogram output = tracer.getHistogram(FrameTracer.Stage.SWAP_TO_OUTPUT);
+        assertEquals(2, output.getCount());
+        assertTrue(output.getPercentile(50) >= 20000L);
+        assertEquals(3000L, tracer.getHistogram(FrameTracer.Stage.OUTPUT_TO_DISK).getMax());
+        assertEquals(3, tracer.getHistogram(FrameTracer.Stage.DRAW_TO_SWAP).getCount());
+        assertTrue(tracer.dump().contains("SWAP_TO_OUTPUT: n=2"));
+    }
+
+    @Test
+    public void pacedFrameIsMeasuredFromCaptureTime() {
+        final FrameTracer tracer = new FrameTracer();
+        final long captureNs = System.nanoTime() - 10000000L;    // captured 10ms ago
+        final long slotNs = captureNs + FRAME_NS / 2;    // pacer slot is after the capture and after now
+        tracer.endFrame(tracer.beginFrame(captureNs, slotNs));
+        tracer.onEncoded(slotNs / 1000L);
+
+        final LatencyHistogram capture = tracer.getHistogram(FrameTracer.Stage.CAPTURE_TO_DRAW);
+        assertEquals(1, capture.getCount());
+        assertTrue(capture.getMax() >= 10000L);
+        assertEquals(1, tracer.getHistogram(FrameTracer.Stage.SWAP_TO_OUTPUT).getCount());
+        assertEquals(0, tracer.getLostFrames());
+    }
+
+    @Test
+    public void slotsReusedByStalledCodecAreCountedAsLost() {
+        final FrameTracer tracer = new FrameTracer();
+        final long base = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            tracer.endFrame(tracer.beginFrame(base + i * FRAME_NS));
+        }
+        tracer.onEncoded((base + 99 * FRAME_NS) / 1000L);
+        assertEquals(99, tracer.getLostFrames());
+        assertEquals(1, tracer.getHistogram(FrameTracer.Stage.SWAP_TO_OUTPUT).getCount());
+    }
+}
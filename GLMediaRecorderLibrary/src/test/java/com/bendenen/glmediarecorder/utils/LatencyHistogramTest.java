@@ -0,0 +1,53 @@
+package com.bendenen.glmediarecorder.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverValuesWithinPrecision() {
+        assertEquals(0, LatencyHistogram.indexOf(0));
+        assertEquals(15, LatencyHistogram.indexOf(15));
+        int last = 0;
+        for (long value = 1; value < (1L << 36); value += value / 7 + 1) {
+            final int index = LatencyHistogram.indexOf(value);
+            assertTrue(index >= last);
+            last = index;
+            final long upper = LatencyHistogram.upperBoundOf(index);
+            assertTrue(value + " in " + index, value <= upper);
+            // within one eighth of the value
+            assertTrue(value + " in " + index, upper - value <= value / 8);
+            if (index > 0) assertTrue(value > LatencyHistogram.upperBoundOf(index - 1));
+        }
+        // capped at the last bucket
+        assertEquals(LatencyHistogram.indexOf(Long.MAX_VALUE), LatencyHistogram.indexOf(1L << 45));
+    }
+
+    @Test
+    public void percentilesOfUniformLatencies() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 100L);
+        }
+        histogram.record(-5);
+        assertEquals(1001, histogram.getCount());
+        assertEquals(100000L, histogram.getMax());
+        final long p50 = histogram.getPercentile(50);
+        final long p99 = histogram.getPercentile(99);
+        assertTrue("p50 " + p50, p50 >= 50000L && p50 <= 50000L * 9 / 8);
+        assertTrue("p99 " + p99, p99 >= 99000L && p99 <= 100000L);
+        assertEquals(100000L, histogram.getPercentile(100));
+        assertEquals(0, histogram.getPercentile(0));
+
+        final LatencyHistogram snapshot = new LatencyHistogram();
+        histogram.copyTo(snapshot);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(p99, snapshot.getPercentile(99));
+        assertEquals("n=1001 p50=" + p50 + "us p99=" + p99 + "us max=100000us", snapshot.format());
+    }
+}
@@ -0,0 +1,129 @@
+package com.bendenen.glmediarecorder.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingBufferTest {
+
+    private static final int CHUNK = 1024;
+
+    /**
+     * fill chunk with 16bit samples whose value is their sample position
+     */
+    private static void fill(final ByteBuffer chunk, final long samplePosition, final int bytes) {
+        chunk.clear();
+        for (int i = 0; i < bytes / 2; i++) {
+            chunk.putShort((short) (samplePosition + i));
+        }
+        chunk.flip();
+    }
+
+    private static void verify(final ByteBuffer chunk, final long samplePosition) {
+        for (int i = 0; i < chunk.limit() / 2; i++) {
+            assertEquals((short) (samplePosition + i), chunk.getShort(i * 2));
+        }
+    }
+
+    @Test
+    public void chunksKeepContentAndPositionAcrossWrapAround() throws Exception {
+        // odd chunk sizes make padding at the end of the ring
+        final PcmRingBuffer ring = new PcmRingBuffer(5000, CHUNK);
+        final ByteBuffer in = ByteBuffer.allocate(CHUNK);
+        final ByteBuffer out = ByteBuffer.allocate(CHUNK);
+        long position = 0;
+        for (int i = 0; i < 100; i++) {
+            final int bytes = 2 * (100 + (i * 37) % 400);
+            fill(in, position, bytes);
+            assertTrue(ring.write(in, position));
+            out.clear();
+            assertEquals(bytes, ring.read(out));
+            out.flip();
+            assertEquals(position, ring.getLastSamplePosition());
+            verify(out, position);
+            position += bytes / 2;
+        }
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.getOverruns());
+    }
+
+    @Test
+    public void fullRingDropsChunkAndCountsOverrun() {
+        final PcmRingBuffer ring = new PcmRingBuffer(4 * (CHUNK + 16), CHUNK);
+        final ByteBuffer in = ByteBuffer.allocate(CHUNK);
+        int written = 0;
+        for (int i = 0; i < 6; i++) {
+            fill(in, i * 512, CHUNK);
+            if (ring.write(in, i * 512)) written++;
+        }
+        assertEquals(4, written);
+        assertEquals(2, ring.getOverruns());
+        assertEquals(2 * CHUNK, ring.getOverrunBytes());
+        assertEquals(ring.capacity(), ring.getMaxFill());
+
+        // after the consumer catches up, sample position shows the gap
+        final ByteBuffer out = ByteBuffer.allocate(CHUNK);
+        for (int i = 0; i < 4; i++) {
+            out.clear();
+            assertEquals(CHUNK, ring.read(out));
+        }
+        fill(in, 6 * 512, CHUNK);
+        assertTrue(ring.write(in, 6 * 512));
+        out.clear();
+        ring.read(out);
+        assertEquals(6 * 512, ring.getLastSamplePosition());
+    }
+
+    @Test
+    public void readTimesOutAsUnderrun() throws Exception {
+        final PcmRingBuffer ring = new PcmRingBuffer(8192, CHUNK);
+        assertEquals(-1, ring.read(ByteBuffer.allocate(CHUNK), 10, TimeUnit.MILLISECONDS));
+        assertEquals(1, ring.getUnderruns());
+        assertFalse(ring.read(ByteBuffer.allocate(CHUNK)) >= 0);
+        assertEquals(1, ring.getUnderruns());
+    }
+
+    @Test
+    public void syntheticProducerAndSlowConsumer() throws Exception {
+        final PcmRingBuffer ring = new PcmRingBuffer(16 * 1024, CHUNK);
+        final int chunks = 2000;
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ByteBuffer in = ByteBuffer.allocateDirect(CHUNK);
+                for (int i = 0; i < chunks; i++) {
+                    fill(in, i * (CHUNK / 2), CHUNK);
+                    ring.write(in, i * (CHUNK / 2));
+                    if (i % 16 == 0) Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        final ByteBuffer out = ByteBuffer.allocateDirect(CHUNK);
+        long lastPosition = -1;
+        int received = 0;
+        for (; ; ) {
+            out.clear();
+            final int length = ring.read(out, 200, TimeUnit.MILLISECONDS);
+            if (length < 0) {
+                if (!producer.isAlive() && ring.isEmpty()) break;
+                continue;
+            }
+            out.flip();
+            final long position = ring.getLastSamplePosition();
+            assertTrue(position > lastPosition);
+            verify(out, position);
+            lastPosition = position;
+            received++;
+            if (received % 8 == 0) Thread.sleep(1);    // consumer is slower than producer
+        }
+        producer.join();
+        assertEquals(chunks, received + ring.getOverruns());
+        assertEquals(ring.getOverruns() * CHUNK, ring.getOverrunBytes());
+    }
+}
@@ -0,0 +1,72 @@
+package com.bendenen.glmediarecorder.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimestampRingTest {
+
+    @Test
+    public void keepsOrderAcrossWrapAround() {
+        final TimestampRing ring = new TimestampRing(3);
+        assertEquals(4, ring.capacity());
+        assertEquals(TimestampRing.EMPTY, ring.poll());
+        long next = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ring.offer(round * 3 + i));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(next++, ring.poll());
+            }
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void rejectsWhenFull() {
+        final TimestampRing ring = new TimestampRing(2);
+        assertTrue(ring.offer(1));
+        assertTrue(ring.offer(2));
+        assertFalse(ring.offer(3));
+        assertEquals(1, ring.peek());
+        assertEquals(1, ring.poll());
+        assertTrue(ring.offer(3));
+        ring.clear();
+        assertEquals(TimestampRing.EMPTY, ring.peek());
+    }
+
+    @Test
+    public void consumerSeesMonotonicTimestampsFromProducerThread() throws Exception {
+        final TimestampRing ring = new TimestampRing(8);
+        final int count = 20000;
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long ts = 1; ts <= count; ) {
+                    if (ring.offer(ts * 1000L)) {
+                        ts++;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        long last = 0;
+        int received = 0;
+        while (received < count) {
+            final long ts = ring.poll();
+            if (ts == TimestampRing.EMPTY) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(last + 1000L, ts);
+            last = ts;
+            received++;
+        }
+        producer.join();
+    }
+}
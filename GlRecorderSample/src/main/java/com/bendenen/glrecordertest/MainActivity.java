@@ -16,17 +16,16 @@ import android.widget.RelativeLayout;
 import android.widget.Toast;
 
 import com.bendenen.glmediarecorder.GLVideoView;
-import com.bendenen.glmediarecorder.encoder.MediaAudioEncoder;
-import com.bendenen.glmediarecorder.encoder.MediaEncoder;
-import com.bendenen.glmediarecorder.encoder.MediaVideoEncoder;
+import com.bendenen.glmediarecorder.RecorderSession;
+import com.bendenen.glmediarecorder.ViewEncoderFactory;
 import com.bendenen.glmediarecorder.mediamuxer.MediaMuxerWrapper;
+import com.bendenen.glmediarecorder.utils.CompletionFuture;
 import com.bendenen.glrecordertest.utils.Utils;
 import com.bendenen.glrecordertest.view.InLineVideoCameraControlsView;
 import com.danikula.aibolit.Aibolit;
 import com.danikula.aibolit.annotation.InjectView;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -46,6 +45,12 @@ public class MainActivity extends AppCompatActivity {
 
     private static final long AVARAGE_INDEX = 400000;
 
+    private static final long WARM_UP_DELAY = 500;
+
+    private static final int VIDEO_WIDTH = 800;
+
+    private static final int VIDEO_HEIGHT = 600;
+
     public interface StartOrResultListener {
         void onRecordFinished(Uri fileUri);
 
@@ -70,7 +75,9 @@ public class MainActivity extends AppCompatActivity {
     private Uri videoUri;
 
     // Variables for OpenGL implementation
-    private MediaMuxerWrapper muxer;
+    private RecorderSession session;
+
+    private File outputFile;
 
     private boolean isRecording = false;
 
@@ -79,24 +86,6 @@ public class MainActivity extends AppCompatActivity {
     private long maxRecordingSize = 40000;
 
 
-    /**
-     * callback methods from encoder
-     */
-    private final MediaEncoder.MediaEncoderListener mediaEncoderListener = new MediaEncoder.MediaEncoderListener() {
-        @Override
-        public void onPrepared(final MediaEncoder encoder) {
-            if (encoder instanceof MediaVideoEncoder)
-                glVideoView.setVideoEncoder((MediaVideoEncoder) encoder);
-        }
-
-        @Override
-        public void onStopped(final MediaEncoder encoder) {
-            if (encoder instanceof MediaVideoEncoder)
-                glVideoView.setVideoEncoder(null);
-        }
-    };
-
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -117,6 +106,53 @@ public class MainActivity extends AppCompatActivity {
         buttonsHolder.setRecordButtonCheckedChangeListener(new RecordClickHandler());
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        warmUpRecorder();
+    }
+
+    @Override
+    protected void onPause() {
+        glVideoView.removeCallbacks(warmUpTask);
+        if (!isRecording) {
+            releaseSession();
+        }
+        super.onPause();
+    }
+
+    private void releaseSession() {
+        if (session != null) {
+            session.release();
+            session = null;
+        }
+    }
+
+    /**
+     * prepare encoders for the next recording while preview is running, so record button only attaches the file
+     */
+    private void warmUpRecorder() {
+        glVideoView.removeCallbacks(warmUpTask);
+        glVideoView.postDelayed(warmUpTask, WARM_UP_DELAY);
+    }
+
+    private final Runnable warmUpTask = new Runnable() {
+        @Override
+        public void run() {
+            if (isRecording || session != null) {
+                return;
+            }
+            if (glVideoView.getVideoWidth() <= 0) {
+                // preview has not started yet
+                warmUpRecorder();
+                return;
+            }
+            // encoders are prepared on the session thread, this does not block
+            session = new RecorderSession(new ViewEncoderFactory(glVideoView, VIDEO_WIDTH, VIDEO_HEIGHT, true));
+            session.prepare();
+        }
+    };
+
     private void updateButtonsState() {
         boolean recording = isRecording();
 
@@ -158,66 +194,95 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * start resorcing
-     * This is a sample project and call this on UI thread to avoid being complicated
-     * but basically this should be called on private thread because prepareing
-     * of encoder is heavy work
+     * start recording, the session prepares encoders on its own thread if the warm up did not finish yet
      */
     private void startRecording() {
-        try {
-            muxer = new MediaMuxerWrapper(Utils.getNewVideoFile());
-            // for video capturing
-            new MediaVideoEncoder(muxer, mediaEncoderListener, 800, 600,
-                    glVideoView.getVideoWidth(), glVideoView.getVideoHeight(), glVideoView.isFrontFacing());
-            // for audio capturing
-            new MediaAudioEncoder(muxer, mediaEncoderListener);
-            muxer.prepare();
-            muxer.startRecording();
-
-            isRecording = true;
-            recordStartTime = System.currentTimeMillis();
-            startUpdatingRecordProgress();
-            if (startOrResultListener != null) {
-                startOrResultListener.onStartRecording();
+        glVideoView.removeCallbacks(warmUpTask);
+        if (session == null) {
+            session = new RecorderSession(new ViewEncoderFactory(glVideoView, VIDEO_WIDTH, VIDEO_HEIGHT, true));
+        }
+        outputFile = Utils.getNewVideoFile();
+        session.start(outputFile).addCallback(new CompletionFuture.Callback<Void>() {
+            @Override
+            public void onComplete(Void result) {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                Log.e(TAG, "Start Capture Error: ", error);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseSession();
+                        if (isRecording) {
+                            isRecording = false;
+                            stopUpdatingSizeProgress();
+                            updateButtonsState();
+                        }
+                        Toast.makeText(MainActivity.this, R.string.video_recording_error, Toast.LENGTH_LONG).show();
+                    }
+                });
             }
-            startControlBarAnimation();
+        });
 
-        } catch (final IOException e) {
-            Log.e(TAG, "Start Capture Error: ", e);
+        isRecording = true;
+        recordStartTime = System.currentTimeMillis();
+        startUpdatingRecordProgress();
+        if (startOrResultListener != null) {
+            startOrResultListener.onStartRecording();
         }
+        startControlBarAnimation();
     }
 
     /**
      * request stop recording
      */
     private void stopRecording(final boolean isMoveToPreview) {
-        if (muxer != null) {
-            muxer.setRecordStateChangeListener(new MediaMuxerWrapper.RecordStateChangeListener() {
-                @Override
-                public void onRecordStateChanged(boolean isStarted) {
-                    if (!isStarted) {
+        if (session == null || !isRecording) {
+            return;
+        }
+        final MediaMuxerWrapper muxer = session.getMuxer();
+        session.stop().addCallback(new CompletionFuture.Callback<RecorderSession.Result>() {
+            @Override
+            public void onComplete(final RecorderSession.Result result) {
+                if (muxer != null) {
+                    Log.i(TAG, "time to first sample: " + muxer.getTimeToFirstSampleUs() + "us");
+                }
+                Log.i(TAG, "stop to file ready: " + result.stopLatencyUs + "us, "
+                        + result.durationUs + "us, " + result.bytes + "bytes");
+                final File file = result.outputFile;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
                         isRecording = false;
                         stopUpdatingSizeProgress();
                         if ((startOrResultListener != null) && isMoveToPreview) {
-                            MainActivity.this.runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    Log.e("MyTag", muxer.getOutputFile().toString());
-                                    startOrResultListener.onRecordFinished(Uri.fromFile(muxer.getOutputFile()));
-                                    muxer = null;
-                                }
-                            });
+                            startOrResultListener.onRecordFinished(Uri.fromFile(file));
                         } else {
                             // TODO: Need to check this case
-                            muxer.getOutputFile().delete();
-                            muxer = null;
+                            file.delete();
+                        }
+                        // the session prepares the next recording
+                        if (session != null) {
+                            session.prepare();
                         }
                     }
-                }
-            });
-            muxer.stopRecording();
+                });
+            }
 
-        }
+            @Override
+            public void onError(Throwable error) {
+                Log.e(TAG, "Stop Capture Error: ", error);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        isRecording = false;
+                        stopUpdatingSizeProgress();
+                        releaseSession();
+                    }
+                });
+            }
+        });
     }
 
     public boolean isRecording() {
@@ -257,7 +322,7 @@ public class MainActivity extends AppCompatActivity {
         // actual recording does not start when this method invoked. We don't know when it starts...
         progressUpdaterTimer.schedule(new RecordTimeMonitor(System.currentTimeMillis() + RECORD_TIME_DELAY), RECORD_TIME_DELAY, RECORD_TIME_UPDATE_INTERVAL);
 
-        progressUpdaterTimer.schedule(new FileSizeMonitor(muxer.getOutputFile()), FILE_SIZE_UPDATE_INTERVAL, FILE_SIZE_UPDATE_INTERVAL);
+        progressUpdaterTimer.schedule(new FileSizeMonitor(outputFile), FILE_SIZE_UPDATE_INTERVAL, FILE_SIZE_UPDATE_INTERVAL);
     }
 
     private void stopUpdatingSizeProgress() {
@@ -338,6 +403,11 @@ public class MainActivity extends AppCompatActivity {
             }
             if (com.bendenen.glmediarecorder.utils.CameraUtils.hasFewCamera()) {
                 glVideoView.switchCamera();
+                if (!isRecording) {
+                    // the prepared encoder has orientation of the previous camera
+                    releaseSession();
+                    warmUpRecorder();
+                }
             }
         }
     }